@@ -0,0 +1,371 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.adgroups;
+
+import com.google.common.base.Strings;
+import com.google.enterprise.connector.adgroups.AdConstants.Method;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Verifies user passwords with LDAP simple binds against the domains stored
+ * in the database. One instance is shared by all authentication managers of
+ * a connector, so that the following survives between logins:
+ * <ul>
+ * <li>the transport (SSL or plain) that last worked for each domain, which is
+ * tried first instead of always probing SSL before falling back; a fall back
+ * to plain LDAP is only remembered for {@link #SSL_REPROBE_MILLIS}, after
+ * which SSL is tried first again,</li>
+ * <li>a few open connections per domain, which are re-bound with the next
+ * user's credentials instead of opening a new connection for every login,
+ * </li>
+ * <li>domains that could not be reached over any transport, which are not
+ * contacted again until {@link #UNREACHABLE_BACKOFF_MILLIS} expires.</li>
+ * </ul>
+ * Bind latencies are reported per domain every
+ * {@link #LATENCY_REPORT_INTERVAL} binds.
+ */
+public class AdBindVerifier {
+  private static final Logger LOGGER =
+      Logger.getLogger(AdBindVerifier.class.getName());
+
+  /** How long a domain that could not be reached is not contacted again. */
+  static final long UNREACHABLE_BACKOFF_MILLIS = 60 * 1000L;
+
+  /**
+   * How long plain LDAP is used for a domain whose SSL connection failed,
+   * before SSL is tried first again. SSL may have failed only for a moment,
+   * and passwords must not be sent in cleartext for longer than needed.
+   */
+  static final long SSL_REPROBE_MILLIS = 5 * 60 * 1000L;
+
+  /**
+   * Idle connections older than this are closed instead of reused; domain
+   * controllers drop idle LDAP connections after 15 minutes by default.
+   */
+  static final long MAX_IDLE_MILLIS = 5 * 60 * 1000L;
+
+  /** Number of binds after which latencies of a domain are logged. */
+  static final int LATENCY_REPORT_INTERVAL = 1000;
+
+  private static final String CONNECT_TIMEOUT = "5000";
+  private static final String READ_TIMEOUT = "30000";
+
+  private final int poolSize;
+  private final ConcurrentMap<String, Domain> domains =
+      new ConcurrentHashMap<String, Domain>();
+
+  /**
+   * @param poolSize maximum number of idle connections kept open per domain;
+   *        zero disables connection reuse
+   */
+  public AdBindVerifier(int poolSize) {
+    this.poolSize = Math.max(0, poolSize);
+  }
+
+  /**
+   * Verifies the password of a user with a simple bind to the domain.
+   *
+   * @param dnsRoot hostname of the domain
+   * @param principal NetBIOS name qualified account name of the user
+   * @param password password
+   * @return if authentication was successful
+   */
+  public boolean verify(String dnsRoot, String principal, String password) {
+    // A simple bind with an empty password is an unauthenticated bind,
+    // which Active Directory accepts for any account name.
+    if (Strings.isNullOrEmpty(password)) {
+      LOGGER.info("Empty password rejected for user [" + principal + "]");
+      return false;
+    }
+
+    Domain domain = getDomain(dnsRoot);
+    long start = currentTimeMillis();
+    if (domain.isUnreachable(start)) {
+      LOGGER.info("Domain [" + dnsRoot + "] was unreachable recently, "
+          + "authentication of user [" + principal + "] failed");
+      return false;
+    }
+
+    Method preferred = domain.getMethod(start);
+    Method[] methods = (preferred == Method.STANDARD)
+        ? new Method[] {Method.STANDARD, Method.SSL}
+        : new Method[] {Method.SSL, Method.STANDARD};
+    for (Method method : methods) {
+      Boolean result = bind(domain, method, principal, password);
+      if (result != null) {
+        if (method != preferred) {
+          LOGGER.info("Using " + method.name()
+              + " to authenticate users of domain [" + dnsRoot + "]");
+          domain.setMethod(method, currentTimeMillis() + SSL_REPROBE_MILLIS);
+        }
+        domain.recordBind(method, currentTimeMillis() - start);
+        if (result) {
+          LOGGER.info("Successfully authenticated user [" + principal + "]");
+        }
+        return result;
+      }
+    }
+
+    LOGGER.warning("Domain [" + dnsRoot + "] is unreachable, not contacting "
+        + "it for the next " + UNREACHABLE_BACKOFF_MILLIS / 1000 + " seconds");
+    domain.setMethod(null, 0);
+    domain.closeAll();
+    domain.setUnreachable(currentTimeMillis() + UNREACHABLE_BACKOFF_MILLIS);
+    return false;
+  }
+
+  /**
+   * Binds as the user over the given transport, reusing an idle connection
+   * to the domain when there is one.
+   *
+   * @return whether the bind succeeded, or {@code null} if the domain could
+   *         not be reached over the transport
+   */
+  private Boolean bind(Domain domain, Method method, String principal,
+      String password) {
+    PooledContext pooled = domain.borrow(method, currentTimeMillis());
+    if (pooled != null) {
+      LdapContext ctx = pooled.context;
+      try {
+        ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, principal);
+        ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
+        // Re-authenticates over the existing connection.
+        ctx.reconnect(null);
+        domain.release(pooled, currentTimeMillis());
+        return Boolean.TRUE;
+      } catch (AuthenticationException e) {
+        LOGGER.log(Level.INFO,
+            "Authentication failed for user [" + principal + "]", e);
+        domain.release(pooled, currentTimeMillis());
+        return Boolean.FALSE;
+      } catch (CommunicationException e) {
+        // The connection went stale while idle, retry with a new one.
+        LOGGER.log(Level.FINE, "Pooled connection to domain ["
+            + domain.dnsRoot + "] failed", e);
+        close(ctx);
+      } catch (NamingException e) {
+        LOGGER.log(Level.INFO,
+            "Authentication failed for user [" + principal + "]", e);
+        close(ctx);
+        return Boolean.FALSE;
+      }
+    }
+
+    try {
+      LdapContext ctx =
+          createContext(method, domain.dnsRoot, principal, password);
+      domain.release(new PooledContext(method, ctx), currentTimeMillis());
+      return Boolean.TRUE;
+    } catch (CommunicationException e) {
+      // network or SSL related, the caller tries the other transport
+      LOGGER.log(Level.FINE, method.name() + " connection to domain ["
+          + domain.dnsRoot + "] failed", e);
+      return null;
+    } catch (NamingException e) {
+      LOGGER.log(Level.INFO,
+          "Authentication failed for user [" + principal + "]", e);
+      return Boolean.FALSE;
+    }
+  }
+
+  /**
+   * Opens a new connection to the domain, bound as the user.
+   */
+  LdapContext createContext(Method method, String dnsRoot, String principal,
+      String password) throws NamingException {
+    Hashtable<String, String> env = new Hashtable<String, String>();
+    env.put(Context.INITIAL_CONTEXT_FACTORY,
+        AdConstants.COM_SUN_JNDI_LDAP_LDAP_CTX_FACTORY);
+    env.put("com.sun.jndi.ldap.connect.timeout", CONNECT_TIMEOUT);
+    env.put("com.sun.jndi.ldap.read.timeout", READ_TIMEOUT);
+    env.put(Context.SECURITY_AUTHENTICATION, AdConstants.AUTHN_TYPE_SIMPLE);
+    env.put(Context.SECURITY_PRINCIPAL, principal);
+    env.put(Context.SECURITY_CREDENTIALS, password);
+    int port = (method == Method.SSL) ? 636 : 389;
+    env.put(Context.PROVIDER_URL,
+        method.toString() + dnsRoot + AdConstants.COLON + port);
+    return new InitialLdapContext(env, null);
+  }
+
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Closes all idle connections.
+   */
+  public void close() {
+    for (Domain domain : domains.values()) {
+      domain.closeAll();
+    }
+  }
+
+  private Domain getDomain(String dnsRoot) {
+    String key = dnsRoot.toLowerCase();
+    Domain domain = domains.get(key);
+    if (domain == null) {
+      Domain created = new Domain(dnsRoot);
+      domain = domains.putIfAbsent(key, created);
+      if (domain == null) {
+        domain = created;
+      }
+    }
+    return domain;
+  }
+
+  private static void close(LdapContext ctx) {
+    try {
+      ctx.close();
+    } catch (NamingException e) {
+      LOGGER.log(Level.FINEST, "Failed to close LDAP connection", e);
+    }
+  }
+
+  private static class PooledContext {
+    final Method method;
+    final LdapContext context;
+    long lastUsed;
+
+    PooledContext(Method method, LdapContext context) {
+      this.method = method;
+      this.context = context;
+    }
+  }
+
+  /**
+   * What is remembered about one domain.
+   */
+  private class Domain {
+    final String dnsRoot;
+    private Method method;
+    // when plain LDAP is in use, the time to try SSL first again
+    private long sslReprobeTime;
+    private long unreachableUntil;
+    // most recently used first, so that surplus connections expire
+    private final LinkedList<PooledContext> idle =
+        new LinkedList<PooledContext>();
+    private final long[] latencies = new long[LATENCY_REPORT_INTERVAL];
+    private int binds;
+
+    Domain(String dnsRoot) {
+      this.dnsRoot = dnsRoot;
+    }
+
+    /**
+     * @return the transport to try first, or {@code null} if none is known
+     */
+    synchronized Method getMethod(long now) {
+      if (method == Method.STANDARD && now >= sslReprobeTime) {
+        return Method.SSL;
+      }
+      return method;
+    }
+
+    /**
+     * @param method the transport that worked
+     * @param reprobeTime when to try SSL first again, if plain LDAP worked
+     */
+    synchronized void setMethod(Method method, long reprobeTime) {
+      this.method = method;
+      this.sslReprobeTime = reprobeTime;
+    }
+
+    synchronized boolean isUnreachable(long now) {
+      return now < unreachableUntil;
+    }
+
+    synchronized void setUnreachable(long until) {
+      unreachableUntil = until;
+    }
+
+    PooledContext borrow(Method wanted, long now) {
+      PooledContext result = null;
+      LinkedList<PooledContext> expired = new LinkedList<PooledContext>();
+      synchronized (this) {
+        for (Iterator<PooledContext> it = idle.iterator(); it.hasNext();) {
+          PooledContext pooled = it.next();
+          if (now - pooled.lastUsed > MAX_IDLE_MILLIS
+              || pooled.method != wanted) {
+            it.remove();
+            expired.add(pooled);
+          } else if (result == null) {
+            it.remove();
+            result = pooled;
+          }
+        }
+      }
+      for (PooledContext pooled : expired) {
+        close(pooled.context);
+      }
+      return result;
+    }
+
+    void release(PooledContext pooled, long now) {
+      pooled.lastUsed = now;
+      synchronized (this) {
+        if (idle.size() < poolSize) {
+          idle.addFirst(pooled);
+          return;
+        }
+      }
+      close(pooled.context);
+    }
+
+    void closeAll() {
+      LinkedList<PooledContext> closing;
+      synchronized (this) {
+        closing = new LinkedList<PooledContext>(idle);
+        idle.clear();
+      }
+      for (PooledContext pooled : closing) {
+        close(pooled.context);
+      }
+    }
+
+    synchronized void recordBind(Method method, long millis) {
+      latencies[binds++] = millis;
+      if (binds < latencies.length) {
+        return;
+      }
+      Arrays.sort(latencies);
+      long total = 0;
+      for (long latency : latencies) {
+        total += latency;
+      }
+      LOGGER.info("Bind latency for domain [" + dnsRoot + "] over "
+          + method.name() + " in the last " + binds
+          + " authentications: average [" + total / binds
+          + "ms] median [" + latencies[binds / 2]
+          + "ms] 99th percentile [" + latencies[binds * 99 / 100]
+          + "ms] maximum [" + latencies[binds - 1] + "ms]");
+      binds = 0;
+    }
+  }
+}
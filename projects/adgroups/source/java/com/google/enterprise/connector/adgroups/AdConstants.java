@@ -39,6 +39,7 @@ public class AdConstants {
       "configurationNamingContext";
   public static final String ATTR_DISTINGUISHEDNAME = "distinguishedName";
   public static final String ATTR_INVOCATIONID = "invocationID;binary";
+  public static final String ATTR_DNSHOSTNAME = "dnsHostName";
 
   // Restrict to security groups, where
   // LDAP_MATCHING_RULE_BIT_AND = 1.2.840.113556.1.4.803
@@ -93,6 +94,9 @@ public class AdConstants {
   public static final String SID_START = "S-";
   public static final String GUID_START = "0x";
 
+  // number of attempts for each range based member retrieval request
+  public static final int RANGE_RETRIEVAL_ATTEMPTS = 3;
+
   public static final String AUTHN_TYPE_SIMPLE = "simple";
   public static final String AUTHN_TYPE_ANONYMOUS = "none";
 
@@ -77,6 +77,8 @@ public class AdDbUtil {
     DELETE_MEMBERSHIPS_BY_DN_AND_MEMBERDN
         ("DELETE_MEMBERSHIPS_BY_DN_AND_MEMBERDN"),
     SELECT_ALL_ENTITIES_BY_SID("SELECT_ALL_ENTITIES_BY_SID"),
+    ADD_MISSING_PRIMARY_GROUPS("ADD_MISSING_PRIMARY_GROUPS"),
+    RESOLVE_MEMBERIDS("RESOLVE_MEMBERIDS"),
     DELETE_ENTITY("DELETE_ENTITY"),
     DELETE_ENTITY_BY_ENTITYID("DELETE_ENTITY_BY_ENTITYID"),
     TEST_CONNECTORNAME("TEST_CONNECTORNAME"),
@@ -96,6 +98,18 @@ public class AdDbUtil {
     }
   }
 
+  /**
+   * Receives rows from {@link AdDbUtil#select(Query, Map, RowHandler)} one at
+   * a time.
+   */
+  public interface RowHandler {
+    /**
+     * @param row map of columns and their values
+     * @return false to stop reading further rows
+     */
+    boolean handle(Map<String, Object> row) throws SQLException;
+  }
+
   private DataSource dataSource;
   private DatabaseConnectionPool connectionPool;
   private int batchHint = 50;
@@ -400,6 +414,69 @@ public class AdDbUtil {
     }
   }
 
+  /**
+   * Executes select statement in the database and passes the rows to the
+   * handler as they are read, without collecting the whole result in memory.
+   * The rows are read on a connection of their own, so the handler may use
+   * this object to write to the database.
+   * @param query to be executed
+   * @param params parameter values
+   * @param handler receives each row
+   * @return number of rows passed to the handler
+   * @throws SQLException
+   */
+  public int select(Query query, Map<String, Object> params,
+      RowHandler handler) throws SQLException {
+    Connection connection = null;
+    PreparedStatement statement = null;
+    ResultSet rs = null;
+    try {
+      List<String> identifiers = new ArrayList<String>();
+      connection = connectionPool.getConnection();
+      // function sortParams fills identifiers variable
+      String sql = sortParams(query, identifiers);
+      statement = connection.prepareStatement(sql);
+      statement.setFetchSize(batchHint);
+      addParams(statement, identifiers, params);
+
+      rs = statement.executeQuery();
+      ResultSetMetaData rsmd = rs.getMetaData();
+      String[] columns = new String[rsmd.getColumnCount()];
+      for (int i = 0; i < columns.length; ++i) {
+        columns[i] = rsmd.getColumnLabel(i + 1).toLowerCase(Locale.ENGLISH);
+      }
+      int rows = 0;
+      while (rs.next()) {
+        HashMap<String, Object> result = new HashMap<String, Object>();
+        for (int i = 0; i < columns.length; ++i) {
+          if (rsmd.getColumnType(i + 1) == java.sql.Types.TIMESTAMP) {
+            result.put(columns[i], rs.getTimestamp(i + 1));
+          } else {
+            result.put(columns[i], rs.getObject(i + 1));
+          }
+        }
+        ++rows;
+        if (!handler.handle(result)) {
+          break;
+        }
+      }
+      return rows;
+    } finally {
+      try {
+        if (rs != null) {
+          rs.close();
+        }
+        if (statement != null) {
+          statement.close();
+        }
+      } finally {
+        if (connection != null) {
+          connectionPool.releaseConnection(connection);
+        }
+      }
+    }
+  }
+
   /**
    * Executes a query in the database
    * @param query to be executed
@@ -15,7 +15,6 @@
 package com.google.enterprise.connector.adgroups;
 
 import com.google.common.base.Strings;
-import com.google.enterprise.connector.adgroups.AdConstants.Method;
 import com.google.enterprise.connector.adgroups.AdDbUtil.Query;
 import com.google.enterprise.connector.spi.AuthenticationIdentity;
 import com.google.enterprise.connector.spi.AuthenticationManager;
@@ -32,9 +31,6 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.naming.CommunicationException;
-import javax.naming.NamingException;
-
 /**
  * This class provides an implementation of AuthenticationManager SPI provided
  * by CM for authenticating the search users. To understand how this module fits
@@ -49,6 +45,7 @@ public class AdGroupsAuthenticationManager implements AuthenticationManager {
   private final String globalNamespace;
   private final boolean includeBuiltinGroups;
   private final String databaseType;
+  private final AdBindVerifier bindVerifier;
 
   /**
    * @param connector an instance of an {@link AdGroupsConnector}
@@ -59,6 +56,7 @@ public class AdGroupsAuthenticationManager implements AuthenticationManager {
     globalNamespace = connector.getGoogleGlobalNamespace();
     includeBuiltinGroups = connector.isIncludeBuiltinGroups();
     databaseType = connector.getDatabaseType();
+    bindVerifier = connector.getBindVerifier();
   }
 
   /**
@@ -161,38 +159,7 @@ public class AdGroupsAuthenticationManager implements AuthenticationManager {
    * @return if authentication was successful
    */
   boolean authenticateUser(String dnsRoot, String principal, String password) {
-    // Authenticate via SSL
-    try {
-      new AdServer(Method.SSL, dnsRoot, 636, principal, password).connect();
-      // No exception thrown - authentication succeeded
-      LOGGER.info("Successfully authenticated user [" + principal + "]");
-      return true;
-    } catch (CommunicationException e) {
-      // network or SSL related, continue without SSL
-      LOGGER.log(Level.FINE, "SSL Authentication failed", e);
-    } catch (NamingException e) {
-      // NamingException - authentication failed
-      LOGGER.log(Level.INFO,
-          "SSL Authenticated failed for user [" + principal + "]", e);
-      return false;
-    }
-
-    try {
-      new AdServer(Method.STANDARD, dnsRoot, 389, principal, password).connect();
-      // No exception thrown - authentication succeeded
-      LOGGER.info("Successfully authenticated user [" + principal + "]");
-      return true;
-    } catch (CommunicationException e) {
-      // network related exception
-      LOGGER.log(Level.INFO,
-          "Plain Authentication failed for user [" + principal + "]", e);
-      return false;
-    } catch (Exception e) {
-      // any other exception - authentication failed
-      LOGGER.log(Level.FINE,
-          "Authentication failed for user [ " + principal + " ]", e);
-      return false;
-    }
+    return bindVerifier.verify(dnsRoot, principal, password);
   }
 
   Principal formatGroup(HashMap<String, Object> entity) {
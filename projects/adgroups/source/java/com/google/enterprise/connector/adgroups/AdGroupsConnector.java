@@ -46,6 +46,11 @@ public class AdGroupsConnector implements Connector,
   private String principal;
   private String password;
   private boolean includeBuiltinGroups;
+  private boolean pipelinedTraversal = false;
+  private int pipelineChunkSize = 1000;
+  private int maxRangeRetrievalConnections = 4;
+  private int authenticationPoolSize = 4;
+  private AdBindVerifier bindVerifier;
 
   private DataSource dataSource;
   private String dbType;
@@ -143,6 +148,76 @@ public class AdGroupsConnector implements Connector,
     this.includeBuiltinGroups = includeBuiltinGroups;
   }
 
+  /**
+   * Gets whether LDAP search results are streamed to the database in chunks
+   * instead of being collected in memory before the database is updated.
+   */
+  public boolean isPipelinedTraversal() {
+    return pipelinedTraversal;
+  }
+
+  /**
+   * Sets whether LDAP search results are streamed to the database in chunks
+   * instead of being collected in memory before the database is updated.
+   */
+  public void setPipelinedTraversal(boolean pipelinedTraversal) {
+    this.pipelinedTraversal = pipelinedTraversal;
+  }
+
+  /** Gets the number of entities written to the database per chunk. */
+  public int getPipelineChunkSize() {
+    return pipelineChunkSize;
+  }
+
+  /** Sets the number of entities written to the database per chunk. */
+  public void setPipelineChunkSize(int pipelineChunkSize) {
+    this.pipelineChunkSize = pipelineChunkSize;
+  }
+
+  /**
+   * Gets the maximum number of connections per domain controller used to
+   * retrieve the members of large groups in parallel.
+   */
+  public int getMaxRangeRetrievalConnections() {
+    return maxRangeRetrievalConnections;
+  }
+
+  /**
+   * Sets the maximum number of connections per domain controller used to
+   * retrieve the members of large groups in parallel.
+   */
+  public void setMaxRangeRetrievalConnections(
+      int maxRangeRetrievalConnections) {
+    this.maxRangeRetrievalConnections = maxRangeRetrievalConnections;
+  }
+
+  /**
+   * Gets the maximum number of idle connections per domain kept open to
+   * verify user passwords.
+   */
+  public int getAuthenticationPoolSize() {
+    return authenticationPoolSize;
+  }
+
+  /**
+   * Sets the maximum number of idle connections per domain kept open to
+   * verify user passwords.
+   */
+  public void setAuthenticationPoolSize(int authenticationPoolSize) {
+    this.authenticationPoolSize = authenticationPoolSize;
+  }
+
+  /**
+   * Gets the password verifier shared by all authentication managers of this
+   * connector.
+   */
+  synchronized AdBindVerifier getBindVerifier() {
+    if (bindVerifier == null) {
+      bindVerifier = new AdBindVerifier(authenticationPoolSize);
+    }
+    return bindVerifier;
+  }
+
   public String getConnectorName() {
     return connectorName;
   }
@@ -159,6 +234,12 @@ public class AdGroupsConnector implements Connector,
   public void shutdown() throws RepositoryException {
     LOGGER.info("Shutting down the connector with the name [" + connectorName
         + "]");
+    synchronized (this) {
+      if (bindVerifier != null) {
+        bindVerifier.close();
+        bindVerifier = null;
+      }
+    }
   }
 
   /*
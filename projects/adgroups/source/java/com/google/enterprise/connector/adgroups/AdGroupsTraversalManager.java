@@ -27,6 +27,7 @@ import com.google.enterprise.connector.util.EmptyDocumentList;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Enumeration;
@@ -36,6 +37,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,6 +54,24 @@ public class AdGroupsTraversalManager implements TraversalManager {
   private AdDbUtil db;
   private long fullRecrawlThresholdInMillis = 24 * 60 * 60 * 1000;
   private final String databaseType;
+  private final boolean pipelinedTraversal;
+  private final int pipelineChunkSize;
+
+  /** Number of chunks that may wait for the database writer thread. */
+  private static final int PIPELINE_QUEUE_CAPACITY = 4;
+
+  private static final String[] ENTITY_ATTRIBUTES = new String[] {
+      AdConstants.ATTR_USNCHANGED,
+      AdConstants.ATTR_SAMACCOUNTNAME,
+      AdConstants.ATTR_OBJECTSID,
+      AdConstants.ATTR_OBJECTGUID,
+      AdConstants.ATTR_UPN,
+      AdConstants.ATTR_PRIMARYGROUPID,
+      AdConstants.ATTR_MEMBER};
+
+  private static final String[] TOMBSTONE_ATTRIBUTES = new String[] {
+      AdConstants.ATTR_OBJECTGUID,
+      AdConstants.ATTR_SAMACCOUNTNAME};
 
   public AdGroupsTraversalManager(AdGroupsConnector connector) 
       throws RepositoryException {
@@ -59,6 +80,8 @@ public class AdGroupsTraversalManager implements TraversalManager {
     
     databaseType = connector.getDatabaseType();
     LOGGER.info("Connector Database Type = " + connector.getDatabaseType());
+    pipelinedTraversal = connector.isPipelinedTraversal();
+    pipelineChunkSize = Math.max(1, connector.getPipelineChunkSize());
 
     db = new AdDbUtil(connector.getDataSource(), databaseType);
 
@@ -93,6 +116,8 @@ public class AdGroupsTraversalManager implements TraversalManager {
         } catch (NamingException ex) {
           throw new RepositoryException(ex);
         }
+        server.setMaxRangeRetrievalConnections(
+            connector.getMaxRangeRetrievalConnections());
         servers.add(server);
       }
     }
@@ -215,14 +240,12 @@ public class AdGroupsTraversalManager implements TraversalManager {
         }
 
         LOGGER.info(server + "Querying server " + ldapQuery);
-        Set<AdEntity> entities = server.search(ldapQuery, false, new String[] {
-            AdConstants.ATTR_USNCHANGED,
-            AdConstants.ATTR_SAMACCOUNTNAME,
-            AdConstants.ATTR_OBJECTSID,
-            AdConstants.ATTR_OBJECTGUID,
-            AdConstants.ATTR_UPN,
-            AdConstants.ATTR_PRIMARYGROUPID,
-            AdConstants.ATTR_MEMBER});
+        if (pipelinedTraversal) {
+          runPipelined(server, last, ldapQuery, tombstoneQuery);
+          continue;
+        }
+        Set<AdEntity> entities =
+            server.search(ldapQuery, false, ENTITY_ATTRIBUTES);
 
         // list of DNs to delete from database during incremental traversal
         Set<AdEntity> tombstones;
@@ -257,9 +280,8 @@ public class AdGroupsTraversalManager implements TraversalManager {
           // when performing partial crawl we ask the LDAP to list removed
           // objects - by default works only for members of Domain Admins group
           // http://support.microsoft.com/kb/892806
-          tombstones = server.search(tombstoneQuery, true,
-              new String[] {AdConstants.ATTR_OBJECTGUID,
-                  AdConstants.ATTR_SAMACCOUNTNAME});
+          tombstones =
+              server.search(tombstoneQuery, true, TOMBSTONE_ATTRIBUTES);
           numberOfTombstones = tombstones.size();
           tombstonesInDb = ImmutableList.of();
         }
@@ -290,51 +312,7 @@ public class AdGroupsTraversalManager implements TraversalManager {
           LOGGER.info(
               server + "update 2/6 - Checking resurrected entities");
           if (!firstTimeForDomain) {
-            entitiesToUpdate = new HashSet<AdEntity>();
-            for (AdEntity e : entities) {
-              // Check for duplicates with different GUID than e.
-              List<HashMap<String, Object>> dbEntities = 
-                  db.select(Query.SELECT_ENTITY_BY_DN_AND_NOT_GUID,
-                      e.getSqlParams());
-              if (dbEntities.isEmpty()) {
-                // new entity
-                entitiesToUpdate.add(e);
-              } else if (dbEntities.size() == 1) {
-                HashMap<String, Object> dbEntity = dbEntities.get(0);
-                if (!isSameEntity(e, dbEntity)) {
-                  entitiesToUpdate.add(e);
-                  // If entities are not same, check for Object GUID for
-                  // resurrected entity.
-                  if (!dbEntity.get(AdConstants.DB_OBJECTGUID).equals(
-                      e.getSqlParams().get(AdConstants.DB_OBJECTGUID))) {
-                    // Resurrected entity
-                    LOGGER.info("Resurrected entity [" + e + "] discovered.");
-                    db.execute(Query.DELETE_MEMBERSHIPS, e.getSqlParams());                  
-                    LOGGER.fine("Deleting old version with objectguid ["
-                        + dbEntity.get(AdConstants.DB_OBJECTGUID) + "]");
-                    db.execute(
-                        Query.DELETE_ENTITY, ImmutableMap.<String, Object>of(
-                            AdConstants.DB_OBJECTGUID, 
-                            dbEntity.get(AdConstants.DB_OBJECTGUID)));                    
-                  }
-                }
-              } else {
-                // Multiple DB entities discovered. This is unexpexcted.
-                for (HashMap<String, Object> dbEntity : dbEntities) {                  
-                  LOGGER.fine("Duplicate entity [" + e + "] discovered.");
-                  db.execute(Query.DELETE_MEMBERSHIPS, e.getSqlParams());
-                  
-                  LOGGER.fine("Deleting old version with objectguid ["
-                      + dbEntity.get(AdConstants.DB_OBJECTGUID) + "]");
-                  db.execute(
-                      Query.DELETE_ENTITY, ImmutableMap.<String, Object>of(
-                          AdConstants.DB_OBJECTGUID, 
-                          dbEntity.get(AdConstants.DB_OBJECTGUID)));
-                }
-                // Add entity to reprocess.
-                entitiesToUpdate.add(e);
-              }
-            }
+            entitiesToUpdate = getEntitiesToUpdate(entities);
           } else {
             entitiesToUpdate = entities;
           }
@@ -368,28 +346,7 @@ public class AdGroupsTraversalManager implements TraversalManager {
                 + "update 4/6 - Inserting relationships into database.");
             // Merge group memberships into the database
             db.mergeMemberships(entities, !bulkProcessing);
-            // Since H2 database is single threaded, resolve
-            // primary groups one at a time to avoid blocking
-            // authentication and group resolution calls during traversal.
-            for (AdEntity e : entities) {
-              // If we are user merge the primary group
-              if (!e.isGroup()) {
-                Long groupId = db.getEntityId(
-                    Query.FIND_PRIMARY_GROUP, e.getSqlParams());
-                Long memberId = db.getEntityId(
-                    Query.FIND_ENTITY, e.getSqlParams());
-
-                // due to exception during last traversal primary group might
-                // not exist in the DB yet
-                if (groupId != null) {
-                  Map<String, Object> map = new HashMap<String, Object>(3);
-                  map.put(AdConstants.DB_GROUPID, groupId);
-                  map.put(AdConstants.DB_MEMBERDN, e.getDn());
-                  map.put(AdConstants.DB_MEMBERID, memberId);
-                  db.execute(Query.MERGE_MEMBERSHIP, map);
-                }
-              }
-            }
+            mergePrimaryGroups(entities);
           }
 
           // Update the server information
@@ -416,6 +373,403 @@ public class AdGroupsTraversalManager implements TraversalManager {
     }
   }
 
+  /**
+   * Checks for each new/updated entity if it wasn't deleted and recreated
+   * with the same name, removing the old versions from the database.
+   * @param entities entities retrieved from Active Directory
+   * @return entities which need to be merged into the database
+   */
+  private Set<AdEntity> getEntitiesToUpdate(Set<AdEntity> entities)
+      throws SQLException {
+    Set<AdEntity> entitiesToUpdate = new HashSet<AdEntity>();
+    for (AdEntity e : entities) {
+      // Check for duplicates with different GUID than e.
+      List<HashMap<String, Object>> dbEntities = 
+          db.select(Query.SELECT_ENTITY_BY_DN_AND_NOT_GUID,
+              e.getSqlParams());
+      if (dbEntities.isEmpty()) {
+        // new entity
+        entitiesToUpdate.add(e);
+      } else if (dbEntities.size() == 1) {
+        HashMap<String, Object> dbEntity = dbEntities.get(0);
+        if (!isSameEntity(e, dbEntity)) {
+          entitiesToUpdate.add(e);
+          // If entities are not same, check for Object GUID for
+          // resurrected entity.
+          if (!dbEntity.get(AdConstants.DB_OBJECTGUID).equals(
+              e.getSqlParams().get(AdConstants.DB_OBJECTGUID))) {
+            // Resurrected entity
+            LOGGER.info("Resurrected entity [" + e + "] discovered.");
+            db.execute(Query.DELETE_MEMBERSHIPS, e.getSqlParams());
+            LOGGER.fine("Deleting old version with objectguid ["
+                + dbEntity.get(AdConstants.DB_OBJECTGUID) + "]");
+            db.execute(
+                Query.DELETE_ENTITY, ImmutableMap.<String, Object>of(
+                    AdConstants.DB_OBJECTGUID, 
+                    dbEntity.get(AdConstants.DB_OBJECTGUID)));
+          }
+        }
+      } else {
+        // Multiple DB entities discovered. This is unexpexcted.
+        for (HashMap<String, Object> dbEntity : dbEntities) {
+          LOGGER.fine("Duplicate entity [" + e + "] discovered.");
+          db.execute(Query.DELETE_MEMBERSHIPS, e.getSqlParams());
+
+          LOGGER.fine("Deleting old version with objectguid ["
+              + dbEntity.get(AdConstants.DB_OBJECTGUID) + "]");
+          db.execute(
+              Query.DELETE_ENTITY, ImmutableMap.<String, Object>of(
+                  AdConstants.DB_OBJECTGUID, 
+                  dbEntity.get(AdConstants.DB_OBJECTGUID)));
+        }
+        // Add entity to reprocess.
+        entitiesToUpdate.add(e);
+      }
+    }
+    return entitiesToUpdate;
+  }
+
+  /**
+   * Merges the primary group membership of each user into the database.
+   * @param entities entities retrieved from Active Directory
+   */
+  private void mergePrimaryGroups(Set<AdEntity> entities)
+      throws SQLException {
+    // Since H2 database is single threaded, resolve
+    // primary groups one at a time to avoid blocking
+    // authentication and group resolution calls during traversal.
+    for (AdEntity e : entities) {
+      // If we are user merge the primary group
+      if (!e.isGroup()) {
+        Long groupId = db.getEntityId(
+            Query.FIND_PRIMARY_GROUP, e.getSqlParams());
+        Long memberId = db.getEntityId(
+            Query.FIND_ENTITY, e.getSqlParams());
+
+        // due to exception during last traversal primary group might
+        // not exist in the DB yet
+        if (groupId != null) {
+          Map<String, Object> map = new HashMap<String, Object>(3);
+          map.put(AdConstants.DB_GROUPID, groupId);
+          map.put(AdConstants.DB_MEMBERDN, e.getDn());
+          map.put(AdConstants.DB_MEMBERID, memberId);
+          db.execute(Query.MERGE_MEMBERSHIP, map);
+        }
+      }
+    }
+  }
+
+  /**
+   * Crawls one server streaming the LDAP search results to a database writer
+   * thread in chunks of {@code pipelineChunkSize} entities through a bounded
+   * queue, so memory use is bounded by the chunk size rather than the size of
+   * the domain, and LDAP and database latencies overlap. During full recrawls
+   * the digests of the distinguished names found are collected along the
+   * way, and the tombstones are removed once all the entities are merged;
+   * see {@link #removeTombstones}.
+   */
+  private void runPipelined(AdServer server, long last, String ldapQuery,
+      String tombstoneQuery) throws SQLException, NamingException {
+    boolean fullCrawl = (last == 0);
+    boolean firstTimeForDomain = false;
+    int numberOfTombstones = 0;
+    if (fullCrawl) {
+      firstTimeForDomain = db.select(Query.SELECT_ALL_ENTITIES_BY_SID,
+          server.getSqlParams(), new AdDbUtil.RowHandler() {
+            @Override
+            public boolean handle(Map<String, Object> row) {
+              return false;
+            }
+          }) == 0;
+    } else {
+      // when performing partial crawl we ask the LDAP to list removed
+      // objects - by default works only for members of Domain Admins group
+      // http://support.microsoft.com/kb/892806
+      Set<AdEntity> tombstones =
+          server.search(tombstoneQuery, true, TOMBSTONE_ATTRIBUTES);
+      numberOfTombstones = tombstones.size();
+      LOGGER.log(Level.INFO,
+          "{0} update 1/6 - Removing tombstones from database ({1})",
+          new Object[] {server, numberOfTombstones});
+      db.executeBatch(Query.DELETE_MEMBERSHIPS, tombstones);
+      db.executeBatch(Query.DELETE_ENTITY, tombstones);
+    }
+
+    // Perform bulk processing only if its full traversal.
+    boolean bulkProcessing = 
+        databaseType.equalsIgnoreCase("SQLSERVER") && fullCrawl;
+    EntityWriter writer =
+        new EntityWriter(server, firstTimeForDomain, bulkProcessing);
+    // whatever is not rediscovered in AD during full recrawl is a tombstone
+    DnDigests discovered =
+        (fullCrawl && !firstTimeForDomain) ? new DnDigests() : null;
+    ChunkingHandler handler = new ChunkingHandler(writer, discovered);
+
+    LOGGER.info(server + "update 2/6 - Streaming entities into database in "
+        + "chunks of " + pipelineChunkSize + " entities");
+    Thread writerThread = new Thread(writer,
+        Thread.currentThread().getName() + "-AdGroupsWriter");
+    writerThread.setDaemon(true);
+    writerThread.start();
+    boolean completed = false;
+    try {
+      server.search(ldapQuery, false, ENTITY_ATTRIBUTES, handler);
+      handler.flush();
+      writer.finish();
+      completed = true;
+    } finally {
+      if (!completed) {
+        writerThread.interrupt();
+      }
+    }
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedNamingException(e.getMessage());
+    }
+    if (writer.failure != null) {
+      throw writer.failure;
+    }
+    if (discovered != null) {
+      numberOfTombstones = removeTombstones(server, discovered);
+    }
+
+    LOGGER.info(server + "Found " + handler.count
+        + " entities to update in the database and " + numberOfTombstones
+        + " entities to remove.");
+    if (handler.count == 0 && numberOfTombstones == 0) {
+      LOGGER.info(server + "No updates found.");
+      db.execute(Query.UPDATE_SERVER, server.getSqlParams());
+      return;
+    }
+
+    // Members found in later chunks than their groups could not be resolved
+    // while the groups were merged.
+    if (bulkProcessing) {
+      LOGGER.info(server + "update 4A/6 - Match entities.");
+      db.execute(Query.MATCH_ENTITIES, null);
+      LOGGER.info(server 
+          + "update 4B/6 - Resolving primary groups for entities.");
+      db.execute(Query.RESOLVE_PRIMARY_GROUPS, null);
+    } else {
+      LOGGER.info(server + "update 4A/6 - Resolving remaining members.");
+      db.execute(Query.RESOLVE_MEMBERIDS, server.getSqlParams());
+      LOGGER.info(server 
+          + "update 4B/6 - Resolving primary groups for entities.");
+      mergeMissingPrimaryGroups(server);
+    }
+
+    // Update the server information
+    if (fullCrawl) {
+      server.setLastFullSync(new Timestamp(new Date().getTime())); 
+    }
+    LOGGER.info(server + "update 5/6 - Updating Domain controller info.");
+    db.execute(Query.UPDATE_SERVER, server.getSqlParams());
+
+    LOGGER.info(server + "update 6/6 - Domain information updated.");
+  }
+
+  /**
+   * Removes the entities of the domain which are not in Active Directory any
+   * more from the database, after the entities found are merged. Merged
+   * entities are never removed, since their names were all found, and the
+   * members of the merged groups are resolved afterwards, so they are not
+   * resolved to the removed entities.
+   *
+   * @param discovered the digests of the distinguished names of all the
+   *        entities found
+   * @return the number of entities removed
+   */
+  private int removeTombstones(AdServer server, final DnDigests discovered)
+      throws SQLException {
+    discovered.sort();
+    final List<Map<String, Object>> tombstonesInDb =
+        new ArrayList<Map<String, Object>>();
+    db.select(Query.SELECT_ALL_ENTITIES_BY_SID, server.getSqlParams(),
+        new AdDbUtil.RowHandler() {
+          @Override
+          public boolean handle(Map<String, Object> row) {
+            if (!discovered.contains((String) row.get(AdConstants.DB_DN))) {
+              tombstonesInDb.add(row);
+            }
+            return true;
+          }
+        });
+    LOGGER.log(Level.INFO,
+        "{0} update 3/6 - Removing tombstones from database ({1})",
+        new Object[] {server, tombstonesInDb.size()});
+    db.executeBatch(Query.DELETE_MEMBERSHIPS_BY_ENTITYID, tombstonesInDb);
+    db.executeBatch(Query.DELETE_ENTITY_BY_ENTITYID, tombstonesInDb);
+    return tombstonesInDb.size();
+  }
+
+  /**
+   * Adds the primary group memberships of users of the domain which are not
+   * in the database yet, with a single statement, so that the memberships
+   * are not read on one connection while they are written on another.
+   */
+  private void mergeMissingPrimaryGroups(AdServer server)
+      throws SQLException {
+    db.execute(Query.ADD_MISSING_PRIMARY_GROUPS, server.getSqlParams());
+  }
+
+  /**
+   * Collects the entities found by the LDAP search into chunks and hands
+   * them to the database writer.
+   */
+  private class ChunkingHandler implements AdServer.EntityHandler {
+    private final EntityWriter writer;
+    private final DnDigests discovered;
+    private Set<AdEntity> chunk = new HashSet<AdEntity>();
+    private int count = 0;
+
+    /**
+     * @param discovered receives the distinguished names of the entities
+     *        found, or null if they are not needed
+     */
+    ChunkingHandler(EntityWriter writer, DnDigests discovered) {
+      this.writer = writer;
+      this.discovered = discovered;
+    }
+
+    @Override
+    public void handle(AdEntity entity) throws NamingException {
+      if (discovered != null) {
+        discovered.add(entity.getDn());
+      }
+      chunk.add(entity);
+      count++;
+      if (chunk.size() >= pipelineChunkSize) {
+        flush();
+      }
+    }
+
+    void flush() throws InterruptedNamingException {
+      if (!chunk.isEmpty()) {
+        writer.put(chunk);
+        chunk = new HashSet<AdEntity>();
+      }
+    }
+  }
+
+  /**
+   * Merges chunks of entities into the database on its own thread. The
+   * chunks are passed through a bounded queue, so the LDAP search blocks
+   * when the database falls behind.
+   */
+  private class EntityWriter implements Runnable {
+    private final AdServer server;
+    private final boolean firstTimeForDomain;
+    private final boolean bulkProcessing;
+    private final BlockingQueue<Set<AdEntity>> queue =
+        new ArrayBlockingQueue<Set<AdEntity>>(PIPELINE_QUEUE_CAPACITY);
+    /** Marks the end of the stream of chunks. */
+    private final Set<AdEntity> endOfStream = new HashSet<AdEntity>();
+    private volatile SQLException failure;
+
+    EntityWriter(AdServer server, boolean firstTimeForDomain,
+        boolean bulkProcessing) {
+      this.server = server;
+      this.firstTimeForDomain = firstTimeForDomain;
+      this.bulkProcessing = bulkProcessing;
+    }
+
+    void put(Set<AdEntity> chunk) throws InterruptedNamingException {
+      try {
+        queue.put(chunk);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedNamingException(e.getMessage());
+      }
+    }
+
+    void finish() throws InterruptedNamingException {
+      put(endOfStream);
+    }
+
+    @Override
+    public void run() {
+      try {
+        int chunks = 0;
+        for (Set<AdEntity> chunk = queue.take(); chunk != endOfStream;
+            chunk = queue.take()) {
+          // After a failure keep draining the queue so the search does not
+          // block, the failure is reported once the search completes.
+          if (failure == null) {
+            try {
+              write(chunk);
+              LOGGER.log(Level.FINE, "{0}Merged chunk {1} of {2} entities",
+                  new Object[] {server, ++chunks, chunk.size()});
+            } catch (SQLException e) {
+              failure = e;
+            } catch (RuntimeException e) {
+              SQLException wrapped = new SQLException(e.toString());
+              wrapped.initCause(e);
+              failure = wrapped;
+            }
+          }
+        }
+      } catch (InterruptedException e) {
+        LOGGER.log(Level.INFO, server + "Database writer interrupted.", e);
+      }
+    }
+
+    private void write(Set<AdEntity> chunk) throws SQLException {
+      Set<AdEntity> entitiesToUpdate =
+          firstTimeForDomain ? chunk : getEntitiesToUpdate(chunk);
+      Query entityQuery =
+          firstTimeForDomain ? Query.ADD_ENTITIES : Query.MERGE_ENTITIES;
+      db.executeBatch(entityQuery, entitiesToUpdate);
+      // primary groups are resolved once all chunks are written
+      db.mergeMemberships(chunk, !bulkProcessing);
+    }
+  }
+
+  /**
+   * Sorted 64-bit digests of distinguished names. Used instead of the names
+   * themselves to keep memory use low when detecting tombstones during full
+   * recrawls of large domains. A digest collision can only cause a deleted
+   * entity to be kept until the next full recrawl.
+   */
+  private static class DnDigests {
+    private long[] digests = new long[1024];
+    private int size = 0;
+
+    void add(String dn) {
+      if (size == digests.length) {
+        resize(size * 2);
+      }
+      digests[size++] = digest(dn);
+    }
+
+    /** Must be called after all names are added and before lookups. */
+    void sort() {
+      resize(size);
+      Arrays.sort(digests);
+    }
+
+    boolean contains(String dn) {
+      return dn != null && Arrays.binarySearch(digests, digest(dn)) >= 0;
+    }
+
+    private void resize(int length) {
+      long[] resized = new long[length];
+      System.arraycopy(digests, 0, resized, 0, size);
+      digests = resized;
+    }
+
+    /** 64-bit FNV-1a hash of the name. */
+    private static long digest(String dn) {
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < dn.length(); ++i) {
+        hash ^= dn.charAt(i);
+        hash *= 0x100000001b3L;
+      }
+      return hash;
+    }
+  }
+
   private boolean isSameEntity(AdEntity e, HashMap<String, Object> dbEntity) {
     Map<String, Object> adEntity = e.getSqlParams();
     for (String key : dbEntity.keySet()) {
@@ -20,11 +20,25 @@ import com.google.enterprise.connector.spi.RepositoryException;
 
 import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -67,8 +81,14 @@ public class AdServer {
   private long highestCommittedUSN;
   private String invocationID;
   private String dnsRoot;
+  private String dnsHostName;
+  // host the range based member retrieval connections are opened to
+  private volatile String rangeRetrievalHost;
   private Timestamp lastFullSync;
 
+  // maximum number of connections used for range based member retrieval
+  private int maxRangeRetrievalConnections = 1;
+
   public AdServer(
       Method connectMethod,
       String hostName,
@@ -92,6 +112,31 @@ public class AdServer {
    * against Active Directory.
    */
   public void connect() throws CommunicationException, NamingException {
+    ldapContext = createContext(hostName);
+
+    Attributes attributes = ldapContext.getAttributes(AdConstants.EMPTY);
+    dn = attributes.get(
+        AdConstants.ATTR_DEFAULTNAMINGCONTEXT).get(0).toString();
+    dsServiceName = attributes.get(
+        AdConstants.ATTR_DSSERVICENAME).get(0).toString();
+    highestCommittedUSN = Long.parseLong(attributes.get(
+        AdConstants.ATTR_HIGHESTCOMMITTEDUSN).get(0).toString());
+    configurationNamingContext = attributes.get(
+        AdConstants.ATTR_CONFIGURATIONNAMINGCONTEXT).get(0).toString();
+    Attribute dnsHostNameAttr = attributes.get(AdConstants.ATTR_DNSHOSTNAME);
+    dnsHostName = (dnsHostNameAttr == null)
+        ? null : dnsHostNameAttr.get(0).toString();
+    // Connect to the same domain controller as the main context, if known.
+    rangeRetrievalHost =
+        Strings.isNullOrEmpty(dnsHostName) ? hostName : dnsHostName;
+  }
+
+  /**
+   * Creates a new LDAP context bound with the configured credentials.
+   * @param host name of the host to connect to
+   */
+  LdapContext createContext(String host)
+      throws CommunicationException, NamingException {
     Hashtable<String, String> env = new Hashtable<String, String>();
 
     // Use the built-in LDAP support.
@@ -112,20 +157,10 @@ public class AdServer {
     }
 
     String ldapUrl =
-        connectMethod.toString() + hostName + AdConstants.COLON + port;
+        connectMethod.toString() + host + AdConstants.COLON + port;
     LOGGER.info("LDAP provider url: " + ldapUrl);
     env.put(Context.PROVIDER_URL, ldapUrl);
-    ldapContext = new InitialLdapContext(env, null);
-
-    Attributes attributes = ldapContext.getAttributes(AdConstants.EMPTY);
-    dn = attributes.get(
-        AdConstants.ATTR_DEFAULTNAMINGCONTEXT).get(0).toString();
-    dsServiceName = attributes.get(
-        AdConstants.ATTR_DSSERVICENAME).get(0).toString();
-    highestCommittedUSN = Long.parseLong(attributes.get(
-        AdConstants.ATTR_HIGHESTCOMMITTEDUSN).get(0).toString());
-    configurationNamingContext = attributes.get(
-        AdConstants.ATTR_CONFIGURATIONNAMINGCONTEXT).get(0).toString();
+    return new InitialLdapContext(env, null);
   }
 
   public void initialize() throws NamingException {
@@ -207,6 +242,18 @@ public class AdServer {
     }
   }
 
+  /**
+   * Receives entities from {@link AdServer#search(String, boolean, String[],
+   * EntityHandler)} as soon as they are read from the LDAP result pages.
+   */
+  public interface EntityHandler {
+    /**
+     * @param entity the entity found, with all of its members retrieved
+     * @throws NamingException to abort the search
+     */
+    void handle(AdEntity entity) throws NamingException;
+  }
+
   /**
    * Searches Active Directory and creates AdEntity on each result found
    * @param filter LDAP filter to search in the AD for
@@ -215,7 +262,29 @@ public class AdServer {
    */
   public Set<AdEntity> search(String filter, boolean deleted,
       String[] attributes) throws NamingException {
-    Set<AdEntity> results = new HashSet<AdEntity>();
+    final Set<AdEntity> results = new HashSet<AdEntity>();
+    search(filter, deleted, attributes, new EntityHandler() {
+      @Override
+      public void handle(AdEntity entity) {
+        results.add(entity);
+      }
+    });
+    return results;
+  }
+
+  /**
+   * Searches Active Directory and passes each entity found to the handler
+   * while the result pages are still being read, so the caller does not have
+   * to hold the whole result set in memory. Groups whose member attribute was
+   * truncated are passed to the handler once their remaining members have
+   * been retrieved; see {@link RangeRetrieval}.
+   * @param filter LDAP filter to search in the AD for
+   * @param attributes list of attributes to retrieve
+   * @param handler receives each entity found
+   */
+  public void search(String filter, boolean deleted, String[] attributes,
+      EntityHandler handler) throws NamingException {
+    RangeRetrieval rangeRetrieval = new RangeRetrieval(handler);
     searchCtls.setReturningAttributes(attributes);
     setControls(deleted);
     try {
@@ -225,8 +294,9 @@ public class AdServer {
             ldapContext.search(dn, filter, searchCtls);
         while (ldapResults.hasMoreElements()) {
           SearchResult sr = ldapResults.next();
+          AdEntity entity;
           try {
-            results.add(new AdEntity(sr));
+            entity = new AdEntity(sr);
           } catch (Exception ex) {           
             // It is possible that Search Result returned is missing
             // few attributes required to construct AD Entity object.
@@ -236,8 +306,17 @@ public class AdServer {
             // proceed with traversal.
             LOGGER.log(Level.WARNING, "Error Processing Search Result "
                 + sr, ex);
+            continue;
+          }
+          // if we received non complete attribute we need to use range based
+          // retrieval to get the rest of members
+          if (entity.isGroup() && !entity.areAllMembershipsRetrieved()) {
+            rangeRetrieval.add(entity);
+          } else {
+            handler.handle(entity);
           }
         }
+        rangeRetrieval.handleCompleted();
         cookie = null;
         Control[] resultResponseControls = ldapContext.getResponseControls();
         for (int i = 0; i < resultResponseControls.length; ++i) {
@@ -251,35 +330,352 @@ public class AdServer {
         }
       } while ((cookie != null) && (cookie.length != 0));
 
-      // if we received non complete attribute we need to use range based
-      // retrieval to get the rest of members
-      for (AdEntity g : results) {
-        if (!g.isGroup() || g.areAllMembershipsRetrieved()) {
-          continue;
+      rangeRetrieval.finish();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Couldn't initialize LDAP paging control. Will"
+          + " continue without paging - this can cause issue if there are more"
+          + " than 1000 members in one group. ",
+          e);
+    } finally {
+      rangeRetrieval.close();
+    }
+  }
+
+  /**
+   * Retrieves the remaining members of groups whose member attribute was
+   * truncated using range based retrieval, and passes the completed groups to
+   * the handler on the searching thread.
+   * <p/>
+   * When more than one connection is allowed, the groups are retrieved in
+   * parallel over a pool of connections to the same domain controller while
+   * the search pages are still being read, and no more than two groups per
+   * connection are held at a time. Otherwise the members are retrieved over
+   * the main connection, which the paged search is using, so the groups are
+   * held until paging completes. That is also where the groups go whose
+   * retrieval over the pool failed, and all the following groups once the
+   * pool could not connect at all, rather than failing the search.
+   */
+  private class RangeRetrieval {
+    private final EntityHandler handler;
+    private final int connections = maxRangeRetrievalConnections;
+    private final RangeRetrievalProgress progress =
+        new RangeRetrievalProgress(connections);
+    /** The groups to retrieve over the main connection once paging ends. */
+    private final List<AdEntity> deferred = new ArrayList<AdEntity>();
+    private final List<RangeRetriever> retrievers =
+        new ArrayList<RangeRetriever>();
+    private BlockingQueue<RangeRetriever> idle;
+    private ExecutorService executor;
+    private CompletionService<AdEntity> completionService;
+    private int inFlight = 0;
+    /** The groups whose retrieval over the pool failed. */
+    private final Set<AdEntity> failed =
+        Collections.newSetFromMap(new ConcurrentHashMap<AdEntity, Boolean>());
+    /** Whether the pool could not connect to the domain controller. */
+    private volatile boolean unreachable = false;
+
+    RangeRetrieval(EntityHandler handler) {
+      this.handler = handler;
+    }
+
+    void add(final AdEntity g) throws NamingException {
+      progress.groupAdded();
+      if (connections <= 1 || unreachable) {
+        deferred.add(g);
+        return;
+      }
+      if (executor == null) {
+        LOGGER.info(AdServer.this + "Retrieving remaining members of large "
+            + "groups using " + connections + " connection(s)");
+        idle = new ArrayBlockingQueue<RangeRetriever>(connections);
+        for (int i = 0; i < connections; ++i) {
+          RangeRetriever retriever = new RangeRetriever(progress);
+          retrievers.add(retriever);
+          idle.add(retriever);
+        }
+        executor = Executors.newFixedThreadPool(connections);
+        completionService = new ExecutorCompletionService<AdEntity>(executor);
+      }
+      completionService.submit(new Callable<AdEntity>() {
+        @Override
+        public AdEntity call() throws Exception {
+          if (unreachable) {
+            failed.add(g);
+            return g;
+          }
+          RangeRetriever retriever = idle.take();
+          try {
+            retriever.retrieve(g);
+          } catch (InterruptedNamingException e) {
+            throw e;
+          } catch (NamingException e) {
+            LOGGER.log(Level.WARNING, AdServer.this + "Range based retrieval "
+                + "of the members of [" + g + "] failed, retrying over the "
+                + "main connection once the search completes", e);
+            if (!retriever.isConnected()) {
+              unreachable = true;
+            }
+            failed.add(g);
+          } finally {
+            idle.add(retriever);
+          }
+          return g;
+        }
+      });
+      ++inFlight;
+      // Bounds the number of groups held in memory.
+      while (inFlight >= 2 * connections) {
+        handle(take());
+      }
+    }
+
+    /** Passes the groups already completed to the handler. */
+    void handleCompleted() throws NamingException {
+      if (completionService == null) {
+        return;
+      }
+      for (Future<AdEntity> f = completionService.poll(); f != null;
+          f = completionService.poll()) {
+        handle(f);
+      }
+    }
+
+    /** Waits for the remaining groups and passes them to the handler. */
+    void finish() throws NamingException {
+      while (inFlight > 0) {
+        handle(take());
+      }
+      if (!deferred.isEmpty()) {
+        RangeRetriever retriever = new RangeRetriever(ldapContext, progress);
+        for (AdEntity g : deferred) {
+          retriever.retrieve(g);
+          handler.handle(g);
+          progress.groupCompleted(g);
+        }
+        deferred.clear();
+      }
+      if (progress.getGroups() > 0) {
+        progress.log(Level.INFO);
+      }
+    }
+
+    void close() {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+      for (RangeRetriever retriever : retrievers) {
+        retriever.close();
+      }
+    }
+
+    private Future<AdEntity> take() throws NamingException {
+      try {
+        return completionService.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedNamingException(e.getMessage());
+      }
+    }
+
+    private void handle(Future<AdEntity> f) throws NamingException {
+      --inFlight;
+      AdEntity g;
+      try {
+        g = f.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedNamingException(e.getMessage());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof NamingException) {
+          throw (NamingException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else {
+          NamingException ne = new NamingException(
+              "Range based member retrieval failed");
+          ne.setRootCause(cause);
+          throw ne;
         }
+      }
+      if (failed.remove(g)) {
+        deferred.add(g);
+        return;
+      }
+      handler.handle(g);
+      progress.groupCompleted(g);
+    }
+  }
 
-        int batch = g.getMembers().size();
-        int start = g.getMembers().size();
-        do {
-          String memberRange = String.format(AdConstants.ATTR_MEMBER_RANGE, 
-              start, start + batch - 1);
-          LOGGER.finest(
-              "Retrieving additional groups for [" + g + "] " + memberRange);
-          searchCtls.setReturningAttributes(new String[] {memberRange});
-          NamingEnumeration<SearchResult> ldapResults = ldapContext.search(
-              dn, "(sAMAccountName=" + g.getSAMAccountName() +")", searchCtls);
+  /**
+   * Retrieves the remaining members of groups over one LDAP connection,
+   * retrying each range request a few times before giving up on the group.
+   */
+  private class RangeRetriever {
+    private final boolean ownConnection;
+    private final RangeRetrievalProgress progress;
+    private final SearchControls controls;
+    private LdapContext context;
+
+    /** Creates a retriever which uses the given context. */
+    RangeRetriever(LdapContext context, RangeRetrievalProgress progress) {
+      this(false, progress);
+      this.context = context;
+    }
+
+    /**
+     * Creates a retriever which opens its own connection to the domain
+     * controller.
+     */
+    RangeRetriever(RangeRetrievalProgress progress) {
+      this(true, progress);
+    }
+
+    private RangeRetriever(boolean ownConnection,
+        RangeRetrievalProgress progress) {
+      this.ownConnection = ownConnection;
+      this.progress = progress;
+      controls = new SearchControls();
+      controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    }
+
+    boolean isConnected() {
+      return context != null;
+    }
+
+    /**
+     * Connects to the domain controller by its DNS host name, falling back
+     * to the configured host name for good if that fails, since the DNS
+     * host name may not be resolvable or reachable from the connector, or
+     * may not match the name in its SSL certificate.
+     */
+    private LdapContext connect() throws NamingException {
+      String host = rangeRetrievalHost;
+      if (host == null || host.equals(hostName)) {
+        return createContext(hostName);
+      }
+      try {
+        return createContext(host);
+      } catch (InterruptedNamingException e) {
+        throw e;
+      } catch (NamingException e) {
+        LOGGER.log(Level.WARNING, AdServer.this + "Connecting to [" + host
+            + "] failed, retrieving the members of large groups from ["
+            + hostName + "] instead", e);
+        rangeRetrievalHost = hostName;
+        return createContext(hostName);
+      }
+    }
+
+    void retrieve(AdEntity g) throws NamingException {
+      int batch = g.getMembers().size();
+      int start = g.getMembers().size();
+      int failures = 0;
+      do {
+        String memberRange = String.format(AdConstants.ATTR_MEMBER_RANGE, 
+            start, start + batch - 1);
+        LOGGER.finest(
+            "Retrieving additional groups for [" + g + "] " + memberRange);
+        controls.setReturningAttributes(new String[] {memberRange});
+        try {
+          if (context == null) {
+            context = connect();
+          }
+          NamingEnumeration<SearchResult> ldapResults = context.search(
+              dn, "(sAMAccountName=" + g.getSAMAccountName() +")", controls);
           SearchResult sr = ldapResults.next();
           int found = g.appendGroups(sr);
           start += found;
-        } while (!g.areAllMembershipsRetrieved());
+          progress.membersRetrieved(found);
+        } catch (InterruptedNamingException e) {
+          throw e;
+        } catch (NamingException e) {
+          if (++failures >= AdConstants.RANGE_RETRIEVAL_ATTEMPTS) {
+            throw e;
+          }
+          LOGGER.log(Level.WARNING, "Retrying retrieval of " + memberRange
+              + " for [" + g + "] (attempt " + (failures + 1) + " of "
+              + AdConstants.RANGE_RETRIEVAL_ATTEMPTS + ")", e);
+          progress.retried();
+          if (ownConnection) {
+            // reconnect in case the connection is broken
+            close();
+          }
+        }
+      } while (!g.areAllMembershipsRetrieved());
+    }
+
+    void close() {
+      if (ownConnection && context != null) {
+        try {
+          context.close();
+        } catch (NamingException e) {
+          LOGGER.log(Level.FINE, "Failed to close LDAP connection", e);
+        }
+        context = null;
       }
-    } catch (IOException e) {
-      LOGGER.log(Level.WARNING, "Couldn't initialize LDAP paging control. Will"
-          + " continue without paging - this can cause issue if there are more"
-          + " than 1000 members in one group. ",
-          e);
     }
-    return results;
+  }
+
+  /** Tracks and logs the progress of range based member retrieval. */
+  private class RangeRetrievalProgress {
+    private final int connections;
+    private final long startTime = System.currentTimeMillis();
+    private final AtomicInteger members = new AtomicInteger();
+    private final AtomicInteger retries = new AtomicInteger();
+    private int groups = 0;
+    private int completed = 0;
+
+    RangeRetrievalProgress(int connections) {
+      this.connections = connections;
+    }
+
+    void groupAdded() {
+      ++groups;
+    }
+
+    int getGroups() {
+      return groups;
+    }
+
+    void membersRetrieved(int count) {
+      members.addAndGet(count);
+    }
+
+    void retried() {
+      retries.incrementAndGet();
+    }
+
+    void groupCompleted(AdEntity g) {
+      ++completed;
+      LOGGER.log(Level.FINE, "{0}Retrieved {1} members of [{2}] ({3} of {4})",
+          new Object[] {AdServer.this, g.getMembers().size(), g, completed,
+              groups});
+      if (completed % 100 == 0 && completed < groups) {
+        log(Level.INFO);
+      }
+    }
+
+    void log(Level level) {
+      LOGGER.log(level, "{0}Range based retrieval completed for {1} of {2} "
+          + "groups: {3} additional members in {4} ms using {5} "
+          + "connection(s), {6} retries",
+          new Object[] {AdServer.this, completed, groups, members.get(),
+              System.currentTimeMillis() - startTime, connections,
+              retries.get()});
+    }
+  }
+
+  /**
+   * Sets the maximum number of connections to the domain controller used to
+   * retrieve the members of large groups in parallel.
+   * @param maxRangeRetrievalConnections number of connections, 1 retrieves
+   *        the members sequentially over the main connection
+   */
+  public void setMaxRangeRetrievalConnections(
+      int maxRangeRetrievalConnections) {
+    this.maxRangeRetrievalConnections =
+        Math.max(1, maxRangeRetrievalConnections);
   }
 
   /**
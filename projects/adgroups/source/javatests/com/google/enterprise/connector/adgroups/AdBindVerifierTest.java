@@ -0,0 +1,213 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.adgroups;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+
+import com.google.enterprise.connector.adgroups.AdConstants.Method;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+import junit.framework.TestCase;
+
+public class AdBindVerifierTest extends TestCase {
+  private static final String DOMAIN = "example.com";
+  private static final String USER = "EXAMPLE\\user";
+  private static final String PASSWORD = "secret";
+
+  /**
+   * Records the connections opened and fails them as configured.
+   */
+  private static class FakeVerifier extends AdBindVerifier {
+    final List<Method> opened = new ArrayList<Method>();
+    boolean sslReachable = true;
+    boolean plainReachable = true;
+    String validPassword = PASSWORD;
+    LdapContext context;
+    long now = 1000000L;
+
+    FakeVerifier(int poolSize) {
+      super(poolSize);
+    }
+
+    @Override
+    LdapContext createContext(Method method, String dnsRoot, String principal,
+        String password) throws NamingException {
+      opened.add(method);
+      if (!(method == Method.SSL ? sslReachable : plainReachable)) {
+        throw new CommunicationException("unreachable");
+      }
+      if (!validPassword.equals(password)) {
+        throw new AuthenticationException("invalid credentials");
+      }
+      return (context == null) ? createNiceMock(LdapContext.class) : context;
+    }
+
+    @Override
+    long currentTimeMillis() {
+      return now;
+    }
+  }
+
+  public void testRemembersTransport() throws Exception {
+    FakeVerifier verifier = new FakeVerifier(0);
+    verifier.sslReachable = false;
+
+    assertTrue(verifier.verify(DOMAIN, USER, PASSWORD));
+    assertTrue(verifier.verify(DOMAIN, USER, PASSWORD));
+
+    assertEquals("SSL must only be probed once",
+        list(Method.SSL, Method.STANDARD, Method.STANDARD), verifier.opened);
+  }
+
+  public void testReturnsToSsl() throws Exception {
+    FakeVerifier verifier = new FakeVerifier(0);
+    verifier.sslReachable = false;
+    assertTrue(verifier.verify(DOMAIN, USER, PASSWORD));
+
+    verifier.sslReachable = true;
+    verifier.now += AdBindVerifier.SSL_REPROBE_MILLIS - 1;
+    assertTrue(verifier.verify(DOMAIN, USER, PASSWORD));
+    assertEquals(list(Method.SSL, Method.STANDARD, Method.STANDARD),
+        verifier.opened);
+
+    verifier.now += 1;
+    assertTrue(verifier.verify(DOMAIN, USER, PASSWORD));
+    assertTrue(verifier.verify(DOMAIN, USER, PASSWORD));
+    assertEquals("SSL must be used again once it works",
+        list(Method.SSL, Method.STANDARD, Method.STANDARD, Method.SSL,
+            Method.SSL), verifier.opened);
+  }
+
+  public void testFailedSslReprobeKeepsPlain() throws Exception {
+    FakeVerifier verifier = new FakeVerifier(0);
+    verifier.sslReachable = false;
+    assertTrue(verifier.verify(DOMAIN, USER, PASSWORD));
+
+    verifier.now += AdBindVerifier.SSL_REPROBE_MILLIS;
+    assertTrue(verifier.verify(DOMAIN, USER, PASSWORD));
+    assertTrue(verifier.verify(DOMAIN, USER, PASSWORD));
+    assertEquals(list(Method.SSL, Method.STANDARD, Method.SSL,
+        Method.STANDARD, Method.STANDARD), verifier.opened);
+  }
+
+  public void testWrongPassword() throws Exception {
+    FakeVerifier verifier = new FakeVerifier(0);
+
+    assertFalse(verifier.verify(DOMAIN, USER, "wrong"));
+    assertEquals("No fallback to plain after failed bind",
+        list(Method.SSL), verifier.opened);
+  }
+
+  public void testEmptyPassword() throws Exception {
+    FakeVerifier verifier = new FakeVerifier(0);
+    verifier.validPassword = "";
+
+    assertFalse(verifier.verify(DOMAIN, USER, ""));
+    assertTrue(verifier.opened.isEmpty());
+  }
+
+  public void testUnreachableDomainIsNotRetried() throws Exception {
+    FakeVerifier verifier = new FakeVerifier(0);
+    verifier.sslReachable = false;
+    verifier.plainReachable = false;
+
+    assertFalse(verifier.verify(DOMAIN, USER, PASSWORD));
+    assertEquals(2, verifier.opened.size());
+
+    verifier.sslReachable = true;
+    verifier.now += AdBindVerifier.UNREACHABLE_BACKOFF_MILLIS - 1;
+    assertFalse(verifier.verify(DOMAIN, USER, PASSWORD));
+    assertEquals(2, verifier.opened.size());
+
+    verifier.now += 1;
+    assertTrue(verifier.verify(DOMAIN, USER, PASSWORD));
+    assertEquals(3, verifier.opened.size());
+  }
+
+  public void testPooledConnectionIsRebound() throws Exception {
+    LdapContext context = createNiceMock(LdapContext.class);
+    context.reconnect(null);
+    expectLastCall();
+    context.reconnect(null);
+    expectLastCall().andThrow(new AuthenticationException("invalid"));
+    replay(context);
+
+    FakeVerifier verifier = new FakeVerifier(1);
+    verifier.context = context;
+
+    assertTrue(verifier.verify(DOMAIN, USER, PASSWORD));
+    assertTrue(verifier.verify(DOMAIN, "EXAMPLE\\other", PASSWORD));
+    assertFalse(verifier.verify(DOMAIN, USER, "wrong"));
+
+    assertEquals("Only the first bind opens a connection",
+        list(Method.SSL), verifier.opened);
+    verify(context);
+  }
+
+  public void testStalePooledConnectionIsReplaced() throws Exception {
+    LdapContext stale = createNiceMock(LdapContext.class);
+    stale.reconnect(null);
+    expectLastCall().andThrow(new CommunicationException("closed"));
+    stale.close();
+    expectLastCall();
+    replay(stale);
+
+    FakeVerifier verifier = new FakeVerifier(1);
+    verifier.context = stale;
+    assertTrue(verifier.verify(DOMAIN, USER, PASSWORD));
+
+    verifier.context = null;
+    assertTrue(verifier.verify(DOMAIN, USER, PASSWORD));
+
+    assertEquals(list(Method.SSL, Method.SSL), verifier.opened);
+    verify(stale);
+  }
+
+  public void testIdleConnectionExpires() throws Exception {
+    LdapContext idle = createNiceMock(LdapContext.class);
+    idle.close();
+    expectLastCall();
+    replay(idle);
+
+    FakeVerifier verifier = new FakeVerifier(1);
+    verifier.context = idle;
+    assertTrue(verifier.verify(DOMAIN, USER, PASSWORD));
+
+    verifier.context = null;
+    verifier.now += AdBindVerifier.MAX_IDLE_MILLIS + 1;
+    assertTrue(verifier.verify(DOMAIN, USER, PASSWORD));
+
+    assertEquals(list(Method.SSL, Method.SSL), verifier.opened);
+    verify(idle);
+  }
+
+  private static List<Method> list(Method... methods) {
+    List<Method> list = new ArrayList<Method>();
+    for (Method method : methods) {
+      list.add(method);
+    }
+    return list;
+  }
+}
@@ -23,6 +23,7 @@ import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.adgroups.AdConstants.Method;
 import com.google.enterprise.connector.adgroups.AdDbUtil.Query;
 
@@ -46,6 +47,8 @@ import java.util.Map;
 import javax.sql.DataSource;
 
 public class AdDbUtilTest extends TestCase {
+  private static final String DOMAIN_SID = "S-1-5-21-42";
+
   public void testConstructor() throws SQLException {
     DataSource ds = createMock(DataSource.class);
     Connection c = createMock(Connection.class);
@@ -110,6 +113,141 @@ public class AdDbUtilTest extends TestCase {
         AdConstants.DB_DN, AdConstants.DB_HIGHESTCOMMITTEDUSN);
   }
 
+  public void testSelectWithRowHandler() throws SQLException {
+    AdDbUtil util = getH2DbUtil("testSelectWithRowHandler");
+    List<Map<String, Object>> entities = new ArrayList<Map<String, Object>>();
+    for (int i = 0; i < 10; i++) {
+      entities.add(getEntityParams("CN=user" + i + ",DC=example,DC=com",
+          "user" + i, 1000 + i, 513));
+    }
+    util.executeBatch(Query.ADD_ENTITIES, entities);
+
+    Map<String, Object> params =
+        ImmutableMap.<String, Object>of(AdConstants.DB_SID, DOMAIN_SID);
+    final List<Object> dns = new ArrayList<Object>();
+    int rows = util.select(Query.SELECT_ALL_ENTITIES_BY_SID, params,
+        new AdDbUtil.RowHandler() {
+          @Override
+          public boolean handle(Map<String, Object> row) {
+            dns.add(row.get(AdConstants.DB_DN));
+            return true;
+          }
+        });
+    assertEquals(10, rows);
+    assertEquals(10, dns.size());
+
+    rows = util.select(Query.SELECT_ALL_ENTITIES_BY_SID, params,
+        new AdDbUtil.RowHandler() {
+          @Override
+          public boolean handle(Map<String, Object> row) {
+            return false;
+          }
+        });
+    assertEquals(1, rows);
+  }
+
+  /**
+   * Tests resolving memberships which were written before their members
+   * were added to the database.
+   */
+  public void testResolveMembersAddedLater() throws SQLException {
+    AdDbUtil util = getH2DbUtil("testResolveMembersAddedLater");
+    String userDn = "CN=user,DC=example,DC=com";
+    util.execute(Query.ADD_ENTITIES, getEntityParams(
+        "CN=Domain Users,DC=example,DC=com", "domain users", 513, null));
+    util.execute(Query.ADD_ENTITIES, getEntityParams(
+        "CN=group,DC=example,DC=com", "group", 1100, null));
+    Map<String, Object> membership = new HashMap<String, Object>();
+    membership.put(AdConstants.DB_GROUPID, util.getEntityId(Query.FIND_ENTITY,
+        ImmutableMap.<String, Object>of(
+            AdConstants.DB_DN, "CN=group,DC=example,DC=com")));
+    membership.put(AdConstants.DB_MEMBERDN, userDn);
+    membership.put(AdConstants.DB_MEMBERID, null);
+    util.execute(Query.MERGE_MEMBERSHIP, membership);
+    // A group of another domain, whose members are not resolved.
+    Map<String, Object> otherGroup = getEntityParams(
+        "CN=other,DC=other,DC=com", "other", 1300, null);
+    otherGroup.put(AdConstants.DB_DOMAINSID, "S-1-5-21-43");
+    util.execute(Query.ADD_ENTITIES, otherGroup);
+    membership.put(AdConstants.DB_GROUPID, util.getEntityId(Query.FIND_ENTITY,
+        ImmutableMap.<String, Object>of(
+            AdConstants.DB_DN, "CN=other,DC=other,DC=com")));
+    util.execute(Query.MERGE_MEMBERSHIP, membership);
+    util.execute(Query.ADD_ENTITIES,
+        getEntityParams(userDn, "user", 1200, 513));
+
+    util.execute(Query.RESOLVE_MEMBERIDS,
+        ImmutableMap.<String, Object>of(AdConstants.DB_SID, DOMAIN_SID));
+    Long userId = util.getEntityId(Query.FIND_ENTITY,
+        ImmutableMap.<String, Object>of(AdConstants.DB_DN, userDn));
+    assertEquals(ImmutableSet.of("group"), util.selectOne(
+        Query.SELECT_MEMBERSHIPS_BY_ENTITYID,
+        ImmutableMap.<String, Object>of(AdConstants.DB_ENTITYID, userId),
+        AdConstants.DB_SAMACCOUNTNAME));
+
+    Map<String, Object> params =
+        ImmutableMap.<String, Object>of(AdConstants.DB_SID, DOMAIN_SID);
+    util.execute(Query.ADD_MISSING_PRIMARY_GROUPS, params);
+    assertEquals(ImmutableSet.of("group", "domain users"), util.selectOne(
+        Query.SELECT_MEMBERSHIPS_BY_ENTITYID,
+        ImmutableMap.<String, Object>of(AdConstants.DB_ENTITYID, userId),
+        AdConstants.DB_SAMACCOUNTNAME));
+    // Memberships already in the database are not added again.
+    util.execute(Query.ADD_MISSING_PRIMARY_GROUPS, params);
+    assertEquals(2, selectAll(util, Query.SELECT_MEMBERSHIPS_BY_ENTITYID,
+        ImmutableMap.<String, Object>of(AdConstants.DB_ENTITYID, userId))
+        .size());
+  }
+
+  private List<Map<String, Object>> selectAll(AdDbUtil util, Query query,
+      Map<String, Object> params) throws SQLException {
+    final List<Map<String, Object>> rows =
+        new ArrayList<Map<String, Object>>();
+    util.select(query, params, new AdDbUtil.RowHandler() {
+      @Override
+      public boolean handle(Map<String, Object> row) {
+        rows.add(row);
+        return true;
+      }
+    });
+    return rows;
+  }
+
+  /** Creates utility over a named H2 database with one server. */
+  private AdDbUtil getH2DbUtil(String name) throws SQLException {
+    JdbcDataSource ds = new JdbcDataSource();
+    ds.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+    ds.setUser("sa");
+    ds.setPassword("");
+    AdDbUtil util = new AdDbUtil(ds, "H2");
+
+    Map<String, Object> serverParams = new HashMap<String, Object>();
+    serverParams.put(AdConstants.DB_DN, "DC=example,DC=com");
+    serverParams.put(AdConstants.DB_HIGHESTCOMMITTEDUSN, 1L);
+    serverParams.put(AdConstants.DB_DSSERVICENAME, "dsservicename");
+    serverParams.put(AdConstants.DB_INVOCATIONID, "invocationid");
+    serverParams.put(AdConstants.DB_NETBIOSNAME, "EXAMPLE");
+    serverParams.put(AdConstants.DB_SID, DOMAIN_SID);
+    serverParams.put(AdConstants.DB_DNSROOT, "example.com");
+    util.execute(Query.UPDATE_SERVER, serverParams);
+    return util;
+  }
+
+  private Map<String, Object> getEntityParams(String dn,
+      String samAccountName, int rid, Integer primaryGroupId) {
+    Map<String, Object> params = new HashMap<String, Object>();
+    params.put(AdConstants.DB_DN, dn);
+    params.put(AdConstants.DB_SAMACCOUNTNAME, samAccountName);
+    params.put(AdConstants.DB_UPN, null);
+    params.put(AdConstants.DB_DOMAINSID, DOMAIN_SID);
+    params.put(AdConstants.DB_RID, rid);
+    params.put(AdConstants.DB_PRIMARYGROUPID, primaryGroupId);
+    params.put(AdConstants.DB_OBJECTGUID, "0x" + rid);
+    params.put(AdConstants.DB_USNCHANGED, 1L);
+    params.put(AdConstants.DB_WELLKNOWN, 0);
+    return params;
+  }
+
   /**
    * Produces a useful message when the wrong number of servers are
    * returned by a query.
@@ -0,0 +1,344 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.adgroups;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.isNull;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.connector.adgroups.AdConstants.Method;
+
+import org.easymock.IAnswer;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the range based retrieval of the members of large groups against a
+ * mock LDAP context.
+ */
+public class AdServerTest extends TestCase {
+  private static final String FILTER = "(objectClass=*)";
+  private static final String GROUP = "large";
+  private static final String RANGE_FILTER = "(sAMAccountName=" + GROUP + ")";
+
+  private LdapContext context;
+  private AdServer server;
+  private final List<String> requestedRanges = new ArrayList<String>();
+
+  @Override
+  protected void setUp() {
+    context = createNiceMock(LdapContext.class);
+    server = new AdServer(Method.STANDARD, "localhost", 389, "", "");
+    server.ldapContext = context;
+  }
+
+  public void testMultiplePages() throws Exception {
+    expectSearch(FILTER, group(memberRange("0-2", 0, 3)),
+        user("someone"));
+    expectSearch(RANGE_FILTER, rangePage(memberRange("3-5", 3, 6)));
+    expectSearch(RANGE_FILTER, rangePage(memberRange("6-8", 6, 9)));
+    expectSearch(RANGE_FILTER, rangePage(memberRange("9-*", 9, 11)));
+
+    List<AdEntity> entities = search();
+
+    assertEquals(2, entities.size());
+    assertEquals("someone", entities.get(0).getSAMAccountName());
+    assertEquals(members(0, 11), memberDns(entities.get(1)));
+    assertTrue(entities.get(1).areAllMembershipsRetrieved());
+    assertEquals(ImmutableList.of("member;Range=3-5", "member;Range=6-8",
+        "member;Range=9-11"), requestedRanges);
+  }
+
+  public void testFinalPage() throws Exception {
+    expectSearch(FILTER, group(memberRange("0-2", 0, 3)));
+    expectSearch(RANGE_FILTER, rangePage(memberRange("3-*", 3, 4)));
+
+    List<AdEntity> entities = search();
+
+    assertEquals(1, entities.size());
+    assertEquals(members(0, 4), memberDns(entities.get(0)));
+    assertEquals(ImmutableList.of("member;Range=3-5"), requestedRanges);
+  }
+
+  public void testEmptyRange() throws Exception {
+    expectSearch(FILTER, group(memberRange("0-2", 0, 3)));
+    expectSearch(RANGE_FILTER, rangePage(memberRange("3-*", 3, 3)));
+
+    List<AdEntity> entities = search();
+
+    assertEquals(1, entities.size());
+    assertEquals(members(0, 3), memberDns(entities.get(0)));
+    assertTrue(entities.get(0).areAllMembershipsRetrieved());
+    assertEquals(ImmutableList.of("member;Range=3-5"), requestedRanges);
+  }
+
+  public void testMissingRange() throws Exception {
+    expectSearch(FILTER, group(memberRange("0-2", 0, 3)));
+    expectSearch(RANGE_FILTER, rangePage(null));
+
+    List<AdEntity> entities = search();
+
+    assertEquals(1, entities.size());
+    assertEquals(members(0, 3), memberDns(entities.get(0)));
+    assertTrue(entities.get(0).areAllMembershipsRetrieved());
+    assertEquals(ImmutableList.of("member;Range=3-5"), requestedRanges);
+  }
+
+  public void testGroupsHandedOverWhilePaging() throws Exception {
+    final List<String> rangeFilters = new ArrayList<String>();
+    server = new AdServer(Method.STANDARD, "localhost", 389, "", "") {
+      @Override
+      LdapContext createContext(String host) {
+        return rangeContext(rangeFilters);
+      }
+    };
+    server.ldapContext = context;
+    server.setMaxRangeRetrievalConnections(2);
+    SearchResult[] results = new SearchResult[6];
+    for (int i = 0; i < 5; i++) {
+      results[i] = group(GROUP + i, memberRange("0-2", 0, 3));
+    }
+    results[5] = user("someone");
+    expectSearch(FILTER, results);
+
+    List<AdEntity> entities = search();
+
+    assertEquals(6, entities.size());
+    // No more than two groups per connection are held back.
+    assertTrue(entities.get(0).isGroup());
+    for (AdEntity entity : entities) {
+      if (entity.isGroup()) {
+        assertEquals(members(0, 4), memberDns(entity));
+      }
+    }
+    assertEquals(5, rangeFilters.size());
+    assertTrue(requestedRanges.isEmpty());
+  }
+
+  public void testUnreachableRangeRetrievalHost() throws Exception {
+    server = new AdServer(Method.STANDARD, "localhost", 389, "", "") {
+      @Override
+      LdapContext createContext(String host) throws NamingException {
+        throw new CommunicationException("unreachable");
+      }
+    };
+    server.ldapContext = context;
+    server.setMaxRangeRetrievalConnections(2);
+    SearchResult[] results = new SearchResult[3];
+    for (int i = 0; i < results.length; i++) {
+      results[i] = group(GROUP + i, memberRange("0-2", 0, 3));
+      expectSearch("(sAMAccountName=" + GROUP + i + ")",
+          rangePage(memberRange("3-*", 3, 4)));
+    }
+    expectSearch(FILTER, results);
+
+    List<AdEntity> entities = search();
+
+    assertEquals("The groups are retrieved over the main connection",
+        3, entities.size());
+    for (AdEntity entity : entities) {
+      assertEquals(members(0, 4), memberDns(entity));
+    }
+    assertEquals(3, requestedRanges.size());
+  }
+
+  /**
+   * Runs the search and returns the entities in the order they were handed
+   * over.
+   */
+  private List<AdEntity> search() throws Exception {
+    expect(context.getResponseControls()).andReturn(new Control[0])
+        .anyTimes();
+    replay(context);
+    final List<AdEntity> entities = new ArrayList<AdEntity>();
+    server.search(FILTER, false, new String[] {AdConstants.ATTR_MEMBER},
+        new AdServer.EntityHandler() {
+          @Override
+          public void handle(AdEntity entity) {
+            entities.add(entity);
+          }
+        });
+    verify(context);
+    return entities;
+  }
+
+  /**
+   * Expects one search with the filter, and records the attribute requested
+   * by range searches.
+   */
+  private void expectSearch(String filter, final SearchResult... results)
+      throws Exception {
+    expect(context.search((String) isNull(), eq(filter),
+        isA(SearchControls.class))).andAnswer(
+        new IAnswer<NamingEnumeration<SearchResult>>() {
+          @Override
+          public NamingEnumeration<SearchResult> answer() {
+            SearchControls controls = (SearchControls) getCurrentArguments()[2];
+            String[] attributes = controls.getReturningAttributes();
+            if (attributes.length == 1
+                && attributes[0].startsWith("member;Range=")) {
+              requestedRanges.add(attributes[0]);
+            }
+            return new Results(results);
+          }
+        });
+  }
+
+  private static SearchResult group(BasicAttribute members) {
+    return group(GROUP, members);
+  }
+
+  private static SearchResult group(String name, BasicAttribute members) {
+    BasicAttributes attrs = entityAttributes(name);
+    attrs.put(members);
+    return result(name, attrs);
+  }
+
+  /**
+   * A context of its own for range retrieval, which returns the last member
+   * of any group, and records the filters of the searches.
+   */
+  private static LdapContext rangeContext(final List<String> filters) {
+    return (LdapContext) Proxy.newProxyInstance(
+        AdServerTest.class.getClassLoader(), new Class<?>[] {LdapContext.class},
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, java.lang.reflect.Method method,
+              Object[] args) {
+            if (method.getName().equals("search")) {
+              synchronized (filters) {
+                filters.add((String) args[1]);
+              }
+              return new Results(rangePage(memberRange("3-*", 3, 4)));
+            }
+            return null;
+          }
+        });
+  }
+
+  private static SearchResult user(String name) {
+    BasicAttributes attrs = entityAttributes(name);
+    attrs.put(AdConstants.ATTR_PRIMARYGROUPID, "513");
+    return result(name, attrs);
+  }
+
+  /** A range search result, without a member attribute if null. */
+  private static SearchResult rangePage(BasicAttribute members) {
+    BasicAttributes attrs = new BasicAttributes(true);
+    if (members != null) {
+      attrs.put(members);
+    }
+    return result(GROUP, attrs);
+  }
+
+  private static BasicAttributes entityAttributes(String name) {
+    BasicAttributes attrs = new BasicAttributes(true);
+    attrs.put(AdConstants.ATTR_SAMACCOUNTNAME, name);
+    attrs.put(AdConstants.ATTR_OBJECTGUID, name.getBytes());
+    return attrs;
+  }
+
+  private static SearchResult result(String name, BasicAttributes attrs) {
+    SearchResult sr = new SearchResult("cn=" + name, null, attrs);
+    sr.setNameInNamespace("cn=" + name + ",dc=example,dc=com");
+    return sr;
+  }
+
+  /**
+   * @param range the range of the attribute name, like {@code 0-999}
+   * @param from the first member of the page
+   * @param to the member after the last member of the page
+   */
+  private static BasicAttribute memberRange(String range, int from, int to) {
+    BasicAttribute attr = new BasicAttribute("member;range=" + range);
+    for (String member : members(from, to)) {
+      attr.add(member);
+    }
+    return attr;
+  }
+
+  private static Set<String> members(int from, int to) {
+    Set<String> members = new HashSet<String>();
+    for (int i = from; i < to; i++) {
+      members.add("cn=member" + i + ",dc=example,dc=com");
+    }
+    return members;
+  }
+
+  private static Set<String> memberDns(AdEntity group) {
+    Set<String> dns = new HashSet<String>();
+    for (AdMembership membership : group.getMembers()) {
+      dns.add(membership.memberDn);
+    }
+    return dns;
+  }
+
+  private static class Results implements NamingEnumeration<SearchResult> {
+    private final Iterator<SearchResult> iterator;
+
+    Results(SearchResult... results) {
+      iterator = Arrays.asList(results).iterator();
+    }
+
+    @Override
+    public boolean hasMore() {
+      return iterator.hasNext();
+    }
+
+    @Override
+    public SearchResult next() {
+      return iterator.next();
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+      return iterator.hasNext();
+    }
+
+    @Override
+    public SearchResult nextElement() {
+      return iterator.next();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,195 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.cache;
+
+import com.google.enterprise.connector.sharepoint.dao.UserGroupMembership;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * A cache of the resolved members of SharePoint groups, so that a group used
+ * on many lists and webs of a site collection is resolved once.
+ * <p/>
+ * The groups are cached per site collection by group ID. Each site
+ * collection remembers the ACL change token of the changes last applied to
+ * it; when changes with a different token are seen, the groups they changed
+ * are dropped, or all the groups of the site collection if the changes are
+ * not known individually. The groups are kept across batch traversals until
+ * they change. So that the cache does not grow with the groups of the whole
+ * farm, it holds at most {@link #DEFAULT_MAX_MEMBERSHIPS} memberships; the
+ * least recently used site collections are dropped first, along with their
+ * change token.
+ */
+public class SPGroupMembershipCache {
+  private static final Logger LOGGER =
+      Logger.getLogger(SPGroupMembershipCache.class.getName());
+
+  /** The default maximum number of memberships cached. */
+  public static final int DEFAULT_MAX_MEMBERSHIPS = 100000;
+
+  /** The groups of one site collection, least recently used first. */
+  private static class SiteCollectionGroups {
+    String changeToken;
+    final LinkedHashMap<String, Set<UserGroupMembership>> groups =
+        new LinkedHashMap<String, Set<UserGroupMembership>>(16, 0.75f, true);
+  }
+
+  /** The site collections, least recently used first. */
+  private final LinkedHashMap<String, SiteCollectionGroups> siteCollections =
+      new LinkedHashMap<String, SiteCollectionGroups>(16, 0.75f, true);
+
+  private final int maxMemberships;
+
+  /** The number of memberships cached. */
+  private int memberships;
+
+  public SPGroupMembershipCache() {
+    this(DEFAULT_MAX_MEMBERSHIPS);
+  }
+
+  /**
+   * @param maxMemberships the maximum number of memberships cached
+   */
+  public SPGroupMembershipCache(int maxMemberships) {
+    this.maxMemberships = maxMemberships;
+  }
+
+  /**
+   * @param siteCollectionUrl the site collection of the group
+   * @param groupId the ID of the group
+   * @return the members of the group, or null if the group is not cached
+   */
+  public synchronized Set<UserGroupMembership> get(String siteCollectionUrl,
+      String groupId) {
+    SiteCollectionGroups entry = siteCollections.get(siteCollectionUrl);
+    return (entry == null) ? null : entry.groups.get(groupId);
+  }
+
+  /**
+   * Caches the members of a resolved group.
+   *
+   * @param siteCollectionUrl the site collection of the group
+   * @param groupId the ID of the group
+   * @param members the memberships of the members of the group
+   */
+  public synchronized void put(String siteCollectionUrl, String groupId,
+      Set<UserGroupMembership> members) {
+    SiteCollectionGroups entry = siteCollections.get(siteCollectionUrl);
+    if (entry == null) {
+      entry = new SiteCollectionGroups();
+      siteCollections.put(siteCollectionUrl, entry);
+    }
+    Set<UserGroupMembership> previous =
+        entry.groups.put(groupId, Collections.unmodifiableSet(members));
+    memberships += members.size();
+    if (previous != null) {
+      memberships -= previous.size();
+    }
+    evict(entry);
+  }
+
+  /**
+   * Drops the least recently used site collections other than the current
+   * one, and then the least recently used groups of the current one, until
+   * the cache holds no more than the maximum number of memberships.
+   */
+  private void evict(SiteCollectionGroups current) {
+    Iterator<SiteCollectionGroups> it = siteCollections.values().iterator();
+    while (memberships > maxMemberships && it.hasNext()) {
+      SiteCollectionGroups entry = it.next();
+      if (entry != current) {
+        for (Set<UserGroupMembership> members : entry.groups.values()) {
+          memberships -= members.size();
+        }
+        it.remove();
+      }
+    }
+    Iterator<Set<UserGroupMembership>> groups =
+        current.groups.values().iterator();
+    while (memberships > maxMemberships && groups.hasNext()) {
+      memberships -= groups.next().size();
+      groups.remove();
+    }
+  }
+
+  /**
+   * Drops the groups changed in a site collection. Changes with the token
+   * last applied have been applied already and are ignored.
+   *
+   * @param siteCollectionUrl the site collection changed
+   * @param changeToken the change token following the changes
+   * @param groupIds the IDs of the groups changed or deleted, or null to drop
+   *          all the groups of the site collection
+   */
+  public synchronized void applyChanges(String siteCollectionUrl,
+      String changeToken, Collection<String> groupIds) {
+    SiteCollectionGroups entry = siteCollections.get(siteCollectionUrl);
+    if (entry == null) {
+      entry = new SiteCollectionGroups();
+      siteCollections.put(siteCollectionUrl, entry);
+    } else if (changeToken != null
+        && changeToken.equals(entry.changeToken)) {
+      return;
+    }
+    if (groupIds == null) {
+      LOGGER.fine("Dropping " + entry.groups.size()
+          + " cached groups of site collection [ " + siteCollectionUrl
+          + " ]");
+      for (Set<UserGroupMembership> members : entry.groups.values()) {
+        memberships -= members.size();
+      }
+      entry.groups.clear();
+    } else {
+      for (String groupId : groupIds) {
+        Set<UserGroupMembership> members = entry.groups.remove(groupId);
+        if (members != null) {
+          memberships -= members.size();
+        }
+      }
+    }
+    entry.changeToken = changeToken;
+  }
+
+  /**
+   * Drops all the cached groups.
+   */
+  public synchronized void clear() {
+    siteCollections.clear();
+    memberships = 0;
+  }
+
+  /**
+   * @return the number of groups cached
+   */
+  public synchronized int size() {
+    int size = 0;
+    for (SiteCollectionGroups entry : siteCollections.values()) {
+      size += entry.groups.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return the number of memberships cached
+   */
+  public synchronized int getMembershipCount() {
+    return memberships;
+  }
+}
@@ -19,6 +19,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.enterprise.connector.sharepoint.cache.SPGroupMembershipCache;
 import com.google.enterprise.connector.sharepoint.client.ListsHelper;
 import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
 import com.google.enterprise.connector.sharepoint.client.SPConstants.SPType;
@@ -63,6 +64,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -224,6 +229,10 @@ public class AclHelper {
     }
     LOGGER.log(Level.CONFIG, "Building ACLs from the WS response. WSLog [ "
         + wsResult.getLogMessage() + " ]");
+    if (null != webState && null != wsResult.getSiteCollectionUrl()) {
+      // Needed to look up the cached groups when resolving groups
+      webState.setSiteCollectionUrl(wsResult.getSiteCollectionUrl());
+    }
     GssAcl[] allAcls = wsResult.getAllAcls();
     if (allAcls == null || allAcls.length == 0) {
       return;
@@ -732,6 +741,11 @@ public class AclHelper {
    * {@link ListsHelper#getListItems(ListState, java.util.Calendar, String, Set)}
    * but is designed to be used only to get those list items whose ACLs have
    * changed because of any security change at parent level.
+   * <p/>
+   * With content feeds, the items which have already been fed, and their
+   * attachments, are sent as ACL records, so that only their permissions
+   * are updated and their content is not downloaded again. The items which
+   * have not been fed yet are sent in full.
    *
    * @param listState The list from which the items are to be retrieved
    * @param listsHelper The lists helper for parsing the web service response
@@ -756,14 +770,29 @@ public class AclHelper {
               + wsResult.getLastIdVisited() + " ], moreDocs [ "
               + wsResult.isMoreDocs() + " ] ");
           boolean lookForAttachment = listState.canContainAttachments();
+          int aclOnlyDocs = 0;
           for (SPDocument document : aclChangedDocs) {
             document.setForAclChange(true);
+            boolean aclOnly = isFedForAclChange(listState, document);
+            if (aclOnly) {
+              document.setDocumentType(DocumentType.ACL);
+              aclOnlyDocs++;
+            }
             if (lookForAttachment) {
               // Get attachments for ACL changed documents
-              attachmentsForChangedDocs.addAll(
-                  listsHelper.getAttachments(listState, document));
+              List<SPDocument> attachments =
+                  listsHelper.getAttachments(listState, document);
+              if (aclOnly) {
+                for (SPDocument attachment : attachments) {
+                  attachment.setDocumentType(DocumentType.ACL);
+                }
+              }
+              attachmentsForChangedDocs.addAll(attachments);
             }
           }
+          LOGGER.log(Level.INFO, aclOnlyDocs + " of the documents from list [ "
+              + listState + " ] have already been fed and are sent without "
+              + "their content.");
         }
 
         if (attachmentsForChangedDocs.size() > 0) {
@@ -809,6 +838,20 @@ public class AclHelper {
     return aclChangedDocs;
   }
 
+  /**
+   * @return true if the document is a content feed item which has already
+   *         been fed, and only needs its ACL to be sent again
+   */
+  private boolean isFedForAclChange(ListState listState,
+      SPDocument document) {
+    if (FeedType.CONTENT_FEED != document.getFeedType()
+        || null != document.getDocumentType()) {
+      return false;
+    }
+    return listState.isFed(Util.getOriginalDocId(document.getDocId(),
+        document.getFeedType()));
+  }
+
   /**
    * Executes GetAclChangesSinceToken() web method of GssAcl web service Used
    * for ACL change detection; change token is used for synchronization purpose.
@@ -1115,6 +1158,20 @@ public class AclHelper {
     // Sync the membership of all changed groups
     syncGroupMembership(deletedUsers, deletedGroups, changedGroups, wsResult.getSiteCollectionUrl());
 
+    // Drop the cached members of the changed groups. If the web has been
+    // reset, the changes after the reset were not looked at, and so all the
+    // groups of the site collection are dropped.
+    Set<String> groupsToDrop = null;
+    if (!isWebReset) {
+      groupsToDrop = new TreeSet<String>(changedGroups);
+      for (Integer groupId : deletedGroups) {
+        groupsToDrop.add(groupId.toString());
+      }
+    }
+    sharepointClientContext.getSPGroupMembershipCache().applyChanges(
+        wsResult.getSiteCollectionUrl(), allChanges.getChangeToken(),
+        groupsToDrop);
+
     if (null == webstate.getNextAclChangeToken()
         || webstate.getNextAclChangeToken().trim().length() == 0) {
       webstate.setNextAclChangeToken(allChanges.getChangeToken());
@@ -1290,6 +1347,10 @@ public class AclHelper {
    * Resolves SharePoint Groups associated with WebState and stores
    * User Group mapping in local database. Returns true if all groups
    * are resolved without error. Returns false in case of error.
+   * <p/>
+   * The groups already resolved in the site collection of the web are taken
+   * from the {@link SPGroupMembershipCache}. The others are resolved in
+   * several concurrent calls, see {@link #resolveSPGroups}.
    * 
    * @param webState WebState for which groups needs to be resolved
    * @return True if group resolution is successful,
@@ -1301,42 +1362,74 @@ public class AclHelper {
         webState.getSPGroupsToResolve().isEmpty()) {
       return true;
     }    
+    SPGroupMembershipCache groupCache =
+        sharepointClientContext.getSPGroupMembershipCache();
     try {
       while (!webState.getSPGroupsToResolve().isEmpty()) {
         int size = webState.getSPGroupsToResolve().size();
-        String[] groupIds = new String[webState.getSPGroupsToResolve().size()];
-        webState.getSPGroupsToResolve().toArray(groupIds);
-        GssResolveSPGroupResult result = resolveSPGroup(groupIds);
-        // Null check for result. Return false if result is null.
-        if (result == null) {
-          LOGGER.warning("Group Resolution null for WebState[ "
-              + webState.getWebUrl() + " ]. Returning false");
-          return false;
+        Set<UserGroupMembership> memberships =
+            new TreeSet<UserGroupMembership>();
+        List<String> groupIds = new ArrayList<String>();
+        String siteCollectionUrl = webState.getSiteCollectionUrl();
+        for (String groupId
+            : new ArrayList<String>(webState.getSPGroupsToResolve())) {
+          Set<UserGroupMembership> members = (null == siteCollectionUrl)
+              ? null : groupCache.get(siteCollectionUrl, groupId);
+          if (null == members) {
+            groupIds.add(groupId);
+          } else {
+            memberships.addAll(members);
+            webState.removeSPGroupToResolve(groupId);
+          }
+        }
+        if (groupIds.size() < size) {
+          LOGGER.fine("Found " + (size - groupIds.size())
+              + " resolved groups in cache for WebState [ "
+              + webState.getWebUrl() + " ]");
         }
-        GssPrincipal[] groups = result.getPrinicpals();
-        if (groups !=null && groups.length > 0) {
-          Set<UserGroupMembership> memberships =
-              new TreeSet<UserGroupMembership>();
+        boolean failed = false;
+        for (GssResolveSPGroupResult result
+            : resolveSPGroups(groupIds, webState.getWebUrl())) {
+          // Null check for result. Return false if result is null, once the
+          // groups resolved by the other calls are stored.
+          if (result == null) {
+            failed = true;
+            continue;
+          }
+          GssPrincipal[] groups = result.getPrinicpals();
+          if (groups == null) {
+            continue;
+          }
           for (GssPrincipal group : groups) {         
+            Set<UserGroupMembership> members =
+                new TreeSet<UserGroupMembership>();
             for (GssPrincipal member : group.getMembers()) {
-              memberships.add(new UserGroupMembership(member.getID(),
+              members.add(new UserGroupMembership(member.getID(),
                   getPrincipalName(member), group.getID(), group.getName(),
                   result.getSiteCollectionUrl()));
             }
+            groupCache.put(result.getSiteCollectionUrl(),
+                Integer.toString(group.getID()), members);
+            memberships.addAll(members);
             webState.removeSPGroupToResolve(Integer.toString(group.getID()));
           }
-          if (!memberships.isEmpty() &&
-              sharepointClientContext.getUserDataStoreDAO() != null) {
-            try {
-              sharepointClientContext.getUserDataStoreDAO().addMemberships(
-                  memberships);
-            } catch (Exception e) {
-              LOGGER.log(Level.WARNING, "Failed to add #" + memberships.size()
-                  + " memberships in user data store.", e);
-              return false;
-            }
+        }
+        if (!memberships.isEmpty() &&
+            sharepointClientContext.getUserDataStoreDAO() != null) {
+          try {
+            sharepointClientContext.getUserDataStoreDAO().addMemberships(
+                memberships);
+          } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to add #" + memberships.size()
+                + " memberships in user data store.", e);
+            return false;
           }
         }
+        if (failed) {
+          LOGGER.warning("Group Resolution null for WebState[ "
+              + webState.getWebUrl() + " ]. Returning false");
+          return false;
+        }
         if (webState.getSPGroupsToResolve().isEmpty()) {
           LOGGER.info("Group resolution complete for WebState [ " +
               webState.getWebUrl()
@@ -1364,6 +1457,62 @@ public class AclHelper {
     }
   }
 
+  /**
+   * Resolves SharePoint groups in up to
+   * {@link SharepointClientContext#getGroupResolutionThreads} concurrent
+   * calls, each resolving a share of the groups on its own connection. The
+   * calls run on the {@link SharepointClientContext#getGroupResolutionExecutor
+   * thread pool of the traversal}; without one the groups are resolved in a
+   * single call.
+   *
+   * @param groupIds IDs of the SP Groups to be resolved
+   * @param webUrl the URL of the web to connect to
+   * @return the web service response of each call, null for the calls which
+   *         failed
+   */
+  private List<GssResolveSPGroupResult> resolveSPGroups(List<String> groupIds,
+      final String webUrl) throws InterruptedException {
+    List<GssResolveSPGroupResult> results =
+        new ArrayList<GssResolveSPGroupResult>();
+    if (groupIds.isEmpty()) {
+      return results;
+    }
+    ExecutorService executor =
+        sharepointClientContext.getGroupResolutionExecutor();
+    int threads = (executor == null) ? 1 : Math.min(groupIds.size(),
+        Math.max(1, sharepointClientContext.getGroupResolutionThreads()));
+    if (threads == 1) {
+      results.add(
+          resolveSPGroup(groupIds.toArray(new String[groupIds.size()])));
+      return results;
+    }
+
+    List<Callable<GssResolveSPGroupResult>> calls =
+        new ArrayList<Callable<GssResolveSPGroupResult>>();
+    int share = (groupIds.size() + threads - 1) / threads;
+    for (int i = 0; i < groupIds.size(); i += share) {
+      final List<String> ids =
+          groupIds.subList(i, Math.min(i + share, groupIds.size()));
+      calls.add(new Callable<GssResolveSPGroupResult>() {
+        public GssResolveSPGroupResult call() throws SharepointException {
+          // Web service stubs are not shared between threads.
+          AclHelper aclHelper = new AclHelper(sharepointClientContext, webUrl);
+          return aclHelper.resolveSPGroup(ids.toArray(new String[ids.size()]));
+        }
+      });
+    }
+    for (Future<GssResolveSPGroupResult> future : executor.invokeAll(calls)) {
+      try {
+        results.add(future.get());
+      } catch (ExecutionException e) {
+        LOGGER.log(Level.WARNING, "Call to resolve SP groups failed.",
+            e.getCause());
+        results.add(null);
+      }
+    }
+    return results;
+  }
+
   /**
    * Construct SPDocument object for representing Web application policy
    * ACL information
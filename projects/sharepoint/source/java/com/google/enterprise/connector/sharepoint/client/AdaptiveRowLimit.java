@@ -0,0 +1,142 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import com.google.enterprise.connector.sharepoint.state.ListState;
+
+import java.net.SocketTimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adjusts the row limit of the Lists web service calls of each list to the
+ * time the server takes to answer and to the size of the pages it returns.
+ * <p/>
+ * The row limit of a list is kept in {@link ListState#getRowLimit}. It is
+ * cut to a quarter after a call times out, cut in proportion when a page
+ * takes longer than the target latency or has more cells (rows times
+ * columns) than allowed, and grown by half while full pages come back in
+ * less than half the target latency. It always stays between
+ * {@link #MIN_ROW_LIMIT} and {@link #MAX_GROWTH} times the initial row
+ * limit, which is the row limit of lists not adjusted yet.
+ */
+public class AdaptiveRowLimit {
+  private static final Logger LOGGER =
+      Logger.getLogger(AdaptiveRowLimit.class.getName());
+
+  /** The smallest row limit used, unless the initial row limit is smaller. */
+  public static final int MIN_ROW_LIMIT = 10;
+
+  /** How many times the initial row limit the row limit can grow to. */
+  public static final int MAX_GROWTH = 4;
+
+  /** The most cells (rows times columns) wanted in one page. */
+  public static final int MAX_CELLS = 250000;
+
+  /**
+   * The target latency as a fraction of the web service time-out: pages
+   * should come back in a twentieth of the time-out.
+   */
+  private static final int TIMEOUT_TO_TARGET = 20;
+
+  private final int initialRowLimit;
+  private final int minRowLimit;
+  private final int maxRowLimit;
+  private final long targetMillis;
+
+  /**
+   * @param initialRowLimit the row limit of lists with no row limit yet
+   * @param timeoutMillis the web service time-out, in milliseconds
+   */
+  public AdaptiveRowLimit(int initialRowLimit, int timeoutMillis) {
+    this.initialRowLimit = Math.max(1, initialRowLimit);
+    this.minRowLimit = Math.min(MIN_ROW_LIMIT, this.initialRowLimit);
+    this.maxRowLimit = this.initialRowLimit * MAX_GROWTH;
+    this.targetMillis = Math.max(1000, timeoutMillis / TIMEOUT_TO_TARGET);
+  }
+
+  /**
+   * @return the row limit to use for the next call for the list
+   */
+  public int getRowLimit(ListState list) {
+    int rowLimit = list.getRowLimit();
+    if (rowLimit <= 0) {
+      return initialRowLimit;
+    }
+    return clamp(rowLimit);
+  }
+
+  /**
+   * Adjusts the row limit of a list after a call returned.
+   *
+   * @param list the list
+   * @param rowLimit the row limit of the call
+   * @param rows the number of rows returned
+   * @param cells the number of attributes of the rows returned
+   * @param elapsedMillis the time the call took
+   */
+  public void onResponse(ListState list, int rowLimit, int rows, int cells,
+      long elapsedMillis) {
+    long next = rowLimit;
+    if (cells > MAX_CELLS) {
+      next = (long) rowLimit * MAX_CELLS / cells;
+    }
+    if (elapsedMillis > targetMillis) {
+      next = Math.min(next, Math.max(rowLimit / 4,
+          rowLimit * targetMillis / elapsedMillis));
+    } else if (next == rowLimit && rows >= rowLimit
+        && elapsedMillis < targetMillis / 2 && cells < MAX_CELLS / 2) {
+      next = rowLimit + Math.max(1, rowLimit / 2);
+    }
+    int clamped = clamp(next);
+    if (clamped != rowLimit) {
+      LOGGER.log(Level.FINE, "Changing row limit of list [ {0} ] from {1} to "
+          + "{2}. Last call returned {3} rows with {4} cells in {5} ms.",
+          new Object[] { list.getListURL(), rowLimit, clamped, rows, cells,
+          elapsedMillis });
+    }
+    list.setRowLimit(clamped);
+  }
+
+  /**
+   * Cuts the row limit of a list after a call timed out.
+   *
+   * @param list the list
+   * @param rowLimit the row limit of the call
+   */
+  public void onTimeout(ListState list, int rowLimit) {
+    int clamped = clamp(rowLimit / 4);
+    LOGGER.log(Level.INFO, "Call for list [ {0} ] timed out. Changing row "
+        + "limit from {1} to {2}.", new Object[] { list.getListURL(),
+        rowLimit, clamped });
+    list.setRowLimit(clamped);
+  }
+
+  /**
+   * @return true if the failure of a call was caused by a socket time-out
+   */
+  public static boolean isTimeout(Throwable t) {
+    for (; t != null; t = t.getCause()) {
+      if (t instanceof SocketTimeoutException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int clamp(long rowLimit) {
+    return (int) Math.max(minRowLimit, Math.min(maxRowLimit, rowLimit));
+  }
+}
@@ -106,7 +106,8 @@ public class AlertsHelper {
     if (alertsInfo != null) {
       try {
         // To keep track of those IDs which are deleted
-        final StringBuffer knownAlerts = alertListState.getIDs();
+        final StringBuffer knownAlerts =
+            new StringBuffer(alertListState.getIDs());
         final StringBuffer currentAlerts = new StringBuffer();
 
         final Alert[] alerts = alertsInfo.getAlerts();
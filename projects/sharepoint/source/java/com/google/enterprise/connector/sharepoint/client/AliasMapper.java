@@ -0,0 +1,269 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The alias mapping rules, compiled once for mapping many URLs.
+ * <p/>
+ * The rules are grouped by the protocol and host of their source URL, so a
+ * URL is only compared against the rules of its own host. The source URL a
+ * rule is matched against depends on the port of the mapped URL, see
+ * {@link Util#doAliasMapping(String, Map, boolean)}; for each port seen, the
+ * source URLs of a host are put into a table keyed by the URL prefix, which
+ * is probed once per distinct prefix length. As with the uncompiled rules,
+ * the first matching rule in configuration order wins.
+ * <p/>
+ * Instances are immutable apart from the port tables built on demand, and
+ * can be shared between threads.
+ */
+public class AliasMapper {
+  private static final Logger LOGGER =
+      Logger.getLogger(AliasMapper.class.getName());
+
+  /** Rules by lower case protocol and host of the source URL. */
+  private final Map<String, Host> hosts = new HashMap<String, Host>();
+  private final boolean empty;
+
+  /**
+   * Compiles the alias mapping rules. Rules with a blank source or alias URL
+   * or a malformed source URL are ignored.
+   *
+   * @param aliasMap the alias mapping rules in the order they are applied;
+   *          may be null
+   */
+  public AliasMapper(Map<String, String> aliasMap) {
+    int index = 0;
+    if (aliasMap != null) {
+      for (Map.Entry<String, String> entry : aliasMap.entrySet()) {
+        Rule rule = Rule.compile(index, entry.getKey(), entry.getValue());
+        if (rule != null) {
+          String key = hostKey(rule.source.getProtocol(),
+              rule.source.getHost());
+          Host host = hosts.get(key);
+          if (host == null) {
+            host = new Host(rule.source.getDefaultPort());
+            hosts.put(key, host);
+          }
+          host.rules.add(rule);
+          index++;
+        }
+      }
+    }
+    empty = (index == 0);
+  }
+
+  /**
+   * @return true if there are no valid rules
+   */
+  public boolean isEmpty() {
+    return empty;
+  }
+
+  /**
+   * Applies the first matching rule.
+   *
+   * @param url the URL as a string, which the rules are matched against
+   * @param objURL the parsed URL
+   * @return the re-written URL, or null if no rule matches
+   */
+  String map(String url, URL objURL) {
+    if (empty) {
+      return null;
+    }
+    Host host = hosts.get(hostKey(objURL.getProtocol(), objURL.getHost()));
+    if (host == null) {
+      return null;
+    }
+    Rule rule = host.getTable(objURL.getPort()).match(url);
+    if (rule == null) {
+      return null;
+    }
+    String aliasPattern = rule.getPattern(objURL.getPort(), host.defaultPort);
+    LOGGER.config("document url[" + url
+        + "] has matched against alias source URL [ " + aliasPattern + " ]");
+    String strUrl = rule.alias;
+    final String restURL = url.substring(aliasPattern.length());
+    if (!strUrl.endsWith(SPConstants.SLASH)
+        && !restURL.startsWith(SPConstants.SLASH)) {
+      strUrl += SPConstants.SLASH;
+    }
+    strUrl += restURL;
+    LOGGER.config("document url[" + url + "] has been re-written to [ "
+        + strUrl + " ] in respect to the aliasing.");
+    return strUrl;
+  }
+
+  private static String hostKey(String protocol, String host) {
+    return protocol.toLowerCase() + SPConstants.URL_SEP + host.toLowerCase();
+  }
+
+  /** One alias mapping rule. */
+  private static class Rule {
+    final int index;
+    final boolean global;
+    /** The source URL as configured, without the global identifier. */
+    final String pattern;
+    final URL source;
+    final String alias;
+
+    private Rule(int index, boolean global, String pattern, URL source,
+        String alias) {
+      this.index = index;
+      this.global = global;
+      this.pattern = pattern;
+      this.source = source;
+      this.alias = alias;
+    }
+
+    static Rule compile(int index, String aliasPattern, String aliasValue) {
+      if ((aliasPattern == null) || (aliasValue == null)) {
+        return null;
+      }
+      aliasPattern = aliasPattern.trim();
+      aliasValue = aliasValue.trim();
+      if (aliasPattern.length() == 0 || aliasValue.length() == 0) {
+        return null;
+      }
+      boolean global =
+          aliasPattern.startsWith(SPConstants.GLOBAL_ALIAS_IDENTIFIER);
+      if (global) {
+        aliasPattern = aliasPattern.substring(1);
+      }
+      try {
+        return new Rule(index, global, aliasPattern, new URL(aliasPattern),
+            aliasValue);
+      } catch (final MalformedURLException e) {
+        LOGGER.log(Level.WARNING, "Malformed alias pattern: " + aliasPattern,
+            e);
+        return null;
+      }
+    }
+
+    /**
+     * Returns the prefix which URLs with the given port must start with to
+     * match this rule, the same way as
+     * {@link Util#doAliasMapping(String, Map, boolean)} computes it.
+     *
+     * @return the prefix, or null if the rule never matches such URLs
+     */
+    String getPattern(int port, int defaultPort) {
+      int sourcePort = source.getPort();
+      if (global) {
+        if (sourcePort != -1) {
+          return pattern;
+        }
+        return source.getProtocol() + SPConstants.URL_SEP + source.getHost()
+            + ((port != -1) ? SPConstants.COLON + port : "")
+            + source.getFile();
+      } else if (port == -1 && sourcePort == source.getDefaultPort()) {
+        return source.getProtocol() + SPConstants.URL_SEP + source.getHost()
+            + source.getFile();
+      } else if (port == defaultPort && sourcePort == -1) {
+        return source.getProtocol() + SPConstants.URL_SEP + source.getHost()
+            + SPConstants.COLON + source.getDefaultPort() + source.getFile();
+      } else if (port != sourcePort) {
+        return null;
+      }
+      return pattern;
+    }
+  }
+
+  /** The rules of one protocol and host. */
+  private static class Host {
+    final int defaultPort;
+    final List<Rule> rules = new ArrayList<Rule>();
+    private final ConcurrentMap<Integer, PrefixTable> tables =
+        new ConcurrentHashMap<Integer, PrefixTable>();
+
+    Host(int defaultPort) {
+      this.defaultPort = defaultPort;
+    }
+
+    /**
+     * @return the rules applying to URLs with the given port
+     */
+    PrefixTable getTable(int port) {
+      PrefixTable table = tables.get(port);
+      if (table == null) {
+        table = new PrefixTable();
+        for (Rule rule : rules) {
+          String prefix = rule.getPattern(port, defaultPort);
+          if (prefix != null) {
+            table.add(prefix, rule);
+          }
+        }
+        table.seal();
+        tables.putIfAbsent(port, table);
+      }
+      return table;
+    }
+  }
+
+  /** Rules by the URL prefix they match. */
+  private static class PrefixTable {
+    private final Map<String, Rule> byPrefix = new HashMap<String, Rule>();
+    private int[] lengths;
+
+    void add(String prefix, Rule rule) {
+      // Keep the first rule, later ones with the same prefix never match.
+      if (!byPrefix.containsKey(prefix)) {
+        byPrefix.put(prefix, rule);
+      }
+    }
+
+    void seal() {
+      TreeSet<Integer> distinct = new TreeSet<Integer>();
+      for (String prefix : byPrefix.keySet()) {
+        distinct.add(prefix.length());
+      }
+      lengths = new int[distinct.size()];
+      int i = 0;
+      for (int length : distinct) {
+        lengths[i++] = length;
+      }
+    }
+
+    /**
+     * Probes every prefix length, longest first, and returns the matching
+     * rule that comes first in configuration order.
+     */
+    Rule match(String url) {
+      Rule first = null;
+      for (int i = lengths.length - 1; i >= 0; i--) {
+        int length = lengths[i];
+        if (length > url.length()) {
+          continue;
+        }
+        Rule rule = byPrefix.get(url.substring(0, length));
+        if (rule != null && (first == null || rule.index < first.index)) {
+          first = rule;
+        }
+      }
+      return first;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import java.text.CollationKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The metadata names of the documents of a list, each with a fixed index.
+ * The documents of a list share one instance and keep only the values of
+ * their metadata, at the index of their name.
+ * <p/>
+ * Names are matched the way {@link Util#collationEquals} does, so names
+ * that differ only in case or accents share an index, under the first
+ * spelling added. Names are never removed. Thread-safe; looking up a name
+ * does not lock.
+ */
+public class AttributeNames {
+  /** The names, by index. Replaced, never changed, when a name is added. */
+  private volatile String[] names = new String[0];
+
+  /** The index of each spelling added or looked up successfully. */
+  private final ConcurrentMap<String, Integer> indexes =
+      new ConcurrentHashMap<String, Integer>();
+
+  /** The index of each name, by collation key. */
+  private final ConcurrentMap<CollationKey, Integer> collationIndexes =
+      new ConcurrentHashMap<CollationKey, Integer>();
+
+  /**
+   * @param name the metadata name
+   * @return the index of the name, or -1 if it has not been added
+   */
+  public int indexOf(final String name) {
+    Integer index = indexes.get(name);
+    if (index == null) {
+      index = collationIndexes.get(Util.getCollationKey(name));
+      if (index == null) {
+        return -1;
+      }
+      indexes.putIfAbsent(name, index);
+    }
+    return index;
+  }
+
+  /**
+   * Adds a name, unless it is already there.
+   *
+   * @param name the metadata name
+   * @return the index of the name
+   */
+  public int add(final String name) {
+    int index = indexOf(name);
+    if (index != -1) {
+      return index;
+    }
+    synchronized (this) {
+      index = indexOf(name);
+      if (index == -1) {
+        index = names.length;
+        String[] newNames = Arrays.copyOf(names, index + 1);
+        newNames[index] = name;
+        // The name is published before its index.
+        names = newNames;
+        collationIndexes.put(Util.getCollationKey(name), index);
+        indexes.put(name, index);
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @return the name at the given index, as first added
+   */
+  public String getName(final int index) {
+    return names[index];
+  }
+
+  /**
+   * @return the number of names
+   */
+  public int size() {
+    return names.length;
+  }
+}
@@ -71,6 +71,7 @@ public class ListsHelper {
   private static final Logger LOGGER = Logger.getLogger(ListsHelper.class.getName());
   private final SharepointClientContext sharepointClientContext;
   private final String rowLimit;
+  private final AdaptiveRowLimit adaptiveRowLimit;
   private final ListsWS listsWS;
 
   /**
@@ -91,6 +92,8 @@ public class ListsHelper {
       rowLimit = SPConstants.DEFAULT_ROWLIMIT;
     }
     LOGGER.log(Level.FINEST, "RowLimit set to: " + rowLimit);
+    adaptiveRowLimit = new AdaptiveRowLimit(Integer.parseInt(rowLimit),
+        inSharepointClientContext.getWebServiceTimeOut());
     listsWS = sharepointClientContext.getClientFactory().getListsWS(
         sharepointClientContext, rowLimit);
 
@@ -115,6 +118,37 @@ public class ListsHelper {
     listsWS.setUsername(username);
   }
   
+  /**
+   * Gets the fields of a list, if they are needed to request only the
+   * included metadata and are not known. If they cannot be retrieved, all
+   * the fields are requested until the schema of the list changes.
+   *
+   * @param list the list whose items are about to be requested
+   */
+  private void updateListFields(final ListState list) {
+    if (null != list.getFieldNames()
+        || !sharepointClientContext.isMetadataFiltered()) {
+      return;
+    }
+    final List<String> fieldNames = Util.makeWSRequest(
+        sharepointClientContext, listsWS,
+        new Util.RequestExecutor<List<String>>() {
+      public List<String> onRequest(final BaseWS ws) throws Throwable {
+        return ((ListsWS) ws).getListFields(list);
+      }
+
+      public void onError(final Throwable e) {
+        LOGGER.log(Level.WARNING, "Unable to get the fields of list [ "
+            + list.getListURL() + " ].", e);
+      }
+    });
+    if (null == fieldNames) {
+      list.setFieldNames(Collections.<String>emptyList());
+    } else {
+      list.setFieldNames(fieldNames);
+    }
+  }
+
   /**
    * Gets all the attachments of a particular list item.
    *
@@ -234,6 +268,8 @@ public class ListsHelper {
       return Collections.emptyList();
     }
 
+    updateListFields(list);
+
     // Create the query for the lists.
     final String listName = list.getPrimaryKey();
     final String viewName = "";
@@ -245,7 +281,7 @@ public class ListsHelper {
       }
 
       public MessageElement[] getViewFields() throws Exception {
-        return ListsUtil.createViewFields();
+        return ListsUtil.createViewFields(sharepointClientContext, list);
       }
 
       public MessageElement[] getQueryOptions() throws Exception {
@@ -253,6 +289,9 @@ public class ListsHelper {
       }
     };
 
+    // The lists web service adjusts the row limit of the list after the call.
+    final int pageSize = adaptiveRowLimit.getRowLimit(list);
+
     // Make the getListItems request.
     List<SPDocument> listItems = Util.makeWSRequest(
         sharepointClientContext, listsWS,
@@ -273,16 +312,16 @@ public class ListsHelper {
       return Collections.emptyList();
     }
 
-    if (listItems.size() >= Integer.parseInt(rowLimit)) {
+    if (listItems.size() >= pageSize) {
       LOGGER.finer("At least rowlimit number of documents were found, "
           + "so next page might exist, setting the next page value to "
-          + "non null, rowlimit = [" + rowLimit + "] listitemcount = [" 
+          + "non null, rowlimit = [" + pageSize + "] listitemcount = [" 
           + listItems.size() + "]");
       list.setNextPage("next page might exist so setting to - not null");
     } else {
       LOGGER.finer("Less than rowlimit number of documents were found, "
           + "so next page does not exist, leaving next page value "
-          + "unchanged. rowlimit = [" + rowLimit + "] listitemcount = ["
+          + "unchanged. rowlimit = [" + pageSize + "] listitemcount = ["
           + listItems.size() + "]");
     }
 
@@ -370,6 +409,8 @@ public class ListsHelper {
       }
     }
 
+    updateListFields(list);
+
     final String listName = list.getPrimaryKey();
     final String viewName = "";
     final String token = list.getChangeTokenForWSCall();
@@ -395,7 +436,7 @@ public class ListsHelper {
       }
 
       public MessageElement[] getViewFields() throws Exception {
-        return ListsUtil.createViewFields();
+        return ListsUtil.createViewFields(sharepointClientContext, list);
       }
 
       public MessageElement[] getQueryOptions() throws Exception {
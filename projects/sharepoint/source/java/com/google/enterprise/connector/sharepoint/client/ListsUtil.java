@@ -16,6 +16,7 @@ package com.google.enterprise.connector.sharepoint.client;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
 import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
 import com.google.enterprise.connector.sharepoint.client.Util;
@@ -34,8 +35,10 @@ import org.xml.sax.SAXException;
 import java.io.IOException;
 import java.io.StringReader;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -54,6 +57,22 @@ import javax.xml.soap.SOAPFactory;
 public abstract class ListsUtil {
   private static final Logger LOGGER = Logger.getLogger(ListsUtil.class.getName());
 
+  /**
+   * The fields the connector reads from every list item, whether or not they
+   * are included as metadata. The names of the properties in the MetaInfo
+   * field are not known until they are returned, so it is always requested.
+   */
+  private static final Set<String> MANDATORY_FIELDS = ImmutableSet.of(
+      getFieldName(SPConstants.ID), getFieldName(SPConstants.FILEREF),
+      getFieldName(SPConstants.MODIFIED),
+      getFieldName(SPConstants.CONTENTTYPE),
+      getFieldName(SPConstants.EDITOR), getFieldName(SPConstants.AUTHOR),
+      getFieldName(SPConstants.OWS_FSOBJTYPE),
+      getFieldName(SPConstants.FILE_SIZE_DISPLAY),
+      getFieldName(SPConstants.FILE_SIZE),
+      getFieldName(SPConstants.MODERATION_STATUS),
+      getFieldName(SPConstants.URL), SPConstants.METAINFO_FIELD);
+
   /**
    * Used to create WS query in case of SP2003
    *
@@ -288,6 +307,109 @@ public abstract class ListsUtil {
     return meArray;
   }
 
+  /**
+   * View Fields required for making web service call for the items of a
+   * list. Only the fields read by the connector and the fields included as
+   * metadata are requested, if the fields of the list are known.
+   *
+   * @param sharepointClientContext the context with the included and
+   *          excluded metadata
+   * @param list the list whose items are requested
+   * @return the view fields being used for WS call
+   */
+  public static MessageElement[] createViewFields(
+      final SharepointClientContext sharepointClientContext,
+      final ListState list) {
+    final List<String> fieldNames = list.getFieldNames();
+    if (null == fieldNames || !sharepointClientContext.isMetadataFiltered()) {
+      return createViewFields();
+    }
+    final List<String> viewFieldNames =
+        getViewFieldNames(sharepointClientContext, fieldNames);
+    if (viewFieldNames.size() == fieldNames.size()) {
+      return createViewFields();
+    }
+
+    final MessageElement[] meArray = createViewFields();
+    try {
+      for (String name : viewFieldNames) {
+        final MessageElement fieldRef =
+            new MessageElement(new QName("FieldRef"));
+        fieldRef.addAttribute(null, SPConstants.FIELD_NAME, name);
+        meArray[0].addChild(fieldRef);
+      }
+    } catch (final SOAPException se) {
+      LOGGER.log(Level.WARNING, "Problem while creating View Fields for list [ "
+          + list.getListURL() + " ].", se);
+      return createViewFields();
+    }
+    LOGGER.log(Level.FINE, "Requesting " + viewFieldNames.size() + " of "
+        + fieldNames.size() + " fields of list [ " + list.getListURL()
+        + " ]. ");
+    return meArray;
+  }
+
+  /**
+   * @param sharepointClientContext the context with the included and
+   *          excluded metadata
+   * @param fieldNames the internal names of the fields of a list
+   * @return the fields read by the connector and the fields included as
+   *         metadata, in the order of the list
+   */
+  @VisibleForTesting
+  static List<String> getViewFieldNames(
+      final SharepointClientContext sharepointClientContext,
+      final List<String> fieldNames) {
+    final List<String> viewFieldNames = new ArrayList<String>();
+    for (String name : fieldNames) {
+      if (MANDATORY_FIELDS.contains(name)
+          || sharepointClientContext.isIncludeMetadata(
+              Util.normalizeMetadataName(SPConstants.OWS + name))) {
+        viewFieldNames.add(name);
+      }
+    }
+    return viewFieldNames;
+  }
+
+  /**
+   * Gets the internal names of the fields of a list from its schema, as
+   * returned by GetList, and by getListItemChangesSinceToken when the schema
+   * has changed.
+   *
+   * @param listElement the List element of the response
+   * @return the names of the fields, or null if the schema has no fields
+   */
+  public static List<String> getFieldNames(final MessageElement listElement) {
+    Iterator<?> itChilds = listElement.getChildElements();
+    while (itChilds.hasNext()) {
+      final MessageElement child = (MessageElement) itChilds.next();
+      if (!SPConstants.FIELDS.equalsIgnoreCase(child.getLocalName())) {
+        continue;
+      }
+      final List<String> fieldNames = new ArrayList<String>();
+      Iterator<?> itFields = child.getChildElements();
+      while (itFields.hasNext()) {
+        final MessageElement field = (MessageElement) itFields.next();
+        if (SPConstants.FIELD.equalsIgnoreCase(field.getLocalName())) {
+          final String name = field.getAttributeValue(SPConstants.FIELD_NAME);
+          if (!Strings.isNullOrEmpty(name)) {
+            fieldNames.add(name);
+          }
+        }
+      }
+      return fieldNames;
+    }
+    return null;
+  }
+
+  /**
+   * @return the internal name of a field from the name of its attribute in
+   *         the list items
+   */
+  private static String getFieldName(final String attributeName) {
+    return attributeName.substring(SPConstants.OWS.length());
+  }
+
   /**
    * Generates the query options required for making Sharepoint lists
    * web service requests.
@@ -361,6 +483,17 @@ public abstract class ListsUtil {
       }
 
       if (SPConstants.LIST.equalsIgnoreCase(change.getLocalName())) {
+        // The schema is returned with the first changes, and whenever its
+        // version has changed since.
+        final String version =
+            change.getAttributeValue(SPConstants.LIST_VERSION);
+        if (null == version || !version.equals(list.getSchemaVersion())) {
+          final List<String> fieldNames = getFieldNames(change);
+          if (null != fieldNames) {
+            list.setFieldNames(fieldNames);
+            list.setSchemaVersion(version);
+          }
+        }
         if (list.isExisting() 
             && !Strings.isNullOrEmpty(list.getChangeTokenForWSCall())) {
           LOGGER.log(Level.INFO, "Resetting Known List [" + list.getListURL() 
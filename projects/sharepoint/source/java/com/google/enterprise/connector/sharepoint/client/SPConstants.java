@@ -168,9 +168,16 @@ public class SPConstants {
   public static final String BT_POSTS = "Posts";
   public static final String BT_COMMENTS = "Comments";
   public static final String CONTENT_TYPE_HEADER = "Content-Type";
+  public static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+  public static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
   public static final String CHANGES = "Changes";
   public static final String LASTCHANGETOKEN = "LastChangeToken";
   public static final String LIST = "List";
+  public static final String LIST_VERSION = "Version";
+  public static final String FIELDS = "Fields";
+  public static final String FIELD = "Field";
+  public static final String FIELD_NAME = "Name";
+  public static final String METAINFO_FIELD = "MetaInfo";
   public static final String CHANGETYPE = "ChangeType";
   public static final String DELETE = "Delete";
   public static final String RESTORE = "Restore";
@@ -281,6 +288,12 @@ public class SPConstants {
   public static final String STATE_EXTRAIDS_ALERTS = "Alerts";
   public static final String STATE_BIGGESTID = "BiggestID";
   public static final String STATE_DELETED_LIST_ITEMIDS = "DeletedListItemIDs";
+  public static final String STATE_FED_LIST_ITEMIDS = "FedListItemIDs";
+  public static final String STATE_LIST_BODY = "ListBody";
+  public static final String STATE_LIST_BODIES = "ListBodies";
+  public static final String STATE_PERSONAL_SITES = "PersonalSites";
+  public static final String STATE_PERSONAL_SITE = "PersonalSite";
+  public static final String STATE_ACCOUNT = "Account";
   public static final String STATE_LASTDOCCRAWLED = "LastDocCrawled";
   public static final String STATE_LASTMODIFIED = "LastModified";
   public static final String STATE_FEEDTYPE = "FeedType";
@@ -305,7 +318,14 @@ public class SPConstants {
   public static final String STATE_ATTR_ID = "ID";
   public static final String STATE_ATTR_IDREF = "IDREF";
   public static final String STATE_NOCRAWL = "NoCrawl";
+  public static final String STATE_ROW_LIMIT = "RowLimit";
   public static final String STATE_CRAWLASPXPAGES = "CrawlASPXPages";
+  public static final String STATE_SITE_COLLECTION_URL = "SiteCollectionURL";
+  public static final String STATE_LAST_VISIT_TIME = "LastVisitTime";
+  public static final String STATE_CHANGE_RATE = "ChangeRate";
+  // The shard of the farm the state is for
+  public static final String STATE_SHARD = "Shard";
+  public static final String STATE_SHARD_COUNT = "ShardCount";
   // To persist the list of renamed folders that need to be processed on
   // connector restart
   public static final String STATE_RENAMED_FOLDER_LIST = "RenamedFolderList";
@@ -320,6 +340,10 @@ public class SPConstants {
       CONNECTOR_NAME + CONNECTOR_SUFFIX + CONNECTOR_STATE_EXT;
   public static final String CONNECTOR_TEMPFILE_NAME =
       CONNECTOR_NAME + CONNECTOR_SUFFIX + CONNECTOR_TEMP_EXT;
+  public static final String CONNECTOR_LISTS_EXT = ".lists";
+  public static final String CONNECTOR_LISTS_TEMP_EXT = ".lists.tmp";
+  public static final String CONNECTOR_LISTSFILE_NAME =
+      CONNECTOR_NAME + CONNECTOR_SUFFIX + CONNECTOR_LISTS_EXT;
 
   public static final String LAST_CRAWLED_WEB_ID = "LastCrawledWebStateID";
   public static final String LAST_CRAWLED_LIST_ID = "LastCrawledListStateID";
@@ -413,6 +437,7 @@ public class SPConstants {
   public static final String INVALID_INCLUDE_PATTERN = "Invalid_Include_Pattern";
   public static final String INVALID_EXCLUDE_PATTERN = "Invalid_Exclude_Pattern";
   public static final String REASON = "Reason";
+  public static final String CHECK_TIMED_OUT = "Check_Timed_Out";
   public static final String KERBEROS_KDC_HOST_BLANK = "Kerberos_Kdc_Hostname_Blank";
   public static final String USE_SP_SEARCH_VISIBILITY = "useSPSearchVisibility";
   public static final String USE_SP_SEARCH_VISIBILITY_LABEL = "Use_SP_SearchVisibility";
@@ -503,6 +528,10 @@ public class SPConstants {
   public static final String OPTION = "option";
   public static final String SELECTED = "selected";
   public static final int DEFAULT_TIMEOUT_FOR_WS = 300000;
+  // The maximum web service time out of each connectivity check made while
+  // validating the configuration, and the time all the checks are given.
+  public static final int VALIDATION_CHECK_TIMEOUT = 60000;
+  public static final long VALIDATION_DEADLINE = 90000;
   public static final String MODERATION_STATUS = "ows__ModerationStatus";
   public static final String FEED_UNPUBLISHED_CONTENT = "feedUnPublishedDocuments";
   public static final String FEED_UNPUBLISHED_CONTENT_LABEL = "feed_Un_Published_Documents";
@@ -0,0 +1,262 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import com.google.common.base.Strings;
+import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
+import com.google.enterprise.connector.sharepoint.state.WebState;
+
+import org.apache.axis.message.MessageElement;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Splits the site collections of a farm between connector instances, so
+ * that each site collection is crawled by exactly one of them.
+ * <p/>
+ * Each of the shardCount instances is configured with its own shard index.
+ * The site collection URLs are placed on a consistent hash ring, with
+ * {@link #POINTS_PER_SHARD} points for each shard, and a site collection
+ * belongs to the shard of the first point following its hash. The ring
+ * only depends on the number of shards, so all the instances agree on the
+ * owner of every site collection without talking to each other, and adding
+ * a shard only moves the site collections taken over by the new shard.
+ * All the webs of a site collection belong to the same shard.
+ * <p/>
+ * The site collections of the webs are looked up once, and remembered for
+ * the webs of other shards too, since they are discovered again in every
+ * batch but not kept in the state.
+ */
+public class ShardAssignment {
+  private static final Logger LOGGER =
+      Logger.getLogger(ShardAssignment.class.getName());
+
+  /** The number of points of each shard on the hash ring. */
+  static final int POINTS_PER_SHARD = 100;
+
+  /** The time before looking up again a site collection not found, in ms. */
+  static final long LOOKUP_RETRY_INTERVAL = 60 * 60 * 1000L;
+
+  private final int shardIndex;
+  private final int shardCount;
+
+  /** The hashes of the points on the ring, in increasing order. */
+  private final long[] points;
+
+  /** The shard of each point. */
+  private final int[] pointShards;
+
+  /** The site collections found, by normalized web URL. */
+  private final ConcurrentMap<String, String> siteCollections =
+      new ConcurrentHashMap<String, String>();
+
+  /**
+   * The time after which the site collections not found can be looked up
+   * again, by normalized web URL.
+   */
+  private final ConcurrentMap<String, Long> failedLookups =
+      new ConcurrentHashMap<String, Long>();
+
+  /**
+   * @param shardIndex the shard of this connector instance, from 0 to
+   *          shardCount - 1
+   * @param shardCount the number of connector instances sharing the farm
+   * @throws IllegalArgumentException if the shard index is not in range
+   */
+  public ShardAssignment(int shardIndex, int shardCount) {
+    if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+      throw new IllegalArgumentException("Invalid shard index " + shardIndex
+          + " for " + shardCount + " shards");
+    }
+    this.shardIndex = shardIndex;
+    this.shardCount = shardCount;
+
+    int size = (shardCount == 1) ? 0 : shardCount * POINTS_PER_SHARD;
+    long[] keys = new long[size];
+    for (int shard = 0, i = 0; i < size; shard++) {
+      for (int point = 0; point < POINTS_PER_SHARD; point++, i++) {
+        // The shard is kept in the low bits of the key, which only matter
+        // when two hashes collide.
+        keys[i] = (hash("shard-" + shard + "-" + point) & ~0xffffL) | shard;
+      }
+    }
+    Arrays.sort(keys);
+    points = new long[size];
+    pointShards = new int[size];
+    for (int i = 0; i < size; i++) {
+      points[i] = keys[i];
+      pointShards[i] = (int) (keys[i] & 0xffffL);
+    }
+  }
+
+  public int getShardIndex() {
+    return shardIndex;
+  }
+
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  /**
+   * @return true if the farm is shared with other connector instances
+   */
+  public boolean isSharded() {
+    return shardCount > 1;
+  }
+
+  /**
+   * @param siteCollectionUrl the URL of a site collection
+   * @return the shard the site collection belongs to
+   */
+  public int getShard(String siteCollectionUrl) {
+    if (!isSharded()) {
+      return 0;
+    }
+    long hash = hash(normalizeUrl(siteCollectionUrl)) | 0xffffL;
+    int index = Arrays.binarySearch(points, hash);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    return pointShards[(index == points.length) ? 0 : index];
+  }
+
+  /**
+   * @param siteCollectionUrl the URL of a site collection
+   * @return true if the site collection belongs to the shard of this
+   *         connector instance
+   */
+  public boolean owns(String siteCollectionUrl) {
+    return getShard(siteCollectionUrl) == shardIndex;
+  }
+
+  /**
+   * @param ctx the context of the traversal
+   * @param web a web
+   * @return true if the web belongs to the shard of this connector
+   *         instance. Webs whose site collection cannot be found do not.
+   */
+  public boolean owns(SharepointClientContext ctx, WebState web) {
+    if (!isSharded()) {
+      return true;
+    }
+    if (null == web.getSiteCollectionUrl()) {
+      web.setSiteCollectionUrl(getSiteCollectionUrl(ctx, web.getWebUrl()));
+    }
+    return null != web.getSiteCollectionUrl()
+        && owns(web.getSiteCollectionUrl());
+  }
+
+  /**
+   * Looks up the site collection of a web, unless it has been found before.
+   * When it cannot be found, it is not looked up again for
+   * {@link #LOOKUP_RETRY_INTERVAL}.
+   *
+   * @param ctx the context of the traversal
+   * @param webUrl the URL of the web
+   * @return the URL of the site collection of the web, or null if it could
+   *         not be found
+   */
+  public String getSiteCollectionUrl(SharepointClientContext ctx,
+      String webUrl) {
+    String key = normalizeUrl(webUrl);
+    String siteCollectionUrl = siteCollections.get(key);
+    if (null != siteCollectionUrl) {
+      return siteCollectionUrl;
+    }
+    Long retryTime = failedLookups.get(key);
+    long now = System.currentTimeMillis();
+    if (null != retryTime && now < retryTime) {
+      return null;
+    }
+    siteCollectionUrl = lookUpSiteCollectionUrl(ctx, webUrl);
+    if (null == siteCollectionUrl) {
+      failedLookups.put(key, now + LOOKUP_RETRY_INTERVAL);
+    } else {
+      failedLookups.remove(key);
+      siteCollections.put(key, siteCollectionUrl);
+    }
+    return siteCollectionUrl;
+  }
+
+  /**
+   * Looks up the site collection of a web with the SiteData web service.
+   *
+   * @return the URL of the site collection of the web, or null if it could
+   *         not be found
+   */
+  private String lookUpSiteCollectionUrl(SharepointClientContext ctx,
+      String webUrl) {
+    try {
+      SharepointClientContext webCtx = (SharepointClientContext) ctx.clone();
+      webCtx.setSiteURL(webUrl);
+      MessageElement metadata =
+          new SiteDataHelper(webCtx).getSiteCollectionMetadata();
+      if (null == metadata
+          || Strings.isNullOrEmpty(metadata.getAttribute("URL"))) {
+        LOGGER.log(Level.WARNING, "Unable to find the site collection of web "
+            + "[ {0} ].", webUrl);
+        return null;
+      }
+      return metadata.getAttribute("URL");
+    } catch (SharepointException e) {
+      LOGGER.log(Level.WARNING, "Unable to find the site collection of web [ "
+          + webUrl + " ]", e);
+      return null;
+    }
+  }
+
+  /**
+   * @return the URL in lower case, without a trailing slash
+   */
+  private static String normalizeUrl(String url) {
+    url = url.trim().toLowerCase(Locale.ENGLISH);
+    if (url.endsWith(SPConstants.SLASH)) {
+      url = url.substring(0, url.length() - 1);
+    }
+    return url;
+  }
+
+  /**
+   * @return the first eight bytes of the MD5 hash of the string
+   */
+  private static long hash(String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(
+          value.getBytes("UTF-8"));
+      long hash = 0;
+      for (int i = 0; i < 8; i++) {
+        hash = (hash << 8) | (digest[i] & 0xff);
+      }
+      return hash;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "shard " + shardIndex + " of " + shardCount;
+  }
+}
@@ -40,6 +40,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
@@ -72,6 +73,11 @@ public class SharepointClient {
   // checked for any docs pending from previous crawl cycle
   private int noOfVisitedListStates = 0;
 
+  // Number of webs traversed and skipped in the current crawl cycle because
+  // they have no changes in the change log of their site collection.
+  private int nWebsChecked = 0;
+  private int nWebsSkipped = 0;
+
   public SharepointClient(final ClientFactory clientFactory,
       final SharepointClientContext inSharepointClientContext)
           throws SharepointException {
@@ -114,7 +120,7 @@ public class SharepointClient {
     }
     ImmutableList.Builder<SPDocument> newListBuilder =
         new ImmutableList.Builder<SPDocument>();
-    for (SPDocument doc : list.getCrawlQueue()) {
+    for (SPDocument doc : crawlQueue) {
       ListState parentList = doc.getParentList();
       if (parentList == null) {
         LOGGER.log(Level.WARNING, "Document [{0}] is missing parent list. "
@@ -161,10 +167,11 @@ public class SharepointClient {
       // FIXME These could be set in traversal manager just before
       // returning
       // start/resumeTraversal
-      docList.setAliasMap(sharepointClientContext.getAliasMap());
+      docList.setAliasMapper(sharepointClientContext.getAliasMapper());
       docList.setFQDNConversion(sharepointClientContext.isFQDNConversion());
       docList.setReWriteDisplayUrlUsingAliasMappingRules(sharepointClientContext.isReWriteDisplayUrlUsingAliasMappingRules());
       docList.setReWriteRecordUrlUsingAliasMappingRules(sharepointClientContext.isReWriteRecordUrlUsingAliasMappingRules());
+      docList.setUserDataStoreDAO(sharepointClientContext.getUserDataStoreDAO());
     } else {
       LOGGER.log(Level.SEVERE, "sharepointClientContext not found!");
     }
@@ -533,9 +540,11 @@ public class SharepointClient {
    *
    * @param allSites
    * @param spType
+   * @param globalState the state keeping the personal sites discovered before
    * @throws SharepointException
    */
-  private void discoverExtraWebs(final Set<String> allSites, final SPType spType)
+  private void discoverExtraWebs(final Set<String> allSites,
+      final SPType spType, final GlobalState globalState)
       throws SharepointException {
     // TODO: Move this to the client factory.
     if (SPType.SP2003 == spType) {
@@ -570,7 +579,8 @@ public class SharepointClient {
           }
 
           try {
-            final Set<String> personalSites = userProfile.getPersonalSiteList();
+            final Set<String> personalSites = userProfile.getPersonalSiteList(
+                globalState.getPersonalSiteState());
             allSites.addAll(personalSites);
           } catch (final Exception e) {
             LOGGER.log(Level.WARNING, "Unable to get Personal Sites for Context URL [ "
@@ -596,14 +606,15 @@ public class SharepointClient {
    * @param allSites
    * @return a set of all new webs that have been added to the globalstate
    */
-  private Set<WebState> updateGlobalState(final GlobalState globalState,
+  @VisibleForTesting
+  Set<WebState> updateGlobalState(final GlobalState globalState,
       final Set<String> allSites) {
     Set<WebState> newWebs = new HashSet<WebState>();
     if ((null == allSites) || (allSites.size() == 0)) {
       return newWebs;
     }
     for (String url : allSites) {
-      final WebState webState = updateGlobalState(globalState, url);
+      final WebState webState = updateGlobalState(globalState, url, false);
       if (null != webState) {
         newWebs.add(webState);
       }
@@ -617,12 +628,15 @@ public class SharepointClient {
    *
    * @param globalState
    * @param url
+   * @param startWeb true if the web is where the traversal starts from. It
+   *          is added to the state even if it belongs to another shard, to
+   *          discover the other webs from.
    * @return {@link WebState} null if the webstate was already existing in the
-   *         globalstate. Otherwise a valid reference to the newly created
-   *         WebState
+   *         globalstate, or if it belongs to another shard. Otherwise a valid
+   *         reference to the newly created WebState
    */
   private WebState updateGlobalState(final GlobalState globalState,
-      final String url) {
+      final String url, final boolean startWeb) {
     WebState web = null;
     if (null == url) {
       LOGGER.log(Level.WARNING, "url not found!");
@@ -654,6 +668,24 @@ public class SharepointClient {
       }
     }
 
+    String siteCollectionUrl = null;
+    final ShardAssignment shards = sharepointClientContext.getShardAssignment();
+    if (null == wsGS && shards.isSharded() && !startWeb) {
+      siteCollectionUrl = shards.getSiteCollectionUrl(sharepointClientContext,
+          webUrl);
+      if (null == siteCollectionUrl) {
+        // Retried when the web is discovered again, once the lookup can be
+        // retried.
+        return web;
+      }
+      if (!shards.owns(siteCollectionUrl)) {
+        LOGGER.config("Ignoring web [ " + webUrl + " ] of site collection [ "
+            + siteCollectionUrl + " ], which belongs to shard "
+            + shards.getShard(siteCollectionUrl) + ".");
+        return web;
+      }
+    }
+
     if (null == wsGS) {// new web
       LOGGER.config("Making WebState for : " + webUrl);
       try {
@@ -661,6 +693,9 @@ public class SharepointClient {
             Util.encodeURL(webUrl) + SPConstants.LISTS_END_POINT, null);
         if (responseCode != 400 && responseCode != 404) {
           web = globalState.makeWebState(sharepointClientContext, webUrl);
+          if (null != web && null != siteCollectionUrl) {
+            web.setSiteCollectionUrl(siteCollectionUrl);
+          }
         } else {
           LOGGER.warning("Unable to connect to list web service for web. "
               + "Skipping WebState creation for URL [ " + webUrl + " ].");
@@ -701,6 +736,8 @@ public class SharepointClient {
     }
     SharepointClientContext tempCtx = (SharepointClientContext) sharepointClientContext.clone();
 
+    updateShard(globalState, tempCtx);
+
     SiteDiscoveryHelper webCrawlInfoFetcher = null;
     if (sharepointClientContext.isUseSPSearchVisibility()) {
       webCrawlInfoFetcher = new SiteDiscoveryHelper(tempCtx, null);
@@ -729,7 +766,8 @@ public class SharepointClient {
     globalState.startRecrawl();
 
     if (null == nextWeb) {
-      nextWeb = updateGlobalState(globalState, sharepointClientContext.getSiteURL());
+      nextWeb = updateGlobalState(globalState,
+          sharepointClientContext.getSiteURL(), true);
       if (null == nextWeb) {
         throw new SharepointException(
             "Starting WebState for the current traversal can not be determined.");
@@ -746,7 +784,14 @@ public class SharepointClient {
     // To store the intermediate webs discovered during crawl
     Set<String> allSites = new TreeSet<String>();
 
-    ArrayList<String> lstLookupForWebs = new ArrayList<String>();
+    Set<String> lstLookupForWebs = new HashSet<String>();
+
+    nWebsChecked = 0;
+    nWebsSkipped = 0;
+    if (sharepointClientContext.isUseSiteChangeLog()) {
+      sharepointClientContext.getSiteChangeTracker().probe(tempCtx,
+          globalState.getAllWebStateSet());
+    }
 
     // Traverse sites and lists from the last crawled site and list to fetch
     // batch hint # of docs
@@ -788,7 +833,7 @@ public class SharepointClient {
         allSites.clear();
 
         // Initiate the discovery of new sites
-        discoverExtraWebs(allSites, spType);
+        discoverExtraWebs(allSites, spType, globalState);
         newWebs.addAll(updateGlobalState(globalState, allSites));
       }
 
@@ -834,6 +879,12 @@ public class SharepointClient {
       webCrawlInfoFetcher.updateWebCrawlInfoInBatch(newWebs);
     }
 
+    if (sharepointClientContext.isUseSiteChangeLog()) {
+      LOGGER.info("Skipped " + nWebsSkipped + " of " + nWebsChecked
+          + " sites with no changes in the change log of their site "
+          + "collection.");
+    }
+
     globalState.setBFullReCrawl(doCrawl);
     globalState.endRecrawl(sharepointClientContext);
 
@@ -841,9 +892,44 @@ public class SharepointClient {
         && sharepointClientContext.getUserDataStoreDAO().getUdsCacheSize() > 0) {
       sharepointClientContext.getUserDataStoreDAO().cleanupCache();
     }
+    if (null != sharepointClientContext.getUserDataStoreDAO()) {
+      // Picks up the memberships written by other connector instances.
+      sharepointClientContext.getUserDataStoreDAO().refreshMembershipIndex();
+    }
     LOGGER.log(Level.INFO, "Returning after crawl cycle.. ");
   }
 
+  /**
+   * Removes the webs which belong to other shards from the state when the
+   * shard of this connector instance is not the one the state was saved
+   * for. Webs whose site collection cannot be found are kept, and are not
+   * crawled until it is found.
+   *
+   * @param globalState the state
+   * @param ctx the context of the traversal
+   */
+  private void updateShard(final GlobalState globalState,
+      final SharepointClientContext ctx) {
+    final ShardAssignment shards = ctx.getShardAssignment();
+    if (globalState.getShardIndex() == shards.getShardIndex()
+        && globalState.getShardCount() == shards.getShardCount()) {
+      return;
+    }
+    LOGGER.info("The shard has changed from shard "
+        + globalState.getShardIndex() + " of " + globalState.getShardCount()
+        + " to " + shards + ". Removing the webs of other shards.");
+    int removed = 0;
+    for (WebState web
+        : new ArrayList<WebState>(globalState.getAllWebStateSet())) {
+      if (!shards.owns(ctx, web) && null != web.getSiteCollectionUrl()) {
+        globalState.removeWebState(web);
+        removed++;
+      }
+    }
+    LOGGER.info("Removed " + removed + " webs of other shards.");
+    globalState.setShard(shards.getShardIndex(), shards.getShardCount());
+  }
+
   public boolean isDoCrawl() {
     return doCrawl;
   }
@@ -946,7 +1032,22 @@ public class SharepointClient {
     try {
       SiteDiscoveryHelper gssd = new SiteDiscoveryHelper(
           tempCtx, webState.getWebUrl());
-      gssd.updateListCrawlInfo(listCollection);
+      // Use the crawl info fetched recently for the known lists, and fetch
+      // it for the others.
+      final long now = System.currentTimeMillis();
+      final long timeToLive = gssd.getCrawlInfoTimeToLive();
+      List<ListState> staleLists = new ArrayList<ListState>();
+      for (ListState currentListState : listCollection) {
+        ListState listState =
+            webState.lookupList(currentListState.getPrimaryKey());
+        if (null != listState
+            && listState.isCrawlInfoCurrent(now, timeToLive)) {
+          gssd.applyListCrawlInfo(currentListState, listState.getCrawlInfo());
+        } else {
+          staleLists.add(currentListState);
+        }
+      }
+      gssd.updateListCrawlInfo(staleLists);
     } catch (Exception e) {
       LOGGER.log(Level.WARNING, "Exception occurred when trying to to update the ListCrawlInfo for web [ "
           + webState.getWebUrl() + " ] ", e);
@@ -1124,6 +1225,9 @@ public class SharepointClient {
                 || aclChangedItems.size() < sharepointClientContext.getBatchHint()) {
               // Do regular incremental crawl
               listItems = listsHelper.getListItemChangesSinceToken(listState, allWebs);
+              if (null != listItems) {
+                webState.addObservedChanges(listItems.size());
+              }
             }
           } catch (final Exception e) {
             LOGGER.log(Level.WARNING, "Exception thrown while getting the documents under list [ "
@@ -1146,6 +1250,9 @@ public class SharepointClient {
             }
 
             listItems = listsHelper.getListItems(listState, dateSince, lastDocID, allWebs);
+            if (null != listItems) {
+              webState.addObservedChanges(listItems.size());
+            }
           } catch (final Exception e) {
             LOGGER.log(Level.WARNING, "Exception thrown while getting the documents under list [ "
                 + listState.getListURL() + " ].", e);
@@ -1263,12 +1370,18 @@ public class SharepointClient {
   // SharePointClientContexts?
   private WebState traverseSites(GlobalState globalState, Set<String> allSites,
       SharepointClientContext sharePointClientContext, WebState nextWeb,
-      ListState nextList, ArrayList<String> lstLookupForWebs)
+      ListState nextList, Set<String> lstLookupForWebs)
           throws SharepointException {
     globalState.setCurrentWeb(nextWeb);
-    final Iterator<WebState> itWebs = globalState.getCircularIterator();
-    while (itWebs.hasNext()) {
-      WebState ws = itWebs.next(); // Get the first web
+    final Iterator<WebState> webStates = sharepointClientContext
+        .getWebSchedulingPolicy().getTraversalOrder(globalState,
+            System.currentTimeMillis());
+    // Webs taken from webStates ahead of the web being crawled, to prefetch
+    // their list crawl info.
+    final LinkedList<WebState> lookahead = new LinkedList<WebState>();
+    while (!lookahead.isEmpty() || webStates.hasNext()) {
+      WebState ws = lookahead.isEmpty()
+          ? webStates.next() : lookahead.removeFirst(); // Get the first web
       if (ws == null) {
         continue;
       }
@@ -1306,9 +1419,46 @@ public class SharepointClient {
         }
       }
 
+      if (!sharepointClientContext.getShardAssignment().owns(
+          sharePointClientContext, ws)) {
+        LOGGER.config("Skipping site [ " + webURL + " ] because it belongs "
+            + "to another shard or its site collection is not known.");
+        // Kept so that the other webs are discovered from it, or until its
+        // site collection is known.
+        ws.setExisting(true);
+        for (ListState list : ws.getAllListStateSet()) {
+          list.setExisting(true);
+        }
+        continue;
+      }
+
+      final SiteChangeTracker changeTracker =
+          sharepointClientContext.isUseSiteChangeLog()
+          ? sharepointClientContext.getSiteChangeTracker() : null;
+      if (null != changeTracker) {
+        nWebsChecked++;
+        if (changeTracker.isUnchanged(ws) && !ws.hasPendingWork()) {
+          LOGGER.config("Skipping site [ " + webURL
+              + " ] because it has no changes since it was last crawled.");
+          // The web and its lists are not crawled, but they still exist.
+          ws.setExisting(true);
+          for (ListState list : ws.getAllListStateSet()) {
+            list.setExisting(true);
+          }
+          sharepointClientContext.getWebSchedulingPolicy().recordVisit(ws,
+              ws.getObservedChanges(), System.currentTimeMillis());
+          nWebsSkipped++;
+          continue;
+        }
+      }
+
+      prefetchListCrawlInfo(sharePointClientContext, ws, webStates, lookahead,
+          lstLookupForWebs);
+
       nextWeb = ws;
       LOGGER.config("Crawling site [ " + webURL + " ] ");
       final int currDocCount = nDocuments;
+      boolean crawled = false;
       try {
         // Process the web site, and add the link site info to allSites.
         updateWebStateFromSite(sharePointClientContext, ws, nextList, allSites);
@@ -1337,6 +1487,7 @@ public class SharepointClient {
               + " ]");
           processSiteData(ws, sharepointClientContext);
         }
+        crawled = true;
       } catch (final Exception e) {
         LOGGER.log(Level.WARNING, "Following exception occured while traversing/updating web state URL [ "
             + webURL + " ]. ", e);
@@ -1348,6 +1499,16 @@ public class SharepointClient {
       // Check if the threshold (i.e. batchHint is reached)
       final int batchHint = sharepointClientContext.getBatchHint();
 
+      // The changes of the web are crawled once all of it has been crawled
+      // with nothing left for the next batch traversals.
+      if (crawled && nDocuments < batchHint && !ws.hasPendingWork()) {
+        if (null != changeTracker) {
+          changeTracker.crawled(ws);
+        }
+        sharepointClientContext.getWebSchedulingPolicy().recordVisit(ws,
+            ws.getObservedChanges(), System.currentTimeMillis());
+      }
+
       // As per Issue 116 we need to stop at batchHint or a little more
       if (nDocuments >= batchHint) {
         LOGGER.info("Stopping crawl cycle as connector has discovered (>= batchHint) # of docs. In total : "
@@ -1378,6 +1539,54 @@ public class SharepointClient {
     return nextWeb;
   }
 
+  /**
+   * If the crawl info of the lists of the web about to be crawled is not
+   * current, fetches it along with that of the webs to be crawled next, so
+   * that the calls for the next webs are made concurrently rather than one
+   * at a time as each web is crawled.
+   *
+   * @param tempCtx Current connector context
+   * @param currentWeb the web about to be crawled
+   * @param webs the webs to be traversed after the lookahead
+   * @param lookahead the webs to be traversed next, taken from webs
+   * @param lstLookupForWebs webs which are already traversed
+   */
+  private void prefetchListCrawlInfo(SharepointClientContext tempCtx,
+      WebState currentWeb, Iterator<WebState> webs,
+      LinkedList<WebState> lookahead, Set<String> lstLookupForWebs) {
+    final int threads = tempCtx.getCrawlInfoFetchThreads();
+    if (threads <= 1) {
+      return;
+    }
+    try {
+      SiteDiscoveryHelper fetcher = new SiteDiscoveryHelper(tempCtx, null);
+      final long now = System.currentTimeMillis();
+      final long timeToLive = fetcher.getCrawlInfoTimeToLive();
+      if (currentWeb.getAllListStateSet().isEmpty()
+          || currentWeb.isListCrawlInfoCurrent(now, timeToLive)) {
+        return;
+      }
+      while (lookahead.size() < threads - 1 && webs.hasNext()) {
+        lookahead.add(webs.next());
+      }
+      List<WebState> staleWebs = new ArrayList<WebState>();
+      staleWebs.add(currentWeb);
+      for (WebState web : lookahead) {
+        if (null == web || web.getAllListStateSet().isEmpty()
+            || web.isListCrawlInfoCurrent(now, timeToLive)
+            || lstLookupForWebs.contains(web.getPrimaryKey())
+            || (tempCtx.isUseSPSearchVisibility() && web.isNoCrawl())) {
+          continue;
+        }
+        staleWebs.add(web);
+      }
+      fetcher.prefetchListCrawlInfo(staleWebs);
+    } catch (SharepointException e) {
+      LOGGER.log(Level.WARNING,
+          "Failed to prefetch the ListCrawlInfo of the next sites.", e);
+    }
+  }
+
   /**
    * Returns the no of visited list states to check for pending docs from
    * previous batch traversal for a given web state (site)
@@ -16,6 +16,7 @@ package com.google.enterprise.connector.sharepoint.client;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.enterprise.connector.sharepoint.cache.SPGroupMembershipCache;
 import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
 import com.google.enterprise.connector.sharepoint.client.SPConstants.SPType;
 import com.google.enterprise.connector.sharepoint.dao.UserDataStoreDAO;
@@ -23,6 +24,8 @@ import com.google.enterprise.connector.sharepoint.ldap.UserGroupsService.LdapCon
 import com.google.enterprise.connector.sharepoint.social.UserProfileServiceFactory;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointConnector.SocialOption;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
+import com.google.enterprise.connector.sharepoint.state.RoundRobinSchedulingPolicy;
+import com.google.enterprise.connector.sharepoint.state.WebSchedulingPolicy;
 import com.google.enterprise.connector.sharepoint.wsclient.client.ClientFactory;
 import com.google.enterprise.connector.spi.TraversalContext;
 
@@ -48,6 +51,7 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -78,6 +82,7 @@ public class SharepointClientContext implements Cloneable {
   private String mySiteBaseURL = null;
 
   private Map<String, String> aliasMap = null;
+  private AliasMapper aliasMapper = null;
   private FeedType feedType = null;
 
   private final ArrayList<Pattern> included_metadata = new ArrayList<Pattern>();
@@ -109,8 +114,31 @@ public class SharepointClientContext implements Cloneable {
   private int largeACLThreshold = 500;
   /** Batch Size for SP Group Resolution. **/
   private int groupResolutionBatchSize = 5000;
+  /** Number of concurrent SP Group Resolution calls. **/
+  private int groupResolutionThreads = 4;
+  private SPGroupMembershipCache spGroupMembershipCache =
+      new SPGroupMembershipCache();
+  /** Runs the SP Group Resolution calls of the current traversal. **/
+  private ExecutorService groupResolutionExecutor;
+  /** Number of concurrent web and list crawl info calls. **/
+  private int crawlInfoFetchThreads = 4;
+  /** Seconds the web and list crawl info is used before it is refetched. **/
+  private int crawlInfoTimeToLive = 600;
+  /** Number of threads reading user profiles for personal sites. **/
+  private int personalSiteScanThreads = 4;
+  /** Whether webs with no changes in the site change log are skipped. **/
+  private boolean useSiteChangeLog = false;
+  /** Whether compressed web service responses and contents are accepted. **/
+  private boolean useCompression = false;
+  private SiteChangeTracker siteChangeTracker = new SiteChangeTracker();
+  private WebSchedulingPolicy webSchedulingPolicy =
+      new RoundRobinSchedulingPolicy();
+  /** The site collections crawled by this connector instance. **/
+  private ShardAssignment shardAssignment = new ShardAssignment(0, 1);
 
   private int userProfileFullTraversalInterval = 1;
+  private int userProfileFetchThreads = 4;
+  private int userProfilePrefetchSize = 100;
 
   private int webServiceTimeOut = 300000;
   private int initialCacheSize;
@@ -154,7 +182,8 @@ public class SharepointClientContext implements Cloneable {
           new SharepointClientContext(clientFactory);
 
       if (null != aliasMap) {
-        spCl.setSiteAlias(new LinkedHashMap<String, String>(aliasMap));
+        spCl.aliasMap = new LinkedHashMap<String, String>(aliasMap);
+        spCl.aliasMapper = aliasMapper;
       }
 
       if (null != feedType) {
@@ -233,6 +262,19 @@ public class SharepointClientContext implements Cloneable {
         spCl.userDataStoreDAO = this.userDataStoreDAO;
       }
 
+      // The resolved groups are shared by all the copies.
+      spCl.spGroupMembershipCache = this.spGroupMembershipCache;
+      spCl.groupResolutionThreads = this.groupResolutionThreads;
+      spCl.groupResolutionExecutor = this.groupResolutionExecutor;
+      spCl.crawlInfoFetchThreads = this.crawlInfoFetchThreads;
+      spCl.crawlInfoTimeToLive = this.crawlInfoTimeToLive;
+      spCl.personalSiteScanThreads = this.personalSiteScanThreads;
+      spCl.useSiteChangeLog = this.useSiteChangeLog;
+      spCl.useCompression = this.useCompression;
+      spCl.siteChangeTracker = this.siteChangeTracker;
+      spCl.webSchedulingPolicy = this.webSchedulingPolicy;
+      spCl.shardAssignment = this.shardAssignment;
+
       if (null != traversalContext) {
         spCl.setTraversalContext(traversalContext);
       }
@@ -366,7 +408,7 @@ public class SharepointClientContext implements Cloneable {
         + SPConstants.EXCLUDED_URL_DIR;
     mySiteBaseURL = inMySiteBaseURL;
     LOGGER.finest("mySiteBaseURL set to " + mySiteBaseURL);
-    aliasMap = parseAlias(inAliasMapString);
+    setSiteAlias(parseAlias(inAliasMapString));
 
     feedType = inFeedType;
     LOGGER.finest("feedType set to " + feedType);
@@ -549,6 +591,14 @@ public class SharepointClientContext implements Cloneable {
    */
   public void setSiteAlias(final Map<String, String> inAliasMap) {
     aliasMap = inAliasMap;
+    aliasMapper = new AliasMapper(inAliasMap);
+  }
+
+  /**
+   * @return the Site Alias Map compiled for mapping document URLs
+   */
+  public AliasMapper getAliasMapper() {
+    return aliasMapper;
   }
 
   /**
@@ -876,6 +926,14 @@ public class SharepointClientContext implements Cloneable {
     return status;
   }
 
+  /**
+   * @return true if any metadata is included or excluded by name, that is,
+   *         if {@link #isIncludeMetadata} may exclude some metadata
+   */
+  public boolean isMetadataFiltered() {
+    return !included_metadata.isEmpty() || !excluded_metadata.isEmpty();
+  }
+
   /**
    * Logs the excluded URL to the excluded_url log file.
    *
@@ -1227,6 +1285,126 @@ public class SharepointClientContext implements Cloneable {
     this.groupResolutionBatchSize = groupResolutionBatchSize;
   }
 
+  /**
+   * @return the number of SP groups resolution calls made concurrently.
+   */
+  public int getGroupResolutionThreads() {
+    return groupResolutionThreads;
+  }
+
+  public void setGroupResolutionThreads(int groupResolutionThreads) {
+    this.groupResolutionThreads = groupResolutionThreads;
+  }
+
+  /**
+   * @return the cache of resolved SP groups.
+   */
+  public SPGroupMembershipCache getSPGroupMembershipCache() {
+    return spGroupMembershipCache;
+  }
+
+  /**
+   * @return the thread pool of the current traversal for concurrent SP
+   *         groups resolution calls, or null to resolve the groups in a
+   *         single call.
+   */
+  public ExecutorService getGroupResolutionExecutor() {
+    return groupResolutionExecutor;
+  }
+
+  public void setGroupResolutionExecutor(
+      ExecutorService groupResolutionExecutor) {
+    this.groupResolutionExecutor = groupResolutionExecutor;
+  }
+
+  /**
+   * @return the number of web and list crawl info calls made concurrently.
+   */
+  public int getCrawlInfoFetchThreads() {
+    return crawlInfoFetchThreads;
+  }
+
+  public void setCrawlInfoFetchThreads(int crawlInfoFetchThreads) {
+    this.crawlInfoFetchThreads = crawlInfoFetchThreads;
+  }
+
+  /**
+   * @return the number of seconds the web and list crawl info is used before
+   *         it is fetched again.
+   */
+  public int getCrawlInfoTimeToLive() {
+    return crawlInfoTimeToLive;
+  }
+
+  public void setCrawlInfoTimeToLive(int crawlInfoTimeToLive) {
+    this.crawlInfoTimeToLive = crawlInfoTimeToLive;
+  }
+
+  /**
+   * @return the number of threads reading user profiles in parallel to
+   *         discover personal sites.
+   */
+  public int getPersonalSiteScanThreads() {
+    return personalSiteScanThreads;
+  }
+
+  public void setPersonalSiteScanThreads(int personalSiteScanThreads) {
+    this.personalSiteScanThreads = personalSiteScanThreads;
+  }
+
+  /**
+   * @return true if webs with no changes in the change log of their site
+   *         collection are skipped.
+   */
+  public boolean isUseSiteChangeLog() {
+    return useSiteChangeLog;
+  }
+
+  public void setUseSiteChangeLog(boolean useSiteChangeLog) {
+    this.useSiteChangeLog = useSiteChangeLog;
+  }
+
+  /**
+   * @return true if gzip and deflate compressed web service responses and
+   *         document contents are accepted.
+   */
+  public boolean isUseCompression() {
+    return useCompression;
+  }
+
+  public void setUseCompression(boolean useCompression) {
+    this.useCompression = useCompression;
+  }
+
+  /**
+   * @return the tracker of the webs changed since they were last crawled.
+   */
+  public SiteChangeTracker getSiteChangeTracker() {
+    return siteChangeTracker;
+  }
+
+  /**
+   * @return the policy deciding the order in which the webs are crawled.
+   */
+  public WebSchedulingPolicy getWebSchedulingPolicy() {
+    return webSchedulingPolicy;
+  }
+
+  public void setWebSchedulingPolicy(WebSchedulingPolicy webSchedulingPolicy) {
+    this.webSchedulingPolicy = webSchedulingPolicy;
+  }
+
+  /**
+   * @return the shard of the farm crawled by this connector instance.
+   */
+  public ShardAssignment getShardAssignment() {
+    return shardAssignment;
+  }
+
+  public void setShardAssignment(ShardAssignment shardAssignment) {
+    this.shardAssignment = shardAssignment;
+  }
+
   public int getUserProfileFullTraversalInterval() {
     return userProfileFullTraversalInterval;
   }
@@ -1235,4 +1413,26 @@ public class SharepointClientContext implements Cloneable {
       int userProfileFullTraversalInterval) {
     this.userProfileFullTraversalInterval = userProfileFullTraversalInterval;
   }
+
+  /**
+   * @return the number of threads fetching user profiles in parallel.
+   */
+  public int getUserProfileFetchThreads() {
+    return userProfileFetchThreads;
+  }
+
+  public void setUserProfileFetchThreads(int userProfileFetchThreads) {
+    this.userProfileFetchThreads = userProfileFetchThreads;
+  }
+
+  /**
+   * @return the number of user profiles fetched ahead of the traversal.
+   */
+  public int getUserProfilePrefetchSize() {
+    return userProfilePrefetchSize;
+  }
+
+  public void setUserProfilePrefetchSize(int userProfilePrefetchSize) {
+    this.userProfilePrefetchSize = userProfilePrefetchSize;
+  }
 }
@@ -0,0 +1,305 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import com.google.common.base.Strings;
+import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
+import com.google.enterprise.connector.sharepoint.state.ListState;
+import com.google.enterprise.connector.sharepoint.state.WebState;
+
+import org.apache.axis.message.MessageElement;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+import java.io.StringReader;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.rpc.holders.BooleanHolder;
+import javax.xml.rpc.holders.StringHolder;
+
+/**
+ * Works out which webs have changed since they were last crawled from the
+ * change log of their site collection, so that webs with no changes can be
+ * skipped.
+ * <p/>
+ * The site collection and the GUID of each web are looked up once. After
+ * that, one GetChanges call per site collection names the webs and lists
+ * changed since the last probe. A web is unchanged if no change was seen
+ * for it or for one of its lists since it was last crawled. Changes which
+ * cannot be tied to a known web, site collection wide changes, and failed
+ * calls mark all the webs of the site collection as changed.
+ */
+public class SiteChangeTracker {
+  private static final Logger LOGGER =
+      Logger.getLogger(SiteChangeTracker.class.getName());
+
+  /** The most pages of changes read for a site collection in one probe. */
+  static final int MAX_CHANGE_PAGES = 100;
+
+  private static final String UNCHANGED = "Unchanged";
+
+  /** A site collection and its known webs. */
+  private static class SiteCollection {
+    final String siteId;
+    String changeId;
+    final Set<String> webUrls = new HashSet<String>();
+
+    SiteCollection(String siteId, String changeId) {
+      this.siteId = siteId;
+      this.changeId = changeId;
+    }
+  }
+
+  /** The changes read from the change log of a site collection. */
+  static class Changes {
+    final Set<String> webIds = new HashSet<String>();
+    final Set<String> listIds = new HashSet<String>();
+    boolean siteChanged;
+  }
+
+  /** Site collection ID to site collection. */
+  private final Map<String, SiteCollection> siteCollections =
+      new HashMap<String, SiteCollection>();
+
+  /** Web URL to the ID of its site collection. */
+  private final Map<String, String> webSiteIds = new HashMap<String, String>();
+
+  /** Web GUID to web URL. */
+  private final Map<String, String> webUrls = new HashMap<String, String>();
+
+  /** The webs changed since they were last crawled. */
+  private final Set<String> changedWebs = new HashSet<String>();
+
+  /** The webs whose site collection could not be looked up. */
+  private final Set<String> untrackedWebs = new HashSet<String>();
+
+  /**
+   * Reads the changes made to the site collections of the webs since the
+   * last probe. Webs not seen before are looked up and are changed until
+   * they are crawled.
+   *
+   * @param ctx the context of the traversal
+   * @param webs the webs to be traversed
+   */
+  public synchronized void probe(SharepointClientContext ctx,
+      Collection<WebState> webs) {
+    Set<String> newSiteIds = new HashSet<String>();
+    for (WebState web : webs) {
+      String webUrl = web.getWebUrl();
+      if (!webSiteIds.containsKey(webUrl) && !untrackedWebs.contains(webUrl)) {
+        String siteId = lookup(ctx, webUrl);
+        if (siteId != null && !siteCollections.containsKey(siteId)) {
+          newSiteIds.add(siteId);
+        }
+      }
+    }
+
+    // Lists are tied to webs through their GUIDs for changes to lists
+    // which are not reported inside their web.
+    Map<String, String> listWebs = new HashMap<String, String>();
+    for (WebState web : webs) {
+      for (ListState list : web.getAllListStateSet()) {
+        listWebs.put(normalizeId(list.getPrimaryKey()), web.getWebUrl());
+      }
+    }
+
+    for (SiteCollection site : siteCollections.values()) {
+      if (newSiteIds.contains(site.siteId) || site.webUrls.isEmpty()) {
+        continue;
+      }
+      Changes changes = getChanges(ctx, site);
+      if (changes == null || changes.siteChanged) {
+        changedWebs.addAll(site.webUrls);
+        continue;
+      }
+      for (String webId : changes.webIds) {
+        String webUrl = webUrls.get(webId);
+        if (webUrl == null) {
+          // A new web, or one which is not known yet.
+          changedWebs.addAll(site.webUrls);
+          break;
+        }
+        changedWebs.add(webUrl);
+      }
+      for (String listId : changes.listIds) {
+        String webUrl = listWebs.get(listId);
+        if (webUrl == null) {
+          changedWebs.addAll(site.webUrls);
+          break;
+        }
+        changedWebs.add(webUrl);
+      }
+    }
+  }
+
+  /**
+   * @return true if the web is known to have no changes since it was last
+   *         crawled
+   */
+  public synchronized boolean isUnchanged(WebState web) {
+    String webUrl = web.getWebUrl();
+    return webSiteIds.containsKey(webUrl) && !changedWebs.contains(webUrl);
+  }
+
+  /**
+   * Records that all the changes of a web have been crawled.
+   */
+  public synchronized void crawled(WebState web) {
+    changedWebs.remove(web.getWebUrl());
+  }
+
+  /**
+   * Looks up the site collection and the GUID of a web.
+   *
+   * @return the ID of the site collection, or null if it could not be found
+   */
+  private String lookup(SharepointClientContext ctx, String webUrl) {
+    changedWebs.add(webUrl);
+    try {
+      SharepointClientContext webCtx = (SharepointClientContext) ctx.clone();
+      webCtx.setSiteURL(webUrl);
+      SiteDataHelper siteData = new SiteDataHelper(webCtx);
+      MessageElement metadata = siteData.getSiteCollectionMetadata();
+      String webId = siteData.getWebId();
+      if (metadata == null || webId == null
+          || Strings.isNullOrEmpty(metadata.getAttribute("ID"))) {
+        LOGGER.log(Level.INFO, "Unable to find the site collection of web "
+            + "[ {0} ]. It will be crawled in every cycle.", webUrl);
+        untrackedWebs.add(webUrl);
+        return null;
+      }
+      String siteId = normalizeId(metadata.getAttribute("ID"));
+      SiteCollection site = siteCollections.get(siteId);
+      if (site == null) {
+        site = new SiteCollection(siteId, metadata.getAttribute("ChangeId"));
+        siteCollections.put(siteId, site);
+      }
+      site.webUrls.add(webUrl);
+      webSiteIds.put(webUrl, siteId);
+      webUrls.put(normalizeId(webId), webUrl);
+      return siteId;
+    } catch (SharepointException e) {
+      LOGGER.log(Level.WARNING, "Unable to find the site collection of web [ "
+          + webUrl + " ]", e);
+      untrackedWebs.add(webUrl);
+      return null;
+    }
+  }
+
+  /**
+   * Reads the changes made to a site collection since the last probe and
+   * moves its change ID past them.
+   *
+   * @return the changes, or null if they could not be read
+   */
+  private Changes getChanges(SharepointClientContext ctx,
+      SiteCollection site) {
+    if (Strings.isNullOrEmpty(site.changeId)) {
+      return null;
+    }
+    try {
+      SharepointClientContext webCtx = (SharepointClientContext) ctx.clone();
+      webCtx.setSiteURL(site.webUrls.iterator().next());
+      SiteDataHelper siteData = new SiteDataHelper(webCtx);
+      StringHolder changeId = new StringHolder(site.changeId);
+      BooleanHolder moreChanges = new BooleanHolder();
+      List<String> pages = siteData.getSiteCollectionChanges(site.siteId,
+          changeId, MAX_CHANGE_PAGES, moreChanges);
+      if (pages == null) {
+        return null;
+      }
+      Changes changes = new Changes();
+      for (String page : pages) {
+        parseChanges(page, changes);
+      }
+      if (moreChanges.value) {
+        LOGGER.info("More than " + MAX_CHANGE_PAGES + " pages of changes "
+            + "for site collection " + site.siteId + ". Crawling all its "
+            + "webs.");
+        changes.siteChanged = true;
+      }
+      if (!Strings.isNullOrEmpty(changeId.value)) {
+        site.changeId = changeId.value;
+      }
+      return changes;
+    } catch (Exception e) {
+      LOGGER.log(Level.WARNING, "Unable to get the changes of site collection "
+          + site.siteId, e);
+      return null;
+    }
+  }
+
+  /**
+   * Adds the webs and lists changed in a page of changes returned by the
+   * SiteData GetChanges call.
+   */
+  static void parseChanges(String page, Changes changes) throws Exception {
+    if (Strings.isNullOrEmpty(page)) {
+      return;
+    }
+    Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .parse(new InputSource(new StringReader(page))).getDocumentElement();
+    parseChanges(root, null, null, changes);
+  }
+
+  private static void parseChanges(Element element, String webId,
+      String listId, Changes changes) {
+    String name = element.getTagName();
+    if (name.equals("SPWeb")) {
+      webId = normalizeId(element.getAttribute("Id"));
+    } else if (name.equals("SPList")) {
+      listId = normalizeId(element.getAttribute("Id"));
+    }
+    String change = element.getAttribute("Change");
+    if (change.length() > 0 && !change.equals(UNCHANGED)) {
+      if (webId != null) {
+        changes.webIds.add(webId);
+      } else if (listId != null) {
+        changes.listIds.add(listId);
+      } else {
+        changes.siteChanged = true;
+      }
+    }
+    for (Node child = element.getFirstChild(); child != null;
+        child = child.getNextSibling()) {
+      if (child instanceof Element) {
+        parseChanges((Element) child, webId, listId, changes);
+      }
+    }
+  }
+
+  /**
+   * @return the GUID without braces, in lower case
+   */
+  static String normalizeId(String id) {
+    if (id == null) {
+      return null;
+    }
+    if (id.startsWith("{") && id.endsWith("}")) {
+      id = id.substring(1, id.length() - 1);
+    }
+    return id.toLowerCase(Locale.ENGLISH);
+  }
+}
@@ -39,6 +39,8 @@ import java.util.StringTokenizer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.namespace.QName;
+import javax.xml.rpc.holders.BooleanHolder;
+import javax.xml.rpc.holders.StringHolder;
 
 /**
  * This class holds data and methods for any call to SiteData web service.
@@ -395,6 +397,90 @@ public class SiteDataHelper {
         });
   }
 
+  /**
+   * @return the GUID of the web, or null if the call to getSiteData failed
+   */
+  public String getWebId() {
+    final _sWebMetadataHolder sWebMetadata = getWebMetadata();
+    if (sWebMetadata == null || sWebMetadata.value == null) {
+      return null;
+    }
+    return sWebMetadata.value.getWebID();
+  }
+
+  /**
+   * Gets the metadata of the site collection of the web, which includes the
+   * ID of the site collection ({@code ID}) and the ID of its last change
+   * ({@code ChangeId}).
+   *
+   * @return the Metadata element of the site collection, or null if the call
+   *         failed
+   */
+  public MessageElement getSiteCollectionMetadata() {
+    final String siteMetadata =
+        Util.makeWSRequest(sharepointClientContext, siteDataWS,
+            new Util.RequestExecutor<String>() {
+          public String onRequest(final BaseWS ws) throws Throwable {
+            return ((SiteDataWS) ws).getContentSiteCollection();
+          }
+
+          public void onError(final Throwable e) {
+            LOGGER.log(Level.WARNING,
+                "Call to getContent for the site collection failed.", e);
+          }
+        });
+    if (Strings.isNullOrEmpty(siteMetadata)) {
+      return null;
+    }
+    try {
+      return ListsUtil.getMeFromString(siteMetadata)
+          .getChildElement(new QName("Metadata"));
+    } catch (Exception ex) {
+      LOGGER.log(Level.WARNING, "Error parsing metadata for site collection "
+          + "of web " + sharepointClientContext.getSiteURL(), ex);
+      return null;
+    }
+  }
+
+  /**
+   * Gets the changes made to a site collection since a change, one page of
+   * changes per call until there are no more changes or the maximum number
+   * of pages has been read.
+   *
+   * @param siteId the ID of the site collection
+   * @param lastChangeId the ID of the last change known; it is updated to
+   *          the ID of the last change returned
+   * @param maxPages the maximum number of pages to read
+   * @param moreChanges set to true if there are more changes than were read
+   * @return the XML strings of the pages of changes, or null if a call failed
+   */
+  public List<String> getSiteCollectionChanges(final String siteId,
+      final StringHolder lastChangeId, int maxPages,
+      final BooleanHolder moreChanges) {
+    final List<String> pages = new ArrayList<String>();
+    moreChanges.value = true;
+    while (moreChanges.value && pages.size() < maxPages) {
+      final String changes =
+          Util.makeWSRequest(sharepointClientContext, siteDataWS,
+              new Util.RequestExecutor<String>() {
+            public String onRequest(final BaseWS ws) throws Throwable {
+              return ((SiteDataWS) ws).getChangesSiteCollection(siteId,
+                  lastChangeId, moreChanges);
+            }
+
+            public void onError(final Throwable e) {
+              LOGGER.log(Level.WARNING,
+                  "Call to getChanges for the site collection failed.", e);
+            }
+          });
+      if (changes == null) {
+        return null;
+      }
+      pages.add(changes);
+    }
+    return pages;
+  }
+
   /**
    * Retrieves the title of a Web Site. Should only be used in case of SP2003
    * Top URL. For all other cases, WebWS.getTitle() is the preferred method.
@@ -29,11 +29,17 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,6 +53,10 @@ import java.util.logging.Logger;
 public class SiteDiscoveryHelper {
   private static final Logger LOGGER =
       Logger.getLogger(SiteDiscoveryHelper.class.getName());
+
+  /** Number of web URLs sent in one GetWebCrawlInfoInBatch call. */
+  static final int WEB_CRAWL_INFO_BATCH_SIZE = 500;
+
   private SharepointClientContext sharepointClientContext;
   private SiteDiscoveryWS siteDiscoveryWS;
 
@@ -208,7 +218,11 @@ public class SiteDiscoveryHelper {
   }
 
   /**
-   * Retrieves and update the information about crawl behavior of a set of webs
+   * Retrieves and update the information about crawl behavior of a set of
+   * webs. The webs whose crawl info was fetched within the crawl info time to
+   * live are skipped. The others are fetched in batches per web application,
+   * with up to {@link SharepointClientContext#getCrawlInfoFetchThreads}
+   * concurrent calls.
    *
    * @param webs
    */
@@ -216,35 +230,62 @@ public class SiteDiscoveryHelper {
     if (null == webs || webs.size() == 0) {
       return;
     }
-    final Map<String, List<WebState>> webappToWeburlMap = arrangeWebUrlPerWebApp(webs);
-    LOGGER.log(Level.CONFIG, webappToWeburlMap.size()
-        + " WS call(s) will be made to get WebCrawlInfo of " + webs.size()
-        + " sites");
+    final long now = System.currentTimeMillis();
+    final long timeToLive = getCrawlInfoTimeToLive();
+    final Set<WebState> staleWebs = new HashSet<WebState>();
+    for (WebState web : webs) {
+      if (!web.isWebCrawlInfoCurrent(now, timeToLive)) {
+        staleWebs.add(web);
+      }
+    }
+    if (staleWebs.size() < webs.size()) {
+      LOGGER.log(Level.CONFIG, "WebCrawlInfo of " + (webs.size()
+          - staleWebs.size()) + " sites is current and will not be fetched");
+    }
+    final Map<String, List<WebState>> webappToWeburlMap =
+        arrangeWebUrlPerWebApp(staleWebs);
 
+    final List<Map<String, WebState>> batches =
+        new ArrayList<Map<String, WebState>>();
+    final List<Callable<WebCrawlInfo[]>> calls =
+        new ArrayList<Callable<WebCrawlInfo[]>>();
     for (Entry<String, List<WebState>> entry : webappToWeburlMap.entrySet()) {
-      SiteDiscoveryHelper sitews = null;
-      try {
-        sitews = new SiteDiscoveryHelper(sharepointClientContext, entry.getKey());
-      } catch (Exception e) {
-        LOGGER.log(Level.WARNING, "Failed to initialize stub for "
-            + entry.getKey(), e);
-        continue;
-      }
-      Map<String, WebState> webUrlMap = new HashMap<String, WebState>();
-      String[] weburls = new String[webs.size()];
-      int i = 0;
-      for (WebState web : entry.getValue()) {
-        weburls[i++] = web.getWebUrl();
-        webUrlMap.put(web.getWebUrl(), web);
+      final String webApp = entry.getKey();
+      final List<WebState> webAppWebs = entry.getValue();
+      for (int i = 0; i < webAppWebs.size(); i += WEB_CRAWL_INFO_BATCH_SIZE) {
+        Map<String, WebState> webUrlMap = new HashMap<String, WebState>();
+        for (WebState web : webAppWebs.subList(i,
+            Math.min(i + WEB_CRAWL_INFO_BATCH_SIZE, webAppWebs.size()))) {
+          webUrlMap.put(web.getWebUrl(), web);
+        }
+        final String[] weburls = webUrlMap.keySet().toArray(
+            new String[webUrlMap.size()]);
+        batches.add(webUrlMap);
+        calls.add(new Callable<WebCrawlInfo[]>() {
+          public WebCrawlInfo[] call() throws SharepointException {
+            return new SiteDiscoveryHelper(sharepointClientContext, webApp)
+                .getWebCrawlInfoInBatch(weburls);
+          }
+        });
       }
-      WebCrawlInfo[] webCrawlInfos = sitews.getWebCrawlInfoInBatch(weburls);
+    }
+    LOGGER.log(Level.CONFIG, calls.size()
+        + " WS call(s) will be made to get WebCrawlInfo of "
+        + staleWebs.size() + " sites");
+
+    List<WebCrawlInfo[]> results = invokeAll(calls);
+    for (int i = 0; i < results.size(); i++) {
+      WebCrawlInfo[] webCrawlInfos = results.get(i);
       if (null == webCrawlInfos) {
-        return;
+        continue;
       }
+      Map<String, WebState> webUrlMap = batches.get(i);
       for (WebCrawlInfo webCrawlInfo : webCrawlInfos) {
         if (webCrawlInfo.isStatus()) {
           WebState webState = webUrlMap.get(webCrawlInfo.getWebKey());
-          webState.setWebCrawlInfo(webCrawlInfo);
+          if (null != webState) {
+            webState.setWebCrawlInfo(webCrawlInfo, now);
+          }
         } else {
           LOGGER.log(Level.WARNING, "WS encountered problem while fetching the crawl info of one of the web. WS ERROR -> "
               + webCrawlInfo.getError());
@@ -253,6 +294,27 @@ public class SiteDiscoveryHelper {
     }
   }
 
+  /**
+   * Executes GetListCrawlInfo() web method of GSSiteDiscovery web service
+   * for lists of the web whose URL was used to construct the endpoint.
+   *
+   * @param listGuids GUIDs of the lists
+   * @return the crawl info of the lists, or null if the call failed
+   */
+  public ListCrawlInfo[] getListCrawlInfo(final String[] listGuids) {
+    return Util.makeWSRequest(sharepointClientContext, siteDiscoveryWS,
+        new Util.RequestExecutor<ListCrawlInfo[]>() {
+          public ListCrawlInfo[] onRequest(final BaseWS ws) throws Throwable {
+            return ((SiteDiscoveryWS) ws).getListCrawlInfo(listGuids);
+          }
+      
+          public void onError(final Throwable e) {
+            LOGGER.log(Level.WARNING,
+                "Call to GSSiteDiscovery.GetListCrawlInfo() failed.", e);
+          }
+        });
+  }
+
   /**
    * Retrieves the information about crawl behavior of a the lists and set it
    * into the passed in {@link ListState}
@@ -260,7 +322,7 @@ public class SiteDiscoveryHelper {
    * @param listCollection ListStates to be be updated
    */
   public void updateListCrawlInfo(Collection<ListState> listCollection) {
-    if (null == listCollection) {
+    if (null == listCollection || listCollection.isEmpty()) {
       return;
     }
     Map<String, ListState> listCrawlInfoMap = new HashMap<String, ListState>();
@@ -271,23 +333,12 @@ public class SiteDiscoveryHelper {
       listCrawlInfoMap.put(listState.getPrimaryKey(), listState);
     }
 
-    final ListCrawlInfo[] listCrawlInfo = 
-        Util.makeWSRequest(sharepointClientContext, siteDiscoveryWS,
-            new Util.RequestExecutor<ListCrawlInfo[]>() {
-          public ListCrawlInfo[] onRequest(final BaseWS ws) throws Throwable {
-            return ((SiteDiscoveryWS) ws).getListCrawlInfo(listGuids);
-          }
-      
-          public void onError(final Throwable e) {
-            LOGGER.log(Level.WARNING,
-                "Call to GSSiteDiscovery.GetListCrawlInfo() failed.", e);
-          }
-        });
-
+    final ListCrawlInfo[] listCrawlInfo = getListCrawlInfo(listGuids);
     if (null == listCrawlInfo) {
       return;
     }
 
+    final long now = System.currentTimeMillis();
     for (ListCrawlInfo info : listCrawlInfo) {
       ListState listState = listCrawlInfoMap.get(info.getListGuid());
       if (null == listState) {
@@ -303,21 +354,128 @@ public class SiteDiscoveryHelper {
             + "WS error [ " + info.getError() + " ].");
         continue;
       }
-      
-      // Set ListState.NoCrawl only if connector is configured
-      // to use SharePoint Search Visibility.
-      if (sharepointClientContext.isUseSPSearchVisibility()) {
-        listState.setNoCrawl(info.isNoCrawl());
+      listState.setCrawlInfo(info, now);
+      applyListCrawlInfo(listState, info);
+    }
+  }
+
+  /**
+   * Sets the crawl behavior of a list from its crawl info.
+   *
+   * @param listState the list to update
+   * @param info the crawl info of the list
+   */
+  public void applyListCrawlInfo(ListState listState, ListCrawlInfo info) {
+    // Set ListState.NoCrawl only if connector is configured
+    // to use SharePoint Search Visibility.
+    if (sharepointClientContext.isUseSPSearchVisibility()) {
+      listState.setNoCrawl(info.isNoCrawl());
+    }
+    boolean allowAnonymousAccess = 
+        Boolean.parseBoolean(info.getAnonymousAccess());
+    if (allowAnonymousAccess != listState.isAllowAnonymousAccess()) { 
+      LOGGER.log(Level.INFO, "Anonymous Access settings changed from "
+          + listState.isAllowAnonymousAccess() + " to " + allowAnonymousAccess
+          + " for List [" + listState.getListURL() + "]");
+    }
+    listState.setAllowAnonymousAccess(allowAnonymousAccess);
+  }
+
+  /**
+   * Fetches the crawl info of the known lists of a set of webs ahead of their
+   * traversal, one call per web with up to
+   * {@link SharepointClientContext#getCrawlInfoFetchThreads} concurrent
+   * calls. The crawl info is kept on the known {@link ListState}s, and is
+   * applied when the lists are next discovered, see
+   * {@link ListState#isCrawlInfoCurrent}.
+   *
+   * @param webs the webs whose lists are to be updated
+   */
+  public void prefetchListCrawlInfo(List<WebState> webs) {
+    final List<Callable<ListCrawlInfo[]>> calls =
+        new ArrayList<Callable<ListCrawlInfo[]>>();
+    for (WebState web : webs) {
+      final String webUrl = web.getWebUrl();
+      final String[] listGuids = new String[web.getAllListStateSet().size()];
+      int i = 0;
+      for (ListState listState : web.getAllListStateSet()) {
+        listGuids[i++] = listState.getPrimaryKey();
+      }
+      calls.add(new Callable<ListCrawlInfo[]>() {
+        public ListCrawlInfo[] call() throws SharepointException {
+          return new SiteDiscoveryHelper(sharepointClientContext, webUrl)
+              .getListCrawlInfo(listGuids);
+        }
+      });
+    }
+    LOGGER.log(Level.CONFIG, "Fetching ListCrawlInfo of " + webs.size()
+        + " sites");
+
+    final long now = System.currentTimeMillis();
+    List<ListCrawlInfo[]> results = invokeAll(calls);
+    for (int i = 0; i < results.size(); i++) {
+      if (null == results.get(i)) {
+        continue;
+      }
+      for (ListCrawlInfo info : results.get(i)) {
+        ListState listState = webs.get(i).lookupList(info.getListGuid());
+        if (null != listState && info.isStatus()) {
+          listState.setCrawlInfo(info, now);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the time to live of the crawl info of webs and lists, in
+   *         milliseconds
+   */
+  public long getCrawlInfoTimeToLive() {
+    return sharepointClientContext.getCrawlInfoTimeToLive() * 1000L;
+  }
+
+  /**
+   * Makes calls on up to
+   * {@link SharepointClientContext#getCrawlInfoFetchThreads} threads.
+   *
+   * @return the result of each call, null for the calls which failed
+   */
+  private <T> List<T> invokeAll(List<Callable<T>> calls) {
+    List<T> results = new ArrayList<T>();
+    int threads = Math.min(calls.size(),
+        Math.max(1, sharepointClientContext.getCrawlInfoFetchThreads()));
+    if (threads <= 1) {
+      for (Callable<T> call : calls) {
+        try {
+          results.add(call.call());
+        } catch (Exception e) {
+          LOGGER.log(Level.WARNING, "Failed to fetch crawl info.", e);
+          results.add(null);
+        }
+      }
+      return results;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (Future<T> future : executor.invokeAll(calls)) {
+        try {
+          results.add(future.get());
+        } catch (ExecutionException e) {
+          LOGGER.log(Level.WARNING, "Failed to fetch crawl info.",
+              e.getCause());
+          results.add(null);
+        }
       }
-      boolean allowAnonymousAccess = 
-          Boolean.parseBoolean(info.getAnonymousAccess());
-      if (allowAnonymousAccess != listState.isAllowAnonymousAccess()) { 
-        LOGGER.log(Level.INFO, "Anonymous Access settings changed from "
-            + listState.isAllowAnonymousAccess() + " to " + allowAnonymousAccess
-            + " for List [" + listState.getListURL() + "]");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.log(Level.WARNING, "Interrupted while fetching crawl info.", e);
+      while (results.size() < calls.size()) {
+        results.add(null);
       }
-      listState.setAllowAnonymousAccess(allowAnonymousAccess);
+    } finally {
+      executor.shutdownNow();
     }
+    return results;
   }
 
   /**
@@ -327,7 +485,7 @@ public class SiteDiscoveryHelper {
    * @return A map where the web application is mapped to the hosted webstates
    */
   private Map<String, List<WebState>> arrangeWebUrlPerWebApp(
-      final Set<WebState> webs) {
+      final Collection<WebState> webs) {
     final Map<String, List<WebState>> webappToWeburlMap = new HashMap<String, List<WebState>>();
     for (WebState web : webs) {
       // We need to arrange all the URLs according to their web
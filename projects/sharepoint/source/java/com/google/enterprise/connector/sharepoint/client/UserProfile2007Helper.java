@@ -14,17 +14,34 @@
 
 package com.google.enterprise.connector.sharepoint.client;
 
+import com.google.common.base.Strings;
+import com.google.enterprise.connector.sharepoint.generated.userprofilechangeservice.UserProfileChangeData;
+import com.google.enterprise.connector.sharepoint.generated.userprofilechangeservice.UserProfileChangeDataContainer;
 import com.google.enterprise.connector.sharepoint.generated.userprofileservice.GetUserProfileByIndexResult;
 import com.google.enterprise.connector.sharepoint.generated.userprofileservice.PropertyData;
 import com.google.enterprise.connector.sharepoint.generated.userprofileservice.QuickLinkData;
 import com.google.enterprise.connector.sharepoint.generated.userprofileservice.ValueData;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
+import com.google.enterprise.connector.sharepoint.state.PersonalSiteState;
 import com.google.enterprise.connector.sharepoint.wsclient.client.BaseWS;
 import com.google.enterprise.connector.sharepoint.wsclient.client.UserProfile2007WS;
 
-import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,8 +57,12 @@ public class UserProfile2007Helper {
       Logger.getLogger(UserProfile2007Helper.class.getName());
   private SharepointClientContext sharepointClientContext;
   private final String personalSpaceTag = "PersonalSpace";
+  private final String accountNameTag = "AccountName";
   private UserProfile2007WS userProfileWS;
 
+  /** Profile indexes scanned as one unit by the parallel scan. */
+  static final int PARTITION_SIZE = 1000;
+
   /**
    * @param inSharepointClientContext The Context is passed so that necessary
    *          information can be used to create the instance of current class
@@ -57,7 +78,16 @@ public class UserProfile2007Helper {
     }
 
     sharepointClientContext = inSharepointClientContext;
-    userProfileWS = sharepointClientContext.getClientFactory()
+    userProfileWS = createWS();
+  }
+
+  /**
+   * Creates a web service endpoint with the credentials of the context. Web
+   * service calls may change the user name of the endpoint, so every thread
+   * calling the service uses its own.
+   */
+  private UserProfile2007WS createWS() throws SharepointException {
+    final UserProfile2007WS ws = sharepointClientContext.getClientFactory()
         .getUserProfile2007WS(sharepointClientContext);
 
     final String strDomain = sharepointClientContext.getDomain();
@@ -67,9 +97,10 @@ public class UserProfile2007Helper {
     LOGGER.fine("Setting time-out to " + timeout + " milliseconds.");
 
     strUser = Util.getUserNameWithDomain(strUser, strDomain);
-    userProfileWS.setUsername(strUser);
-    userProfileWS.setPassword(strPassword);
-    userProfileWS.setTimeout(timeout);
+    ws.setUsername(strUser);
+    ws.setPassword(strPassword);
+    ws.setTimeout(timeout);
+    return ws;
   }
 
   /**
@@ -107,78 +138,328 @@ public class UserProfile2007Helper {
    * @throws SharepointException
    */
   public Set<String> getPersonalSiteList() throws SharepointException {
+    return getPersonalSiteList(new PersonalSiteState());
+  }
+
+  /**
+   * To get all the personal sites from the current web, starting from the
+   * personal sites discovered before.
+   * <p/>
+   * If the sites are up to date with a user profile change token, only the
+   * profiles changed since are fetched. Otherwise, or if the changes cannot
+   * be read, all the profiles are scanned, and the sites are recorded with
+   * the change token taken before the scan.
+   *
+   * @param knownSites the personal sites discovered before, which are
+   *          updated
+   * @return the list of personal sites
+   * @throws SharepointException
+   */
+  public Set<String> getPersonalSiteList(final PersonalSiteState knownSites)
+      throws SharepointException {
+    final String changeToken = knownSites.getChangeToken();
+    if (changeToken == null || !applyProfileChanges(knownSites, changeToken)) {
+      scanProfiles(knownSites);
+    }
+
     final Set<String> lstAllPersonalSites = new TreeSet<String>();
-    final Collator collator = Util.getCollator();
-
-    // Method 1: High Level Steps:
-    // ============================
-    // 1. Call method GetUserProfileCount-> returns the no: of profiles
-    // registered
-    // 2. Iterate through the profiles and get the corresponding URL
-    //
-    // Method 2: High Level Steps (optimal as save extra WS call to get the
-    // user profile count)
-    // =======================================================================================
-    // Start with Index =0 i.e. Get the first user profile
-    //
-    // [Loop]
-    // 1. Get the user profile using getUserProfileByIndex API for index
-    // 2. The above call should give you value of next index (to be used for
-    // getting next profile and so on]
-    // [End Loop]
+    for (String strURL : knownSites.getSites().values()) {
+      if (sharepointClientContext.isIncludedUrl(strURL, LOGGER)) {
+        lstAllPersonalSites.add(strURL);
+        LOGGER.log(Level.CONFIG, "Personal Site: " + strURL);
+      }
+    }
 
-    int index = 0;
-    while (index >= 0) {
-      final GetUserProfileByIndexResult result = getUserProfileByIndex(index);
+    if (lstAllPersonalSites.size() > 0) {
+      LOGGER.info("Discovered " + lstAllPersonalSites.size()
+          + " Personal sites to crawl.");
+    } else {
+      LOGGER.config("No Personal sites to crawl.");
+    }
+    return lstAllPersonalSites;
+  }
 
-      if ((result == null) || (result.getUserProfile() == null)) {
+  /**
+   * Updates the personal sites with the user profiles changed since the
+   * change token. The changed profiles are fetched in parallel.
+   *
+   * @return false if the changes could not be read
+   */
+  private boolean applyProfileChanges(final PersonalSiteState knownSites,
+      final String changeToken) throws SharepointException {
+    final UserProfileChangeHelper changeHelper =
+        new UserProfileChangeHelper(sharepointClientContext);
+    final Set<String> changed =
+        new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+    final Set<String> deleted =
+        new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+    String token = changeToken;
+    UserProfileChangeDataContainer container;
+    do {
+      container = changeHelper.getChanges(token);
+      if (container == null) {
+        LOGGER.warning("Unable to get the user profile changes since [ "
+            + token + " ], scanning all user profiles.");
+        return false;
+      }
+      final UserProfileChangeData[] changes = container.getChanges();
+      if (changes != null) {
+        for (UserProfileChangeData change : changes) {
+          final String account = change.getUserAccountName();
+          if (Strings.isNullOrEmpty(account)) {
+            continue;
+          }
+          if (isDelete(change.getChangeType())) {
+            changed.remove(account);
+            deleted.add(account);
+          } else {
+            deleted.remove(account);
+            changed.add(account);
+          }
+        }
+      }
+      final String nextToken = container.getChangeToken();
+      if (Strings.isNullOrEmpty(nextToken) || nextToken.equals(token)) {
         break;
       }
+      token = nextToken;
+    } while (container.isHasExceededCountLimit());
 
-      final PropertyData[] data = result.getUserProfile();
-      if (data == null) {
-        break;
+    if (token.equals(changeToken)) {
+      // Nothing new, or a server that does not return a token with the
+      // changes.
+      try {
+        final String currentToken = changeHelper.getCurrentChangeToken();
+        if (!Strings.isNullOrEmpty(currentToken)) {
+          token = currentToken;
+        }
+      } catch (final Exception e) {
+        LOGGER.log(Level.WARNING, "Unable to get the current user profile "
+            + "change token.", e);
       }
+    }
 
-      String space = null;
-      for (PropertyData element : data) {
-        try {
-          final String name = element.getName();
-          if (collator.equals(personalSpaceTag, name)) {
-            final ValueData[] vd = element.getValues();
-            if ((vd == null) || (vd.length < 1)) {
-              continue;
-            }
-            space = (String) vd[0].getValue();
-            String strMySiteBaseURL = sharepointClientContext.getMySiteBaseURL();
-            if (strMySiteBaseURL.endsWith(SPConstants.SLASH)) {
-              strMySiteBaseURL = strMySiteBaseURL.substring(0, strMySiteBaseURL.lastIndexOf(SPConstants.SLASH));
-            }
-            String strURL = strMySiteBaseURL + space;
-            if (strURL.endsWith(SPConstants.SLASH)) {
-              strURL = strURL.substring(0, strURL.lastIndexOf(SPConstants.SLASH));
+    for (String account : deleted) {
+      knownSites.remove(account);
+    }
+    fetchProfiles(changed, knownSites);
+    knownSites.setChangeToken(token);
+    LOGGER.info("Found " + changed.size() + " changed and " + deleted.size()
+        + " deleted user profiles since the last personal site discovery.");
+    return true;
+  }
+
+  private static boolean isDelete(final String[] changeTypes) {
+    if (changeTypes != null) {
+      for (String changeType : changeTypes) {
+        if (SPConstants.DELETE.equalsIgnoreCase(changeType)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Fetches the profiles of the accounts in parallel and records their
+   * personal sites. The sites of the profiles which cannot be fetched are
+   * left as they are.
+   */
+  private void fetchProfiles(final Set<String> accounts,
+      final PersonalSiteState knownSites) throws SharepointException {
+    final Queue<String> pending = new ConcurrentLinkedQueue<String>(accounts);
+    final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    final int threads =
+        Math.max(1, sharepointClientContext.getPersonalSiteScanThreads());
+    for (int i = Math.min(threads, accounts.size()); i > 0; i--) {
+      final UserProfile2007WS ws = createWS();
+      tasks.add(new Callable<Void>() {
+        public Void call() {
+          String account;
+          while ((account = pending.poll()) != null) {
+            final PropertyData[] data = getUserProfileByName(ws, account);
+            if (data != null) {
+              knownSites.put(account, getPersonalSiteUrl(data));
             }
-            if (sharepointClientContext.isIncludedUrl(strURL, LOGGER)) {
-              lstAllPersonalSites.add(strURL);
-              LOGGER.log(Level.CONFIG, "Personal Site: " + strURL);
+          }
+          return null;
+        }
+      });
+    }
+    runTasks(tasks);
+  }
+
+  /**
+   * Scans all the user profiles for their personal sites, and replaces the
+   * known sites with the ones found.
+   * <p/>
+   * The index range is split into partitions of {@link #PARTITION_SIZE}
+   * indexes, which the scanning threads take in turn. A profile index
+   * returns the first profile at or after that index, so every partition is
+   * scanned from its first index until the next index falls outside of the
+   * partition, and the first profile in a partition may also be found by the
+   * preceding one. When the next index of a profile falls in a later
+   * partition, the partitions before that one hold no profiles and are
+   * skipped. Once a thread reaches the last profile, no further partitions
+   * are taken.
+   * <p/>
+   * The partitions are scanned by up to
+   * {@link SharepointClientContext#getPersonalSiteScanThreads} threads.
+   */
+  private void scanProfiles(final PersonalSiteState knownSites)
+      throws SharepointException {
+    String token = null;
+    try {
+      token = new UserProfileChangeHelper(sharepointClientContext)
+          .getCurrentChangeToken();
+    } catch (final Exception e) {
+      LOGGER.log(Level.WARNING, "Unable to get the current user profile "
+          + "change token.", e);
+    }
+
+    final Map<String, String> found = Collections.synchronizedMap(
+        new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER));
+    final AtomicInteger nextPartition = new AtomicInteger();
+    final AtomicInteger endPartition = new AtomicInteger(Integer.MAX_VALUE);
+    final AtomicBoolean failed = new AtomicBoolean();
+    final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    final int scanThreads =
+        Math.max(1, sharepointClientContext.getPersonalSiteScanThreads());
+    for (int i = 0; i < scanThreads; i++) {
+      final UserProfile2007WS ws = createWS();
+      tasks.add(new Callable<Void>() {
+        public Void call() {
+          int partition;
+          while ((partition = nextPartition.getAndIncrement())
+              < endPartition.get() && !failed.get()) {
+            final int limit = (partition + 1) * PARTITION_SIZE;
+            int index = partition * PARTITION_SIZE;
+            while (index < limit) {
+              final GetUserProfileByIndexResult result =
+                  getUserProfileByIndex(ws, index);
+              if (result == null) {
+                failed.set(true);
+                return null;
+              }
+              final PropertyData[] data = result.getUserProfile();
+              if (data != null) {
+                final String account = getPropertyValue(data, accountNameTag);
+                final String url = getPersonalSiteUrl(data);
+                if (account != null) {
+                  found.put(account, url);
+                } else if (url != null) {
+                  found.put(url, url);
+                }
+              }
+              index = (data == null) ? -1 : parseIndex(result.getNextValue());
+              if (index < 0) {
+                // There are no profiles after this partition.
+                int end;
+                while ((end = endPartition.get()) > partition + 1
+                    && !endPartition.compareAndSet(end, partition + 1)) {
+                }
+                break;
+              }
+              if (index >= limit) {
+                // There are no profiles before the next one.
+                final int next = index / PARTITION_SIZE;
+                int taken;
+                while ((taken = nextPartition.get()) < next
+                    && !nextPartition.compareAndSet(taken, next)) {
+                }
+              }
             }
           }
-        } catch (final Exception e) {
-          LOGGER.log(Level.WARNING, e.getMessage(), e);
-          continue;
+          return null;
         }
-      }
-      final String next = result.getNextValue();
-      index = Integer.parseInt(next);
+      });
     }
+    runTasks(tasks);
 
-    if (lstAllPersonalSites.size() > 0) {
-      LOGGER.info("Discovered " + lstAllPersonalSites.size()
-          + " Personal sites to crawl.");
+    if (failed.get()) {
+      LOGGER.warning("Unable to scan all user profiles, keeping the "
+          + "personal sites discovered before.");
+      for (Map.Entry<String, String> site : found.entrySet()) {
+        knownSites.put(site.getKey(), site.getValue());
+      }
     } else {
-      LOGGER.config("No Personal sites to crawl.");
+      knownSites.clear();
+      for (Map.Entry<String, String> site : found.entrySet()) {
+        knownSites.put(site.getKey(), site.getValue());
+      }
+      knownSites.setChangeToken(token);
+      LOGGER.info("Scanned " + found.size() + " user profiles.");
+    }
+  }
+
+  private static int parseIndex(final String next) {
+    try {
+      return Integer.parseInt(next);
+    } catch (final NumberFormatException e) {
+      return -1;
     }
-    return lstAllPersonalSites;
+  }
+
+  /**
+   * Runs the tasks, each in its own thread, and waits for them to finish.
+   */
+  private void runTasks(final List<Callable<Void>> tasks)
+      throws SharepointException {
+    if (tasks.isEmpty()) {
+      return;
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(
+        tasks.size());
+    try {
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SharepointException("Interrupted while reading user profiles");
+    } catch (final ExecutionException e) {
+      throw new SharepointException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the value of a property of a user profile, or null if the
+   *         profile does not have the property
+   */
+  private String getPropertyValue(final PropertyData[] data,
+      final String propertyName) {
+    for (PropertyData element : data) {
+      if (Util.collationEquals(propertyName, element.getName())) {
+        final ValueData[] vd = element.getValues();
+        if ((vd == null) || (vd.length < 1) || (vd[0].getValue() == null)) {
+          return null;
+        }
+        return vd[0].getValue().toString();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the URL of the personal site of a user profile, or null if the
+   *         profile does not have one
+   */
+  private String getPersonalSiteUrl(final PropertyData[] data) {
+    final String space = getPropertyValue(data, personalSpaceTag);
+    if (space == null) {
+      return null;
+    }
+    String strMySiteBaseURL = sharepointClientContext.getMySiteBaseURL();
+    if (strMySiteBaseURL.endsWith(SPConstants.SLASH)) {
+      strMySiteBaseURL = strMySiteBaseURL.substring(0, strMySiteBaseURL.lastIndexOf(SPConstants.SLASH));
+    }
+    String strURL = strMySiteBaseURL + space;
+    if (strURL.endsWith(SPConstants.SLASH)) {
+      strURL = strURL.substring(0, strURL.lastIndexOf(SPConstants.SLASH));
+    }
+    return strURL;
   }
 
   /**
@@ -192,7 +473,8 @@ public class UserProfile2007Helper {
     final Set<String> myLinksSet = new TreeSet<String>();
     int index = 0;
     while (index >= 0) {
-      final GetUserProfileByIndexResult result = getUserProfileByIndex(index);
+      final GetUserProfileByIndexResult result =
+          getUserProfileByIndex(userProfileWS, index);
 
       if ((result == null) || (result.getUserProfile() == null)) {
         break;
@@ -227,11 +509,13 @@ public class UserProfile2007Helper {
   /**
    * Calls UserProfileWS.getUserProfileByIndex to get a user profile.
    *
+   * @param ws The web service to call
    * @param index The index of the user profile to be retrieved
    * @return a GetUserProfileByIndexResult
    */
-  private GetUserProfileByIndexResult getUserProfileByIndex(final int index) {
-    return Util.makeWSRequest(sharepointClientContext, userProfileWS,
+  private GetUserProfileByIndexResult getUserProfileByIndex(
+      final UserProfile2007WS ws, final int index) {
+    return Util.makeWSRequest(sharepointClientContext, ws,
         new Util.RequestExecutor<GetUserProfileByIndexResult>() {
       public GetUserProfileByIndexResult onRequest(final BaseWS ws)
           throws Throwable {
@@ -243,4 +527,26 @@ public class UserProfile2007Helper {
       }
     });
   }
+
+  /**
+   * Calls UserProfileWS.getUserProfileByName to get a user profile.
+   *
+   * @param ws The web service to call
+   * @param accountName The account name of the user
+   * @return the properties of the user profile
+   */
+  private PropertyData[] getUserProfileByName(final UserProfile2007WS ws,
+      final String accountName) {
+    return Util.makeWSRequest(sharepointClientContext, ws,
+        new Util.RequestExecutor<PropertyData[]>() {
+      public PropertyData[] onRequest(final BaseWS ws) throws Throwable {
+        return ((UserProfile2007WS) ws).getUserProfileByName(accountName);
+      }
+
+      public void onError(final Throwable e) {
+        LOGGER.log(Level.WARNING, "Call to getUserProfileByName failed for "
+            + "account [ " + accountName + " ].", e);
+      }
+    });
+  }
 }
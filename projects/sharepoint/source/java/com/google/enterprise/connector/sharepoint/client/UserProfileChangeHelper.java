@@ -39,29 +39,8 @@ public class UserProfileChangeHelper {
       SharePointSocialCheckpoint checkpoint) {
     Map<String, ActionType> updatedProfiles =
         new HashMap<String, ActionType>();
-    final UserProfileChangeQuery changeQuery = new UserProfileChangeQuery();
-    changeQuery.setDelete(true);
-    changeQuery.setUserProfile(true);
-    changeQuery.setUpdate(true);
-    changeQuery.setUpdateMetadata(true);
-    changeQuery.setSingleValueProperty(true);
-    changeQuery.setMultiValueProperty(true);
-    changeQuery.setColleague(true);
-
-    final String changeToken = checkpoint.getUserProfileChangeToken();
-    final UserProfileChangeDataContainer changeContainer = 
-        Util.makeWSRequest(sharepointClientContext, changeWS,
-            new Util.RequestExecutor<UserProfileChangeDataContainer>() {
-          public UserProfileChangeDataContainer onRequest(final BaseWS ws)
-              throws Throwable {
-            return ((UserProfileChangeWS) ws).getChanges(changeToken,
-                changeQuery);
-          }
-
-          public void onError(final Throwable e) {
-            LOGGER.log(Level.WARNING, "Call to getChanges failed.", e);
-          }
-        });
+    final UserProfileChangeDataContainer changeContainer =
+        getChanges(checkpoint.getUserProfileChangeToken());
 
     if (changeContainer != null) {
       UserProfileChangeData[] changes = changeContainer.getChanges();
@@ -125,6 +104,37 @@ public class UserProfileChangeHelper {
     changeWS.setTimeout(timeout);
   }
 
+  /**
+   * Calls UserProfileChangeWS.getChanges to get the changes made to the user
+   * profiles since a change token.
+   *
+   * @param changeToken the change token to start from
+   * @return the changes, or null if the call failed
+   */
+  public UserProfileChangeDataContainer getChanges(final String changeToken) {
+    final UserProfileChangeQuery changeQuery = new UserProfileChangeQuery();
+    changeQuery.setDelete(true);
+    changeQuery.setUserProfile(true);
+    changeQuery.setUpdate(true);
+    changeQuery.setUpdateMetadata(true);
+    changeQuery.setSingleValueProperty(true);
+    changeQuery.setMultiValueProperty(true);
+    changeQuery.setColleague(true);
+
+    return Util.makeWSRequest(sharepointClientContext, changeWS,
+        new Util.RequestExecutor<UserProfileChangeDataContainer>() {
+      public UserProfileChangeDataContainer onRequest(final BaseWS ws)
+          throws Throwable {
+        return ((UserProfileChangeWS) ws).getChanges(changeToken,
+            changeQuery);
+      }
+
+      public void onError(final Throwable e) {
+        LOGGER.log(Level.WARNING, "Call to getChanges failed.", e);
+      }
+    });
+  }
+
   public String getCurrentChangeToken() throws Exception {
     return Util.makeWSRequest(sharepointClientContext, changeWS,
         new Util.RequestExecutor<String>() {
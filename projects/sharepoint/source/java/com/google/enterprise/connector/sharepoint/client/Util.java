@@ -48,6 +48,7 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -60,6 +61,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -80,6 +83,18 @@ public final class Util {
 
   private static final Logger LOGGER = Logger.getLogger(Util.class.getName());
 
+  /** Shared by all threads, guarded by itself. */
+  private static final Collator SHARED_COLLATOR = getCollator();
+
+  /**
+   * Collation keys of the strings compared most often: list types, base
+   * templates and property names. Bounded so that arbitrary values do not
+   * fill the memory.
+   */
+  private static final ConcurrentMap<String, CollationKey> COLLATION_KEYS =
+      new ConcurrentHashMap<String, CollationKey>();
+  private static final int MAX_CACHED_COLLATION_KEYS = 10000;
+
   /**
    * Formats last modified date (yyyy-MM-dd HH:mm:ss'Z') to Calendar format
    *
@@ -175,6 +190,43 @@ public final class Util {
     return collator;
   }
 
+  /**
+   * Returns the key of a string for the collator returned by
+   * {@link #getCollator()}. Keys are computed once per string and cached,
+   * and two keys are equal exactly if the collator considers the strings
+   * equal. Thread-safe.
+   *
+   * @param source the string; not null
+   */
+  public static CollationKey getCollationKey(final String source) {
+    CollationKey key = COLLATION_KEYS.get(source);
+    if (key == null) {
+      synchronized (SHARED_COLLATOR) {
+        key = SHARED_COLLATOR.getCollationKey(source);
+      }
+      if (COLLATION_KEYS.size() < MAX_CACHED_COLLATION_KEYS) {
+        COLLATION_KEYS.putIfAbsent(source, key);
+      }
+    }
+    return key;
+  }
+
+  /**
+   * Same as {@code getCollator().equals(source, target)}, without creating a
+   * collator and comparing the strings character by character every time.
+   *
+   * @return true if the strings are equal for the collator, false if they
+   *         differ or either is null
+   */
+  public static boolean collationEquals(final String source,
+      final String target) {
+    if (source == null || target == null) {
+      return false;
+    }
+    return source.equals(target)
+        || getCollationKey(source).equals(getCollationKey(target));
+  }
+
   /**
    * return collator for a given locale
    *
@@ -1050,7 +1102,30 @@ public final class Util {
   }
 
   /**
-   * Re-writes a given URL using the alias mapping rule specified.
+   * Re-writes a given URL using the compiled alias mapping rules.
+   *
+   * @param url URL to be re-written/mapped
+   * @param aliasMapper the alias mapping rules; may be null
+   * @param fqdn If true, resulting URLs are converted into fqdn format. If
+   *          false, URLs are returned just by applying the alias mapping rules.
+   *          No further attempt will be made to re-write them.
+   * @see #doAliasMapping(String, Map, boolean)
+   */
+  public static String doAliasMapping(final String url,
+      AliasMapper aliasMapper, boolean fqdn) throws MalformedURLException {
+    URL objURL = new URL(url);
+    String strUrl =
+        (aliasMapper == null) ? null : aliasMapper.map(url, objURL);
+    if (strUrl == null) {
+      strUrl = getUnaliasedUrl(objURL, fqdn);
+    }
+    return strUrl;
+  }
+
+  /**
+   * Re-writes a given URL using the alias mapping rule specified. Every rule
+   * is parsed again for each URL, so when mapping many URLs with the same
+   * rules, compile them once into an {@link AliasMapper} instead.
    *
    * @param url URL to be re-written/mapped
    * @param aliasMap the alias mapping rules
@@ -1148,20 +1223,29 @@ public final class Util {
     }
 
     if (!matched) {
-      strUrl = objURL.getProtocol() + SPConstants.URL_SEP;
-      strUrl += getFQDNHostName(objURL.getHost(), fqdn) + SPConstants.COLON;
-      final int portNo = objURL.getPort();
-      if (portNo != -1) {
-        strUrl += portNo;
-      } else {
-        strUrl += objURL.getDefaultPort();
-      }
-      strUrl += objURL.getFile();
+      strUrl = getUnaliasedUrl(objURL, fqdn);
     }
 
     return strUrl;
   }
 
+  /**
+   * @return the URL with an explicit port, and the host in FQDN format if
+   *         requested
+   */
+  private static String getUnaliasedUrl(URL objURL, boolean fqdn) {
+    String strUrl = objURL.getProtocol() + SPConstants.URL_SEP;
+    strUrl += getFQDNHostName(objURL.getHost(), fqdn) + SPConstants.COLON;
+    final int portNo = objURL.getPort();
+    if (portNo != -1) {
+      strUrl += portNo;
+    } else {
+      strUrl += objURL.getDefaultPort();
+    }
+    strUrl += objURL.getFile();
+    return strUrl;
+  }
+
   /**
    * Converts a host name to FQDN using Java's
    * {@link InetAddress#getCanonicalHostName()}
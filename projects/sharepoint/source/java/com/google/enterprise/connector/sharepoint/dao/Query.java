@@ -36,6 +36,7 @@ import java.util.List;
 enum Query {
   UDS_CREATE_TABLE, UDS_CREATE_INDEX, UDS_DROP_TABLE, UDS_CHECK_TABLES,
   UDS_SELECT_FOR_ADGROUPS, // groups param is substituted by UserDataStoreDAO.
+  UDS_SELECT_ALL,
   UDS_UPGRADE_COL_USERNAME, UDS_UPGRADE_COL_GROUPNAME,
 
   UDS_INSERT("user_id", "user_name", "group_id", "group_name", "namespace"),
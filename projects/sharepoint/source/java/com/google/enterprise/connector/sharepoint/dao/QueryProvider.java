@@ -138,6 +138,7 @@ public class QueryProvider {
       placeholders.add(0, UDS_TABLE);
       break;
     case UDS_SELECT_FOR_ADGROUPS:
+    case UDS_SELECT_ALL:
       placeholders.add(0, udsTableName);
       break;
 
@@ -62,6 +62,9 @@ public class UserDataStoreDAO extends SharePointDAO {
   private static final int RETRY_ON_ERROR_601_LIMIT = 3;
 
   private UserDataStoreCache<UserGroupMembership> udsCache;
+  private boolean useMembershipIndex = false;
+  private volatile UserMembershipIndex membershipIndex;
+  private volatile UserDataStoreWriter writer;
   private DataSourceTransactionManager transactionManager;
   private ParameterizedRowMapper<UserGroupMembership> rowMapper;
 
@@ -117,6 +120,10 @@ public class UserDataStoreDAO extends SharePointDAO {
   @VisibleForTesting
   List<UserGroupMembership> getAllMembershipsForSearchUserAndLdapGroups(
       Set<String> groups, String searchUser) throws SharepointException {
+    UserMembershipIndex index = membershipIndex;
+    if (null != index) {
+      return index.getMemberships(groups, searchUser);
+    }
     // The list of AD groups may be long and that is very slow on SQL
     // Server. Substitute SQL escaped string literals for the IN
     // values parameter in the SQL query. This is ~100x faster.
@@ -174,6 +181,8 @@ public class UserDataStoreDAO extends SharePointDAO {
    * collection. After the method returns, the caller can ensure that the
    * collection contains only those memberships which the connector really
    * attempted insertion. But, it does not ensure if it was successful or not.
+   * When the changes are written behind, the memberships are queued and the
+   * collection is not modified.
    *
    * @throws SharepointException
    */
@@ -182,6 +191,15 @@ public class UserDataStoreDAO extends SharePointDAO {
     if (null == memberships || memberships.size() == 0) {
       return;
     }
+    if (null != writer) {
+      writer.add(memberships);
+    } else {
+      writeMemberships(memberships);
+    }
+  }
+
+  void writeMemberships(Set<UserGroupMembership> memberships)
+      throws SharepointException {
     if (null != udsCache && udsCache.size() > 0) {
       removeAllCached(memberships);
     }
@@ -197,6 +215,9 @@ public class UserDataStoreDAO extends SharePointDAO {
     if (null != udsCache && null != status) {
       addAllSucceeded(status, memberships);
     }
+    if (null != status) {
+      indexAllSucceeded(status, memberships);
+    }
   }
 
   /**
@@ -209,6 +230,15 @@ public class UserDataStoreDAO extends SharePointDAO {
    */
   public void removeUserMembershipsFromNamespace(Set<Integer> userIds,
       String namespace) throws SharepointException {
+    if (null != writer) {
+      writer.remove(Query.UDS_DELETE_FOR_USERID_NAMESPACE, userIds, namespace);
+    } else {
+      deleteUserMemberships(userIds, namespace);
+    }
+  }
+
+  void deleteUserMemberships(Set<Integer> userIds, String namespace)
+      throws SharepointException {
     Set<UserGroupMembership> memberships = new HashSet<UserGroupMembership>();
     for (int userId : userIds) {
       UserGroupMembership membership = new UserGroupMembership();
@@ -225,8 +255,12 @@ public class UserDataStoreDAO extends SharePointDAO {
     SqlParameterSource[] params = createParameter(query, memberships);
     batchUpdate(query, params);
 
+    UserMembershipIndex index = membershipIndex;
     for (UserGroupMembership membership : memberships) {
       udsCache.removeUsingNamespaceView(membership);
+      if (null != index) {
+        index.removeUser(membership.getUserId(), namespace);
+      }
     }
   }
 
@@ -240,6 +274,16 @@ public class UserDataStoreDAO extends SharePointDAO {
    */
   public void removeGroupMembershipsFromNamespace(Set<Integer> groupIds,
       String namespace) throws SharepointException {
+    if (null != writer) {
+      writer.remove(Query.UDS_DELETE_FOR_GROUPID_NAMESPACE, groupIds,
+          namespace);
+    } else {
+      deleteGroupMemberships(groupIds, namespace);
+    }
+  }
+
+  void deleteGroupMemberships(Set<Integer> groupIds, String namespace)
+      throws SharepointException {
     Set<UserGroupMembership> memberships = new HashSet<UserGroupMembership>();
     for (int groupId : groupIds) {
       UserGroupMembership membership = new UserGroupMembership();
@@ -256,8 +300,12 @@ public class UserDataStoreDAO extends SharePointDAO {
     SqlParameterSource[] params = createParameter(query, memberships);
     batchUpdate(query, params);
 
+    UserMembershipIndex index = membershipIndex;
     for (UserGroupMembership membership : memberships) {
       udsCache.removeUsingGroupNamespaceView(membership);
+      if (null != index) {
+        index.removeGroup(membership.getGroupId(), namespace);
+      }
     }
   }
 
@@ -270,6 +318,15 @@ public class UserDataStoreDAO extends SharePointDAO {
    */
   public void removeAllMembershipsFromNamespace(Set<String> namespaces)
       throws SharepointException {
+    if (null != writer) {
+      writer.remove(Query.UDS_DELETE_FOR_NAMESPACE, namespaces, null);
+    } else {
+      deleteNamespaceMemberships(namespaces);
+    }
+  }
+
+  void deleteNamespaceMemberships(Set<String> namespaces)
+      throws SharepointException {
     Set<UserGroupMembership> memberships = new HashSet<UserGroupMembership>();
     for (String namespace : namespaces) {
       UserGroupMembership membership = new UserGroupMembership();
@@ -285,8 +342,12 @@ public class UserDataStoreDAO extends SharePointDAO {
     SqlParameterSource[] params = createParameter(query, memberships);
     batchUpdate(query, params);
 
+    UserMembershipIndex index = membershipIndex;
     for (UserGroupMembership membership : memberships) {
       udsCache.removeUsingNamespaceView(membership);
+      if (null != index) {
+        index.removeNamespace(membership.getNamespace());
+      }
     }
   }
 
@@ -308,6 +369,16 @@ public class UserDataStoreDAO extends SharePointDAO {
     if (null == groupMembershipMap || groupMembershipMap.size() == 0) {
       return;
     }
+    if (null != writer) {
+      writer.sync(groupMembershipMap, namespace);
+    } else {
+      writeGroupMemberships(groupMembershipMap, namespace);
+    }
+  }
+
+  void writeGroupMemberships(
+      Map<Integer, Set<UserGroupMembership>> groupMembershipMap,
+      String namespace) throws SharepointException {
 
     Set<UserGroupMembership> membershipsToDelete = new TreeSet<UserGroupMembership>();
     Set<UserGroupMembership> membershipsToInsert = new TreeSet<UserGroupMembership>();
@@ -329,9 +400,11 @@ public class UserDataStoreDAO extends SharePointDAO {
     DefaultTransactionDefinition def = new DefaultTransactionDefinition();
 
     TransactionStatus status = transactionManager.getTransaction(def);
+    boolean synced = false;
     try {
       batchStatus[0] = batchUpdate(query1, param1);
-      batchStatus[0] = batchUpdate(query2, param2);
+      batchStatus[1] = batchUpdate(query2, param2);
+      synced = true;
     } catch (Exception e) {
       transactionManager.rollback(status);
       LOGGER.log(Level.WARNING, "Exception occured in transaction processing. Rolling back... ");
@@ -354,12 +427,110 @@ public class UserDataStoreDAO extends SharePointDAO {
         addAllSucceeded(batchStatus[1], membershipsToInsert);
       }
     }
+
+    UserMembershipIndex index = membershipIndex;
+    if (synced && null != index) {
+      for (UserGroupMembership membership : membershipsToDelete) {
+        index.removeGroup(membership.getGroupId(), namespace);
+      }
+      if (null != batchStatus[1]) {
+        indexAllSucceeded(batchStatus[1], membershipsToInsert);
+      }
+    }
+  }
+
+  /**
+   * Enables or disables writing the membership changes behind. When enabled,
+   * the changes are queued and written to the user data store on a
+   * background thread. They are not visible to the lookups until written;
+   * {@link #flush} waits for them, and throws the failures to write them.
+   *
+   * @param maxPending the number of memberships queued before further changes
+   *          wait for the writes, or 0 to write the changes immediately
+   * @throws SharepointException if the changes queued before failed to be
+   *           written
+   */
+  public void setWriteBehindSize(int maxPending) throws SharepointException {
+    try {
+      if (null != writer) {
+        writer.close();
+      }
+    } finally {
+      writer = (maxPending > 0)
+          ? new UserDataStoreWriter(this, maxPending) : null;
+    }
+  }
+
+  /**
+   * Waits until the membership changes written behind have been written.
+   *
+   * @throws SharepointException if some of the changes failed to be written
+   *           since the last flush
+   */
+  public void flush() throws SharepointException {
+    if (null != writer) {
+      writer.flush();
+    }
+  }
+
+  /**
+   * Waits until the membership changes written behind have been written,
+   * leaving the failures to be reported by {@link #flush}.
+   */
+  private void awaitWritten() throws SharepointException {
+    if (null != writer) {
+      writer.awaitWritten();
+    }
+  }
+
+  /**
+   * Begins a transaction which the writes made by this thread join until it
+   * is committed or rolled back.
+   */
+  TransactionStatus beginTransaction() {
+    return transactionManager.getTransaction(
+        new DefaultTransactionDefinition());
+  }
+
+  void commitTransaction(TransactionStatus status) {
+    transactionManager.commit(status);
+  }
+
+  /**
+   * Rolls back a transaction begun by {@link #beginTransaction}. The cache
+   * and the membership index are updated as the writes are made, so they
+   * are cleared and reloaded from the user data store.
+   */
+  void rollbackTransaction(TransactionStatus status) {
+    try {
+      if (!status.isCompleted()) {
+        transactionManager.rollback(status);
+      }
+    } finally {
+      if (null != udsCache) {
+        udsCache.clearCache();
+      }
+      loadMembershipIndex();
+    }
+  }
+
+  /**
+   * Writes the membership changes written behind and stops writing behind.
+   */
+  public void close() throws SharepointException {
+    setWriteBehindSize(0);
   }
 
   /**
    * To cleanup the cache.
    */
   public void cleanupCache() {
+    try {
+      awaitWritten();
+    } catch (SharepointException e) {
+      LOGGER.log(Level.WARNING, "Failed to write the user data store "
+          + "changes before cleaning up the cache.", e);
+    }
     LOGGER.log(Level.INFO, "Current cache size , before cleanup "
         + udsCache.size());
     udsCache.clearCache();
@@ -378,6 +549,73 @@ public class UserDataStoreDAO extends SharePointDAO {
     }
   }
 
+  /**
+   * Enables or disables the in-memory membership index. When enabled, the
+   * index is loaded from the user data store and the memberships of search
+   * users are looked up in it instead of the database. The index is kept up
+   * to date with the changes made through this DAO, so the user data store
+   * table should not be written by others, or the index should be refreshed
+   * after it is.
+   *
+   * @param useMembershipIndex true to use the index
+   */
+  public void setUseMembershipIndex(boolean useMembershipIndex) {
+    this.useMembershipIndex = useMembershipIndex;
+    if (useMembershipIndex) {
+      refreshMembershipIndex();
+    } else {
+      membershipIndex = null;
+    }
+  }
+
+  /**
+   * Reloads the membership index from the user data store, if the index is
+   * enabled. If the memberships cannot be read, the index is dropped and the
+   * database is queried until the next successful refresh.
+   */
+  public void refreshMembershipIndex() {
+    if (!useMembershipIndex) {
+      return;
+    }
+    try {
+      awaitWritten();
+    } catch (SharepointException e) {
+      LOGGER.log(Level.WARNING, "Failed to write the user data store "
+          + "changes before loading the membership index.", e);
+    }
+    loadMembershipIndex();
+  }
+
+  private void loadMembershipIndex() {
+    if (!useMembershipIndex) {
+      return;
+    }
+    List<UserGroupMembership> memberships;
+    try {
+      memberships = executeGroupMembershipQuery(
+          getSqlQuery(Query.UDS_SELECT_ALL), rowMapper, 1);
+    } catch (Throwable t) {
+      LOGGER.log(Level.WARNING, "Failed to load the user data store into "
+          + "the membership index. Memberships will be queried from the "
+          + "database.", t);
+      membershipIndex = null;
+      return;
+    }
+    UserMembershipIndex index = membershipIndex;
+    if (null == index) {
+      index = new UserMembershipIndex();
+    }
+    index.reload(memberships);
+    membershipIndex = index;
+    LOGGER.info("Loaded " + index.size()
+        + " memberships into the membership index.");
+  }
+
+  @VisibleForTesting
+  boolean isMembershipIndexLoaded() {
+    return null != membershipIndex;
+  }
+
   /**
    * Removes all those elements from the passed-in collection that are found in
    * cache.
@@ -641,6 +879,25 @@ public class UserDataStoreDAO extends SharePointDAO {
     }
   }
 
+  /**
+   * Adds the memberships that were written successfully to the membership
+   * index. Unlike {@link #addAllSucceeded}, failed statements are not
+   * indexed, since the index grants the memberships to search users.
+   */
+  private void indexAllSucceeded(int[] status,
+      Collection<UserGroupMembership> memberships) {
+    UserMembershipIndex index = membershipIndex;
+    if (null == index) {
+      return;
+    }
+    int i = 0;
+    for (UserGroupMembership membership : memberships) {
+      if (status[i++] != Statement.EXECUTE_FAILED) {
+        index.add(membership);
+      }
+    }
+  }
+
   public int getUdsCacheSize() {
     return this.udsCache.size();
   }
@@ -651,6 +908,7 @@ public class UserDataStoreDAO extends SharePointDAO {
    * @throws SharepointException
    */
   public void dropUserDataStoreTable() throws SharepointException {
+    flush();
     int status = getSimpleJdbcTemplate().update(getSqlQuery(Query.UDS_DROP_TABLE));
     if (status == 0) {
       LOGGER.info("Sucessfully dropped the User_Groups_Memberships table from the database using the query [ "
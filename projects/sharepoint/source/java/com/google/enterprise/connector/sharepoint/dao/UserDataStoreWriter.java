@@ -0,0 +1,423 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.dao;
+
+import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
+
+import org.springframework.transaction.TransactionStatus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the membership changes of a {@link UserDataStoreDAO} to the user
+ * data store on a background thread, so that the traversal does not wait
+ * for the database.
+ * <p/>
+ * The changes are queued in the order they are made. The changes taken
+ * from the queue together are written in one transaction, each the way
+ * {@link UserDataStoreDAO} writes it when it is not written behind. If the
+ * transaction fails, it is rolled back and the changes are written again
+ * one at a time, so that only the changes that fail are lost. While queued, the memberships added are merged, and a
+ * synchronization of the members of a group in a namespace replaces the
+ * memberships of that group queued before it. The number of memberships
+ * queued is bounded; when the bound is reached, the changes wait until the
+ * queued ones have been taken for writing.
+ * <p/>
+ * When a change fails to be written, the failure is thrown by the next
+ * {@link #flush}, so that the documents whose ACLs need the change are not
+ * checkpointed. Until then, no more changes are queued.
+ */
+class UserDataStoreWriter {
+  private static final Logger LOGGER =
+      Logger.getLogger(UserDataStoreWriter.class.getName());
+
+  private final UserDataStoreDAO dao;
+  private final int maxPending;
+
+  private final LinkedList<Change> pending = new LinkedList<Change>();
+  private int pendingSize = 0;
+  /** The number of changes queued, and the number written. */
+  private long queued = 0;
+  private long written = 0;
+  private boolean closed = false;
+  /** The first failure to write a change since the last flush. */
+  private SharepointException failure;
+  private final Thread thread;
+
+  /**
+   * @param dao the DAO making the changes
+   * @param maxPending the number of memberships queued before the changes
+   *          wait for the writes
+   */
+  UserDataStoreWriter(UserDataStoreDAO dao, int maxPending) {
+    this.dao = dao;
+    this.maxPending = maxPending;
+    thread = new Thread(new Runnable() {
+      public void run() {
+        writeChanges();
+      }
+    }, "UserDataStoreWriter");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** A queued change. */
+  private abstract static class Change {
+    /** @return the number of memberships in the change */
+    abstract int size();
+
+    abstract void write(UserDataStoreDAO dao) throws SharepointException;
+  }
+
+  private static class AddChange extends Change {
+    final Map<String, UserGroupMembership> memberships =
+        new LinkedHashMap<String, UserGroupMembership>();
+
+    int size() {
+      return memberships.size();
+    }
+
+    void write(UserDataStoreDAO dao) throws SharepointException {
+      dao.writeMemberships(
+          new HashSet<UserGroupMembership>(memberships.values()));
+    }
+  }
+
+  private static class SyncChange extends Change {
+    final String namespace;
+    final Map<Integer, Set<UserGroupMembership>> groups =
+        new HashMap<Integer, Set<UserGroupMembership>>();
+
+    SyncChange(String namespace) {
+      this.namespace = namespace;
+    }
+
+    int size() {
+      int size = 0;
+      for (Set<UserGroupMembership> members : groups.values()) {
+        size += members.size() + 1;
+      }
+      return size;
+    }
+
+    void write(UserDataStoreDAO dao) throws SharepointException {
+      dao.writeGroupMemberships(groups, namespace);
+    }
+  }
+
+  private static class RemoveChange extends Change {
+    final Query query;
+    final Set<?> ids;
+    final String namespace;
+
+    RemoveChange(Query query, Set<?> ids, String namespace) {
+      this.query = query;
+      this.ids = ids;
+      this.namespace = namespace;
+    }
+
+    int size() {
+      return ids.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    void write(UserDataStoreDAO dao) throws SharepointException {
+      switch (query) {
+      case UDS_DELETE_FOR_USERID_NAMESPACE:
+        dao.deleteUserMemberships((Set<Integer>) ids, namespace);
+        break;
+      case UDS_DELETE_FOR_GROUPID_NAMESPACE:
+        dao.deleteGroupMemberships((Set<Integer>) ids, namespace);
+        break;
+      default:
+        dao.deleteNamespaceMemberships((Set<String>) ids);
+        break;
+      }
+    }
+  }
+
+  private static String getKey(UserGroupMembership membership) {
+    return membership.getUserId() + ":" + membership.getGroupId() + ":"
+        + membership.getNamespace();
+  }
+
+  /**
+   * Queues memberships to add.
+   */
+  synchronized void add(Set<UserGroupMembership> memberships)
+      throws SharepointException {
+    waitForRoom();
+    AddChange change;
+    if (!pending.isEmpty() && pending.getLast() instanceof AddChange) {
+      change = (AddChange) pending.getLast();
+    } else {
+      change = new AddChange();
+      pending.add(change);
+    }
+    pendingSize -= change.size();
+    for (UserGroupMembership membership : memberships) {
+      change.memberships.put(getKey(membership), membership);
+    }
+    pendingSize += change.size();
+    queued();
+  }
+
+  /**
+   * Queues the synchronization of the members of groups. The memberships of
+   * the groups queued before are dropped, since they would be deleted.
+   */
+  synchronized void sync(Map<Integer, Set<UserGroupMembership>> groups,
+      String namespace) throws SharepointException {
+    waitForRoom();
+    Iterator<Change> changes = pending.iterator();
+    while (changes.hasNext()) {
+      Change change = changes.next();
+      if (change instanceof AddChange) {
+        Iterator<UserGroupMembership> memberships =
+            ((AddChange) change).memberships.values().iterator();
+        while (memberships.hasNext()) {
+          UserGroupMembership membership = memberships.next();
+          if (namespace.equals(membership.getNamespace())
+              && groups.containsKey(membership.getGroupId())) {
+            memberships.remove();
+          }
+        }
+      } else if (change instanceof SyncChange
+          && namespace.equals(((SyncChange) change).namespace)) {
+        ((SyncChange) change).groups.keySet().removeAll(groups.keySet());
+      } else {
+        continue;
+      }
+      if (change.size() == 0) {
+        changes.remove();
+      }
+    }
+    SyncChange change;
+    if (!pending.isEmpty() && pending.getLast() instanceof SyncChange
+        && namespace.equals(((SyncChange) pending.getLast()).namespace)) {
+      change = (SyncChange) pending.getLast();
+    } else {
+      change = new SyncChange(namespace);
+      pending.add(change);
+    }
+    for (Map.Entry<Integer, Set<UserGroupMembership>> group
+        : groups.entrySet()) {
+      change.groups.put(group.getKey(),
+          new HashSet<UserGroupMembership>(group.getValue()));
+    }
+    updatePendingSize();
+    queued();
+  }
+
+  /**
+   * Queues the removal of the memberships of users or groups in a namespace,
+   * or of all the memberships in namespaces.
+   *
+   * @param query the delete query to use
+   * @param ids the user or group IDs, or the namespaces
+   * @param namespace the namespace of the users or groups
+   */
+  synchronized void remove(Query query, Set<?> ids, String namespace)
+      throws SharepointException {
+    waitForRoom();
+    pending.add(new RemoveChange(query, new HashSet<Object>(ids), namespace));
+    pendingSize += ids.size();
+    queued();
+  }
+
+  /**
+   * Waits until all the changes queued before have been written.
+   *
+   * @throws SharepointException if a change failed to be written since the
+   *           last flush
+   */
+  synchronized void flush() throws SharepointException {
+    awaitWritten();
+    if (null != failure) {
+      SharepointException e = failure;
+      failure = null;
+      throw e;
+    }
+  }
+
+  /**
+   * Waits until all the changes queued before have been written, without
+   * reporting the failures to write them.
+   */
+  synchronized void awaitWritten() throws SharepointException {
+    long target = queued;
+    while (written < target) {
+      if (closed && !thread.isAlive()) {
+        throw new SharepointException("User data store writer has stopped");
+      }
+      waitForChange();
+    }
+  }
+
+  /**
+   * Writes the queued changes and stops the background thread.
+   *
+   * @throws SharepointException if a change failed to be written since the
+   *           last flush
+   */
+  void close() throws SharepointException {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SharepointException(
+          "Interrupted while writing the user data store changes");
+    }
+    flush();
+  }
+
+  /** @return the number of memberships queued */
+  synchronized int getPendingSize() {
+    return pendingSize;
+  }
+
+  private void waitForRoom() throws SharepointException {
+    if (closed) {
+      throw new SharepointException("User data store writer is closed");
+    }
+    if (null != failure) {
+      throw new SharepointException(
+          "User data store changes failed to be written", failure);
+    }
+    while (pendingSize >= maxPending && !pending.isEmpty()) {
+      waitForChange();
+    }
+  }
+
+  private void waitForChange() throws SharepointException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SharepointException(
+          "Interrupted while waiting for the user data store writer");
+    }
+  }
+
+  private void queued() {
+    queued++;
+    notifyAll();
+  }
+
+  private void updatePendingSize() {
+    pendingSize = 0;
+    for (Change change : pending) {
+      pendingSize += change.size();
+    }
+  }
+
+  private void writeChanges() {
+    while (true) {
+      List<Change> changes;
+      long target;
+      synchronized (this) {
+        while (pending.isEmpty() && !closed) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            LOGGER.warning("User data store writer interrupted");
+            closed = true;
+          }
+        }
+        if (pending.isEmpty()) {
+          notifyAll();
+          return;
+        }
+        changes = new ArrayList<Change>(pending);
+        pending.clear();
+        pendingSize = 0;
+        target = queued;
+        notifyAll();
+      }
+      write(changes);
+      synchronized (this) {
+        written = target;
+        notifyAll();
+      }
+    }
+  }
+
+  private void write(List<Change> changes) {
+    LOGGER.fine("Writing " + changes.size()
+        + " queued changes to the user data store.");
+    if (changes.size() > 1 && writeInTransaction(changes)) {
+      return;
+    }
+    for (Change change : changes) {
+      try {
+        change.write(dao);
+      } catch (Throwable t) {
+        LOGGER.log(Level.WARNING, "Failed to write a queued change of #"
+            + change.size() + " memberships to the user data store.", t);
+        synchronized (this) {
+          if (null == failure) {
+            failure = new SharepointException(
+                "Failed to write the user data store changes", t);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes changes in one transaction.
+   *
+   * @return true if the changes were written and committed, false if the
+   *         transaction was rolled back
+   */
+  private boolean writeInTransaction(List<Change> changes) {
+    TransactionStatus status = null;
+    try {
+      status = dao.beginTransaction();
+      for (Change change : changes) {
+        change.write(dao);
+      }
+      dao.commitTransaction(status);
+      return true;
+    } catch (Throwable t) {
+      LOGGER.log(Level.WARNING, "Failed to write #" + changes.size()
+          + " queued changes to the user data store in one transaction. "
+          + "Writing them one at a time.", t);
+      if (null != status) {
+        try {
+          dao.rollbackTransaction(status);
+        } catch (Throwable rollbackFailure) {
+          LOGGER.log(Level.WARNING, "Failed to roll back the user data "
+              + "store transaction.", rollbackFailure);
+        }
+      }
+      return false;
+    }
+  }
+}
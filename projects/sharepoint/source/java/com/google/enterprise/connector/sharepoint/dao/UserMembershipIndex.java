@@ -0,0 +1,199 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory copy of the user data store table, indexed by the user name
+ * of the memberships so that the memberships of a search user and their
+ * groups can be looked up without querying the database.
+ * <p/>
+ * The rows are also indexed by user and group within a namespace, which are
+ * what the user data store deletes by. A row is identified by its user ID,
+ * group ID and namespace like the primary key of the table, and the user
+ * names are stored in lower case as the user data store does.
+ */
+class UserMembershipIndex {
+  private final Map<String, Set<UserGroupMembership>> byUserName =
+      new HashMap<String, Set<UserGroupMembership>>();
+  private final Map<String, NamespaceRows> byNamespace =
+      new HashMap<String, NamespaceRows>();
+  private int size = 0;
+
+  /** The rows of one namespace, by user ID and by group ID. */
+  private static class NamespaceRows {
+    final Map<Integer, Set<UserGroupMembership>> byUserId =
+        new HashMap<Integer, Set<UserGroupMembership>>();
+    final Map<Integer, Set<UserGroupMembership>> byGroupId =
+        new HashMap<Integer, Set<UserGroupMembership>>();
+  }
+
+  /**
+   * Replaces the contents of the index with the given rows.
+   */
+  synchronized void reload(Collection<UserGroupMembership> memberships) {
+    byUserName.clear();
+    byNamespace.clear();
+    size = 0;
+    for (UserGroupMembership membership : memberships) {
+      add(membership);
+    }
+  }
+
+  /**
+   * Adds a row, replacing the row with the same user ID, group ID and
+   * namespace if there is one.
+   */
+  synchronized void add(UserGroupMembership membership) {
+    UserGroupMembership row = new UserGroupMembership(
+        membership.getUserId(), membership.getUserName().toLowerCase(),
+        membership.getGroupId(), membership.getGroupName(),
+        membership.getNamespace());
+    NamespaceRows rows = byNamespace.get(row.getNamespace());
+    if (rows == null) {
+      rows = new NamespaceRows();
+      byNamespace.put(row.getNamespace(), rows);
+    } else {
+      Set<UserGroupMembership> userRows = rows.byUserId.get(row.getUserId());
+      if (userRows != null) {
+        for (UserGroupMembership existing : userRows) {
+          if (existing.getGroupId() == row.getGroupId()) {
+            remove(rows, existing);
+            break;
+          }
+        }
+      }
+    }
+    put(byUserName, row.getUserName(), row);
+    put(rows.byUserId, row.getUserId(), row);
+    put(rows.byGroupId, row.getGroupId(), row);
+    size++;
+  }
+
+  /**
+   * Removes the rows of a user in a namespace.
+   */
+  synchronized void removeUser(int userId, String namespace) {
+    NamespaceRows rows = byNamespace.get(namespace);
+    if (rows != null) {
+      removeAll(rows, rows.byUserId.get(userId));
+    }
+  }
+
+  /**
+   * Removes the rows of a group in a namespace.
+   */
+  synchronized void removeGroup(int groupId, String namespace) {
+    NamespaceRows rows = byNamespace.get(namespace);
+    if (rows != null) {
+      removeAll(rows, rows.byGroupId.get(groupId));
+    }
+  }
+
+  /**
+   * Removes the rows of a namespace.
+   */
+  synchronized void removeNamespace(String namespace) {
+    NamespaceRows rows = byNamespace.remove(namespace);
+    if (rows == null) {
+      return;
+    }
+    for (Set<UserGroupMembership> userRows : rows.byUserId.values()) {
+      for (UserGroupMembership row : userRows) {
+        removeFrom(byUserName, row.getUserName(), row);
+        size--;
+      }
+    }
+  }
+
+  /**
+   * Returns the rows whose user name is the search user or one of the
+   * groups, like {@code Query.UDS_SELECT_FOR_ADGROUPS}.
+   *
+   * @param groups lower case names of the groups
+   * @param searchUser lower case name of the search user
+   */
+  synchronized List<UserGroupMembership> getMemberships(Set<String> groups,
+      String searchUser) {
+    List<UserGroupMembership> memberships =
+        new ArrayList<UserGroupMembership>();
+    addRows(memberships, searchUser);
+    for (String group : groups) {
+      if (!group.equals(searchUser)) {
+        addRows(memberships, group);
+      }
+    }
+    return memberships;
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  private void addRows(List<UserGroupMembership> memberships,
+      String userName) {
+    Set<UserGroupMembership> rows = byUserName.get(userName);
+    if (rows != null) {
+      memberships.addAll(rows);
+    }
+  }
+
+  private void removeAll(NamespaceRows rows,
+      Set<UserGroupMembership> toRemove) {
+    if (toRemove == null) {
+      return;
+    }
+    // Copied since removing a row modifies the set.
+    for (UserGroupMembership row : new ArrayList<UserGroupMembership>(
+        toRemove)) {
+      remove(rows, row);
+    }
+  }
+
+  private void remove(NamespaceRows rows, UserGroupMembership row) {
+    removeFrom(byUserName, row.getUserName(), row);
+    removeFrom(rows.byUserId, row.getUserId(), row);
+    removeFrom(rows.byGroupId, row.getGroupId(), row);
+    size--;
+  }
+
+  private static <K> void put(Map<K, Set<UserGroupMembership>> map, K key,
+      UserGroupMembership row) {
+    Set<UserGroupMembership> rows = map.get(key);
+    if (rows == null) {
+      rows = new HashSet<UserGroupMembership>();
+      map.put(key, rows);
+    }
+    rows.add(row);
+  }
+
+  private static <K> void removeFrom(Map<K, Set<UserGroupMembership>> map,
+      K key, UserGroupMembership row) {
+    Set<UserGroupMembership> rows = map.get(key);
+    if (rows != null) {
+      rows.remove(row);
+      if (rows.isEmpty()) {
+        map.remove(key);
+      }
+    }
+  }
+}
@@ -116,4 +116,12 @@ public class SharepointSocialClientContext {
   public int getFullTraversalIntervalInDays() {
     return this.spClientContext.getUserProfileFullTraversalInterval();
   }
+
+  public int getFetchThreads() {
+    return this.spClientContext.getUserProfileFetchThreads();
+  }
+
+  public int getPrefetchSize() {
+    return this.spClientContext.getUserProfilePrefetchSize();
+  }
 }
@@ -14,7 +14,6 @@
 
 package com.google.enterprise.connector.sharepoint.social;
 
-import com.google.common.base.Strings;
 import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.DocumentList;
@@ -22,13 +21,11 @@ import com.google.enterprise.connector.spi.Property;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SocialUserProfileDocument;
 import com.google.enterprise.connector.spi.SpiConstants;
-import com.google.enterprise.connector.spi.SpiConstants.ActionType;
 import com.google.enterprise.connector.util.SystemClock;
 
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -59,14 +56,13 @@ public class SharepointSocialUserProfileDocumentList implements DocumentList {
 
   final static Logger LOGGER = SharepointSocialConnector.LOGGER;
   public static final String CHECKPOINT_PREFIX = "sp_userprofile";
-  private final SharepointUserProfileConnection service;
   private long lastFullSync = 0L;
   private int nextProfileIndex = -1;
   private boolean end = false;
   private final int batchHint;
   private int batchCount = 0;
   private String userProfileChangeToken = "";
-  private List<SharePointSocialUserProfileDocument> updatedDocuments;
+  private final SharepointUserProfilePipeline pipeline;
 
 
   public SharepointSocialUserProfileDocumentList(
@@ -74,7 +70,6 @@ public class SharepointSocialUserProfileDocumentList implements DocumentList {
       SharePointSocialCheckpoint checkpoint, int batchHint,
       List<SharePointSocialUserProfileDocument> updatedDocuments)
           throws RepositoryException {
-    service = connection;
     try {
       int profileCount = connection.openConnection();
       LOGGER.info("Total Profile Count = " + profileCount);
@@ -89,9 +84,10 @@ public class SharepointSocialUserProfileDocumentList implements DocumentList {
       this.nextProfileIndex = checkpoint.getUserProfileNextIndex();
     }
     lastFullSync = checkpoint.getUserProfileLastFullSync();
-    this.updatedDocuments = updatedDocuments;
     userProfileChangeToken = checkpoint.getUserProfileChangeToken();
     this.batchHint = batchHint;
+    pipeline = new SharepointUserProfilePipeline(connection.getContext(),
+        nextProfileIndex, batchHint, updatedDocuments);
   }
 
 
@@ -107,30 +103,10 @@ public class SharepointSocialUserProfileDocumentList implements DocumentList {
 
   @Override
   public Document nextDocument() throws RepositoryException {
-    while (updatedDocuments != null && updatedDocuments.size() > 0) {
-      SharePointSocialUserProfileDocument updatedDoc =
-          updatedDocuments.remove(0);
-      if (updatedDoc.getActionType() == ActionType.DELETE) {
-        LOGGER.fine("Returning deleted Doc = "
-            + updatedDoc);
-        batchCount++;
-        return updatedDoc;
-      }
-      String userAccount = updatedDoc.getUserKey().toString();
-      if (!Strings.isNullOrEmpty(userAccount)) {
-        try {
-          SocialUserProfileDocument updatedProfile =
-              service.getProfileByName(userAccount);
-          if (updatedProfile != null) {
-            batchCount++;
-            return updatedProfile;
-          }
-        } catch (Exception e) {
-          // Ignoring exceptions so connector can process next change.
-          LOGGER.log(Level.WARNING, "Error fetching updated profile for = "
-                  + userAccount, e);
-        }
-      }
+    SocialUserProfileDocument updatedProfile = pipeline.nextUpdatedProfile();
+    if (updatedProfile != null) {
+      batchCount++;
+      return updatedProfile;
     }
 
     if (end) {
@@ -139,16 +115,24 @@ public class SharepointSocialUserProfileDocumentList implements DocumentList {
     if (batchCount >= batchHint) {
       LOGGER.fine("Returning null as reached batch hint = "
           + batchHint);
+      pipeline.close();
       return null;
     }
     LOGGER.fine("Returning userprofile at index = " + nextProfileIndex);
-    Document doc = null;
-    try {
-      doc = fetchNextProfile(true);
-    } catch (Exception e) {
-      LOGGER.log(Level.WARNING,
-          "There was a failure fetching profile at index = "
-              + nextProfileIndex, e);
+    SharePointSocialUserProfileDocument doc = pipeline.nextProfile();
+    if (doc != null) {
+      if (doc.getNextValue() != -1 &&
+          doc.getNextValue() != nextProfileIndex) {
+        nextProfileIndex = doc.getNextValue();
+        LOGGER.fine("Setting Next Index = " + nextProfileIndex);
+      } else {
+        LOGGER.fine("Marking end with socialDoc.getNextValue() = "
+            + doc.getNextValue());
+        markEnd();
+      }
+    } else if (pipeline.isEnd()) {
+      LOGGER.fine("Marking end as Doc is null");
+      markEnd();
     }
     batchCount++;
     return doc;
@@ -161,45 +145,6 @@ public class SharepointSocialUserProfileDocumentList implements DocumentList {
       lastFullSync = new SystemClock().getTimeMillis();
     }
     end = true;
+    pipeline.close();
   }
-
-  private Document fetchNextProfile(boolean retry) throws RepositoryException {
-    Document doc = null;
-    try {
-      doc = service.getProfile(nextProfileIndex);
-      if (doc != null) {
-        SharePointSocialUserProfileDocument socialDoc =
-            (SharePointSocialUserProfileDocument) doc;
-        if (socialDoc.getNextValue() != -1 &&
-            socialDoc.getNextValue() != nextProfileIndex) {
-          nextProfileIndex = socialDoc.getNextValue();
-          LOGGER.fine("Setting Next Index = " + nextProfileIndex);
-        } else {
-          LOGGER.fine("Marking end with socialDoc.getNextValue() = "
-              + socialDoc.getNextValue());
-          markEnd();
-        }
-      } else {
-        LOGGER.fine("Marking end as Doc is null");
-        markEnd();
-      }
-    } catch (Exception e) {
-      LOGGER.log(Level.WARNING,
-          "There was a failure fetching profile at index = "
-              + nextProfileIndex + " retrying...", e);
-      if (retry) {
-        try {
-          // if openConnection throws service is out of bounds,
-          // we release current batch and wait for resume
-          service.openConnection();
-        } catch (RemoteException eAgain) {
-          LOGGER.log(Level.WARNING, "User profile service not reachable,"
-              + " continuing with partial list, to be resumed", eAgain);
-          return null;
-        }
-        doc = fetchNextProfile(false);
-      }
-    }
-    return doc;
-  }
-}
\ No newline at end of file
+}
@@ -106,8 +106,22 @@ public class SharepointUserProfileConnection {
     return service.getUserProfileByName(accountName);
   }
 
+  SharepointSocialClientContext getContext() {
+    return ctxt;
+  }
+
   public int openConnection() throws RepositoryException, RemoteException {
+    connect();
+    LOGGER.fine("Calling soap service");
+    long numProfiles = service.getUserProfileCount();
+    LOGGER.info("Number of SharePoint User Profiles: " + numProfiles);
+    return (int) numProfiles;
+  }
 
+  /**
+   * Creates the service proxy without calling the service.
+   */
+  void connect() throws RepositoryException, RemoteException {
     try {
       LOGGER.fine("in openConnection call");
 
@@ -123,15 +137,9 @@ public class SharepointUserProfileConnection {
       service.setUsername(SharepointUtils.makeDomainUsername(ctxt.getDomain(),
           ctxt.getUserName()));
       service.setPassword(ctxt.getPassword());
-
-      LOGGER.fine("Calling soap service");
-      long numProfiles = service.getUserProfileCount();
-      LOGGER.info("Number of SharePoint User Profiles: " + numProfiles);
-      return (int) numProfiles;
     } catch (MalformedURLException e) {
       throw new RepositoryException(e);
     }
-
   }
 
   /**
@@ -0,0 +1,344 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.social;
+
+import com.google.common.base.Strings;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SocialUserProfileDocument;
+import com.google.enterprise.connector.spi.SpiConstants.ActionType;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches user profiles on several threads ahead of the traversal, and hands
+ * them out in the order the traversal would have fetched them itself.
+ * <p/>
+ * Profiles are fetched by index in partitions of {@link #PARTITION_SIZE}
+ * indexes, starting from the index in the checkpoint. Each partition is
+ * fetched on its own connection by following the next index of each profile
+ * until it falls outside of the partition. Since a profile index returns the
+ * first profile at or after that index, the first profile of a partition may
+ * be the last one of the preceding partition; such repeats are recognized by
+ * their next index and skipped. When the next index of a profile falls past
+ * the partition after its own, the partitions in between hold no profiles:
+ * they are not submitted, and the ones already submitted return without
+ * fetching. The profiles changed since the last traversal are fetched by
+ * name in the same way.
+ * <p/>
+ * Only a bounded number of fetches are started ahead of the profiles handed
+ * out, so fetching stops when the traversal does not keep up. The threads
+ * exit when they have been idle for a while, so a pipeline which is dropped
+ * without being closed does not keep them.
+ */
+class SharepointUserProfilePipeline {
+  private static final Logger LOGGER = SharepointSocialConnector.LOGGER;
+
+  /** Profile indexes fetched as one unit. */
+  static final int PARTITION_SIZE = 10;
+
+  private static final long IDLE_SECONDS = 60;
+
+  private final SharepointSocialClientContext ctxt;
+  private final ThreadPoolExecutor executor;
+  private final int prefetchSize;
+  private final int partitionsAhead;
+
+  private final LinkedList<SharePointSocialUserProfileDocument> updates;
+  private final LinkedList<Future<SocialUserProfileDocument>> pendingUpdates =
+      new LinkedList<Future<SocialUserProfileDocument>>();
+
+  private final int startIndex;
+  private final AtomicInteger nextPartition = new AtomicInteger();
+  /** The first index of each known gap in the indexes, to its end. */
+  private final ConcurrentNavigableMap<Integer, Integer> gaps =
+      new ConcurrentSkipListMap<Integer, Integer>();
+  private final LinkedList<Future<Partition>> pendingPartitions =
+      new LinkedList<Future<Partition>>();
+  private Partition current;
+  private int position;
+  private Integer lastNextValue;
+  private boolean end = false;
+  private boolean failed = false;
+
+  /**
+   * @param ctxt the context used to connect to the user profile service
+   * @param startIndex the index of the first profile to fetch
+   * @param batchHint the number of profiles the traversal wants
+   * @param updatedDocuments the profiles changed since the last traversal;
+   *          may be null
+   */
+  SharepointUserProfilePipeline(SharepointSocialClientContext ctxt,
+      int startIndex, int batchHint,
+      List<SharePointSocialUserProfileDocument> updatedDocuments) {
+    this.ctxt = ctxt;
+    this.startIndex = startIndex;
+    this.prefetchSize = Math.max(1, ctxt.getPrefetchSize());
+    this.partitionsAhead =
+        Math.max(1, Math.min(prefetchSize, batchHint) / PARTITION_SIZE);
+    this.updates = (updatedDocuments == null)
+        ? new LinkedList<SharePointSocialUserProfileDocument>()
+        : new LinkedList<SharePointSocialUserProfileDocument>(
+            updatedDocuments);
+
+    int threads = Math.max(1, ctxt.getFetchThreads());
+    executor = new ThreadPoolExecutor(threads, threads, IDLE_SECONDS,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "UserProfileFetcher");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns the next of the profiles changed since the last traversal. The
+   * deleted profiles are returned as they are, the others are fetched again.
+   * Profiles which cannot be fetched are skipped.
+   *
+   * @return the next changed profile, or null if there are no more
+   */
+  SocialUserProfileDocument nextUpdatedProfile() throws RepositoryException {
+    while (true) {
+      while (pendingUpdates.size() < prefetchSize && !updates.isEmpty()) {
+        pendingUpdates.add(fetchUpdate(updates.removeFirst()));
+      }
+      if (pendingUpdates.isEmpty()) {
+        return null;
+      }
+      try {
+        SocialUserProfileDocument doc = pendingUpdates.removeFirst().get();
+        if (doc != null) {
+          return doc;
+        }
+      } catch (ExecutionException e) {
+        // Ignoring exceptions so connector can process next change.
+        LOGGER.log(Level.WARNING, "Error fetching updated profile",
+            e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RepositoryException(e);
+      }
+    }
+  }
+
+  private Future<SocialUserProfileDocument> fetchUpdate(
+      final SharePointSocialUserProfileDocument updatedDoc) {
+    if (updatedDoc.getActionType() == ActionType.DELETE) {
+      LOGGER.fine("Returning deleted Doc = " + updatedDoc);
+      FutureTask<SocialUserProfileDocument> deleted =
+          new FutureTask<SocialUserProfileDocument>(
+              new Callable<SocialUserProfileDocument>() {
+                public SocialUserProfileDocument call() {
+                  return updatedDoc;
+                }
+              });
+      deleted.run();
+      return deleted;
+    }
+    final String userAccount = updatedDoc.getUserKey().toString();
+    return executor.submit(new Callable<SocialUserProfileDocument>() {
+      public SocialUserProfileDocument call() throws Exception {
+        if (Strings.isNullOrEmpty(userAccount)) {
+          return null;
+        }
+        return connect().getProfileByName(userAccount);
+      }
+    });
+  }
+
+  /**
+   * Returns the next profile in index order.
+   *
+   * @return the next profile, or null if there are no more profiles, see
+   *         {@link #isEnd}, or if a profile could not be fetched
+   */
+  SharePointSocialUserProfileDocument nextProfile()
+      throws RepositoryException {
+    while (!end && !failed) {
+      if (current != null && position < current.profiles.size()) {
+        SharePointSocialUserProfileDocument doc =
+            current.profiles.get(position++);
+        if (lastNextValue != null && doc.getNextValue() == lastNextValue) {
+          // Already returned at the end of the preceding partition.
+          continue;
+        }
+        lastNextValue = doc.getNextValue();
+        return doc;
+      }
+      if (current != null && current.failed) {
+        failed = true;
+        break;
+      }
+      if (current != null && current.last) {
+        end = true;
+        break;
+      }
+      while (pendingPartitions.size() < partitionsAhead) {
+        pendingPartitions.add(executor.submit(
+            new PartitionFetch(nextPartition.getAndIncrement())));
+      }
+      try {
+        current = pendingPartitions.removeFirst().get();
+        position = 0;
+      } catch (ExecutionException e) {
+        throw new RepositoryException(e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RepositoryException(e);
+      }
+    }
+    close();
+    return null;
+  }
+
+  /**
+   * @return true if all the profiles have been returned
+   */
+  boolean isEnd() {
+    return end;
+  }
+
+  /**
+   * Stops fetching.
+   */
+  void close() {
+    for (Future<Partition> pending : pendingPartitions) {
+      pending.cancel(true);
+    }
+    pendingPartitions.clear();
+    executor.shutdownNow();
+  }
+
+  private SharepointUserProfileConnection connect()
+      throws RepositoryException, RemoteException {
+    SharepointUserProfileConnection cxn =
+        new SharepointUserProfileConnection(ctxt);
+    cxn.connect();
+    return cxn;
+  }
+
+  /**
+   * Records that the only profile from one index up to another, if any, has
+   * been fetched, so that the partitions in between are skipped.
+   */
+  private void skip(int from, int to) {
+    int partition = (to - startIndex) / PARTITION_SIZE;
+    if (partition <= (from - startIndex) / PARTITION_SIZE) {
+      return;
+    }
+    gaps.put(from, to);
+    int taken;
+    while ((taken = nextPartition.get()) < partition
+        && !nextPartition.compareAndSet(taken, partition)) {
+    }
+  }
+
+  /**
+   * @return true if the indexes from start up to limit are in a known gap
+   */
+  private boolean isSkipped(int start, int limit) {
+    Map.Entry<Integer, Integer> gap = gaps.floorEntry(start);
+    return gap != null && gap.getValue() >= limit;
+  }
+
+  /** The profiles fetched from one partition, in index order. */
+  private static class Partition {
+    final List<SharePointSocialUserProfileDocument> profiles =
+        new ArrayList<SharePointSocialUserProfileDocument>();
+    /** No profiles follow the ones fetched. */
+    boolean last = false;
+    /** A profile could not be fetched; it and the ones after are missing. */
+    boolean failed = false;
+  }
+
+  private class PartitionFetch implements Callable<Partition> {
+    private final int start;
+    private final int limit;
+
+    PartitionFetch(int partition) {
+      start = startIndex + partition * PARTITION_SIZE;
+      limit = start + PARTITION_SIZE;
+    }
+
+    public Partition call() throws RepositoryException {
+      Partition partition = new Partition();
+      if (isSkipped(start, limit)) {
+        return partition;
+      }
+      SharepointUserProfileConnection cxn = null;
+      int index = start;
+      while (index < limit && !Thread.currentThread().isInterrupted()) {
+        SharePointSocialUserProfileDocument doc;
+        try {
+          if (cxn == null) {
+            cxn = connect();
+          }
+          doc = (SharePointSocialUserProfileDocument) cxn.getProfile(index);
+        } catch (Exception e) {
+          LOGGER.log(Level.WARNING,
+              "There was a failure fetching profile at index = "
+                  + index + " retrying...", e);
+          try {
+            // The connection could have been stale.
+            cxn = connect();
+            doc = (SharePointSocialUserProfileDocument) cxn.getProfile(index);
+          } catch (Exception eAgain) {
+            LOGGER.log(Level.WARNING, "User profile service not reachable,"
+                + " continuing with partial list, to be resumed", eAgain);
+            partition.failed = true;
+            return partition;
+          }
+        }
+        if (doc == null) {
+          LOGGER.fine("No profiles at or after index = " + index);
+          partition.last = true;
+          break;
+        }
+        partition.profiles.add(doc);
+        int next = doc.getNextValue();
+        if (next == -1 || next <= index) {
+          partition.last = true;
+          break;
+        }
+        index = next;
+      }
+      if (index >= limit) {
+        // The profiles fetched are all the profiles before the next index.
+        skip(limit, index);
+      }
+      return partition;
+    }
+  }
+}
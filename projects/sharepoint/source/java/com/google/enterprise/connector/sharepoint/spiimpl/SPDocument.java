@@ -17,6 +17,7 @@ package com.google.enterprise.connector.sharepoint.spiimpl;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.enterprise.connector.sharepoint.client.Attribute;
+import com.google.enterprise.connector.sharepoint.client.AttributeNames;
 import com.google.enterprise.connector.sharepoint.client.SPConstants;
 import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
 import com.google.enterprise.connector.sharepoint.client.Util;
@@ -25,6 +26,7 @@ import com.google.enterprise.connector.sharepoint.client.SPConstants.SPType;
 import com.google.enterprise.connector.sharepoint.state.Folder;
 import com.google.enterprise.connector.sharepoint.state.ListState;
 import com.google.enterprise.connector.sharepoint.state.WebState;
+import com.google.enterprise.connector.sharepoint.wsclient.handlers.CompressionHandler;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.Principal;
 import com.google.enterprise.connector.spi.Property;
@@ -45,11 +47,10 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URLDecoder;
-import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
@@ -69,6 +70,10 @@ public class SPDocument implements Document, Comparable<SPDocument> {
   private String parentWebTitle = "No Title";
   private FeedType feedType;
   private SPType spType;
+
+  /** The ordering values of the document, computed when it is created. */
+  private SortKey sortKey;
+
   private ActionType action = ActionType.ADD;
 
   private Folder parentFolder;
@@ -96,7 +101,13 @@ public class SPDocument implements Document, Comparable<SPDocument> {
 
   private final Logger LOGGER = Logger.getLogger(SPDocument.class.getName());
 
-  private final ArrayList<Attribute> attrs = new ArrayList<Attribute>(5);
+  // The names of the extra metadata, shared with the other documents of the
+  // parent list, and the values, at the index of their name. Null values
+  // are kept as NULL_VALUE, to tell them from the metadata not set.
+  private AttributeNames attrNames;
+  private Object[] attrValues = NO_VALUES;
+  private static final Object[] NO_VALUES = new Object[0];
+  private static final Object NULL_VALUE = new Object();
 
   /**
    * Flag to indicate if this document is to be sent as a feed
@@ -204,6 +215,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
     parentWebTitle = inParentWebTitle;
     feedType = inFeedType;
     spType = inSpType;
+    sortKey = new SortKey(docId, feedType, lastMod);
     LOGGER.config("docid[" + inDocId + "], URL[" + inUrl + "], LastMod["
         + inLastMod + "], ObjectType[" + inObjType + "]," + "author["
         + inAuthor + "],parentWebTitle[" + parentWebTitle + "], feedType ["
@@ -219,6 +231,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
     displayUrl = url = inDocURL;
     lastMod = inLastMod;
     action = inAction;
+    sortKey = new SortKey(docId, feedType, lastMod);
   }
 
   /**
@@ -263,20 +276,24 @@ public class SPDocument implements Document, Comparable<SPDocument> {
   }
 
   /**
-   * @return document properties
+   * @return document properties, in the order their names were first set in
+   *         the parent list. Changing the list does not change the document.
    */
   public ArrayList<Attribute> getAllAttrs() {
+    final ArrayList<Attribute> attrs =
+        new ArrayList<Attribute>(attrValues.length);
+    for (int i = 0; i < attrValues.length; i++) {
+      if (attrValues[i] != null) {
+        attrs.add(new Attribute(attrNames.getName(i),
+            (attrValues[i] == NULL_VALUE) ? null : attrValues[i]));
+      }
+    }
     return attrs;
   }
 
   // debug routine
   public void dumpAllAttrs() {
-    if (attrs == null) {
-      return;
-    }
-
-    for (Object element : attrs) {
-      final Attribute attr = (Attribute) element;
+    for (Attribute attr : getAllAttrs()) {
       System.out.println(attr.getName() + "=" + attr.getValue());
     }
   }
@@ -289,7 +306,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
    */
   public void setAttribute(final String key, final String value) {
     if (key != null) {
-      attrs.add(new Attribute(key, value));
+      putAttribute(key, value);
       if (key.equalsIgnoreCase(SPConstants.TITLE)) {
         title = value;
       }
@@ -301,10 +318,45 @@ public class SPDocument implements Document, Comparable<SPDocument> {
    */
   public void setAllAttributes(final List<Attribute> lstAttributes) {
     if (lstAttributes != null) {
-      attrs.addAll(lstAttributes);
+      for (Attribute attr : lstAttributes) {
+        putAttribute(attr.getName(), attr.getValue());
+      }
     }
   }
 
+  /**
+   * Keeps the value of an attribute, unless the attribute is already set.
+   * The names are shared with the other documents of the parent list, if
+   * it is known by then.
+   */
+  private void putAttribute(final String name, final Object value) {
+    if (attrNames == null) {
+      attrNames = (parentList == null)
+          ? new AttributeNames() : parentList.getItemAttributeNames();
+    }
+    final int index = attrNames.add(name);
+    if (index >= attrValues.length) {
+      attrValues = Arrays.copyOf(attrValues,
+          Math.max(index + 1, attrNames.size()));
+    }
+    if (attrValues[index] == null) {
+      attrValues[index] = (value == null) ? NULL_VALUE : value;
+    }
+  }
+
+  /**
+   * @return the value of an attribute, NULL_VALUE if its value is null, or
+   *         null if the attribute is not set
+   */
+  private Object getAttributeValue(final String name) {
+    if (attrNames == null || name == null) {
+      return null;
+    }
+    final int index = attrNames.indexOf(name);
+    return (index == -1 || index >= attrValues.length)
+        ? null : attrValues[index];
+  }
+
   /**
    * @return author of the document
    */
@@ -345,6 +397,36 @@ public class SPDocument implements Document, Comparable<SPDocument> {
     return false;
   }
 
+  /**
+   * The values compared by {@link SPDocument#compareTo} that would otherwise
+   * be computed from the last modified date and the ID of the documents on
+   * every comparison.
+   */
+  private static final class SortKey {
+    /** The last modified time, or Long.MIN_VALUE if there is none. */
+    final long lastModMillis;
+    /** Whether the original document ID is an integer. */
+    final boolean hasIntId;
+    /** The original document ID, if it is an integer. */
+    final int intId;
+
+    SortKey(final String docId, final FeedType feedType,
+        final Calendar lastMod) {
+      lastModMillis =
+          (null == lastMod) ? Long.MIN_VALUE : lastMod.getTimeInMillis();
+      boolean parsed = false;
+      int id = 0;
+      try {
+        id = Integer.parseInt(Util.getOriginalDocId(docId, feedType));
+        parsed = true;
+      } catch (final NumberFormatException e) {
+        // compareTo puts the document after the others.
+      }
+      hasIntId = parsed;
+      intId = id;
+    }
+  }
+
   /**
    * In case of SP2003, following fields are tried in order: lastModified, ID,
    * URL In case of SP2007, ID is used for ordering. Though, in case of
@@ -414,25 +496,20 @@ public class SPDocument implements Document, Comparable<SPDocument> {
         return 1;
       }
     } else {
-      comparison = lastMod.getTime().compareTo(doc.lastMod.getTime());
+      final long lastModMillis1 = sortKey.lastModMillis;
+      final long lastModMillis2 = doc.sortKey.lastModMillis;
+      comparison = (lastModMillis1 < lastModMillis2) ? -1
+          : ((lastModMillis1 == lastModMillis2) ? 0 : 1);
     }
 
     if (comparison == 0) {
-      final String tmpDocID1 = Util.getOriginalDocId(docId, feedType);
-      final String tmpDocID2 = Util.getOriginalDocId(doc.docId, doc.feedType);
-      int id1 = 0;
-      int id2 = 0;
-      try {
-        id1 = Integer.parseInt(tmpDocID1);
-      } catch (final Exception e) {
+      if (!sortKey.hasIntId) {
         return 1;
       }
-      try {
-        id2 = Integer.parseInt(tmpDocID2);
-      } catch (final Exception e) {
+      if (!doc.sortKey.hasIntId) {
         return -1;
       }
-      comparison = id1 - id2;
+      comparison = sortKey.intId - doc.sortKey.intId;
       if (comparison != 0) {
         return comparison;
       }
@@ -457,13 +534,8 @@ public class SPDocument implements Document, Comparable<SPDocument> {
    *  attribute name.
    */
   public String getMetaDataAttributeValue(final String strPropertyName) {
-    final Collator collator = Util.getCollator();
-    for (Attribute attr : getAllAttrs()) {
-      if (collator.equals(strPropertyName, attr.getName())) {
-        return attr.getValue().toString();
-      }
-    }
-    return null;
+    final Object value = getAttributeValue(strPropertyName);
+    return (value == null || value == NULL_VALUE) ? null : value.toString();
   }
 
   /**
@@ -483,10 +555,8 @@ public class SPDocument implements Document, Comparable<SPDocument> {
           + ". Skipping document [" + url
           + "] as DocumentType is ACL and PushAcls is false.");
     }
-    final Collator collator = Util.getCollator();
-    if (collator.equals(strPropertyName, SpiConstants.PROPNAME_CONTENT)) {
-      if (FeedType.CONTENT_FEED == getFeedType()
-          && ActionType.ADD.equals(getAction())) {
+    if (Util.collationEquals(strPropertyName, SpiConstants.PROPNAME_CONTENT)) {
+      if (hasContent() && ActionType.ADD.equals(getAction())) {
         synchronized (this) {
           if (content == null || content.isConsumed()) {
             content = downloadContents();
@@ -496,9 +566,8 @@ public class SPDocument implements Document, Comparable<SPDocument> {
               Value.getBinaryValue(contentStream));
         }
       }
-    } else if (collator.equals(strPropertyName, SpiConstants.PROPNAME_MIMETYPE)) {
-      if (FeedType.CONTENT_FEED == getFeedType()
-          && ActionType.ADD.equals(getAction())) {
+    } else if (Util.collationEquals(strPropertyName, SpiConstants.PROPNAME_MIMETYPE)) {
+      if (hasContent() && ActionType.ADD.equals(getAction())) {
         synchronized (this) {
           if (content == null || content.getContentType() == null) {
             content = downloadContents();
@@ -508,9 +577,9 @@ public class SPDocument implements Document, Comparable<SPDocument> {
               Value.getStringValue(contentType));
         }
       }
-    } else if (collator.equals(strPropertyName,
+    } else if (Util.collationEquals(strPropertyName,
         SPConstants.HTTP_STATUS_CODE)) {
-      if (FeedType.CONTENT_FEED == getFeedType()) {
+      if (hasContent()) {
         synchronized (this) {
           if (content == null) {
             content = downloadContents();
@@ -523,12 +592,12 @@ public class SPDocument implements Document, Comparable<SPDocument> {
           }
         }
       }
-    } else if (collator.equals(strPropertyName, SpiConstants.PROPNAME_SEARCHURL)) {
+    } else if (Util.collationEquals(strPropertyName, SpiConstants.PROPNAME_SEARCHURL)) {
       if (FeedType.CONTENT_FEED != getFeedType()) {
         // TODO Handle ACL feed here.
         return new SimpleProperty(Value.getStringValue(getUrl()));
       }
-    } else if (collator.equals(strPropertyName,
+    } else if (Util.collationEquals(strPropertyName,
             SpiConstants.PROPNAME_ACLINHERITANCETYPE)) {
       if (!isWebAppPolicyDoc() && parentUrl == null) {
         // Returning null as ACL information is not complete.
@@ -538,7 +607,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
       }
       return new SimpleProperty(Value.getStringValue(
               SpiConstants.AclInheritanceType.PARENT_OVERRIDES.toString()));
-    } else if (collator.equals(strPropertyName,
+    } else if (Util.collationEquals(strPropertyName,
             SpiConstants.PROPNAME_ACLINHERITFROM_DOCID)) {
       String parentUrlToSend = getParentUrl();
       if (parentUrlToSend == null) {
@@ -548,32 +617,32 @@ public class SPDocument implements Document, Comparable<SPDocument> {
         parentUrlToSend = parentUrlToSend + "|" + getParentId().toUpperCase();
       }
       return new SimpleProperty(Value.getStringValue(parentUrlToSend));
-    } else if (collator.equals(strPropertyName,
+    } else if (Util.collationEquals(strPropertyName,
         SpiConstants.PROPNAME_ACLINHERITFROM)) {
       String parentUrlToSend = getParentUrl();
       if (FeedType.CONTENT_FEED == getFeedType()) {
         return null;
       }
       return new SimpleProperty(Value.getStringValue(parentUrlToSend));
-    } else if (collator.equals(strPropertyName, SpiConstants.PROPNAME_FEEDTYPE)) {
+    } else if (Util.collationEquals(strPropertyName, SpiConstants.PROPNAME_FEEDTYPE)) {
       return new SimpleProperty(Value.getStringValue(feedType.toString()));
-    } else if (collator.equals(strPropertyName,
+    } else if (Util.collationEquals(strPropertyName,
         SpiConstants.PROPNAME_ACLINHERITFROM_FEEDTYPE)) {
       return new SimpleProperty(Value.getStringValue(feedType.toString()));
-    } else if (collator.equals(strPropertyName, SpiConstants.PROPNAME_DISPLAYURL)) {
+    } else if (Util.collationEquals(strPropertyName, SpiConstants.PROPNAME_DISPLAYURL)) {
       return new SimpleProperty(Value.getStringValue(displayUrl));
-    } else if (collator.equals(strPropertyName, SPConstants.PARENT_WEB_TITLE)) {
+    } else if (Util.collationEquals(strPropertyName, SPConstants.PARENT_WEB_TITLE)) {
       return new SimpleProperty(Value.getStringValue(getParentWebTitle()));
-    } else if (collator.equals(strPropertyName, SpiConstants.PROPNAME_DOCID)) {
+    } else if (Util.collationEquals(strPropertyName, SpiConstants.PROPNAME_DOCID)) {
       return new SimpleProperty(Value.getStringValue(getDocId()));
-    } else if (collator.equals(strPropertyName, SpiConstants.PROPNAME_LASTMODIFIED)) {
+    } else if (Util.collationEquals(strPropertyName, SpiConstants.PROPNAME_LASTMODIFIED)) {
       return new SimpleProperty(Value.getDateValue(getLastMod()));
-    } else if (collator.equals(strPropertyName, SPConstants.LIST_GUID)) {
+    } else if (Util.collationEquals(strPropertyName, SPConstants.LIST_GUID)) {
       if (null != getParentList()) {
         return new SimpleProperty(Value.getStringValue(
             getParentList().getPrimaryKey()));
       }
-    } else if (collator.equals(strPropertyName, SPConstants.SPAUTHOR)) {
+    } else if (Util.collationEquals(strPropertyName, SPConstants.SPAUTHOR)) {
       return new SimpleProperty(Value.getStringValue(getAuthor()));
     } else if (strPropertyName.equals(SPConstants.OBJECT_TYPE)) {
       return new SimpleProperty(Value.getStringValue(getObjType()));
@@ -605,26 +674,25 @@ public class SPDocument implements Document, Comparable<SPDocument> {
       // maintain a map of all the properties with key as the prop name. This
       // will also eliminate maintaining multiple member attributes in this
       // class. All the attribute will be there in a common map.
-      for (final Iterator<Attribute> iter = getAllAttrs().iterator(); iter.hasNext();) {
-        final Attribute attr = iter.next();
-        if (collator.equals(strPropertyName, attr.getName())) {
-          String strAttrValue = attr.getValue().toString();
-          // Current approach is to parse field values for ;# characters.
-          // TODO Utilize SharePoint Field meta-data and process values
-          // for only columns with SharePoint Field type as 
-          // "LookupMulti" or "MultiChoice"
-          List<Value> valuesToPass;
-          if (null != strAttrValue) {
-            List<String> values =  Util.processMultiValueMetadata(strAttrValue);
-            valuesToPass = new ArrayList<Value>();
-            for (String str : values) {
-              valuesToPass.add(Value.getStringValue(str));
-            }
-          } else {
-            valuesToPass = null;          
+      final Object attrValue = getAttributeValue(strPropertyName);
+      if (attrValue != null) {
+        String strAttrValue =
+            (attrValue == NULL_VALUE) ? null : attrValue.toString();
+        // Current approach is to parse field values for ;# characters.
+        // TODO Utilize SharePoint Field meta-data and process values
+        // for only columns with SharePoint Field type as 
+        // "LookupMulti" or "MultiChoice"
+        List<Value> valuesToPass;
+        if (null != strAttrValue) {
+          List<String> values =  Util.processMultiValueMetadata(strAttrValue);
+          valuesToPass = new ArrayList<Value>();
+          for (String str : values) {
+            valuesToPass.add(Value.getStringValue(str));
           }
-          return new SimpleProperty(valuesToPass);
+        } else {
+          valuesToPass = null;          
         }
+        return new SimpleProperty(valuesToPass);
       }
     }
 
@@ -721,9 +789,10 @@ public class SPDocument implements Document, Comparable<SPDocument> {
     if (!isEmptyDocument()) {
       // Add "extra" metadata fields, including those added by user to the
       // documentMetadata List for matching against patterns
-      for (final Iterator<Attribute> iter = getAllAttrs().iterator(); iter.hasNext();) {
-        final Attribute attr = iter.next();
-        candidates.add(attr.getName().toString());
+      for (int i = 0; i < attrValues.length; i++) {
+        if (attrValues[i] != null) {
+          candidates.add(attrNames.getName(i));
+        }
       }
       if (null != title) {
         names.add(SpiConstants.PROPNAME_TITLE);
@@ -750,7 +819,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
       List<Pattern> excludedMetadataPatterns) {
     boolean flag = false;
     for (Pattern pattern : excludedMetadataPatterns) {
-      if (metadataName.matches(pattern.pattern())) {
+      if (pattern.matcher(metadataName).matches()) {
         flag = true;
         break;
       }
@@ -779,6 +848,17 @@ public class SPDocument implements Document, Comparable<SPDocument> {
    */
   public void setDocId(final String docId) {
     this.docId = docId;
+    sortKey = new SortKey(docId, feedType, lastMod);
+  }
+
+  /**
+   * @return true if the content of this document is sent. ACL records,
+   *         which only update the permissions of a document, are sent
+   *         without their content.
+   */
+  private boolean hasContent() {
+    return FeedType.CONTENT_FEED == getFeedType()
+        && documentType != DocumentType.ACL;
   }
 
   /**
@@ -826,6 +906,10 @@ public class SPDocument implements Document, Comparable<SPDocument> {
       final HttpMethodBase method;     
       try {
         method = new GetMethod(docURL);
+        if (sharepointClientContext.isUseCompression()) {
+          method.setRequestHeader(SPConstants.ACCEPT_ENCODING_HEADER,
+              CompressionHandler.CONTENT_ACCEPT_ENCODING);
+        }
         responseCode = sharepointClientContext.checkConnectivity(docURL, method);
         if (responseCode != 200) {
           LOGGER.warning("Unable to get contents for document '" + getUrl() +
@@ -835,6 +919,14 @@ public class SPDocument implements Document, Comparable<SPDocument> {
         }
 
         InputStream contentStream = method.getResponseBodyAsStream();
+        Header contentEncoding =
+            method.getResponseHeader(SPConstants.CONTENT_ENCODING_HEADER);
+        if (contentStream != null && contentEncoding != null
+            && sharepointClientContext.isUseCompression()) {
+          // Decompressed as it is read.
+          contentStream = CompressionHandler.decompress(contentStream,
+              contentEncoding.getValue());
+        }
         if (contentStream != null) {
           docContentStream =
               new FilterInputStream(contentStream) {
@@ -14,9 +14,11 @@
 
 package com.google.enterprise.connector.sharepoint.spiimpl;
 
+import com.google.enterprise.connector.sharepoint.client.AliasMapper;
 import com.google.enterprise.connector.sharepoint.client.SPConstants;
 import com.google.enterprise.connector.sharepoint.client.Util;
 import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.dao.UserDataStoreDAO;
 import com.google.enterprise.connector.sharepoint.state.GlobalState;
 import com.google.enterprise.connector.sharepoint.state.ListState;
 import com.google.enterprise.connector.spi.Document;
@@ -47,11 +49,13 @@ public class SPDocumentList implements DocumentList {
   private boolean bFQDNConversion = false;// FQDN conversion flag
 
   private Map<String, String> aliasMap = null;
+  private AliasMapper aliasMapper = null;
   // Holds the index position of the doc last sent to CM
   private int docsFedIndexPosition = 0;
 
   private boolean reWriteDisplayUrlUsingAliasMappingRules = true;
   private boolean reWriteRecordUrlUsingAliasMappingRules;
+  private UserDataStoreDAO userDataStoreDAO;
 
   /**
    * @param inDocuments List of {@link SPDocument} to be sent to GSA
@@ -179,7 +183,7 @@ public class SPDocumentList implements DocumentList {
   private void reWriteUrlsUsingAliasMappingRules(final SPDocument spDocument) {
     if (reWriteDisplayUrlUsingAliasMappingRules) {
       try {
-        spDocument.setDisplayUrl(Util.doAliasMapping(spDocument.getDisplayUrl(), aliasMap, bFQDNConversion));
+        spDocument.setDisplayUrl(Util.doAliasMapping(spDocument.getDisplayUrl(), aliasMapper, bFQDNConversion));
       } catch (Exception e) {
         LOGGER.log(Level.WARNING, "Failed to rewrite document's display Url [ "
             + spDocument.getDisplayUrl() + " ] as per alias mapping rule. ", e);
@@ -188,14 +192,14 @@ public class SPDocumentList implements DocumentList {
 
     if (reWriteRecordUrlUsingAliasMappingRules) {
       try {
-        spDocument.setUrl(Util.doAliasMapping(spDocument.getUrl(), aliasMap, bFQDNConversion));
+        spDocument.setUrl(Util.doAliasMapping(spDocument.getUrl(), aliasMapper, bFQDNConversion));
       } catch (Exception e) {
         LOGGER.log(Level.WARNING, "Failed to rewrite document's record Url [ "
             + spDocument.getUrl() + " ] as per alias mapping rule. ", e);
       }
       try {
         spDocument.setParentUrl(Util.doAliasMapping(spDocument.getParentUrl(),
-                aliasMap, bFQDNConversion));
+                aliasMapper, bFQDNConversion));
       } catch (Exception e) {
         LOGGER.log(Level.WARNING, "Failed to rewrite document's parent URL [ "
                   + spDocument.getParentUrl() 
@@ -223,10 +227,27 @@ public class SPDocumentList implements DocumentList {
           + "from DocumentList.");     
       return SPConstants.CHECKPOINT_VALUE;
     }
+    if (null != userDataStoreDAO) {
+      // The memberships of the ACLs fed must be in the user data store
+      // before the state says the documents are done. If some failed to be
+      // written, the checkpoint fails and the documents are sent again.
+      userDataStoreDAO.flush();
+    }
+    // The documents of a list are together in the document list, so the crawl
+    // queue of each list is updated once for all its documents.
+    int listStart = 0;
     for (int i = 0; i < docsFedIndexPosition; i++) {
-      // Process the liststate and its crawl queue for the given doc which
-      // has been sent to CM and fed to GSA successfully
-      processListStateforCheckPoint(documents.get(i));
+      // Process the liststate for the given doc which has been sent to CM
+      // and fed to GSA successfully
+      final SPDocument spDocument = documents.get(i);
+      processListStateforCheckPoint(spDocument);
+      final ListState listState = spDocument.getParentList();
+      if (i + 1 == docsFedIndexPosition
+          || documents.get(i + 1).getParentList() != listState) {
+        processCrawlQueueForCheckPoint(listState,
+            documents.subList(listStart, i + 1));
+        listStart = i + 1;
+      }
     }
     doCheckPoint();
     globalState.saveState(); // snapshot it all to disk
@@ -253,6 +274,16 @@ public class SPDocumentList implements DocumentList {
   public void setAliasMap(final Map<String, String> inAliasMap) {
     if (inAliasMap != null) {
       aliasMap = inAliasMap;
+      aliasMapper = new AliasMapper(inAliasMap);
+    }
+  }
+
+  /**
+   * @param inAliasMapper the compiled alias mapping rules
+   */
+  public void setAliasMapper(final AliasMapper inAliasMapper) {
+    if (inAliasMapper != null) {
+      aliasMapper = inAliasMapper;
     }
   }
 
@@ -278,9 +309,6 @@ public class SPDocumentList implements DocumentList {
    * </li>
    * <li>If the action was ADD mark the current doc as the doc from where the
    * connector should start traversing in next time</li>
-   * <li>If the current document is the last document sent from its list, it
-   * checks if any more docs are pending</li>
-   * <li>The document is removed from the list's crawl queue</li>
    * </ul>
    * </p>
    *
@@ -305,7 +333,9 @@ public class SPDocumentList implements DocumentList {
         listState.removeExtraID(currentID);
       }
 
-      boolean isCurrentDocForList = Util.getCollator().equals(listState.getPrimaryKey(), currentID);
+      // The document of a list has the primary key of the list as its ID.
+      boolean isCurrentDocForList =
+          listState.getPrimaryKey().equals(currentID);
 
       // A delete feed has being sent from a list
       // Add it to the delete cache so that same delete feed is
@@ -338,6 +368,7 @@ public class SPDocumentList implements DocumentList {
       if (FeedType.CONTENT_FEED == spDocument.getFeedType()) {
         // Remove document id from delete cache if item is restored back.
         listState.removeFromDeleteCache(currentID);
+        listState.addToFedIDs(currentID);
       }
       if (!spDocument.isForAclChange()) {
         listState.setLastDocProcessed(spDocument);
@@ -348,16 +379,26 @@ public class SPDocumentList implements DocumentList {
         }
       }
     }
+  }
 
+  /**
+   * Removes the documents sent from a list from its crawl queue and, if no
+   * more docs are pending, commits the ACL crawl status and change token of
+   * the list.
+   *
+   * @param listState the list the documents are from
+   * @param spDocuments the documents sent from the list, in order
+   */
+  private void processCrawlQueueForCheckPoint(final ListState listState,
+      final List<SPDocument> spDocuments) {
     if (LOGGER.isLoggable(Level.FINER)) {
-      LOGGER.log(Level.FINER, "Document with DocID [ " + spDocument.getDocId()
-          + " ] from List URL [ " + listState.getListURL()
-          + " ] is being removed from crawl queue");
+      LOGGER.log(Level.FINER, spDocuments.size() + " documents from List URL [ "
+          + listState.getListURL() + " ] are being removed from crawl queue");
     }
-    // Remove the document from the crawl queue. No need to remove the
+    // Remove the documents from the crawl queue. No need to remove the
     // documents from DocumentList as the whole list is discarded by the CM
     // at the completion of this traversal.
-    listState.removeDocFromCrawlQueue(spDocument);
+    listState.removeDocsFromCrawlQueue(spDocuments);
 
     if (listState.isCrawlQueueEmpty()) {
       listState.commitAclCrawlStatus();
@@ -431,6 +472,14 @@ public class SPDocumentList implements DocumentList {
     this.reWriteRecordUrlUsingAliasMappingRules = reWriteRecordUrlUsingAliasMappingRules;
   }
 
+  /**
+   * @param userDataStoreDAO the DAO whose pending membership changes are
+   *          written at checkpoint; may be null
+   */
+  public void setUserDataStoreDAO(UserDataStoreDAO userDataStoreDAO) {
+    this.userDataStoreDAO = userDataStoreDAO;
+  }
+
   @Override
   public String toString() {
     StringBuffer msg = new StringBuffer(" SPDocumentList for "
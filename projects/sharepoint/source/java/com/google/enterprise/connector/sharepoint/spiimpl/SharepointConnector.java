@@ -20,6 +20,7 @@ import com.google.enterprise.connector.adgroups.AdGroupsConnector;
 import com.google.enterprise.connector.sharepoint.client.AclHelper;
 import com.google.enterprise.connector.sharepoint.client.SPConstants;
 import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.client.ShardAssignment;
 import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
 import com.google.enterprise.connector.sharepoint.client.Util;
 import com.google.enterprise.connector.sharepoint.dao.ConnectorNamesDAO;
@@ -31,6 +32,7 @@ import com.google.enterprise.connector.sharepoint.ldap.LdapConstants.Method;
 import com.google.enterprise.connector.sharepoint.ldap.UserGroupsService.LdapConnectionSettings;
 import com.google.enterprise.connector.sharepoint.social.SharepointSocialConnector;
 import com.google.enterprise.connector.sharepoint.social.UserProfileServiceFactory;
+import com.google.enterprise.connector.sharepoint.state.WebSchedulingPolicy;
 import com.google.enterprise.connector.sharepoint.wsclient.client.ClientFactory;
 import com.google.enterprise.connector.spi.Connector;
 import com.google.enterprise.connector.spi.ConnectorPersistentStore;
@@ -61,6 +63,7 @@ public class SharepointConnector implements Connector,
   private SharepointClientContext sharepointClientContext = null;
 
   private ClientFactory clientFactory;
+  private WebSchedulingPolicy webSchedulingPolicy;
 
   private String sharepointUrl;
   private String kdcserver;
@@ -94,6 +97,14 @@ public class SharepointConnector implements Connector,
   private int largeACLThreshold = 500;
   /** Batch Size for SP Group Resolution. **/
   private int groupResolutionBatchSize = 5000; 
+  private int groupResolutionThreads = 4;
+  private int crawlInfoFetchThreads = 4;
+  private int crawlInfoTimeToLive = 600;
+  private int personalSiteScanThreads = 4;
+  private boolean useSiteChangeLog = false;
+  private boolean useCompression = false;
+  private int shardIndex = 0;
+  private int shardCount = 1;
   private int webServiceTimeOut = 300000;
   private String ldapServerHostAddress;
   private String portNumber;
@@ -114,6 +125,10 @@ public class SharepointConnector implements Connector,
   private AdGroupsConnector adGroupsConnector;
   private boolean oldLdapBehavior = false;
   private int userProfileFullTraversalInterval = 1;
+  private int userProfileFetchThreads = 4;
+  private int userProfilePrefetchSize = 100;
+  private boolean useUserDataStoreIndex = false;
+  private int userDataStoreWriteBehindSize = 10000;
 
   /**
    * Describes whether user profiles are fetched.
@@ -158,6 +173,25 @@ public class SharepointConnector implements Connector,
     this.clientFactory = clientFactory;
   }
 
+  /**
+   * Returns the policy deciding the order in which the webs are crawled.
+   *
+   * @return the web scheduling policy, or null for the default policy
+   */
+  public WebSchedulingPolicy getWebSchedulingPolicy() {
+    return webSchedulingPolicy;
+  }
+
+  /**
+   * Sets the policy deciding the order in which the webs are crawled.
+   *
+   * @param webSchedulingPolicy the web scheduling policy
+   */
+  public void setWebSchedulingPolicy(
+      final WebSchedulingPolicy webSchedulingPolicy) {
+    this.webSchedulingPolicy = webSchedulingPolicy;
+  }
+
   /**
    * sets the FQDNConversion parameter.
    *
@@ -498,6 +532,24 @@ public class SharepointConnector implements Connector,
     sharepointClientContext.setLargeACLThreshold(this.largeACLThreshold);
     sharepointClientContext.setGroupResolutionBatchSize(
         this.groupResolutionBatchSize);
+    sharepointClientContext.setGroupResolutionThreads(
+        this.groupResolutionThreads);
+    sharepointClientContext.setCrawlInfoFetchThreads(
+        this.crawlInfoFetchThreads);
+    sharepointClientContext.setCrawlInfoTimeToLive(this.crawlInfoTimeToLive);
+    sharepointClientContext.setPersonalSiteScanThreads(
+        this.personalSiteScanThreads);
+    sharepointClientContext.setUseSiteChangeLog(this.useSiteChangeLog);
+    sharepointClientContext.setUseCompression(this.useCompression);
+    if (null != this.webSchedulingPolicy) {
+      sharepointClientContext.setWebSchedulingPolicy(this.webSchedulingPolicy);
+    }
+    try {
+      sharepointClientContext.setShardAssignment(
+          new ShardAssignment(this.shardIndex, this.shardCount));
+    } catch (IllegalArgumentException e) {
+      throw new SharepointException(e.getMessage(), e);
+    }
 
     if (!oldLdapBehavior) {
       adGroupsConnector = new AdGroupsConnector();
@@ -512,6 +564,10 @@ public class SharepointConnector implements Connector,
     }
     sharepointClientContext.setUserProfileFullTraversalInterval(
         this.userProfileFullTraversalInterval);
+    sharepointClientContext.setUserProfileFetchThreads(
+        this.userProfileFetchThreads);
+    sharepointClientContext.setUserProfilePrefetchSize(
+        this.userProfilePrefetchSize);
   }
 
   /** This method is only used for testing. */
@@ -640,6 +696,8 @@ public class SharepointConnector implements Connector,
       userDataStoreDAO = new UserDataStoreDAO(localDatabseImpl.getDataSource(),
           queryProvider, userGroupMembershipRowMapper);
       LOGGER.config("DAO for UserDataStore created successfully");
+      userDataStoreDAO.setUseMembershipIndex(useUserDataStoreIndex);
+      userDataStoreDAO.setWriteBehindSize(userDataStoreWriteBehindSize);
     } catch (SharepointException se) {
       LOGGER.log(Level.WARNING, "Failed to create UserDataStoreDAO object. ",
           se);
@@ -914,6 +972,14 @@ public class SharepointConnector implements Connector,
     if (adGroupsConnector != null) {
         adGroupsConnector.shutdown();
     }
+    if (userDataStoreDAO != null) {
+      try {
+        userDataStoreDAO.close();
+      } catch (SharepointException e) {
+        LOGGER.log(Level.WARNING,
+            "Failed to write the pending user data store changes.", e);
+      }
+    }
   }
 
   /*
@@ -1012,6 +1078,100 @@ public class SharepointConnector implements Connector,
     this.groupResolutionBatchSize = groupResolutionBatchSize;
   }
 
+  /**
+   * @return the number of SP groups resolution calls made concurrently.
+   */
+  public int getGroupResolutionThreads() {
+    return groupResolutionThreads;
+  }
+
+  public void setGroupResolutionThreads(int groupResolutionThreads) {
+    this.groupResolutionThreads = groupResolutionThreads;
+  }
+
+  /**
+   * @return the number of web and list crawl info calls made concurrently.
+   */
+  public int getCrawlInfoFetchThreads() {
+    return crawlInfoFetchThreads;
+  }
+
+  public void setCrawlInfoFetchThreads(int crawlInfoFetchThreads) {
+    this.crawlInfoFetchThreads = crawlInfoFetchThreads;
+  }
+
+  /**
+   * @return the number of seconds the web and list crawl info is used before
+   *         it is fetched again.
+   */
+  public int getCrawlInfoTimeToLive() {
+    return crawlInfoTimeToLive;
+  }
+
+  public void setCrawlInfoTimeToLive(int crawlInfoTimeToLive) {
+    this.crawlInfoTimeToLive = crawlInfoTimeToLive;
+  }
+
+  /**
+   * @return the number of threads reading user profiles in parallel to
+   *         discover personal sites.
+   */
+  public int getPersonalSiteScanThreads() {
+    return personalSiteScanThreads;
+  }
+
+  public void setPersonalSiteScanThreads(int personalSiteScanThreads) {
+    this.personalSiteScanThreads = personalSiteScanThreads;
+  }
+
+  /**
+   * @return true if webs with no changes in the change log of their site
+   *         collection are skipped.
+   */
+  public boolean isUseSiteChangeLog() {
+    return useSiteChangeLog;
+  }
+
+  public void setUseSiteChangeLog(boolean useSiteChangeLog) {
+    this.useSiteChangeLog = useSiteChangeLog;
+  }
+
+  /**
+   * @return true if compressed web service responses and document contents
+   *         are accepted.
+   */
+  public boolean isUseCompression() {
+    return useCompression;
+  }
+
+  public void setUseCompression(boolean useCompression) {
+    this.useCompression = useCompression;
+  }
+
+  /**
+   * @return the shard of the site collections crawled by this connector
+   *         instance, from 0 to shardCount - 1.
+   */
+  public int getShardIndex() {
+    return shardIndex;
+  }
+
+  public void setShardIndex(int shardIndex) {
+    this.shardIndex = shardIndex;
+  }
+
+  /**
+   * @return the number of connector instances sharing the site collections
+   *         of the farm.
+   */
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  public void setShardCount(int shardCount) {
+    this.shardCount = shardCount;
+  }
+
   public int getUserProfileFullTraversalInterval() {
     return userProfileFullTraversalInterval;
   }
@@ -1020,4 +1180,45 @@ public class SharepointConnector implements Connector,
       int userProfileFullTraversalInterval) {
     this.userProfileFullTraversalInterval = userProfileFullTraversalInterval;
   }
+
+  public int getUserProfileFetchThreads() {
+    return userProfileFetchThreads;
+  }
+
+  public void setUserProfileFetchThreads(int userProfileFetchThreads) {
+    this.userProfileFetchThreads = userProfileFetchThreads;
+  }
+
+  public int getUserProfilePrefetchSize() {
+    return userProfilePrefetchSize;
+  }
+
+  public void setUserProfilePrefetchSize(int userProfilePrefetchSize) {
+    this.userProfilePrefetchSize = userProfilePrefetchSize;
+  }
+
+  /**
+   * @return true indicates the user data store memberships are looked up in
+   *         an in-memory index instead of the database.
+   */
+  public boolean isUseUserDataStoreIndex() {
+    return useUserDataStoreIndex;
+  }
+
+  public void setUseUserDataStoreIndex(boolean useUserDataStoreIndex) {
+    this.useUserDataStoreIndex = useUserDataStoreIndex;
+  }
+
+  /**
+   * @return the number of user data store memberships queued to be written
+   *         on a background thread, or 0 if they are written immediately.
+   */
+  public int getUserDataStoreWriteBehindSize() {
+    return userDataStoreWriteBehindSize;
+  }
+
+  public void setUserDataStoreWriteBehindSize(
+      int userDataStoreWriteBehindSize) {
+    this.userDataStoreWriteBehindSize = userDataStoreWriteBehindSize;
+  }
 }
@@ -17,6 +17,7 @@ package com.google.enterprise.connector.sharepoint.spiimpl;
 import static com.google.common.base.Charsets.UTF_8;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteStreams;
@@ -64,6 +65,13 @@ import java.util.MissingResourceException;
 import java.util.ResourceBundle;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -167,6 +175,12 @@ public class SharepointConnectorType implements ConnectorType {
    */
   private ClientFactory clientFactory;
 
+  /** The maximum web service time-out of each connectivity check, in ms. */
+  private int checkTimeout = SPConstants.VALIDATION_CHECK_TIMEOUT;
+
+  /** The time the connectivity checks are given to complete, in ms. */
+  private long validationDeadline = SPConstants.VALIDATION_DEADLINE;
+
   /**
    * Returns the client factory for the web services.
    *
@@ -185,6 +199,20 @@ public class SharepointConnectorType implements ConnectorType {
     this.clientFactory = clientFactory;
   }
 
+  /**
+   * Sets the time-outs of the connectivity checks of the configuration.
+   *
+   * @param checkTimeout the maximum web service time-out of each check, in ms
+   * @param validationDeadline the time the checks are given to complete, in
+   *          ms
+   */
+  @VisibleForTesting
+  void setValidationTimeouts(final int checkTimeout,
+      final long validationDeadline) {
+    this.checkTimeout = checkTimeout;
+    this.validationDeadline = validationDeadline;
+  }
+
   /**
    * Makes a config form snippet using the keys (in the supplied order) and, if
    * passed a non-null config map, pre-filling values in from that map.
@@ -200,7 +228,7 @@ public class SharepointConnectorType implements ConnectorType {
     for (String key : CONFIG_LABELS) {
       String configKey = rb.getString(key);
 
-      boolean isError = (ed != null) && key.equals(ed.error_key);
+      boolean isError = (ed != null) && ed.errors.containsKey(key);
       appendStartRow(buf, key, configKey, isError);
 
       if (key.equals(SPConstants.ALIAS_MAP)) {
@@ -1119,6 +1147,8 @@ public class SharepointConnectorType implements ConnectorType {
     // with.
     convertCheckBoxes(configData);
 
+    // The fields are all checked, so that every invalid field is reported.
+    boolean valid = true;
     for (String key : CONFIG_FIELDS) {
       final String val = configData.get(key);
 
@@ -1127,15 +1157,14 @@ public class SharepointConnectorType implements ConnectorType {
             || (val.length() == 0)) {
           ed.set(key, rb.getString(SPConstants.REQ_FIELDS_MISSING)
               + SPConstants.SPACE + rb.getString(key));
-          return false;
+          valid = false;
         } else if (key.equals(SPConstants.SHAREPOINT_URL)) {
           if (!isURL(val)) {
             ed.set(key, rb.getString(SPConstants.MALFORMED_URL));
-            return false;
-          }
-          if (!isInFQDN(val)) {
+            valid = false;
+          } else if (!isInFQDN(val)) {
             ed.set(key, rb.getString(SPConstants.REQ_FQDN_URL));
-            return false;
+            valid = false;
           }
         } else if (key.equals(SPConstants.INCLUDED_URLS)) {
           final Set<String> invalidSet = validatePatterns(val);
@@ -1144,7 +1173,7 @@ public class SharepointConnectorType implements ConnectorType {
                 SPConstants.INCLUDED_URLS,
                 rb.getString(SPConstants.INVALID_INCLUDE_PATTERN)
                 + invalidSet.toString());
-            return false;
+            valid = false;
           }
         }
       } else if (key.equals(SPConstants.ALIAS_MAP) && (val != null)
@@ -1154,7 +1183,7 @@ public class SharepointConnectorType implements ConnectorType {
         if (message != null) {
           ed.set(SPConstants.ALIAS_MAP, rb.getString(message) + " "
               + wrongEntries);
-          return false;
+          valid = false;
         }
       } else if (key.equals(SPConstants.EXCLUDED_URLS)) {
         final Set<String> invalidSet = validatePatterns(val);
@@ -1164,7 +1193,7 @@ public class SharepointConnectorType implements ConnectorType {
               rb.getString(SPConstants.INVALID_EXCLUDE_PATTERN)
               + invalidSet.toString());
           LOGGER.warning("Invalid Exclude pattern:" + val);
-          return false;
+          valid = false;
         }
       } else if (key.equals(SPConstants.AUTHORIZATION)) {
         feedType = FeedType.getFeedType(val);
@@ -1174,7 +1203,7 @@ public class SharepointConnectorType implements ConnectorType {
         if (!Util.isFQDN(kdcServer)) {
           ed.set(SPConstants.KDC_SERVER,
               rb.getString(SPConstants.KERBEROS_KDC_HOST_BLANK));
-          return false;
+          valid = false;
         } else {
           try {
             Integer.parseInt(kdcServer.substring(0, kdcServer.indexOf(".")));
@@ -1184,7 +1213,7 @@ public class SharepointConnectorType implements ConnectorType {
           if (!isFQDN && !validateIPAddress(kdcServer)) {
             ed.set(SPConstants.KDC_SERVER,
                 rb.getString(SPConstants.KERBEROS_KDC_HOST_BLANK));
-            return false;
+            valid = false;
           }
         }
       } else if (key.equals(SPConstants.SOCIAL_OPTION)) {
@@ -1197,9 +1226,8 @@ public class SharepointConnectorType implements ConnectorType {
             LOGGER.warning("Invalid social option " + val);
             ed.set(SPConstants.SOCIAL_OPTION, 
                 rb.getString(SPConstants.SOCIAL_OPTION_INVALID));
-            return false;
-          }
-          if (!option.equalsIgnoreCase(SPConstants.SOCIAL_OPTION_NO)) {
+            valid = false;
+          } else if (!option.equalsIgnoreCase(SPConstants.SOCIAL_OPTION_NO)) {
             // Validate collection name is well-formed.
             String collectionName = configData.get(
                 SPConstants.SOCIAL_USER_PROFILE_COLLECTION);
@@ -1207,7 +1235,7 @@ public class SharepointConnectorType implements ConnectorType {
                 collectionName))) {
               ed.set(SPConstants.SOCIAL_USER_PROFILE_COLLECTION, 
                   rb.getString(SPConstants.SOCIAL_COLLECTION_INVALID));
-              return false;
+              valid = false;
             }
           }
         }
@@ -1219,6 +1247,9 @@ public class SharepointConnectorType implements ConnectorType {
         && ((username.indexOf("@") != -1) || (username.indexOf("\\") != -1))
         && (domain != null) && !domain.equals(SPConstants.BLANK_STRING)) {
       ed.set(SPConstants.USERNAME, rb.getString(SPConstants.DUPLICATE_DOMAIN));
+      valid = false;
+    }
+    if (!valid) {
       return false;
     }
 
@@ -1236,75 +1267,192 @@ public class SharepointConnectorType implements ConnectorType {
       ed.set(null, rb.getString(SPConstants.SHAREPOINT_URL) + " " + status);
       return false;
     }
-    status = null;
+    return validateConnectivity(feedType, ed);
+  }
 
+  /**
+   * Runs the checks that connect to SharePoint, the Google Services for
+   * SharePoint and the LDAP server at the same time, each with its own copy
+   * of the client context and a web service time-out of at most
+   * {@link #checkTimeout}. Every failing check is reported, in the order
+   * below; a check still running after {@link #validationDeadline} is
+   * reported as timed out.
+   *
+   * @return true if all the checks passed
+   */
+  private boolean validateConnectivity(final FeedType feedType,
+      final ErrorDignostics ed) {
+    final List<ConnectivityCheck> checks = new ArrayList<ConnectivityCheck>();
     if (FeedType.CONTENT_FEED == feedType) {
-      status = checkGSConnectivity(sharepointUrl);
-      if (!SPConstants.CONNECTIVITY_SUCCESS.equalsIgnoreCase(status)) {
-        ed.set(null,
-            rb.getString(SPConstants.BULKAUTH_ERROR_CRAWL_URL)
-            + rb.getString(SPConstants.REASON) + status);
-        return false;
-      }
+      checks.add(new ConnectivityCheck(null,
+          SPConstants.BULKAUTH_ERROR_CRAWL_URL) {
+        @Override
+        void check(SharepointClientContext ctx, ErrorDignostics checkEd) {
+          String status = checkGSConnectivity(ctx, sharepointUrl);
+          if (!SPConstants.CONNECTIVITY_SUCCESS.equalsIgnoreCase(status)) {
+            checkEd.set(key, getMessage(status));
+          }
+        }
+      });
     }
-    status = null;
+    checks.add(new ConnectivityCheck(null, SPConstants.CANNOT_CONNECT) {
+      @Override
+      void check(SharepointClientContext ctx, ErrorDignostics checkEd) {
+        String status = checkConnectivity(ctx, sharepointUrl);
+        if (!SPConstants.CONNECTIVITY_SUCCESS.equalsIgnoreCase(status)) {
+          checkEd.set(key, getMessage(status));
+        }
+      }
+    });
+    checks.add(new ConnectivityCheck(SPConstants.LDAP_SERVER_HOST_ADDRESS,
+        SPConstants.LDAP_CONNECTVITY_ERROR) {
+      @Override
+      void check(SharepointClientContext ctx, ErrorDignostics checkEd) {
+        validateFeedAclsRelatedHtmlControls(checkEd);
+      }
 
-    status = checkConnectivity(sharepointUrl);
-    if (!SPConstants.CONNECTIVITY_SUCCESS.equalsIgnoreCase(status)) {
-      ed.set(null,
-          rb.getString(SPConstants.CANNOT_CONNECT)
-          + rb.getString(SPConstants.REASON) + status);
-      return false;
+      @Override
+      String getMessage(String reason) {
+        // The message already ends with its own reason label.
+        return rb.getString(messageKey) + SPConstants.SPACE + reason;
+      }
+    });
+    if (!Strings.isNullOrEmpty(mySiteUrl)) {
+      checks.add(new ConnectivityCheck(SPConstants.MYSITE_BASE_URL,
+          SPConstants.CANNOT_CONNECT_MYSITE) {
+        @Override
+        void check(SharepointClientContext ctx, ErrorDignostics checkEd) {
+          checkMySite(ctx, feedType, checkEd);
+        }
+      });
     }
-    status = null;
 
-    if (!validateFeedAclsRelatedHtmlControls(ed)) {
-      return false;
+    final ExecutorService executor =
+        Executors.newFixedThreadPool(checks.size());
+    try {
+      final List<Future<ErrorDignostics>> futures = executor.invokeAll(
+          checks, validationDeadline, TimeUnit.MILLISECONDS);
+      for (int i = 0; i < checks.size(); i++) {
+        final ConnectivityCheck check = checks.get(i);
+        try {
+          ed.addAll(futures.get(i).get());
+        } catch (CancellationException e) {
+          LOGGER.warning("Validation check for [" + check.key
+              + "] did not complete in " + validationDeadline + " ms.");
+          ed.set(check.key, check.getMessage(MessageFormat.format(
+              rb.getString(SPConstants.CHECK_TIMED_OUT),
+              validationDeadline / 1000)));
+        } catch (ExecutionException e) {
+          LOGGER.log(Level.WARNING, "Validation check for [" + check.key
+              + "] failed.", e.getCause());
+          ed.set(check.key,
+              check.getMessage(e.getCause().getLocalizedMessage()));
+        }
+      }
+    } catch (InterruptedException e) {
+      LOGGER.warning("Interrupted while validating the configuration.");
+      Thread.currentThread().interrupt();
+      ed.set(null, rb.getString(SPConstants.CANNOT_CONNECT));
+    } finally {
+      executor.shutdownNow();
+    }
+    return ed.errors.isEmpty();
+  }
+
+  /**
+   * Checks the MySite URL, if the SharePoint site is a SharePoint 2007 or
+   * later site.
+   */
+  private void checkMySite(final SharepointClientContext ctx,
+      final FeedType feedType, final ErrorDignostics ed) {
+    final SPType SPVersion = ctx.checkSharePointType(sharepointUrl);
+    if (SPType.SP2007 != SPVersion) {
+      return;
+    }
+    if (!isURL(mySiteUrl)) {
+      ed.set(SPConstants.MYSITE_BASE_URL,
+          rb.getString(SPConstants.MALFORMED_MYSITE_URL));
+      return;
+    }
+    if (!isInFQDN(mySiteUrl)) {
+      ed.set(SPConstants.MYSITE_BASE_URL,
+          rb.getString(SPConstants.REQ_FQDN_MYSITE_URL));
+      return;
     }
 
-    final SPType SPVersion = sharepointClientContext
-        .checkSharePointType(sharepointUrl);
-    if (SPType.SP2007 == SPVersion && mySiteUrl != null
-        && !mySiteUrl.equals(SPConstants.BLANK_STRING)) {
-      if (!isURL(mySiteUrl)) {
-        ed.set(SPConstants.MYSITE_BASE_URL,
-            rb.getString(SPConstants.MALFORMED_MYSITE_URL));
-        return false;
-      }
-      if (!isInFQDN(mySiteUrl)) {
-        ed.set(SPConstants.MYSITE_BASE_URL,
-            rb.getString(SPConstants.REQ_FQDN_MYSITE_URL));
-        return false;
-      }
+    String status = checkPattern(mySiteUrl);
+    if (status != null) {
+      ed.set(null, rb.getString(SPConstants.MYSITE_BASE_URL) + " " + status);
+      return;
+    }
 
-      status = checkPattern(mySiteUrl);
-      if (status != null) {
-        ed.set(null, rb.getString(SPConstants.MYSITE_BASE_URL) + " " + status);
-        return false;
-      }
-      status = null;
+    status = checkConnectivity(ctx, mySiteUrl);
+    if (!SPConstants.CONNECTIVITY_SUCCESS.equalsIgnoreCase(status)) {
+      ed.set(
+          SPConstants.MYSITE_BASE_URL,
+          rb.getString(SPConstants.CANNOT_CONNECT_MYSITE)
+          + rb.getString(SPConstants.REASON) + status);
+      return;
+    }
 
-      status = checkConnectivity(mySiteUrl);
+    if (FeedType.CONTENT_FEED == feedType) {
+      status = checkGSConnectivity(ctx, mySiteUrl);
       if (!SPConstants.CONNECTIVITY_SUCCESS.equalsIgnoreCase(status)) {
         ed.set(
             SPConstants.MYSITE_BASE_URL,
-            rb.getString(SPConstants.CANNOT_CONNECT_MYSITE)
+            rb.getString(SPConstants.BULKAUTH_ERROR_MYSITE_URL)
             + rb.getString(SPConstants.REASON) + status);
-        return false;
       }
+    }
+  }
 
-      if (FeedType.CONTENT_FEED == feedType) {
-        status = checkGSConnectivity(mySiteUrl);
-        if (!SPConstants.CONNECTIVITY_SUCCESS.equalsIgnoreCase(status)) {
-          ed.set(
-              SPConstants.MYSITE_BASE_URL,
-              rb.getString(SPConstants.BULKAUTH_ERROR_MYSITE_URL)
-              + rb.getString(SPConstants.REASON) + status);
-          return false;
-        }
+  /**
+   * One of the checks of {@link #validateConnectivity}, which reports its
+   * errors in its own {@link ErrorDignostics}.
+   */
+  private abstract class ConnectivityCheck
+      implements Callable<ErrorDignostics> {
+    /** The field reported if the check fails unexpectedly or times out. */
+    final String key;
+    /** The resource key of the message of a failure. */
+    final String messageKey;
+
+    ConnectivityCheck(final String key, final String messageKey) {
+      this.key = key;
+      this.messageKey = messageKey;
+    }
+
+    public ErrorDignostics call() {
+      // The context is not shared between threads.
+      final SharepointClientContext ctx =
+          (SharepointClientContext) sharepointClientContext.clone();
+      if (null == ctx) {
+        throw new IllegalStateException(
+            "Failed to copy the SharePointClientContext.");
       }
+      ctx.setWebServiceTimeOut(
+          Math.min(ctx.getWebServiceTimeOut(), checkTimeout));
+      final ErrorDignostics checkEd = new ErrorDignostics();
+      check(ctx, checkEd);
+      return checkEd;
+    }
+
+    /**
+     * Runs the check.
+     *
+     * @param ctx the copy of the client context of the check
+     * @param checkEd records the errors found
+     */
+    abstract void check(SharepointClientContext ctx,
+        ErrorDignostics checkEd);
+
+    /**
+     * @return the message of a failure of the check for the given reason
+     */
+    String getMessage(String reason) {
+      return rb.getString(messageKey) + rb.getString(SPConstants.REASON)
+          + reason;
     }
-    return true;
   }
 
   /**
@@ -1321,7 +1469,7 @@ public class SharepointConnectorType implements ConnectorType {
         return new ConfigureResponse("resource bundle not found", "");
       }
     }
-    return new ConfigureResponse(ed.error_message,
+    return new ConfigureResponse(ed.getMessage(),
         makeConfigForm(configMap, ed));
   }
 
@@ -1371,16 +1519,30 @@ public class SharepointConnectorType implements ConnectorType {
   }
 
   /**
-   * Stores any error message corresponding to any field on the connector's
-   * configuration page. *
+   * Stores the error messages corresponding to the fields on the connector's
+   * configuration page, in the order they were found. Errors not related to
+   * a field are stored under a null key.
    */
   class ErrorDignostics {
-    String error_key;
-    String error_message;
+    final Map<String, String> errors = new LinkedHashMap<String, String>();
 
     void set(final String key, final String msg) {
-      error_key = key;
-      error_message = msg;
+      final String previous = errors.get(key);
+      errors.put(key, (previous == null) ? msg : previous + "\n" + msg);
+    }
+
+    void addAll(final ErrorDignostics ed) {
+      for (Map.Entry<String, String> error : ed.errors.entrySet()) {
+        set(error.getKey(), error.getValue());
+      }
+    }
+
+    /**
+     * @return the messages of all the errors, one per line, or null if there
+     *         are none
+     */
+    String getMessage() {
+      return errors.isEmpty() ? null : Joiner.on('\n').join(errors.values());
     }
   }
 
@@ -1816,7 +1978,8 @@ public class SharepointConnectorType implements ConnectorType {
    * Function Signature changed by nitendra_thakur. This is to make the function
    * re-usable.
    */
-  private String checkConnectivity(final String endpoint) {
+  private String checkConnectivity(final SharepointClientContext ctx,
+      final String endpoint) {
     LOGGER.config("Checking connectivity for [" + endpoint + "]");
 
     if ((endpoint == null) || !isURL(endpoint)) {
@@ -1824,8 +1987,8 @@ public class SharepointConnectorType implements ConnectorType {
     }
 
     try {
-      sharepointClientContext.setSiteURL(endpoint);
-      final WebsHelper webs = new WebsHelper(sharepointClientContext);
+      ctx.setSiteURL(endpoint);
+      final WebsHelper webs = new WebsHelper(ctx);
       return webs.checkConnectivity();
     } catch (final Exception e) {
       final String logMessage = "Problem while connecting.";
@@ -1841,7 +2004,8 @@ public class SharepointConnectorType implements ConnectorType {
    *          the Web URL to which the Web Service call will be made
    * @return the connectivity status
    */
-  private String checkGSConnectivity(final String endpoint) {
+  private String checkGSConnectivity(final SharepointClientContext ctx,
+      final String endpoint) {
     LOGGER.config("Checking Google Services connectivity for [" + endpoint
         + "]");
 
@@ -1850,9 +2014,9 @@ public class SharepointConnectorType implements ConnectorType {
     }
 
     try {
-      sharepointClientContext.setSiteURL(endpoint);
+      ctx.setSiteURL(endpoint);
       final BulkAuthorizationHelper testBulkAuth =
-          new BulkAuthorizationHelper(sharepointClientContext);
+          new BulkAuthorizationHelper(ctx);
       return testBulkAuth.checkConnectivity();
     } catch (final Exception e) {
       final String logMessage = "Problem while connecting.";
@@ -32,6 +32,8 @@ import com.google.enterprise.connector.spi.TraversalContextAware;
 import com.google.enterprise.connector.spi.TraversalManager;
 
 import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -253,17 +255,38 @@ public class SharepointTraversalManager implements TraversalManager,
     return doTraversal();
   }
 
+  /**
+   * Traverses one batch. The thread pool to resolve the SP groups is shut
+   * down when the batch ends.
+   */
   private DocumentList doTraversal() throws RepositoryException {
+    if (sharepointClientContext == null) {
+      LOGGER.severe("SharepointClientContext is null");
+      throw new SharepointException("SharepointClientContext is null");
+    }
+    int groupResolutionThreads =
+        sharepointClientContext.getGroupResolutionThreads();
+    ExecutorService groupResolutionExecutor = (groupResolutionThreads > 1)
+        ? Executors.newFixedThreadPool(groupResolutionThreads) : null;
+    sharepointClientContext.setGroupResolutionExecutor(
+        groupResolutionExecutor);
+    try {
+      return doBatchTraversal();
+    } finally {
+      if (groupResolutionExecutor != null) {
+        groupResolutionExecutor.shutdownNow();
+      }
+      sharepointClientContext.setGroupResolutionExecutor(null);
+    }
+  }
+
+  private DocumentList doBatchTraversal() throws RepositoryException {
     LOGGER.config("doTraversal()");
 
     if (hint == -1) {
       LOGGER.severe("Batch hint is -1");
       throw new SharepointException("Batch hint is -1");
     }
-    if (sharepointClientContext == null) {
-      LOGGER.severe("SharepointClientContext is null");
-      throw new SharepointException("SharepointClientContext is null");
-    }
 
     LOGGER.config("sharepointClientContext.feedType [ "
         + sharepointClientContext.getFeedType() + " ]");
@@ -0,0 +1,341 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Crawls first the webs whose next change is expected soonest, going by the
+ * number of changes found each time they were crawled.
+ * <p/>
+ * The change rate of a web is a moving average of the changes per hour
+ * found since its previous crawl; webs with no estimate yet are given the
+ * average of the others. The webs are crawled in this order:
+ * <ol>
+ * <li>webs partially crawled, so that their crawl is completed;</li>
+ * <li>webs never crawled or not crawled for longer than the maximum
+ * staleness, the longest waiting first, so that no web is starved;</li>
+ * <li>the other webs, by when their next change is expected: their last
+ * crawl plus the mean time between their changes.</li>
+ * </ol>
+ * Webs in the same position are taken in the order of the state.
+ * <p/>
+ * The webs are kept in that order as they are crawled, so a batch traversal
+ * does not sort them again: each crawl moves one web, and the traversal
+ * reads only as far into the order as it goes. Only the webs handed out
+ * since they were last completely crawled are checked for pending work.
+ * The state is read in full again only when webs are added or removed.
+ */
+public class ChangeRateSchedulingPolicy implements WebSchedulingPolicy {
+  /** The weight of the latest crawl in the change rate. */
+  static final double WEIGHT = 0.3;
+
+  private static final double MILLIS_PER_HOUR = 60 * 60 * 1000;
+
+  private long maxStalenessMillis = 24 * 60 * 60 * 1000L;
+
+  /** The state the webs below are from, and its version of the webs. */
+  private GlobalState globalState;
+  private int webSetVersion;
+  private final Map<WebState, Entry> entries =
+      new IdentityHashMap<WebState, Entry>();
+  private final TreeSet<Entry> byLastVisit = new TreeSet<Entry>(BY_LAST_VISIT);
+  private final TreeSet<Entry> byNextChange =
+      new TreeSet<Entry>(BY_NEXT_CHANGE);
+  /** Webs partially crawled. */
+  private final Set<WebState> partial = new TreeSet<WebState>();
+  /** Webs handed out since they were last completely crawled. */
+  private final Set<WebState> started = new TreeSet<WebState>();
+  /** The sum and count of the known change rates. */
+  private double totalRate;
+  private int rates;
+
+  /**
+   * @param maxStalenessSeconds the longest a web waits between crawls before
+   *          it is crawled ahead of the webs with changes
+   */
+  public void setMaxStalenessSeconds(int maxStalenessSeconds) {
+    this.maxStalenessMillis = maxStalenessSeconds * 1000L;
+  }
+
+  public int getMaxStalenessSeconds() {
+    return (int) (maxStalenessMillis / 1000);
+  }
+
+  /** A web and its position in the traversal order. */
+  private static class Entry {
+    final WebState web;
+    final long lastVisitTime;
+    final long nextChangeTime;
+
+    Entry(WebState web, long lastVisitTime, long nextChangeTime) {
+      this.web = web;
+      this.lastVisitTime = lastVisitTime;
+      this.nextChangeTime = nextChangeTime;
+    }
+  }
+
+  private static final Comparator<Entry> BY_LAST_VISIT =
+      new Comparator<Entry>() {
+    @Override
+    public int compare(Entry e1, Entry e2) {
+      if (e1.lastVisitTime != e2.lastVisitTime) {
+        return e1.lastVisitTime < e2.lastVisitTime ? -1 : 1;
+      }
+      return e1.web.compareTo(e2.web);
+    }
+  };
+
+  private static final Comparator<Entry> BY_NEXT_CHANGE =
+      new Comparator<Entry>() {
+    @Override
+    public int compare(Entry e1, Entry e2) {
+      if (e1.nextChangeTime != e2.nextChangeTime) {
+        return e1.nextChangeTime < e2.nextChangeTime ? -1 : 1;
+      }
+      return BY_LAST_VISIT.compare(e1, e2);
+    }
+  };
+
+  @Override
+  public Iterator<WebState> getTraversalOrder(GlobalState globalState,
+      long now) {
+    if (globalState != this.globalState
+        || globalState.getWebSetVersion() != webSetVersion) {
+      update(globalState);
+    }
+    for (WebState web : started) {
+      if (web.hasPendingWork()) {
+        partial.add(web);
+      } else {
+        partial.remove(web);
+      }
+    }
+    started.clear();
+    return new OrderIterator(globalState, now);
+  }
+
+  @Override
+  public void recordVisit(WebState web, int changes, long now) {
+    long lastVisitTime = web.getLastVisitTime();
+    double rate = web.getChangeRate();
+    if (lastVisitTime > 0 && now > lastVisitTime) {
+      double sample = changes * MILLIS_PER_HOUR / (now - lastVisitTime);
+      rate = (rate < 0) ? sample : WEIGHT * sample + (1 - WEIGHT) * rate;
+    }
+    Entry entry = entries.get(web);
+    if (entry != null) {
+      remove(entry);
+    }
+    web.setVisit(now, rate);
+    if (entry != null) {
+      add(web);
+    }
+    partial.remove(web);
+    started.remove(web);
+  }
+
+  /**
+   * Reads the webs added to the state and drops the webs removed from it,
+   * or reads all the webs of a new state.
+   */
+  private void update(GlobalState globalState) {
+    if (globalState != this.globalState) {
+      this.globalState = globalState;
+      entries.clear();
+      byLastVisit.clear();
+      byNextChange.clear();
+      partial.clear();
+      started.clear();
+      totalRate = 0;
+      rates = 0;
+    }
+    webSetVersion = globalState.getWebSetVersion();
+    Set<WebState> webs = Collections.newSetFromMap(
+        new IdentityHashMap<WebState, Boolean>());
+    webs.addAll(globalState.getAllWebStateSet());
+    List<Entry> removed = new ArrayList<Entry>();
+    for (Entry entry : entries.values()) {
+      if (!webs.contains(entry.web)) {
+        removed.add(entry);
+      }
+    }
+    for (Entry entry : removed) {
+      remove(entry);
+      partial.remove(entry.web);
+      started.remove(entry.web);
+    }
+    // The rates of all the new webs are counted before the average rate is
+    // given to the new webs without one.
+    List<WebState> added = new ArrayList<WebState>();
+    for (WebState web : globalState.getAllWebStateSet()) {
+      if (!entries.containsKey(web)) {
+        added.add(web);
+        addRate(web);
+      }
+    }
+    for (WebState web : added) {
+      addEntry(web);
+      if (web.hasPendingWork()) {
+        partial.add(web);
+      }
+    }
+  }
+
+  private void add(WebState web) {
+    addRate(web);
+    addEntry(web);
+  }
+
+  private void addRate(WebState web) {
+    if (web.getChangeRate() >= 0) {
+      totalRate += web.getChangeRate();
+      rates++;
+    }
+  }
+
+  private void addEntry(WebState web) {
+    Entry entry = new Entry(web, web.getLastVisitTime(),
+        getNextChangeTime(web));
+    entries.put(web, entry);
+    byLastVisit.add(entry);
+    byNextChange.add(entry);
+  }
+
+  private void remove(Entry entry) {
+    if (entry.web.getChangeRate() >= 0) {
+      totalRate -= entry.web.getChangeRate();
+      rates--;
+    }
+    entries.remove(entry.web);
+    byLastVisit.remove(entry);
+    byNextChange.remove(entry);
+  }
+
+  /**
+   * @return when the next change of the web is expected, in milliseconds, or
+   *         {@code Long.MAX_VALUE} if none is
+   */
+  private long getNextChangeTime(WebState web) {
+    double rate = web.getChangeRate();
+    if (rate < 0) {
+      rate = (rates == 0) ? 0 : totalRate / rates;
+    }
+    long lastVisitTime = web.getLastVisitTime();
+    double wait = (rate > 0) ? MILLIS_PER_HOUR / rate : Long.MAX_VALUE;
+    return (wait >= Long.MAX_VALUE - lastVisitTime)
+        ? Long.MAX_VALUE : lastVisitTime + (long) wait;
+  }
+
+  private boolean isStale(Entry entry, long now) {
+    return entry.lastVisitTime == 0
+        || now - entry.lastVisitTime >= maxStalenessMillis;
+  }
+
+  /**
+   * Walks the webs partially crawled, then the stale webs, then the others.
+   * The order is read as the traversal goes, so webs crawled in the meantime
+   * are moved behind it and not returned again.
+   */
+  private class OrderIterator implements Iterator<WebState> {
+    private final GlobalState globalState;
+    private final long now;
+    private final Iterator<WebState> partialWebs;
+    private final Set<WebState> returned = Collections.newSetFromMap(
+        new IdentityHashMap<WebState, Boolean>());
+    private Entry lastStale;
+    private boolean staleDone;
+    private Entry lastChange;
+    private WebState next;
+
+    OrderIterator(GlobalState globalState, long now) {
+      this.globalState = globalState;
+      this.now = now;
+      this.partialWebs = new ArrayList<WebState>(partial).iterator();
+    }
+
+    public boolean hasNext() {
+      if (next == null) {
+        next = advance();
+      }
+      return next != null;
+    }
+
+    public WebState next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      WebState web = next;
+      next = null;
+      returned.add(web);
+      started.add(web);
+      return web;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private WebState advance() {
+      while (partialWebs.hasNext()) {
+        WebState web = partialWebs.next();
+        if (isCandidate(web)) {
+          return web;
+        }
+      }
+      while (!staleDone) {
+        Entry entry = (lastStale == null)
+            ? first(byLastVisit) : byLastVisit.higher(lastStale);
+        if (entry == null || !isStale(entry, now)) {
+          staleDone = true;
+        } else {
+          lastStale = entry;
+          if (isCandidate(entry.web)) {
+            return entry.web;
+          }
+        }
+      }
+      while (true) {
+        Entry entry = (lastChange == null)
+            ? first(byNextChange) : byNextChange.higher(lastChange);
+        if (entry == null) {
+          return null;
+        }
+        lastChange = entry;
+        if (isCandidate(entry.web)) {
+          return entry.web;
+        }
+      }
+    }
+
+    private boolean isCandidate(WebState web) {
+      return !returned.contains(web) && entries.containsKey(web)
+          && globalState.getAllWebStateSet().contains(web);
+    }
+
+    private Entry first(TreeSet<Entry> entries) {
+      return entries.isEmpty() ? null : entries.first();
+    }
+  }
+}
@@ -40,12 +40,14 @@ import org.xml.sax.helpers.AttributesImpl;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.logging.Level;
@@ -62,13 +64,17 @@ public class GlobalState {
   private boolean recrawling = false;
   private String workDir = null;
   private FeedType feedType;
+  private final ListBodyStore bodyStore;
+  private final PersonalSiteState personalSites = new PersonalSiteState();
   /**
    * To keep track of WebStates, we keep two data structures: a TreeSet relying
    * on the insertion time property of a WebState, and a HashMap on the
    * primary key of the object (id for Webs).
    */
-  protected SortedSet<WebState> dateMap = new TreeSet<WebState>();
+  protected NavigableSet<WebState> dateMap = new TreeSet<WebState>();
   protected Map<String, WebState> keyMap = new HashMap<String, WebState>();
+  /** Counts the webs added, replaced and removed. */
+  private int webSetVersion;
 
   /**
    * The "currentWeb" object for WebState. The current object may be null.
@@ -81,6 +87,10 @@ public class GlobalState {
   private boolean bFullReCrawl = false;
   private String lastFullCrawlDateTime = null;
 
+  /** The shard of the farm the webs in this state belong to. */
+  private int shardIndex = 0;
+  private int shardCount = 1;
+
   /**
    * Connector first gives USER_PROFILE_FEED as a separate feed DOC_FEED happens
    * after that and then sets back to USER_PROFILE_FEED, when DOC_FEED gets no
@@ -147,6 +157,12 @@ public class GlobalState {
         if (null != web) {
           try {
             list = ListState.loadStateFromXML(web, atts, feedType);
+            String bodyOffset = atts.getValue(SPConstants.STATE_LIST_BODY);
+            if (bodyOffset != null) {
+              // The body is read from the list state file when needed.
+              list.setBodyLocation(bodyStore, Long.parseLong(bodyOffset));
+              list.evictBody();
+            }
             web.AddOrUpdateListStateInWebState(list, list.getLastMod());
           } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Problem while loading ListState node from state file. ");
@@ -237,6 +253,14 @@ public class GlobalState {
         } catch (Exception e) {
           LOGGER.log(Level.SEVERE, "Problem while loading WebState node from state file. ");
         }
+      } else if (SPConstants.STATE_LIST_BODIES.equals(localName)) {
+        bodyStore.open(atts.getValue(SPConstants.STATE_ID));
+      } else if (SPConstants.STATE_PERSONAL_SITES.equals(localName)) {
+        personalSites.setChangeToken(
+            atts.getValue(SPConstants.STATE_CHANGETOKEN));
+      } else if (SPConstants.STATE_PERSONAL_SITE.equals(localName)) {
+        personalSites.put(atts.getValue(SPConstants.STATE_ACCOUNT),
+            atts.getValue(SPConstants.STATE_URL));
       } else if (SPConstants.LAST_CRAWLED_WEB_ID.equals(localName)) {
         lastCrawledWebID = atts.getValue(SPConstants.STATE_ID);
       } else if (SPConstants.LAST_CRAWLED_LIST_ID.equals(localName)) {
@@ -248,6 +272,14 @@ public class GlobalState {
         feedType = FeedType.getFeedType(atts.getValue(SPConstants.STATE_TYPE));
       } else if (SPConstants.CRAWL_STATE.equals(localName)) {
         crawlState = CrawlState.valueOf(atts.getValue(SPConstants.STATE_TYPE));
+      } else if (SPConstants.STATE_SHARD.equals(localName)) {
+        try {
+          shardIndex = Integer.parseInt(atts.getValue(SPConstants.STATE_ID));
+          shardCount = Integer.parseInt(
+              atts.getValue(SPConstants.STATE_SHARD_COUNT));
+        } catch (NumberFormatException e) {
+          LOGGER.log(Level.WARNING, "Invalid shard in state file. ", e);
+        }
       }
     }
 
@@ -278,9 +310,9 @@ public class GlobalState {
       }
       if (Nodes.ALERTS_EXTRAID.equals(currentNode)
           || Nodes.FOLDERS_EXTRAID.equals(currentNode)) {
-        list.getIDs().append(ch, start, end);
+        list.setIDs(list.getIDs().append(ch, start, end));
       } else if (Nodes.ATTACHMENTS_EXTRAID.equals(currentNode)) {
-        list.getAttchmnts().append(ch, start, end);
+        list.setAttchmnts(list.getAttchmnts().append(ch, start, end));
       }
     }
 
@@ -305,6 +337,10 @@ public class GlobalState {
       final boolean isDeleted = f1.delete();
       LOGGER.info("deleted status: " + isDeleted);
     }
+    new ListBodyStore(
+        getStateFileLocation(workDir, SPConstants.CONNECTOR_LISTS_EXT),
+        getStateFileLocation(workDir, SPConstants.CONNECTOR_LISTS_TEMP_EXT),
+        0).delete();
   }
 
   /**
@@ -324,6 +360,10 @@ public class GlobalState {
     }
     feedType = inFeedType;
     this.clientFactory = clientFactory;
+    bodyStore = new ListBodyStore(
+        getStateFileLocation(SPConstants.CONNECTOR_LISTS_EXT),
+        getStateFileLocation(SPConstants.CONNECTOR_LISTS_TEMP_EXT),
+        ListBodyStore.DEFAULT_MAX_LOADED_BODIES);
   }
 
   /**
@@ -420,6 +460,48 @@ public class GlobalState {
     recrawling = false;
   }
 
+  /**
+   * Removes a web from the state, without sending deletes for its
+   * documents.
+   *
+   * @param web the web to remove
+   */
+  public void removeWebState(final WebState web) {
+    dateMap.remove(web);
+    keyMap.remove(web.getPrimaryKey());
+    webSetVersion++;
+    if (web == currentWeb) {
+      currentWeb = null;
+    }
+    if (web == lastCrawledWeb) {
+      lastCrawledWeb = null;
+      lastCrawledList = null;
+    }
+  }
+
+  /**
+   * @return the shard of the farm the webs in this state belong to
+   */
+  public int getShardIndex() {
+    return shardIndex;
+  }
+
+  /**
+   * @return the number of shards the farm was split into when the webs in
+   *         this state were discovered
+   */
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  /**
+   * Records the shard of the farm the webs in this state belong to.
+   */
+  public void setShard(final int shardIndex, final int shardCount) {
+    this.shardIndex = shardIndex;
+    this.shardCount = shardCount;
+  }
+
   /**
    * @param inWebs
    */
@@ -439,22 +521,76 @@ public class GlobalState {
 
   /**
    * Get dateMap iterator beginning at the current ListState and wrapping around
-   * to finish just before the current. If there is no current, you just get an
-   * ordinary iterator.
+   * to finish just before the current. If there is no current, you get the
+   * webs from the first one.
+   * <p/>
+   * The iterator walks dateMap itself rather than a copy, so webs added or
+   * removed while iterating do not fail the iteration: webs added ahead of
+   * the iterator are returned, and webs removed before they are reached are
+   * not. The iterator does not support {@code remove}.
    *
    * @return Iterator which begins at getCurrentList() and wraps around the end
    */
   public Iterator<WebState> getCircularIterator() {
-    final WebState start = getCurrentWeb();
-    if (start == null) {
-      return getIterator();
+    return new CircularIterator(getCurrentWeb());
+  }
+
+  /**
+   * Walks dateMap from a web, wrapping around the end, by looking up the web
+   * following the last one returned at each step.
+   */
+  private class CircularIterator implements Iterator<WebState> {
+    private final WebState start;
+    private WebState last;
+    private WebState next;
+    private boolean wrapped;
+    private boolean done;
+
+    CircularIterator(WebState start) {
+      this.start = start;
+    }
+
+    public boolean hasNext() {
+      if (next == null && !done) {
+        next = advance();
+        done = (next == null);
+      }
+      return next != null;
+    }
+
+    public WebState next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      last = next;
+      next = null;
+      return last;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private WebState advance() {
+      WebState candidate;
+      if (last == null) {
+        candidate = (start == null) ? first() : dateMap.ceiling(start);
+      } else {
+        candidate = dateMap.higher(last);
+      }
+      if (candidate == null && start != null && !wrapped) {
+        wrapped = true;
+        candidate = first();
+      }
+      if (wrapped && candidate != null && candidate.compareTo(start) >= 0) {
+        return null;
+      }
+      return candidate;
+    }
+
+    private WebState first() {
+      return dateMap.isEmpty() ? null : dateMap.first();
     }
-    // one might think you could just do tail.addAll(head) here. But you
-    // can't.
-    final ArrayList<WebState> full = new ArrayList<WebState>(
-        dateMap.tailSet(start));
-    full.addAll(dateMap.headSet(start));
-    return full.iterator();
   }
 
   /**
@@ -610,9 +746,18 @@ public class GlobalState {
         dateMap.remove(state);
       }
       dateMap.add(state);
+      webSetVersion++;
     }
   }
 
+  /**
+   * @return a number that changes whenever a web is added, replaced or
+   *         removed
+   */
+  int getWebSetVersion() {
+    return webSetVersion;
+  }
+
   /**
    * Return the location for our state file. If we were given a
    * googleConnectorWorkDir (the expected case), use that; else use the current
@@ -714,17 +859,25 @@ public class GlobalState {
     final File tempFile = getStateFileLocation(SPConstants.CONNECTOR_TEMP_EXT);
     final File stateFile = 
         getStateFileLocation(SPConstants.CONNECTOR_STATE_EXT);
+    ListBodyStore.Writer bodies = null;
     try {
+      // The list bodies are written first, so that the state file can
+      // refer to their offsets.
+      bodies = bodyStore.startWrite();
       FileOutputStream fos = new FileOutputStream(tempFile);
       OutputFormat of = new OutputFormat("XML", "UTF-8", true);
       of.setLineWidth(500);
       of.setIndent(2);
       XMLSerializer serializer = new XMLSerializer(fos, of);
       ContentHandler handler = serializer.asContentHandler();
-      dumpStateToXML(handler);
+      dumpStateToXML(handler, bodies);
       fos.close();
+      bodies.close();
     } catch (final Exception e) {
       LOGGER.log(Level.WARNING, "Save State Failed", e);
+      if (bodies != null) {
+        bodies.abort();
+      }
       if (tempFile.exists()) {
         if (!tempFile.delete()) {
           LOGGER.log(Level.WARNING, "Temporary state file cannot be removed "
@@ -738,6 +891,7 @@ public class GlobalState {
       if (!stateFile.delete()) {
         LOGGER.log(Level.WARNING, "Error deleting old state file "
             + stateFile.getAbsolutePath());
+        bodies.abort();
         throw new SharepointException("Save state failed");
       }
     }
@@ -746,12 +900,32 @@ public class GlobalState {
       LOGGER.log(Level.WARNING, "Error renaming "
           + tempFile.getAbsolutePath() + " to "
           + stateFile.getAbsolutePath());
+      // Left in place, the new list bodies are picked up together with the
+      // temp file by the next loadState.
     } else {
       LOGGER.fine("Save State Complete" + stateFile.getAbsolutePath());
+      try {
+        bodyStore.commit(bodies);
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Save State Failed", e);
+        throw new SharepointException("Save state failed", e);
+      }
     }
   }
 
+  /**
+   * Writes the complete state, including the bodies of all lists.
+   */
   public void dumpStateToXML(ContentHandler handler) throws SAXException {
+    dumpStateToXML(handler, null);
+  }
+
+  /**
+   * @param bodies where to write the bodies of the lists instead of the state
+   *          file; may be null
+   */
+  private void dumpStateToXML(ContentHandler handler,
+      ListBodyStore.Writer bodies) throws SAXException {
     AttributesImpl atts = new AttributesImpl();
     handler.startDocument();
     handler.startElement("", "", SPConstants.STATE, atts);
@@ -793,18 +967,46 @@ public class GlobalState {
     handler.startElement("", "", SPConstants.CRAWL_STATE, atts);
     handler.endElement("", "", SPConstants.CRAWL_STATE);
 
+    // SHARD
+    atts.clear();
+    atts.addAttribute("", "", SPConstants.STATE_ID,
+        SPConstants.STATE_ATTR_CDATA, String.valueOf(shardIndex));
+    atts.addAttribute("", "", SPConstants.STATE_SHARD_COUNT,
+        SPConstants.STATE_ATTR_CDATA, String.valueOf(shardCount));
+    handler.startElement("", "", SPConstants.STATE_SHARD, atts);
+    handler.endElement("", "", SPConstants.STATE_SHARD);
+
+    // LIST_BODIES
+    if (null != bodies) {
+      atts.clear();
+      atts.addAttribute("", "", SPConstants.STATE_ID,
+          SPConstants.STATE_ATTR_CDATA, bodies.getGeneration());
+      handler.startElement("", "", SPConstants.STATE_LIST_BODIES, atts);
+      handler.endElement("", "", SPConstants.STATE_LIST_BODIES);
+    }
+
+    // PERSONAL_SITES
+    personalSites.dumpStateToXML(handler);
+
     // now dump the actual WebStates:
     if (null == dateMap) {
       LOGGER.log(Level.WARNING, "No WebStates found in the connector state.");
     } else {
       for (WebState web : dateMap) {
-        web.dumpStateToXML(handler, feedType);
+        web.dumpStateToXML(handler, feedType, bodies);
       }
     }
     handler.endElement("", "", SPConstants.STATE);
     handler.endDocument();
   }
 
+  /**
+   * @return the personal sites discovered from the user profiles
+   */
+  public PersonalSiteState getPersonalSiteState() {
+    return personalSites;
+  }
+
   public void setCrawlState(CrawlState cs) {
     this.crawlState = cs;
   }
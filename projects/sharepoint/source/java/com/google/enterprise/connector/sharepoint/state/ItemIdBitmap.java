@@ -0,0 +1,356 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A compressed set of non-negative list item IDs.
+ * <p/>
+ * IDs are split into chunks of 65536 by their upper 16 bits. A chunk with
+ * few IDs stores the lower 16 bits in a sorted array, a chunk with many IDs
+ * in a bitmap of 8 KB, so that sparse and dense lists both take about two
+ * bytes per ID or less.
+ * <p/>
+ * The string form lists ranges of consecutive IDs, for example
+ * {@code 1-1000,1005,1010-1012}, and is what gets stored in the state file.
+ * {@link #valueOf} also accepts IDs separated by {@code #}, the format used
+ * by older versions of the connector.
+ */
+public class ItemIdBitmap {
+  /** Chunks with more IDs than this are stored as bitmaps. */
+  private static final int MAX_ARRAY_SIZE = 4096;
+
+  private static final char RANGE_SEPARATOR = '-';
+  private static final char SEPARATOR = ',';
+  private static final char LEGACY_SEPARATOR = '#';
+
+  private final TreeMap<Integer, Chunk> chunks = new TreeMap<Integer, Chunk>();
+  private int size;
+
+  /**
+   * Parses the string form of a set of IDs. Anything that is not an ID or a
+   * range of IDs is ignored.
+   *
+   * @param ids as returned by {@link #toString}, or separated by {@code #}
+   * @return the parsed IDs, never null
+   */
+  public static ItemIdBitmap valueOf(String ids) {
+    ItemIdBitmap bitmap = new ItemIdBitmap();
+    if (ids == null) {
+      return bitmap;
+    }
+    int start = 0;
+    int length = ids.length();
+    while (start < length) {
+      int end = start;
+      while (end < length && ids.charAt(end) != SEPARATOR
+          && ids.charAt(end) != LEGACY_SEPARATOR) {
+        end++;
+      }
+      String token = ids.substring(start, end).trim();
+      int dash = token.indexOf(RANGE_SEPARATOR, 1);
+      try {
+        if (dash == -1) {
+          bitmap.add(Integer.parseInt(token));
+        } else {
+          int last = Integer.parseInt(token.substring(dash + 1));
+          for (int id = Integer.parseInt(token.substring(0, dash));
+               id <= last && id >= 0; id++) {
+            bitmap.add(id);
+          }
+        }
+      } catch (NumberFormatException e) {
+        // Not a valid ID, skip it.
+      }
+      start = end + 1;
+    }
+    return bitmap;
+  }
+
+  /**
+   * @return true if the ID was not already in the set
+   */
+  public boolean add(int id) {
+    if (id < 0) {
+      return false;
+    }
+    Integer key = id >>> 16;
+    Chunk chunk = chunks.get(key);
+    if (chunk == null) {
+      chunk = new ArrayChunk();
+      chunks.put(key, chunk);
+    }
+    if (!chunk.add((char) id)) {
+      return false;
+    }
+    if (chunk.size() > MAX_ARRAY_SIZE && chunk instanceof ArrayChunk) {
+      chunks.put(key, ((ArrayChunk) chunk).toBitmap());
+    }
+    size++;
+    return true;
+  }
+
+  /**
+   * @return true if the ID was in the set
+   */
+  public boolean remove(int id) {
+    if (id < 0) {
+      return false;
+    }
+    Integer key = id >>> 16;
+    Chunk chunk = chunks.get(key);
+    if (chunk == null || !chunk.remove((char) id)) {
+      return false;
+    }
+    if (chunk.size() == 0) {
+      chunks.remove(key);
+    } else if (chunk.size() <= MAX_ARRAY_SIZE / 2
+        && chunk instanceof BitmapChunk) {
+      chunks.put(key, ((BitmapChunk) chunk).toArray());
+    }
+    size--;
+    return true;
+  }
+
+  public boolean contains(int id) {
+    if (id < 0) {
+      return false;
+    }
+    Chunk chunk = chunks.get(id >>> 16);
+    return chunk != null && chunk.contains((char) id);
+  }
+
+  /**
+   * Returns the smallest ID in the set that is greater than or equal to the
+   * given one.
+   *
+   * @return the ID, or -1 if there is none or {@code fromId} is negative
+   */
+  public int next(int fromId) {
+    if (fromId < 0) {
+      return -1;
+    }
+    int fromKey = fromId >>> 16;
+    for (Map.Entry<Integer, Chunk> entry
+        : chunks.tailMap(fromKey, true).entrySet()) {
+      int key = entry.getKey();
+      int low = entry.getValue().next((key == fromKey) ? fromId & 0xFFFF : 0);
+      if (low != -1) {
+        return (key << 16) | low;
+      }
+    }
+    return -1;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    chunks.clear();
+    size = 0;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof ItemIdBitmap)) {
+      return false;
+    }
+    ItemIdBitmap other = (ItemIdBitmap) obj;
+    if (size != other.size) {
+      return false;
+    }
+    for (int id = next(0), otherId = other.next(0); id != -1;
+         id = next(id + 1), otherId = other.next(otherId + 1)) {
+      if (id != otherId) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = 0;
+    for (int id = next(0); id != -1; id = next(id + 1)) {
+      hash = 31 * hash + id;
+    }
+    return hash;
+  }
+
+  /**
+   * @return the IDs as comma separated ranges of consecutive IDs
+   */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    int id = next(0);
+    while (id != -1) {
+      int last = id;
+      int next = next(id + 1);
+      while (next == last + 1) {
+        last = next;
+        next = next(next + 1);
+      }
+      if (sb.length() > 0) {
+        sb.append(SEPARATOR);
+      }
+      sb.append(id);
+      if (last != id) {
+        sb.append(RANGE_SEPARATOR).append(last);
+      }
+      id = next;
+    }
+    return sb.toString();
+  }
+
+  /** The lower 16 bits of the IDs sharing the same upper 16 bits. */
+  private interface Chunk {
+    boolean add(char low);
+    boolean remove(char low);
+    boolean contains(char low);
+    /** @return the smallest value not less than {@code from}, or -1 */
+    int next(int from);
+    int size();
+  }
+
+  private static class ArrayChunk implements Chunk {
+    private char[] values = new char[4];
+    private int size;
+
+    @Override
+    public boolean add(char low) {
+      int index = Arrays.binarySearch(values, 0, size, low);
+      if (index >= 0) {
+        return false;
+      }
+      index = -index - 1;
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      System.arraycopy(values, index, values, index + 1, size - index);
+      values[index] = low;
+      size++;
+      return true;
+    }
+
+    @Override
+    public boolean remove(char low) {
+      int index = Arrays.binarySearch(values, 0, size, low);
+      if (index < 0) {
+        return false;
+      }
+      System.arraycopy(values, index + 1, values, index, size - index - 1);
+      size--;
+      return true;
+    }
+
+    @Override
+    public boolean contains(char low) {
+      return Arrays.binarySearch(values, 0, size, low) >= 0;
+    }
+
+    @Override
+    public int next(int from) {
+      int index = Arrays.binarySearch(values, 0, size, (char) from);
+      if (index < 0) {
+        index = -index - 1;
+      }
+      return (index < size) ? values[index] : -1;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    BitmapChunk toBitmap() {
+      BitmapChunk bitmap = new BitmapChunk();
+      for (int i = 0; i < size; i++) {
+        bitmap.add(values[i]);
+      }
+      return bitmap;
+    }
+  }
+
+  private static class BitmapChunk implements Chunk {
+    private final long[] words = new long[1024];
+    private int size;
+
+    @Override
+    public boolean add(char low) {
+      long bit = 1L << low;
+      if ((words[low >>> 6] & bit) != 0) {
+        return false;
+      }
+      words[low >>> 6] |= bit;
+      size++;
+      return true;
+    }
+
+    @Override
+    public boolean remove(char low) {
+      long bit = 1L << low;
+      if ((words[low >>> 6] & bit) == 0) {
+        return false;
+      }
+      words[low >>> 6] &= ~bit;
+      size--;
+      return true;
+    }
+
+    @Override
+    public boolean contains(char low) {
+      return (words[low >>> 6] & (1L << low)) != 0;
+    }
+
+    @Override
+    public int next(int from) {
+      int index = from >>> 6;
+      long word = words[index] & (-1L << from);
+      while (word == 0) {
+        if (++index == words.length) {
+          return -1;
+        }
+        word = words[index];
+      }
+      return (index << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    ArrayChunk toArray() {
+      ArrayChunk array = new ArrayChunk();
+      for (int low = next(0); low != -1; low = (low == 0xFFFF) ? -1
+          : next(low + 1)) {
+        array.add((char) low);
+      }
+      return array;
+    }
+  }
+}
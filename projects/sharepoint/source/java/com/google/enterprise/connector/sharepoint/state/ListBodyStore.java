@@ -0,0 +1,305 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the bulky parts of the {@link ListState}s, the ExtraIDs, attachments,
+ * delete cache and fed IDs, in a file next to the state file instead of in
+ * the state file itself. Only the offset of each list's record is stored in
+ * the state file, so loading the state only creates the list skeletons. The
+ * body of a list is read from the file the first time it is needed, and the
+ * least recently used bodies which have not been modified since they were
+ * last saved are dropped from memory again.
+ * <p/>
+ * The file starts with a generation token, which is also stored in the state
+ * file, followed by one length prefixed record per list. Saving the state
+ * writes a new file next to the current one, copying the records of the
+ * lists whose bodies are not in memory, and replaces the current file only
+ * after the new state file is in place.
+ */
+class ListBodyStore {
+  private static final Logger LOGGER =
+      Logger.getLogger(ListBodyStore.class.getName());
+
+  /** Bodies kept in memory by default. */
+  static final int DEFAULT_MAX_LOADED_BODIES = 1000;
+
+  private static final int MAGIC = 0x53504c42;
+
+  private final File file;
+  private final File tempFile;
+  private final int maxLoadedBodies;
+
+  /**
+   * Lists whose bodies are in memory and saved, least recently used first.
+   */
+  private final LinkedHashMap<Object, ListState> loaded =
+      new LinkedHashMap<Object, ListState>(16, 0.75f, true);
+
+  /**
+   * Lists whose bodies have been modified since they were saved, which are
+   * kept in memory until the next save.
+   */
+  private final Map<Object, ListState> modified =
+      new HashMap<Object, ListState>();
+
+  private String generation;
+  private RandomAccessFile reader;
+
+  ListBodyStore(File file, File tempFile, int maxLoadedBodies) {
+    this.file = file;
+    this.tempFile = tempFile;
+    this.maxLoadedBodies = maxLoadedBodies;
+  }
+
+  /**
+   * Picks the file written together with the loaded state file. If the
+   * connector stopped between replacing the state file and replacing this
+   * file, the new file is still in its temporary location.
+   *
+   * @param stateGeneration the generation token read from the state file
+   * @return false if no matching file exists
+   */
+  synchronized boolean open(String stateGeneration) {
+    closeReader();
+    generation = null;
+    if (stateGeneration.equals(readGeneration(file))) {
+      generation = stateGeneration;
+    } else if (stateGeneration.equals(readGeneration(tempFile))) {
+      LOGGER.warning("Using list state file [" + tempFile.getAbsolutePath()
+          + "] saved together with the state file.");
+      if ((!file.exists() || file.delete()) && tempFile.renameTo(file)) {
+        generation = stateGeneration;
+      }
+    }
+    if (generation == null) {
+      LOGGER.severe("No list state file [" + file.getAbsolutePath()
+          + "] matching the state file found. Folder and attachment IDs "
+          + "and delete caches of all lists are lost.");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Deletes the files of the store.
+   */
+  synchronized void delete() {
+    closeReader();
+    loaded.clear();
+    modified.clear();
+    generation = null;
+    for (File f : new File[] {file, tempFile}) {
+      if (f.exists() && !f.delete()) {
+        LOGGER.warning("Failed to delete " + f.getAbsolutePath());
+      }
+    }
+  }
+
+  /**
+   * Reads the body of a list from the current file.
+   */
+  synchronized void load(ListState list, long offset) throws IOException {
+    byte[] record = readRecord(offset);
+    list.readBody(new DataInputStream(new ByteArrayInputStream(record)));
+    touch(list);
+  }
+
+  /**
+   * Marks the body of a list as recently used, and drops the bodies of the
+   * least recently used lists if too many are in memory.
+   */
+  synchronized void touch(ListState list) {
+    if (modified.containsKey(list.bodyKey)) {
+      return;
+    }
+    loaded.put(list.bodyKey, list);
+    Iterator<ListState> it = loaded.values().iterator();
+    while (loaded.size() > 1
+        && loaded.size() + modified.size() > maxLoadedBodies) {
+      ListState eldest = it.next();
+      it.remove();
+      if (!eldest.evictBody()) {
+        modified.put(eldest.bodyKey, eldest);
+      }
+    }
+  }
+
+  /**
+   * Keeps the body of a list in memory until the next save.
+   */
+  synchronized void modified(ListState list) {
+    loaded.remove(list.bodyKey);
+    modified.put(list.bodyKey, list);
+  }
+
+  /**
+   * Starts writing a new file.
+   */
+  synchronized Writer startWrite() throws IOException {
+    return new Writer();
+  }
+
+  private byte[] readRecord(long offset) throws IOException {
+    if (generation == null) {
+      throw new IOException("No list state file matching the state file");
+    }
+    if (reader == null) {
+      reader = new RandomAccessFile(file, "r");
+    }
+    reader.seek(offset);
+    byte[] record = new byte[reader.readInt()];
+    reader.readFully(record);
+    return record;
+  }
+
+  private void closeReader() {
+    if (reader != null) {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        LOGGER.log(Level.FINEST, "Failed to close " + file, e);
+      }
+      reader = null;
+    }
+  }
+
+  private static String readGeneration(File f) {
+    if (!f.exists()) {
+      return null;
+    }
+    try {
+      RandomAccessFile in = new RandomAccessFile(f, "r");
+      try {
+        return (in.readInt() == MAGIC) ? in.readUTF() : null;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to read " + f.getAbsolutePath(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Writes the bodies of all lists into the temporary file. The new offsets
+   * are applied to the lists by {@link #commit} once the state file
+   * referring to them has been saved.
+   */
+  class Writer {
+    private final String newGeneration =
+        Long.toHexString(System.currentTimeMillis())
+        + Integer.toHexString(System.identityHashCode(this));
+    private final DataOutputStream out;
+    private final List<ListState> lists = new ArrayList<ListState>();
+    private final List<Long> offsets = new ArrayList<Long>();
+
+    private Writer() throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tempFile)));
+      out.writeInt(MAGIC);
+      out.writeUTF(newGeneration);
+    }
+
+    String getGeneration() {
+      return newGeneration;
+    }
+
+    /**
+     * Writes the body of a list, reading it from the current file if it is
+     * not in memory.
+     *
+     * @return the offset of the record in the new file
+     */
+    long write(ListState list) throws IOException {
+      long offset = out.size();
+      synchronized (ListBodyStore.this) {
+        byte[] record;
+        long currentOffset = list.getBodyOffset();
+        if (generation != null && currentOffset >= 0
+            && !list.isBodyLoaded()) {
+          record = readRecord(currentOffset);
+        } else {
+          record = list.writeBody();
+        }
+        out.writeInt(record.length);
+        out.write(record);
+      }
+      lists.add(list);
+      offsets.add(offset);
+      return offset;
+    }
+
+    void close() throws IOException {
+      out.close();
+    }
+
+    /**
+     * Discards the new file.
+     */
+    void abort() {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOGGER.log(Level.FINEST, "Failed to close " + tempFile, e);
+      }
+      if (tempFile.exists() && !tempFile.delete()) {
+        LOGGER.warning("Failed to delete " + tempFile.getAbsolutePath());
+      }
+    }
+  }
+
+  /**
+   * Replaces the current file with the one written, and points the lists to
+   * their new records.
+   */
+  synchronized void commit(Writer writer) throws IOException {
+    closeReader();
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Failed to delete " + file.getAbsolutePath());
+    }
+    if (!tempFile.renameTo(file)) {
+      throw new IOException("Failed to rename " + tempFile.getAbsolutePath()
+          + " to " + file.getAbsolutePath());
+    }
+    generation = writer.newGeneration;
+    loaded.clear();
+    modified.clear();
+    for (int i = 0; i < writer.lists.size(); i++) {
+      ListState list = writer.lists.get(i);
+      list.setBodyLocation(this, writer.offsets.get(i));
+      if (list.isBodyLoaded()) {
+        loaded.put(list.bodyKey, list);
+      }
+    }
+  }
+}
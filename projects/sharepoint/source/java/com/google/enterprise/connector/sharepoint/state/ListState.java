@@ -14,10 +14,12 @@
 package com.google.enterprise.connector.sharepoint.state;
 
 import com.google.enterprise.connector.sharepoint.client.Attribute;
+import com.google.enterprise.connector.sharepoint.client.AttributeNames;
 import com.google.enterprise.connector.sharepoint.client.SPConstants;
 import com.google.enterprise.connector.sharepoint.client.Util;
 import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
 import com.google.enterprise.connector.sharepoint.client.SPConstants.SPType;
+import com.google.enterprise.connector.sharepoint.generated.gssitediscovery.ListCrawlInfo;
 import com.google.enterprise.connector.sharepoint.spiimpl.SPDocument;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
 import com.google.enterprise.connector.spi.SpiConstants.ActionType;
@@ -29,11 +31,16 @@ import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
-import java.text.Collator;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -84,7 +91,29 @@ public class ListState implements Comparable<ListState> {
    * To store all the extraIDs for which delete feed has been sent. This is also
    * kept in memory.
    */
-  private Set<String> cachedDeletedIDs = new HashSet<String>();
+  private ItemIdBitmap cachedDeletedIDs = new ItemIdBitmap();
+
+  /**
+   * The IDs of the list items that have been fed and not deleted since. Delete
+   * feeds are sent for these when the list is deleted. Null if the list was
+   * loaded from a state file which did not track them; all IDs up to the
+   * biggest ID are assumed to have been fed then.
+   */
+  private ItemIdBitmap fedIDs = new ItemIdBitmap();
+
+  /**
+   * Where the body of this list, the extraIDs, attachments, delete cache and
+   * fed IDs, has been saved; it is read from there on first access after the
+   * state has been loaded, and may be dropped from memory again while it has
+   * not been modified. See {@link ListBodyStore}.
+   */
+  private ListBodyStore bodyStore;
+  private long bodyOffset = -1;
+  private boolean bodyLoaded = true;
+  private boolean bodyModified = true;
+
+  /** Identifies this list in the {@link ListBodyStore}. */
+  final Object bodyKey = new Object();
 
   private static final Logger LOGGER = Logger.getLogger(ListState.class.getName());
 
@@ -96,16 +125,40 @@ public class ListState implements Comparable<ListState> {
   SPDocument lastDocProcessed;
 
   /**
-   * an ordered list of SPDocuments due to be fed to the Connector Manager
+   * The SPDocuments due to be fed to the Connector Manager, in order, indexed
+   * by document ID so that the documents fed are removed in constant time. A
+   * document whose ID is already in the queue is indexed under a key of its
+   * own, and found by scanning the queue.
    */
-  private List<SPDocument> crawlQueue = null;
+  private LinkedHashMap<Object, SPDocument> crawlQueue = null;
 
-  private final Collator collator = Util.getCollator();
+  /**
+   * The last document of the crawl queue with action ADD, kept as documents
+   * are queued. Looked up again only after it is removed from the queue.
+   */
+  private SPDocument lastAddDocInCrawlQueue;
+  private boolean lastAddDocInCrawlQueueKnown = true;
 
   private String type;
   private Calendar lastMod;
   private String baseTemplate;
   private ArrayList<Attribute> attrs = new ArrayList<Attribute>();
+
+  /** The metadata names of the documents of this list. Not persisted. */
+  private final AttributeNames itemAttributeNames = new AttributeNames();
+
+  /**
+   * The internal names of the fields of this list, or null if they are not
+   * known. Not persisted.
+   */
+  private List<String> fieldNames;
+
+  /**
+   * The version of the schema the field names were read from, or null if it
+   * is not known. Not persisted.
+   */
+  private String schemaVersion;
+
   private String listConst = "/Lists";
   private boolean isSiteDefaultPage = false;
 
@@ -163,8 +216,15 @@ public class ListState implements Comparable<ListState> {
   // List Item Collection Position Next value for pagination
   private String listItemCollectionPositionNext;
 
+  // Row limit of the Lists web service calls, see AdaptiveRowLimit
+  private int rowLimit;
+
   // Anonymous Access for List State
   private boolean allowAnonymousAccess = false;
+
+  // The crawl info last fetched for the list, and when; not persisted.
+  private ListCrawlInfo crawlInfo;
+  private long crawlInfoTime;
   
   /**
    * @param inPrimaryKey
@@ -243,6 +303,45 @@ public class ListState implements Comparable<ListState> {
     this.attrs = attrs;
   }
 
+  /**
+   * @return the metadata names shared by the documents of this list
+   */
+  public AttributeNames getItemAttributeNames() {
+    return itemAttributeNames;
+  }
+
+  /**
+   * @return the internal names of the fields of this list, or null if they
+   *         are not known
+   */
+  public List<String> getFieldNames() {
+    return fieldNames;
+  }
+
+  /**
+   * @param fieldNames the internal names of the fields of this list, or null
+   *          if they are not known
+   */
+  public void setFieldNames(final List<String> fieldNames) {
+    this.fieldNames = fieldNames;
+  }
+
+  /**
+   * @return the version of the schema the field names were read from, or
+   *         null if it is not known
+   */
+  public String getSchemaVersion() {
+    return schemaVersion;
+  }
+
+  /**
+   * @param schemaVersion the version of the schema the field names were read
+   *          from, or null if it is not known
+   */
+  public void setSchemaVersion(final String schemaVersion) {
+    this.schemaVersion = schemaVersion;
+  }
+
   /**
    * @param key
    * @param value
@@ -286,9 +385,9 @@ public class ListState implements Comparable<ListState> {
    * @return the boolean value depicting if the list can contain folders
    */
   public boolean canContainFolders() {
-    if (collator.equals(type, SPConstants.DOC_LIB)
-        || collator.equals(type, SPConstants.GENERIC_LIST)
-        || collator.equals(type, SPConstants.ISSUE)) {
+    if (Util.collationEquals(type, SPConstants.DOC_LIB)
+        || Util.collationEquals(type, SPConstants.GENERIC_LIST)
+        || Util.collationEquals(type, SPConstants.ISSUE)) {
       return true;
     } else {
       return false;
@@ -299,7 +398,7 @@ public class ListState implements Comparable<ListState> {
    * @return the boolean value depicting if the list a Document library
    */
   public boolean isDocumentLibrary() {
-    if (collator.equals(type, SPConstants.DOC_LIB)) {
+    if (Util.collationEquals(type, SPConstants.DOC_LIB)) {
       return true;
     } else {
       return false;
@@ -311,9 +410,9 @@ public class ListState implements Comparable<ListState> {
    *         attachments
    */
   public boolean canContainAttachments() {
-    if (collator.equals(type, SPConstants.GENERIC_LIST)
-        || collator.equals(type, SPConstants.ISSUE)
-        || collator.equals(type, SPConstants.DISCUSSION_BOARD)) {
+    if (Util.collationEquals(type, SPConstants.GENERIC_LIST)
+        || Util.collationEquals(type, SPConstants.ISSUE)
+        || Util.collationEquals(type, SPConstants.DISCUSSION_BOARD)) {
       return true;
     } else {
       return false;
@@ -324,8 +423,8 @@ public class ListState implements Comparable<ListState> {
    * @return the boolean value depicting if the list can contain link sites
    */
   public boolean isLinkSite() {
-    if ((collator.equals(baseTemplate, SPConstants.ORIGINAL_BT_LINKS))
-        || (collator.equals(baseTemplate, SPConstants.BT_SITESLIST))) {
+    if ((Util.collationEquals(baseTemplate, SPConstants.ORIGINAL_BT_LINKS))
+        || (Util.collationEquals(baseTemplate, SPConstants.BT_SITESLIST))) {
       return true;
     } else {
       return false;
@@ -418,9 +517,12 @@ public class ListState implements Comparable<ListState> {
     if (lastMod == null) {
       return -1;
     }
-    final int lastModComparison = lastMod.getTime().compareTo(other.lastMod.getTime());
-    if (lastModComparison != 0) {
-      return lastModComparison;
+    // Comparing the milliseconds directly avoids creating two Dates for
+    // every comparison made while keeping the lists sorted.
+    final long lastModMillis = lastMod.getTimeInMillis();
+    final long otherLastModMillis = other.lastMod.getTimeInMillis();
+    if (lastModMillis != otherLastModMillis) {
+      return (lastModMillis < otherLastModMillis) ? -1 : 1;
     } else {
       return key.compareTo(other.key);
     }
@@ -500,24 +602,28 @@ public class ListState implements Comparable<ListState> {
    * @return a SPDocument if one is found in the crawl queue; null otherwise
    */
   private SPDocument getLastDocInCrawlQueueOfActionTypeADD() {
-    if (null == crawlQueue || crawlQueue.size() == 0) {
+    if (null == crawlQueue) {
       return null;
-    } else {
-      for (int i = crawlQueue.size() - 1; i >= 0; --i) {
-        SPDocument lastDoc = crawlQueue.get(i);
-        if (ActionType.ADD.equals(lastDoc.getAction())) {
-          return lastDoc;
+    }
+    if (!lastAddDocInCrawlQueueKnown) {
+      lastAddDocInCrawlQueue = null;
+      for (SPDocument doc : crawlQueue.values()) {
+        if (ActionType.ADD.equals(doc.getAction())) {
+          lastAddDocInCrawlQueue = doc;
         }
       }
+      lastAddDocInCrawlQueueKnown = true;
     }
-    return null;
+    return lastAddDocInCrawlQueue;
   }
 
   /**
-   * @return the crawl queue containg the documents from this list
+   * @return a copy of the crawl queue containg the documents from this list,
+   *         or null if there is no crawl queue
    */
   public List<SPDocument> getCrawlQueue() {
-    return crawlQueue;
+    return (crawlQueue == null)
+        ? null : new ArrayList<SPDocument>(crawlQueue.values());
   }
 
   /**
@@ -527,8 +633,7 @@ public class ListState implements Comparable<ListState> {
   public void dumpCrawlQueue() {
     if ((crawlQueue != null) && (crawlQueue.size() > 0)) {
       LOGGER.config("Crawl queue for " + getListURL());
-      for (int iDoc = 0; iDoc < crawlQueue.size(); ++iDoc) {
-        final SPDocument doc = crawlQueue.get(iDoc);
+      for (SPDocument doc : crawlQueue.values()) {
         LOGGER.config(doc.getLastMod().getTime() + ", " + doc.getUrl());
         doc.dumpAllAttrs();
       }
@@ -541,8 +646,39 @@ public class ListState implements Comparable<ListState> {
    * @param inCrawlQueue
    */
   public void setCrawlQueue(final List<SPDocument> inCrawlQueue) {
-    crawlQueue = 
-        (inCrawlQueue == null) ? null : new ArrayList<SPDocument>(inCrawlQueue);
+    lastAddDocInCrawlQueue = null;
+    lastAddDocInCrawlQueueKnown = true;
+    if (inCrawlQueue == null) {
+      crawlQueue = null;
+    } else {
+      crawlQueue = new LinkedHashMap<Object, SPDocument>();
+      for (SPDocument doc : inCrawlQueue) {
+        addToCrawlQueue(doc);
+      }
+    }
+  }
+
+  private void addToCrawlQueue(final SPDocument doc) {
+    Object key = (doc == null) ? null : doc.getDocId();
+    if (key == null || crawlQueue.containsKey(key)) {
+      key = new Object();
+    }
+    crawlQueue.put(key, doc);
+    if (doc != null && ActionType.ADD.equals(doc.getAction())) {
+      lastAddDocInCrawlQueue = doc;
+      lastAddDocInCrawlQueueKnown = true;
+    }
+  }
+
+  /**
+   * Forgets the last document with action ADD if it was removed from the
+   * crawl queue.
+   */
+  private void removedFromCrawlQueue(final SPDocument queued) {
+    if (queued == lastAddDocInCrawlQueue) {
+      lastAddDocInCrawlQueue = null;
+      lastAddDocInCrawlQueueKnown = false;
+    }
   }
 
   /**
@@ -558,11 +694,76 @@ public class ListState implements Comparable<ListState> {
           + doc.getDocId() + " ], docURL [ " + doc.getUrl() + " ]. ");
       return;
     }
-    boolean status = crawlQueue.remove(doc);
-    LOGGER.log(Level.FINE, "Document Removed from Crawl Queue. docID [ "
-        + doc.getDocId() + " ], docURL [ " + doc.getUrl() + " ], Action [ "
-        + doc.getAction() + " ], deleteStatus [ " + status
-        + " ], currentCrawlQueueSize [ " + crawlQueue.size() + " ]. ");
+    boolean status = removeFromCrawlQueue(doc);
+    logRemoval(doc, status);
+  }
+
+  /**
+   * Removes the documents fed from the crawl queue. The documents at the head
+   * of the queue, in the same order, are dropped together; the others are
+   * looked up by their ID.
+   *
+   * @param docs the documents to be removed from the crawl queue, in the
+   *          order they were fed
+   */
+  public void removeDocsFromCrawlQueue(final List<SPDocument> docs) {
+    if (null == crawlQueue) {
+      LOGGER.log(Level.WARNING, "Request for removal of " + docs.size()
+          + " documents is received when Crawl Queue is empty. List URL [ "
+          + listURL + " ].");
+      return;
+    }
+    int i = 0;
+    final Iterator<SPDocument> head = crawlQueue.values().iterator();
+    while (i < docs.size() && head.hasNext()) {
+      final SPDocument doc = docs.get(i);
+      final SPDocument queued = head.next();
+      if (null == doc || !doc.equals(queued)) {
+        break;
+      }
+      head.remove();
+      removedFromCrawlQueue(queued);
+      logRemoval(doc, true);
+      i++;
+    }
+    for (; i < docs.size(); i++) {
+      removeDocFromCrawlQueue(docs.get(i));
+    }
+  }
+
+  /**
+   * @return true if the document was found in the crawl queue and removed
+   */
+  private boolean removeFromCrawlQueue(final SPDocument doc) {
+    final String docId = doc.getDocId();
+    if (null != docId) {
+      final SPDocument queued = crawlQueue.get(docId);
+      if (null != queued && queued.equals(doc)) {
+        crawlQueue.remove(docId);
+        removedFromCrawlQueue(queued);
+        return true;
+      }
+    }
+    // The document may share its ID with another document.
+    final Iterator<SPDocument> it = crawlQueue.values().iterator();
+    while (it.hasNext()) {
+      final SPDocument queued = it.next();
+      if (doc.equals(queued)) {
+        it.remove();
+        removedFromCrawlQueue(queued);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void logRemoval(final SPDocument doc, final boolean status) {
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.log(Level.FINE, "Document Removed from Crawl Queue. docID [ "
+          + doc.getDocId() + " ], docURL [ " + doc.getUrl() + " ], Action [ "
+          + doc.getAction() + " ], deleteStatus [ " + status
+          + " ], currentCrawlQueueSize [ " + crawlQueue.size() + " ]. ");
+    }
     if (!status) {
       LOGGER.log(Level.WARNING, "Crawl Queue mismatch. Document {0} is not "
           + "available under crawl queue for List {1}",
@@ -669,9 +870,11 @@ public class ListState implements Comparable<ListState> {
   }
 
   /**
-   * @return the extraIDs
+   * @return the extraIDs. Changes to them must be made through
+   *         {@link #setIDs}, so that they are saved.
    */
   public StringBuffer getIDs() {
+    loadBody();
     return extraIDs;
   }
 
@@ -679,6 +882,7 @@ public class ListState implements Comparable<ListState> {
    * @param ds the extraIDs to set
    */
   public void setIDs(final StringBuffer ds) {
+    modifyBody();
     extraIDs = ds;
   }
 
@@ -734,6 +938,7 @@ public class ListState implements Comparable<ListState> {
 
     int idPos = -1;
 
+    modifyBody();
     final String idPattern = "\\#" + docID + "[\\#|\\~|/]";
     final Pattern pat = Pattern.compile(idPattern);
     final Matcher match = pat.matcher(extraIDs);
@@ -825,6 +1030,7 @@ public class ListState implements Comparable<ListState> {
       return depIds;
     }
 
+    loadBody();
     final String idPattern = "\\#" + docID + "[\\#|\\~|/]";
     Pattern pat = Pattern.compile(idPattern);
     Matcher match = pat.matcher(extraIDs);
@@ -888,6 +1094,7 @@ public class ListState implements Comparable<ListState> {
     if (!canContainFolders()) {
       return;
     }
+    modifyBody();
     final String idPattern = "\\#" + docID + "[\\#|\\~|/]";
     final Pattern pat = Pattern.compile(idPattern);
     final Matcher match = pat.matcher(extraIDs);
@@ -946,6 +1153,7 @@ public class ListState implements Comparable<ListState> {
           + " matches the pattern #| which is a reserved pattern. returning..");
       return;
     }
+    modifyBody();
     match = pat.matcher(attchmnts);
     if (match.find()) {
       final String newIdPart = "#" + itemID + "|" + attachmentURL + "|";
@@ -967,6 +1175,7 @@ public class ListState implements Comparable<ListState> {
       return attachmnt_urls;
     }
 
+    loadBody();
     final Pattern delimPat = Pattern.compile("\\#\\d+\\|");
     final Matcher delimMatch = delimPat.matcher(attchmnts);
 
@@ -1006,6 +1215,7 @@ public class ListState implements Comparable<ListState> {
     if (!canContainAttachments() || (attachmentURL == null)) {
       return false;
     }
+    modifyBody();
     final Pattern pat = Pattern.compile("\\#" + itemID + "\\|.*?"
         + Pattern.quote(attachmentURL));
     final Matcher match = pat.matcher(attchmnts);
@@ -1065,6 +1275,19 @@ public class ListState implements Comparable<ListState> {
         resetState();
         allowAnonymousAccess = inList.isAllowAnonymousAccess();
       }      
+      if (null != inList.getCrawlInfo()) {
+        crawlInfo = inList.getCrawlInfo();
+        crawlInfoTime = inList.crawlInfoTime;
+      }
+      // Lists crawled with change tokens get their schema back with the
+      // changes whenever its version changes. Other lists have no cheaper
+      // sign of a schema change than a modification of the list.
+      if (isCurrentChangeTokenBlank() && null != lastMod
+          && null != inList.lastMod
+          && lastMod.getTimeInMillis() != inList.lastMod.getTimeInMillis()) {
+        fieldNames = null;
+        schemaVersion = null;
+      }
     }
   }
 
@@ -1102,21 +1325,22 @@ public class ListState implements Comparable<ListState> {
    * @param deleteID
    */
   public boolean isInDeleteCache(final String deleteID) {
-    if ((cachedDeletedIDs != null) && cachedDeletedIDs.contains(deleteID)) {
-      return true;
-    } else {
-      return false;
-    }
+    loadBody();
+    return cachedDeletedIDs.contains(parseItemID(deleteID));
   }
 
   /**
-   * Adds an item ID into the local delete cache
+   * Adds an item ID into the local delete cache. The item is no longer
+   * considered fed.
    *
    * @param deleteID
    */
   public void addToDeleteCache(final String deleteID) {
-    if ((cachedDeletedIDs != null) && Util.isNumeric(deleteID)) {
-      cachedDeletedIDs.add(deleteID);
+    modifyBody();
+    int id = parseItemID(deleteID);
+    cachedDeletedIDs.add(id);
+    if (fedIDs != null) {
+      fedIDs.remove(id);
     }
   }
 
@@ -1126,16 +1350,219 @@ public class ListState implements Comparable<ListState> {
    * @param deleteID
    */
   public void removeFromDeleteCache(final String deleteID) {
-    if ((cachedDeletedIDs != null) && Util.isNumeric(deleteID)) {
-      cachedDeletedIDs.remove(deleteID);
-    }
+    modifyBody();
+    cachedDeletedIDs.remove(parseItemID(deleteID));
   }
 
   /**
    * Clears the local deleted cache store
    */
   public void clearDeleteCache() {
-    cachedDeletedIDs = new HashSet<String>();
+    modifyBody();
+    cachedDeletedIDs.clear();
+  }
+
+  /**
+   * Remembers that an item has been fed, so that a delete feed is sent for it
+   * if the list gets deleted.
+   *
+   * @param itemID
+   */
+  public void addToFedIDs(final String itemID) {
+    modifyBody();
+    if (fedIDs != null) {
+      fedIDs.add(parseItemID(itemID));
+    }
+  }
+
+  /**
+   * Tells whether an item has already been fed. When the fed items are not
+   * known, the items up to the biggest ID crawled are taken as fed.
+   *
+   * @param itemID
+   * @return true if the item has been fed and not deleted since
+   */
+  public boolean isFed(final String itemID) {
+    loadBody();
+    int id = parseItemID(itemID);
+    if (id < 0 || cachedDeletedIDs.contains(id)) {
+      return false;
+    }
+    return (fedIDs != null) ? fedIDs.contains(id) : id <= biggestID;
+  }
+
+  /**
+   * @return the IDs of the items that have been fed and not deleted since, or
+   *         null if they are not known
+   */
+  public ItemIdBitmap getFedIDs() {
+    loadBody();
+    return fedIDs;
+  }
+
+  /**
+   * Returns the smallest item ID, not less than the given one, for which a
+   * delete feed has to be sent after this list has been deleted.
+   *
+   * @param fromID
+   * @return the item ID, or -1 if there is none
+   */
+  public int getNextIDToDelete(int fromID) {
+    loadBody();
+    for (int id = fromID; ; id++) {
+      if (fedIDs != null) {
+        id = fedIDs.next(id);
+        if (id == -1) {
+          return -1;
+        }
+      } else if (id > biggestID || id < 0) {
+        return -1;
+      }
+      if (!cachedDeletedIDs.contains(id)) {
+        return id;
+      }
+    }
+  }
+
+  /**
+   * Reads the body of this list if it is not in memory.
+   */
+  private void loadBody() {
+    if (bodyStore == null) {
+      return;
+    }
+    if (bodyLoaded) {
+      bodyStore.touch(this);
+      return;
+    }
+    try {
+      bodyStore.load(this, bodyOffset);
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Failed to load extraIDs, attachments and "
+          + "delete cache for list [ " + listURL + " ]. ", e);
+      extraIDs = new StringBuffer();
+      attchmnts = new StringBuffer();
+      cachedDeletedIDs = new ItemIdBitmap();
+      fedIDs = null;
+      bodyLoaded = true;
+      bodyModified = true;
+      bodyStore.modified(this);
+    }
+  }
+
+  /**
+   * Reads the body of this list if it is not in memory, and keeps it there
+   * until it has been saved. Only called by the methods changing the body;
+   * the getters only read it with {@link #loadBody}.
+   */
+  private void modifyBody() {
+    loadBody();
+    if (!bodyModified) {
+      bodyModified = true;
+      if (bodyStore != null) {
+        bodyStore.modified(this);
+      }
+    }
+  }
+
+  long getBodyOffset() {
+    return bodyOffset;
+  }
+
+  boolean isBodyLoaded() {
+    return bodyLoaded;
+  }
+
+  /**
+   * Records where the body of this list has been saved. A body in memory is
+   * no longer modified after that.
+   */
+  void setBodyLocation(ListBodyStore store, long offset) {
+    bodyStore = store;
+    bodyOffset = offset;
+    bodyModified = false;
+  }
+
+  /**
+   * Drops the body of this list from memory, unless it has been modified
+   * since it was saved.
+   *
+   * @return true if the body is not in memory any more
+   */
+  boolean evictBody() {
+    if (bodyLoaded && (bodyModified || bodyOffset < 0)) {
+      return false;
+    }
+    extraIDs = null;
+    attchmnts = null;
+    cachedDeletedIDs = null;
+    fedIDs = null;
+    bodyLoaded = false;
+    return true;
+  }
+
+  /**
+   * Serializes the body of this list for the {@link ListBodyStore}.
+   */
+  byte[] writeBody() throws IOException {
+    loadBody();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    writeString(out, (extraIDs == null) ? null : extraIDs.toString());
+    writeString(out, (attchmnts == null) ? null : attchmnts.toString());
+    writeString(out, cachedDeletedIDs.toString());
+    writeString(out, (fedIDs == null) ? null : fedIDs.toString());
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Restores the body of this list written by {@link #writeBody}.
+   */
+  void readBody(DataInput in) throws IOException {
+    String ids = readString(in);
+    String attachments = readString(in);
+    String deleted = readString(in);
+    String fed = readString(in);
+    extraIDs = new StringBuffer((ids == null) ? "" : ids);
+    attchmnts = new StringBuffer((attachments == null) ? "" : attachments);
+    cachedDeletedIDs = ItemIdBitmap.valueOf(deleted);
+    fedIDs = (fed == null) ? null : ItemIdBitmap.valueOf(fed);
+    bodyLoaded = true;
+    bodyModified = false;
+  }
+
+  private static void writeString(DataOutput out, String value)
+      throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      byte[] bytes = value.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  /**
+   * @return the item ID, or -1 if the string is not one
+   */
+  private static int parseItemID(final String itemID) {
+    if (itemID == null) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(itemID);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
   }
 
   /**
@@ -1160,9 +1587,11 @@ public class ListState implements Comparable<ListState> {
   }
 
   /**
-   * @return the attchmnts
+   * @return the attchmnts. Changes to them must be made through
+   *         {@link #setAttchmnts}, so that they are saved.
    */
   public StringBuffer getAttchmnts() {
+    loadBody();
     return attchmnts;
   }
 
@@ -1170,6 +1599,7 @@ public class ListState implements Comparable<ListState> {
    * @param attchmnts the attchmnts to set
    */
   public void setAttchmnts(StringBuffer attchmnts) {
+    modifyBody();
     this.attchmnts = attchmnts;
   }
 
@@ -1217,7 +1647,8 @@ public class ListState implements Comparable<ListState> {
     return this.listURL;
   }
 
-  public Set<String> getDeleteCache() {
+  public ItemIdBitmap getDeleteCache() {
+    loadBody();
     return cachedDeletedIDs;
   }
 
@@ -1230,6 +1661,20 @@ public class ListState implements Comparable<ListState> {
    */
   public void dumpStateToXML(ContentHandler handler, FeedType feedType)
       throws SAXException {
+    dumpStateToXML(handler, feedType, null);
+  }
+
+  /**
+   * dumps all the necessary information to a node in the state file
+   *
+   * @param handler
+   * @param feedType
+   * @param bodies where to write the extraIDs, attachments and delete cache
+   *          instead of the state file; may be null
+   * @throws SAXException
+   */
+  void dumpStateToXML(ContentHandler handler, FeedType feedType,
+      ListBodyStore.Writer bodies) throws SAXException {
     AttributesImpl atts = new AttributesImpl();
     atts.clear();
     atts.addAttribute("", "", SPConstants.STATE_ID, SPConstants.STATE_ATTR_ID, getPrimaryKey());
@@ -1258,18 +1703,11 @@ public class ListState implements Comparable<ListState> {
           // We need to remember this so that duplicate delete feeds
           // are not sent. This is critical because of a bug in GSA
           // wherein duplicate delete feeds hangs the GSA indexer.
-          if (getDeleteCache() != null && getDeleteCache().size() > 0) {
-            StringBuffer deletedListItemIDs = new StringBuffer();
-            boolean firstElement = true;
-            for (String deletedID : getDeleteCache()) {
-              if (firstElement) {
-                deletedListItemIDs.append(deletedID);
-                firstElement = false;
-              } else {
-                deletedListItemIDs.append(SPConstants.HASH).append(deletedID);
-              }
-            }
-            atts.addAttribute("", "", SPConstants.STATE_DELETED_LIST_ITEMIDS, SPConstants.STATE_ATTR_CDATA, deletedListItemIDs.toString());
+          if (bodies == null && !getDeleteCache().isEmpty()) {
+            atts.addAttribute("", "", SPConstants.STATE_DELETED_LIST_ITEMIDS, SPConstants.STATE_ATTR_CDATA, getDeleteCache().toString());
+          }
+          if (bodies == null && getFedIDs() != null) {
+            atts.addAttribute("", "", SPConstants.STATE_FED_LIST_ITEMIDS, SPConstants.STATE_ATTR_CDATA, getFedIDs().toString());
           }
         }
       }
@@ -1278,11 +1716,24 @@ public class ListState implements Comparable<ListState> {
     // Dump the "Nocrawl" flag
     atts.addAttribute("", "", SPConstants.STATE_NOCRAWL, SPConstants.STATE_ATTR_CDATA, String.valueOf(isNoCrawl()));
 
+    if (rowLimit > 0) {
+      atts.addAttribute("", "", SPConstants.STATE_ROW_LIMIT, SPConstants.STATE_ATTR_CDATA, String.valueOf(rowLimit));
+    }
+
+    if (bodies != null) {
+      try {
+        atts.addAttribute("", "", SPConstants.STATE_LIST_BODY, SPConstants.STATE_ATTR_CDATA, String.valueOf(bodies.write(this)));
+      } catch (IOException e) {
+        throw new SAXException(e);
+      }
+    }
+
     handler.startElement("", "", SPConstants.LIST_STATE, atts);
 
-    // Creating child nodes of ListState node
+    // Creating child nodes of ListState node. The extraIDs and attachments
+    // are in the list body store if there is one.
     if (SPConstants.ALERTS_TYPE.equalsIgnoreCase(type)) {
-      if (getIDs() != null && getIDs().length() != 0) {
+      if (bodies == null && getIDs() != null && getIDs().length() != 0) {
         atts.clear();
         handler.startElement("", "", SPConstants.STATE_EXTRAIDS_ALERTS, atts);
         handler.characters(getIDs().toString().toCharArray(), 0, getIDs().length());
@@ -1290,7 +1741,7 @@ public class ListState implements Comparable<ListState> {
       }
     } else {
       if (SPType.SP2007 == getParentWebState().getSharePointType()) {
-        if (FeedType.CONTENT_FEED == feedType) {
+        if (bodies == null && FeedType.CONTENT_FEED == feedType) {
           if (canContainFolders() && getIDs() != null && getIDs().length() != 0) {
             atts.clear();
             handler.startElement("", "", SPConstants.STATE_EXTRAIDS_FOLDERS, atts);
@@ -1444,11 +1895,17 @@ public class ListState implements Comparable<ListState> {
                 + list.getListURL() + " ]. ", e);
           }
 
-          String deletedListItemsIDs = atts.getValue(SPConstants.STATE_DELETED_LIST_ITEMIDS);
-          if (deletedListItemsIDs != null && !deletedListItemsIDs.equals("")) {
-
-            String[] deletedIds = deletedListItemsIDs.split(SPConstants.HASH);
-            Collections.addAll(list.getDeleteCache(), deletedIds);
+          list.cachedDeletedIDs = ItemIdBitmap.valueOf(
+              atts.getValue(SPConstants.STATE_DELETED_LIST_ITEMIDS));
+
+          // State files written before the fed IDs were tracked do not have
+          // them; fall back to deleting every ID up to the biggest one.
+          String fedListItemIDs =
+              atts.getValue(SPConstants.STATE_FED_LIST_ITEMIDS);
+          if (fedListItemIDs != null) {
+            list.fedIDs = ItemIdBitmap.valueOf(fedListItemIDs);
+          } else if (list.getBiggestID() > 0) {
+            list.fedIDs = null;
           }
         }
       }
@@ -1456,6 +1913,16 @@ public class ListState implements Comparable<ListState> {
 
     list.setNoCrawl(Boolean.getBoolean(atts.getValue(SPConstants.STATE_NOCRAWL)));
 
+    final String rowLimit = atts.getValue(SPConstants.STATE_ROW_LIMIT);
+    if (rowLimit != null) {
+      try {
+        list.setRowLimit(Integer.parseInt(rowLimit));
+      } catch (final NumberFormatException e) {
+        LOGGER.log(Level.WARNING, "Ignoring invalid row limit [ " + rowLimit
+            + " ] of list [ " + list.getListURL() + " ].");
+      }
+    }
+
     return list;
   }
 
@@ -1502,9 +1969,9 @@ public class ListState implements Comparable<ListState> {
     if (spDocListHome != null) {
       if (crawlQueue == null) {
         // Initialize crawl queue for List if empty.
-        crawlQueue = new ArrayList<SPDocument>();
+        crawlQueue = new LinkedHashMap<Object, SPDocument>();
       }
-      crawlQueue.add(spDocListHome);      
+      addToCrawlQueue(spDocListHome);      
     } else {
       LOGGER.log(Level.WARNING, "List Home Page Document is null for List [ "
           + getListURL() + " ].");
@@ -1660,4 +2127,42 @@ public class ListState implements Comparable<ListState> {
     this.allowAnonymousAccess = allowAnonymousAccess;
   }
 
+  /**
+   * @return the row limit of the Lists web service calls for the list, or 0
+   *         if it has not been adjusted yet
+   */
+  public int getRowLimit() {
+    return rowLimit;
+  }
+
+  public void setRowLimit(int rowLimit) {
+    this.rowLimit = rowLimit;
+  }
+
+  /**
+   * @return the crawl info last fetched for the list, or null
+   */
+  public ListCrawlInfo getCrawlInfo() {
+    return crawlInfo;
+  }
+
+  /**
+   * @param crawlInfo the crawl info fetched for the list
+   * @param fetchTime when the crawl info was fetched, in milliseconds
+   */
+  public void setCrawlInfo(ListCrawlInfo crawlInfo, long fetchTime) {
+    this.crawlInfo = crawlInfo;
+    this.crawlInfoTime = fetchTime;
+  }
+
+  /**
+   * @param now the current time, in milliseconds
+   * @param timeToLive how long crawl info can be used, in milliseconds
+   * @return true if the crawl info of the list was fetched within the time to
+   *         live
+   */
+  public boolean isCrawlInfoCurrent(long now, long timeToLive) {
+    return null != crawlInfo && now - crawlInfoTime < timeToLive;
+  }
+
 }
@@ -0,0 +1,106 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import com.google.enterprise.connector.sharepoint.client.SPConstants;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The personal sites discovered from the user profiles, by the account name
+ * of the profile owner, together with the user profile change token they are
+ * up to date with. Persisted in the state file so that the next discovery
+ * only has to look at the profiles changed since.
+ */
+public class PersonalSiteState {
+  private final TreeMap<String, String> sites =
+      new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+  private String changeToken;
+
+  /**
+   * @return the user profile change token the sites are up to date with, or
+   *         null if the profiles have to be scanned
+   */
+  public synchronized String getChangeToken() {
+    return changeToken;
+  }
+
+  public synchronized void setChangeToken(String changeToken) {
+    this.changeToken = changeToken;
+  }
+
+  /**
+   * Records the personal site of an account.
+   *
+   * @param account the account name of the profile owner
+   * @param url the URL of the personal site, or null if the profile has none
+   */
+  public synchronized void put(String account, String url) {
+    if (url == null) {
+      sites.remove(account);
+    } else {
+      sites.put(account, url);
+    }
+  }
+
+  public synchronized void remove(String account) {
+    sites.remove(account);
+  }
+
+  /**
+   * Forgets all the sites and the change token.
+   */
+  public synchronized void clear() {
+    sites.clear();
+    changeToken = null;
+  }
+
+  public synchronized int size() {
+    return sites.size();
+  }
+
+  /**
+   * @return a copy of the personal site URLs by account name
+   */
+  public synchronized Map<String, String> getSites() {
+    return new HashMap<String, String>(sites);
+  }
+
+  synchronized void dumpStateToXML(ContentHandler handler)
+      throws SAXException {
+    AttributesImpl atts = new AttributesImpl();
+    if (changeToken != null) {
+      atts.addAttribute("", "", SPConstants.STATE_CHANGETOKEN,
+          SPConstants.STATE_ATTR_CDATA, changeToken);
+    }
+    handler.startElement("", "", SPConstants.STATE_PERSONAL_SITES, atts);
+    for (Map.Entry<String, String> site : sites.entrySet()) {
+      atts.clear();
+      atts.addAttribute("", "", SPConstants.STATE_ACCOUNT,
+          SPConstants.STATE_ATTR_CDATA, site.getKey());
+      atts.addAttribute("", "", SPConstants.STATE_URL,
+          SPConstants.STATE_ATTR_CDATA, site.getValue());
+      handler.startElement("", "", SPConstants.STATE_PERSONAL_SITE, atts);
+      handler.endElement("", "", SPConstants.STATE_PERSONAL_SITE);
+    }
+    handler.endElement("", "", SPConstants.STATE_PERSONAL_SITES);
+  }
+}
@@ -0,0 +1,35 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import java.util.Iterator;
+
+/**
+ * Crawls the webs in the order of the state, starting from the web the
+ * previous batch traversal stopped at and wrapping around. The webs are
+ * read from the state as they are crawled, without copying them.
+ */
+public class RoundRobinSchedulingPolicy implements WebSchedulingPolicy {
+  @Override
+  public Iterator<WebState> getTraversalOrder(GlobalState globalState,
+      long now) {
+    return globalState.getCircularIterator();
+  }
+
+  @Override
+  public void recordVisit(WebState web, int changes, long now) {
+    web.setVisit(now, web.getChangeRate());
+  }
+}
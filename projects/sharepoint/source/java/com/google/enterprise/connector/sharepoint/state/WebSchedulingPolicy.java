@@ -0,0 +1,42 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import java.util.Iterator;
+
+/**
+ * Decides the order in which the webs are crawled in a batch traversal.
+ * The traversal stops once it has found batch hint documents, so the webs
+ * early in the order are crawled more often.
+ */
+public interface WebSchedulingPolicy {
+  /**
+   * @param globalState the state of the webs
+   * @param now the current time, in milliseconds
+   * @return the webs in the order they are to be crawled. The traversal may
+   *         stop at any point, and the state may change while it goes on.
+   */
+  Iterator<WebState> getTraversalOrder(GlobalState globalState, long now);
+
+  /**
+   * Records that a web has been completely crawled.
+   *
+   * @param web the web crawled
+   * @param changes the number of changed items found since the web was last
+   *          completely crawled
+   * @param now the current time, in milliseconds
+   */
+  void recordVisit(WebState web, int changes, long now);
+}
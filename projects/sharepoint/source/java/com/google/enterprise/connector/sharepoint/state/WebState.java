@@ -101,8 +101,19 @@ public class WebState implements Comparable<WebState> {
 
   // for determining the crawl behavior of the web
   private WebCrawlInfo webCrawlInfo;
+  // When the crawl info was fetched from SharePoint; not persisted.
+  private long webCrawlInfoTime;
   
   private final Set<String> spGroupsToResolve = new TreeSet<String>();
+  // The site collection of the SharePoint groups to resolve.
+  private String siteCollectionUrl;
+
+  // Number of changes seen since the web was last completely crawled; not
+  // persisted. When it was last completely crawled, and its estimated
+  // changes per hour as kept by the scheduling policy.
+  private int observedChanges;
+  private long lastVisitTime;
+  private double changeRate = -1;
 
   /**
    * For the sole purpose of loading WebState nodes as WebState objects when
@@ -256,7 +267,9 @@ public class WebState implements Comparable<WebState> {
       // descending ordering of webstates. The
       // TreeSet.descendingIterator() is in JDK 1.6
       final int insertComparison = other.insertionTime.compareTo(this.insertionTime);
-      return insertComparison;
+      if (insertComparison != 0) {
+        return insertComparison;
+      }
     }
     return webId.compareTo(other.webId);
   }
@@ -334,28 +347,26 @@ public class WebState implements Comparable<WebState> {
 
             // start from 1 because 0 is not a valid itemID.
             // SharePoint starts allocating ID from 1.
-            int maxID = 1;
             // One may think of starting from the largest ID in the
             // lists's delete cache. But, that is not safe. The
             // biggest ID might not be the one that has been sent as
-            // deleted feed after the list's deletion.
-
-            LOGGER.log(Level.INFO, "List [ " + list.getListURL()
-                + " ] has been deleted. Using BiggestID [ " + biggestID
-                + " ] and to construct delete feeds.");
-            while ((maxID <= biggestID)
+            // deleted feed after the list's deletion. IDs in the delete
+            // cache are skipped, a delete feed has been sent for them in
+            // some earlier batch traversal.
+            int maxID = list.getNextIDToDelete(1);
+
+            if (list.getFedIDs() != null) {
+              LOGGER.log(Level.INFO, "List [ " + list.getListURL()
+                  + " ] has been deleted. Using the IDs of the #"
+                  + list.getFedIDs().size()
+                  + " fed items to construct delete feeds.");
+            } else {
+              LOGGER.log(Level.INFO, "List [ " + list.getListURL()
+                  + " ] has been deleted. Using BiggestID [ " + biggestID
+                  + " ] and to construct delete feeds.");
+            }
+            while ((maxID != -1)
                 && (deletedDocs.size() < spContext.getBatchHint())) {
-              if (list.isInDeleteCache(new Integer(maxID).toString())) {
-                if (LOGGER.isLoggable(Level.FINER)) {
-                  LOGGER.log(Level.FINER, "Skipping sending delete feed for document with ID : "
-                              + maxID
-                              + " under list : "
-                              + list.getListURL()
-                              + ". A delete feed has been sent in some earlier batch traversal.");
-                }
-                ++maxID;
-                continue;
-              }
               String docID = list.getListURL() + SPConstants.DOC_TOKEN
                   + Integer.toString(maxID);
               final SPDocument doc = new SPDocument(docID, list.getListURL(),
@@ -385,7 +396,7 @@ public class WebState implements Comparable<WebState> {
                   deletedDocs.add(attchmnt);
                 }
               }
-              ++maxID;
+              maxID = list.getNextIDToDelete(maxID + 1);
             }
 
             // If we have sent the complete delete feeds, send one
@@ -398,7 +409,7 @@ public class WebState implements Comparable<WebState> {
                   + list.getListURL() + "]. ");
               iter.remove();
               keyMap.remove(list.getPrimaryKey());
-            } else if (maxID >= biggestID) {
+            } else if (maxID == -1) {
               String docID = null;
               if (!list.isSiteDefaultPage()) {
                 docID = list.getListURL() + SPConstants.DOC_TOKEN
@@ -580,6 +591,15 @@ public class WebState implements Comparable<WebState> {
 
   public void dumpStateToXML(ContentHandler handler, FeedType feedType)
       throws SAXException {
+    dumpStateToXML(handler, feedType, null);
+  }
+
+  /**
+   * @param bodies where to write the bodies of the lists instead of the state
+   *          file; may be null
+   */
+  void dumpStateToXML(ContentHandler handler, FeedType feedType,
+      ListBodyStore.Writer bodies) throws SAXException {
     AttributesImpl atts = new AttributesImpl();
 
     atts.clear();
@@ -599,6 +619,18 @@ public class WebState implements Comparable<WebState> {
 
     atts.addAttribute("", "", SPConstants.STATE_NOCRAWL, SPConstants.STATE_ATTR_CDATA, String.valueOf(isNoCrawl()));
     atts.addAttribute("", "", SPConstants.STATE_CRAWLASPXPAGES, SPConstants.STATE_ATTR_CDATA, String.valueOf(isCrawlAspxPages()));
+    if (null != siteCollectionUrl) {
+      atts.addAttribute("", "", SPConstants.STATE_SITE_COLLECTION_URL,
+          SPConstants.STATE_ATTR_CDATA, siteCollectionUrl);
+    }
+    if (lastVisitTime > 0) {
+      atts.addAttribute("", "", SPConstants.STATE_LAST_VISIT_TIME,
+          SPConstants.STATE_ATTR_CDATA, String.valueOf(lastVisitTime));
+    }
+    if (changeRate >= 0) {
+      atts.addAttribute("", "", SPConstants.STATE_CHANGE_RATE,
+          SPConstants.STATE_ATTR_CDATA, String.valueOf(changeRate));
+    }
 
     handler.startElement("", "", SPConstants.WEB_STATE, atts);
 
@@ -611,7 +643,7 @@ public class WebState implements Comparable<WebState> {
     // had stopped. Having the liststates persisted to state file will
     // ensure the same
     for (ListState list : allListStateSet) {
-      list.dumpStateToXML(handler, feedType);
+      list.dumpStateToXML(handler, feedType, bodies);
     }
 
     handler.endElement("", "", SPConstants.WEB_STATE);
@@ -647,6 +679,17 @@ public class WebState implements Comparable<WebState> {
     webCrawlInfo.setNoCrawl(Boolean.getBoolean(atts.getValue(SPConstants.STATE_NOCRAWL)));
     webCrawlInfo.setCrawlAspxPages(Boolean.getBoolean(atts.getValue(SPConstants.STATE_CRAWLASPXPAGES)));
     web.setWebCrawlInfo(webCrawlInfo);
+    web.setSiteCollectionUrl(
+        atts.getValue(SPConstants.STATE_SITE_COLLECTION_URL));
+    try {
+      String lastVisitTime = atts.getValue(SPConstants.STATE_LAST_VISIT_TIME);
+      String changeRate = atts.getValue(SPConstants.STATE_CHANGE_RATE);
+      web.setVisit((lastVisitTime == null) ? 0 : Long.parseLong(lastVisitTime),
+          (changeRate == null) ? -1 : Double.parseDouble(changeRate));
+    } catch (NumberFormatException e) {
+      LOGGER.log(Level.WARNING, "Could not load the change rate for "
+          + "web-state [ " + web.getPrimaryKey() + " ]. ");
+    }
 
     return web;
   }
@@ -732,6 +775,103 @@ public class WebState implements Comparable<WebState> {
     this.webCrawlInfo = webCrawlInfo;
   }
 
+  /**
+   * Sets the crawl info of the web fetched from SharePoint.
+   *
+   * @param webCrawlInfo the crawl info
+   * @param fetchTime when the crawl info was fetched, in milliseconds
+   */
+  public void setWebCrawlInfo(WebCrawlInfo webCrawlInfo, long fetchTime) {
+    this.webCrawlInfo = webCrawlInfo;
+    this.webCrawlInfoTime = fetchTime;
+  }
+
+  /**
+   * @param now the current time, in milliseconds
+   * @param timeToLive how long crawl info can be used, in milliseconds
+   * @return true if the crawl info of the web was fetched within the time to
+   *         live
+   */
+  public boolean isWebCrawlInfoCurrent(long now, long timeToLive) {
+    return webCrawlInfoTime > 0 && now - webCrawlInfoTime < timeToLive;
+  }
+
+  /**
+   * @param now the current time, in milliseconds
+   * @param timeToLive how long crawl info can be used, in milliseconds
+   * @return true if the web has lists and the crawl info of all of them was
+   *         fetched within the time to live
+   */
+  public boolean isListCrawlInfoCurrent(long now, long timeToLive) {
+    if (getAllListStateSet().isEmpty()) {
+      return false;
+    }
+    for (ListState listState : getAllListStateSet()) {
+      if (!listState.isCrawlInfoCurrent(now, timeToLive)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the web has pages, documents, ACL changes or groups left
+   *         to crawl from the previous batch traversals
+   */
+  public boolean hasPendingWork() {
+    if (isWebApplicationPolicyChange() || !spGroupsToResolve.isEmpty()) {
+      return true;
+    }
+    for (ListState list : getAllListStateSet()) {
+      if (null != list.getNextPage() || !list.isCrawlQueueEmpty()
+          || list.isAclChanged() || !list.isNextChangeTokenBlank()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the number of changed items seen since the web was last
+   *         completely crawled
+   */
+  public int getObservedChanges() {
+    return observedChanges;
+  }
+
+  public void addObservedChanges(int changes) {
+    observedChanges += changes;
+  }
+
+  /**
+   * @return when the web was last completely crawled, in milliseconds, or 0
+   *         if it has never been completely crawled
+   */
+  public long getLastVisitTime() {
+    return lastVisitTime;
+  }
+
+  /**
+   * @return the estimated number of changes per hour, or a negative number
+   *         if not known
+   */
+  public double getChangeRate() {
+    return changeRate;
+  }
+
+  /**
+   * Records a complete crawl of the web, and clears the changes seen.
+   *
+   * @param visitTime when the crawl completed, in milliseconds
+   * @param changeRate the estimated number of changes per hour, or a
+   *          negative number if not known
+   */
+  public void setVisit(long visitTime, double changeRate) {
+    this.lastVisitTime = visitTime;
+    this.changeRate = changeRate;
+    this.observedChanges = 0;
+  }
+
   public boolean isWebApplicationPolicyChange() {
     return webApplicationPolicyChange;
   }
@@ -764,4 +904,15 @@ public class WebState implements Comparable<WebState> {
   public boolean removeSPGroupToResolve(String spGroup) {
     return spGroupsToResolve.remove(spGroup);
   }
+
+  /**
+   * @return the URL of the site collection of the web, if known.
+   */
+  public String getSiteCollectionUrl() {
+    return siteCollectionUrl;
+  }
+
+  public void setSiteCollectionUrl(String siteCollectionUrl) {
+    this.siteCollectionUrl = siteCollectionUrl;
+  }
 }
@@ -122,4 +122,14 @@ public interface ListsWS extends BaseWS {
   public List<SPDocument> getAttachments(ListState baseList,
       SPDocument listItem, List<String> knownAttachments)
       throws Exception;
+
+  /**
+   * Gets the fields of a list from its schema, using GetList() Web Method.
+   *
+   * @param list the list whose fields are to be retrieved
+   * @return the internal names of the fields of the list, or null if they
+   *         are not known
+   * @throws Exception on error
+   */
+  public List<String> getListFields(ListState list) throws Exception;
 }
@@ -20,6 +20,9 @@ import com.google.enterprise.connector.sharepoint.generated.sitedata.holders._sW
 import java.rmi.RemoteException;
 import java.util.List;
 
+import javax.xml.rpc.holders.BooleanHolder;
+import javax.xml.rpc.holders.StringHolder;
+
 public interface SiteDataWS extends BaseWS {
   /**
    * Gets the collection of all the lists on the sharepoint server.
@@ -45,4 +48,28 @@ public interface SiteDataWS extends BaseWS {
    * @throws RemoteException on web service error
    */
   public String getContentList(String id) throws RemoteException;
+
+  /**
+   * Makes call to SiteData web service to get the meta data of the site
+   * collection of the web.
+   *
+   * @return XML string for the site collection meta data
+   * @throws RemoteException on web service error
+   */
+  public String getContentSiteCollection() throws RemoteException;
+
+  /**
+   * Makes call to SiteData web service to get the changes made to a site
+   * collection since a change.
+   *
+   * @param siteId the ID of the site collection
+   * @param lastChangeId the ID of the last change known; it is updated to
+   *          the ID of the last change returned
+   * @param moreChanges set to true if there are more changes to get
+   * @return XML string for the changes
+   * @throws RemoteException on web service error
+   */
+  public String getChangesSiteCollection(String siteId,
+      StringHolder lastChangeId, BooleanHolder moreChanges)
+      throws RemoteException;
 }
@@ -15,6 +15,7 @@
 package com.google.enterprise.connector.sharepoint.wsclient.client;
 
 import com.google.enterprise.connector.sharepoint.generated.userprofileservice.GetUserProfileByIndexResult;
+import com.google.enterprise.connector.sharepoint.generated.userprofileservice.PropertyData;
 
 import java.rmi.RemoteException;
 
@@ -28,4 +29,14 @@ public interface UserProfile2007WS extends BaseWS {
    */
   public GetUserProfileByIndexResult getUserProfileByIndex(int index)
       throws RemoteException;
+
+  /**
+   * This method returns the properties of the user profile of an account.
+   *
+   * @param accountName The account name of the user
+   * @return the properties of the user profile
+   * @throws RemoteException
+   */
+  public PropertyData[] getUserProfileByName(String accountName)
+      throws RemoteException;
 }
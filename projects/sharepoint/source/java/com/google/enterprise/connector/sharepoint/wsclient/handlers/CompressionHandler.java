@@ -0,0 +1,343 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.wsclient.handlers;
+
+import com.google.enterprise.connector.sharepoint.client.SPConstants;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.Message;
+import org.apache.axis.MessageContext;
+import org.apache.axis.SOAPPart;
+import org.apache.axis.client.Stub;
+import org.apache.axis.handlers.BasicHandler;
+import org.apache.axis.transport.http.HTTPConstants;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A message handler that measures how much the compressed web service
+ * responses are compressed, along with the helpers to accept compressed
+ * web service responses and document contents.
+ * <p/>
+ * Compressed document contents are decompressed as they are read, so they
+ * are never held in memory in full. Web service responses are decompressed
+ * by the Axis HTTP sender, which only supports gzip, so deflate is only
+ * accepted for document contents. Compression does not reduce the memory
+ * used by web service responses: {@link InvalidXmlCharacterHandler} still
+ * reads each decompressed SOAP response into a string. The compression
+ * ratio of each web service is logged every {@link #LOG_INTERVAL}
+ * compressed responses.
+ */
+public class CompressionHandler extends BasicHandler {
+  private static final Logger LOGGER =
+      Logger.getLogger(CompressionHandler.class.getName());
+
+  /** The encodings accepted for document contents. */
+  public static final String CONTENT_ACCEPT_ENCODING = "gzip, deflate";
+
+  /** The name the document contents are logged under. */
+  public static final String CONTENT_SERVICE = "content";
+
+  /** The number of compressed responses between two logs of the ratio. */
+  static final int LOG_INTERVAL = 100;
+
+  /** The sizes of the compressed responses of a web service. */
+  static class Stats {
+    final AtomicLong responses = new AtomicLong();
+    /** The compressed size of the responses whose size is known. */
+    final AtomicLong compressedBytes = new AtomicLong();
+    /** The decompressed size of the same responses. */
+    final AtomicLong bytes = new AtomicLong();
+  }
+
+  /** Web service name to the sizes of its compressed responses. */
+  private static final ConcurrentMap<String, Stats> stats =
+      new ConcurrentHashMap<String, Stats>();
+
+  /**
+   * Makes the web service calls of a stub accept gzip compressed responses.
+   *
+   * @param stub the stub of a web service
+   * @param useCompression whether compressed responses are accepted
+   */
+  public static void setAcceptCompression(Stub stub, boolean useCompression) {
+    if (useCompression) {
+      stub._setProperty(HTTPConstants.MC_ACCEPT_GZIP, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Counts the size of the compressed web service responses as they are
+   * read.
+   */
+  @Override
+  public void invoke(MessageContext messageContext) throws AxisFault {
+    Message message = messageContext.getResponseMessage();
+    if (null == message || null == getHeader(message,
+        SPConstants.CONTENT_ENCODING_HEADER)) {
+      return;
+    }
+    // The sender has already read the response when its debug logging is
+    // enabled, in which case the response is not counted.
+    SOAPPart soapPart = (SOAPPart) message.getSOAPPart();
+    if (soapPart.getCurrentForm() != SOAPPart.FORM_INPUTSTREAM) {
+      return;
+    }
+    // The compressed size is only known from the header, which chunked
+    // responses do not have.
+    long compressedBytes = -1;
+    String length = getHeader(message, HTTPConstants.HEADER_CONTENT_LENGTH);
+    if (null != length) {
+      try {
+        compressedBytes = Long.parseLong(length.trim());
+      } catch (NumberFormatException e) {
+        LOGGER.log(Level.FINEST, "Invalid Content-Length: " + length);
+      }
+    }
+    soapPart.setCurrentMessage(new DecompressedInputStream(
+        (InputStream) soapPart.getCurrentMessage(),
+        getServiceName(messageContext.getStrProp(MessageContext.TRANS_URL)),
+        null, compressedBytes), SOAPPart.FORM_INPUTSTREAM);
+  }
+
+  /**
+   * Decompresses a document content as it is read.
+   *
+   * @param in the content, as received
+   * @param contentEncoding the Content-Encoding of the response, or null
+   * @return the decompressed content
+   * @throws IOException if the content encoding is not supported, or the
+   *           content is not encoded with it
+   */
+  public static InputStream decompress(InputStream in, String contentEncoding)
+      throws IOException {
+    if (null == contentEncoding) {
+      return in;
+    }
+    String encoding = contentEncoding.trim().toLowerCase(Locale.ENGLISH);
+    if (encoding.length() == 0 || encoding.equals("identity")) {
+      return in;
+    }
+    ByteCounter compressed = new ByteCounter(in);
+    InputStream decompressed;
+    if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+      decompressed = new GZIPInputStream(compressed);
+    } else if (encoding.equals("deflate")) {
+      decompressed = inflate(compressed);
+    } else {
+      throw new IOException("Unsupported Content-Encoding: "
+          + contentEncoding);
+    }
+    return new DecompressedInputStream(decompressed, CONTENT_SERVICE,
+        compressed, -1);
+  }
+
+  /**
+   * Deflate responses should be in the zlib format, but some servers send
+   * the raw deflate data. The zlib header tells them apart.
+   */
+  private static InputStream inflate(InputStream in) throws IOException {
+    PushbackInputStream pushback = new PushbackInputStream(in, 2);
+    int first = pushback.read();
+    int second = pushback.read();
+    if (second >= 0) {
+      pushback.unread(second);
+    }
+    if (first >= 0) {
+      pushback.unread(first);
+    }
+    boolean zlib = first >= 0 && second >= 0 && (first & 0x0f) == 8
+        && ((first << 8) | second) % 31 == 0;
+    final Inflater inflater = new Inflater(!zlib);
+    return new InflaterInputStream(pushback, inflater) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          inflater.end();
+        }
+      }
+    };
+  }
+
+  /**
+   * Records the sizes of a compressed response.
+   *
+   * @param service the name of the web service
+   * @param compressedBytes the compressed size, or -1 if it is not known
+   * @param bytes the decompressed size
+   */
+  static void record(String service, long compressedBytes, long bytes) {
+    Stats serviceStats = getStats(service);
+    if (compressedBytes >= 0) {
+      serviceStats.compressedBytes.addAndGet(compressedBytes);
+      serviceStats.bytes.addAndGet(bytes);
+    }
+    long responses = serviceStats.responses.incrementAndGet();
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Compressed response of " + service + ": "
+          + ((compressedBytes >= 0) ? compressedBytes : "unknown")
+          + " bytes, " + bytes + " bytes decompressed.");
+    }
+    if (responses % LOG_INTERVAL == 0) {
+      long totalCompressed = serviceStats.compressedBytes.get();
+      long total = serviceStats.bytes.get();
+      LOGGER.info("Compression ratio of " + service + ": "
+          + ((totalCompressed > 0)
+              ? String.format("%.2f", (double) total / totalCompressed)
+              : "unknown") + " (" + total + " bytes received as "
+          + totalCompressed + " bytes in " + responses + " responses).");
+    }
+  }
+
+  static Stats getStats(String service) {
+    Stats serviceStats = stats.get(service);
+    if (null == serviceStats) {
+      stats.putIfAbsent(service, new Stats());
+      serviceStats = stats.get(service);
+    }
+    return serviceStats;
+  }
+
+  /**
+   * @return the name of the web service at the end of the endpoint URL
+   */
+  static String getServiceName(String endpoint) {
+    if (null == endpoint) {
+      return "unknown";
+    }
+    int query = endpoint.indexOf('?');
+    if (query != -1) {
+      endpoint = endpoint.substring(0, query);
+    }
+    return endpoint.substring(endpoint.lastIndexOf('/') + 1);
+  }
+
+  private static String getHeader(Message message, String name) {
+    String[] values = message.getMimeHeaders().getHeader(name);
+    return (null == values || values.length == 0) ? null : values[0];
+  }
+
+  /** Counts the bytes read from a stream. */
+  private static class ByteCounter extends FilterInputStream {
+    long count;
+
+    ByteCounter(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  /**
+   * A decompressed response, whose sizes are recorded once it has been read
+   * to the end or closed.
+   */
+  private static class DecompressedInputStream extends ByteCounter {
+    private final String service;
+    private final ByteCounter compressed;
+    private final long compressedBytes;
+    private boolean recorded = false;
+
+    /**
+     * @param compressed the compressed stream, or null if the compressed
+     *          size is given
+     * @param compressedBytes the compressed size, or -1 if it is not known
+     */
+    DecompressedInputStream(InputStream in, String service,
+        ByteCounter compressed, long compressedBytes) {
+      super(in);
+      this.service = service;
+      this.compressed = compressed;
+      this.compressedBytes = compressedBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b < 0) {
+        record();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n < 0) {
+        record();
+      }
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        record();
+      }
+    }
+
+    private void record() {
+      if (!recorded) {
+        recorded = true;
+        CompressionHandler.record(service,
+            (null == compressed) ? compressedBytes : compressed.count, count);
+      }
+    }
+  }
+}
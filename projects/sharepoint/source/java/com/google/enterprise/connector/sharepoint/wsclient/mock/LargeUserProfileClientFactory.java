@@ -0,0 +1,252 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.wsclient.mock;
+
+import com.google.enterprise.connector.sharepoint.client.SPConstants;
+import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
+import com.google.enterprise.connector.sharepoint.generated.userprofilechangeservice.UserProfileChangeData;
+import com.google.enterprise.connector.sharepoint.generated.userprofilechangeservice.UserProfileChangeDataContainer;
+import com.google.enterprise.connector.sharepoint.generated.userprofilechangeservice.UserProfileChangeQuery;
+import com.google.enterprise.connector.sharepoint.generated.userprofileservice.GetUserProfileByIndexResult;
+import com.google.enterprise.connector.sharepoint.generated.userprofileservice.PropertyData;
+import com.google.enterprise.connector.sharepoint.generated.userprofileservice.ValueData;
+import com.google.enterprise.connector.sharepoint.wsclient.client.UserProfile2007WS;
+import com.google.enterprise.connector.sharepoint.wsclient.client.UserProfileChangeWS;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A mock factory for a farm with a large number of user profiles, each with
+ * a personal site, and a user profile change log.
+ * <p/>
+ * The profiles are numbered from zero and profile {@code n} has the index
+ * {@code stride * n + 1}, 2 by default, so the indexes have gaps as they do
+ * on a real server. The
+ * calls made to the services are counted, and every call waits for the
+ * configured latency to simulate the round trip to the server.
+ */
+public class LargeUserProfileClientFactory extends MockClientFactory {
+  /** Changes returned by one call to getChanges. */
+  private static final int MAX_CHANGES_PER_CALL = 1000;
+
+  private static final String TOKEN_PREFIX = "mock-profile-token-";
+
+  private final long latencyMillis;
+  private final int stride;
+
+  /** The profiles by index. */
+  private final TreeMap<Integer, String[]> profiles =
+      new TreeMap<Integer, String[]>();
+  private final Map<String, String[]> profilesByName =
+      new HashMap<String, String[]>();
+  private final List<UserProfileChangeData> changes =
+      new ArrayList<UserProfileChangeData>();
+  private int version = 0;
+
+  private final AtomicInteger indexCalls = new AtomicInteger();
+  private final AtomicInteger nameCalls = new AtomicInteger();
+  private final AtomicInteger changeCalls = new AtomicInteger();
+
+  /**
+   * @param profileCount the number of user profiles
+   * @param latencyMillis the time every call takes
+   */
+  public LargeUserProfileClientFactory(final int profileCount,
+      final long latencyMillis) {
+    this(profileCount, latencyMillis, 2);
+  }
+
+  /**
+   * @param profileCount the number of user profiles
+   * @param latencyMillis the time every call takes
+   * @param stride the difference of the indexes of consecutive profiles
+   */
+  public LargeUserProfileClientFactory(final int profileCount,
+      final long latencyMillis, final int stride) {
+    this.latencyMillis = latencyMillis;
+    this.stride = stride;
+    for (int i = 0; i < profileCount; i++) {
+      String[] profile = new String[] { getAccountName(i),
+          "/personal/user" + i + "/" };
+      profiles.put(stride * i + 1, profile);
+      profilesByName.put(profile[0].toLowerCase(), profile);
+    }
+  }
+
+  /**
+   * @return the account name of a profile
+   */
+  public static String getAccountName(final int profile) {
+    return "mockdomain\\user" + profile;
+  }
+
+  /**
+   * Moves the personal site of a profile, and records the change.
+   *
+   * @return the new personal space of the profile
+   */
+  public synchronized String changeProfile(final int profile) {
+    String[] data = profiles.get(stride * profile + 1);
+    data[1] = "/personal/user" + profile + "-" + (++version) + "/";
+    addChange(data[0], "Update");
+    return data[1];
+  }
+
+  /**
+   * Deletes a profile, and records the change.
+   */
+  public synchronized void deleteProfile(final int profile) {
+    String[] data = profiles.remove(stride * profile + 1);
+    profilesByName.remove(data[0].toLowerCase());
+    addChange(data[0], SPConstants.DELETE);
+  }
+
+  private void addChange(final String account, final String changeType) {
+    UserProfileChangeData change = new UserProfileChangeData();
+    change.setUserAccountName(account);
+    change.setChangeType(new String[] { changeType });
+    changes.add(change);
+  }
+
+  public int getIndexCalls() {
+    return indexCalls.get();
+  }
+
+  public int getNameCalls() {
+    return nameCalls.get();
+  }
+
+  public int getChangeCalls() {
+    return changeCalls.get();
+  }
+
+  public void resetCalls() {
+    indexCalls.set(0);
+    nameCalls.set(0);
+    changeCalls.set(0);
+  }
+
+  private void waitForLatency() {
+    if (latencyMillis > 0) {
+      try {
+        Thread.sleep(latencyMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static PropertyData[] toPropertyData(final String[] profile) {
+    return new PropertyData[] { createProperty("AccountName", profile[0]),
+        createProperty("PersonalSpace", profile[1]) };
+  }
+
+  private static PropertyData createProperty(final String name,
+      final String value) {
+    ValueData valueData = new ValueData();
+    valueData.setValue(value);
+    PropertyData property = new PropertyData();
+    property.setName(name);
+    property.setValues(new ValueData[] { valueData });
+    return property;
+  }
+
+  private synchronized GetUserProfileByIndexResult getProfileByIndex(
+      final int index) {
+    GetUserProfileByIndexResult result = new GetUserProfileByIndexResult();
+    Map.Entry<Integer, String[]> entry = profiles.ceilingEntry(index);
+    if (entry == null) {
+      result.setNextValue("-1");
+    } else {
+      result.setUserProfile(toPropertyData(entry.getValue()));
+      Integer next = profiles.higherKey(entry.getKey());
+      result.setNextValue(String.valueOf((next == null) ? -1 : next));
+    }
+    return result;
+  }
+
+  private synchronized PropertyData[] getProfileByName(final String name) {
+    String[] profile = profilesByName.get(name.toLowerCase());
+    return (profile == null) ? null : toPropertyData(profile);
+  }
+
+  private synchronized UserProfileChangeDataContainer getChangesSince(
+      final String changeToken) {
+    if (changeToken == null || !changeToken.startsWith(TOKEN_PREFIX)) {
+      throw new IllegalArgumentException(
+          "Invalid change token " + changeToken);
+    }
+    int start =
+        Integer.parseInt(changeToken.substring(TOKEN_PREFIX.length()));
+    int end = Math.min(changes.size(), start + MAX_CHANGES_PER_CALL);
+    UserProfileChangeDataContainer container =
+        new UserProfileChangeDataContainer();
+    container.setChanges(changes.subList(start, end).toArray(
+        new UserProfileChangeData[end - start]));
+    container.setChangeToken(TOKEN_PREFIX + end);
+    container.setHasExceededCountLimit(end < changes.size());
+    return container;
+  }
+
+  private synchronized String getCurrentToken() {
+    return TOKEN_PREFIX + changes.size();
+  }
+
+  @Override
+  public UserProfile2007WS getUserProfile2007WS(
+      final SharepointClientContext ctx) {
+    return new MockUserProfile2007WS(ctx) {
+      @Override
+      public GetUserProfileByIndexResult getUserProfileByIndex(int index) {
+        indexCalls.incrementAndGet();
+        waitForLatency();
+        return getProfileByIndex(index);
+      }
+
+      @Override
+      public PropertyData[] getUserProfileByName(String accountName) {
+        nameCalls.incrementAndGet();
+        waitForLatency();
+        return getProfileByName(accountName);
+      }
+    };
+  }
+
+  @Override
+  public UserProfileChangeWS getUserProfileChangeWS(
+      final SharepointClientContext ctx) {
+    return new MockUserProfileChangeWS(ctx) {
+      @Override
+      public UserProfileChangeDataContainer getChanges(String changeToken,
+          UserProfileChangeQuery changeQuery) {
+        changeCalls.incrementAndGet();
+        waitForLatency();
+        return getChangesSince(changeToken);
+      }
+
+      @Override
+      public String getCurrentChangeToken() {
+        changeCalls.incrementAndGet();
+        waitForLatency();
+        return getCurrentToken();
+      }
+    };
+  }
+}
@@ -98,4 +98,9 @@ public class MockListsWS implements ListsWS {
       Folder currentFolder) {
     return Collections.emptyList();
   }
+
+  @Override
+  public List<String> getListFields(final ListState list) {
+    return null;
+  }
 }
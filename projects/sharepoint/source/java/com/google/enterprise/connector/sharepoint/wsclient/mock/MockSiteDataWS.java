@@ -30,6 +30,9 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.xml.rpc.holders.BooleanHolder;
+import javax.xml.rpc.holders.StringHolder;
+
 public class MockSiteDataWS implements SiteDataWS {
   private static final Logger LOGGER = Logger.getLogger(MockSiteDataWS.class.getName());
   private final SharepointClientContext sharepointClientContext;
@@ -96,4 +99,24 @@ public class MockSiteDataWS implements SiteDataWS {
     }
   }
 
+  /**
+   * (@inheritDoc)
+   *
+   * This is a stub implementation.
+   */
+  public String getContentSiteCollection() throws RemoteException {
+    return null;
+  }
+
+  /**
+   * (@inheritDoc)
+   *
+   * This is a stub implementation.
+   */
+  public String getChangesSiteCollection(String siteId,
+      StringHolder lastChangeId, BooleanHolder moreChanges)
+      throws RemoteException {
+    return null;
+  }
+
 }
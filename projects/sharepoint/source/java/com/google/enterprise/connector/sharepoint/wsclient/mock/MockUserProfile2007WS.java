@@ -16,6 +16,7 @@ package com.google.enterprise.connector.sharepoint.wsclient.mock;
 
 import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
 import com.google.enterprise.connector.sharepoint.generated.userprofileservice.GetUserProfileByIndexResult;
+import com.google.enterprise.connector.sharepoint.generated.userprofileservice.PropertyData;
 import com.google.enterprise.connector.sharepoint.wsclient.client.UserProfile2007WS;
 
 import java.util.logging.Logger;
@@ -62,4 +63,9 @@ public class MockUserProfile2007WS implements UserProfile2007WS {
   public GetUserProfileByIndexResult getUserProfileByIndex(int index) {
     return new GetUserProfileByIndexResult();
   }
+
+  @Override
+  public PropertyData[] getUserProfileByName(String accountName) {
+    return null;
+  }
 }
@@ -24,6 +24,7 @@ import com.google.enterprise.connector.sharepoint.generated.gsbulkauthorization.
 import com.google.enterprise.connector.sharepoint.generated.gsbulkauthorization.holders.ArrayOfAuthDataPacketHolder;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
 import com.google.enterprise.connector.sharepoint.wsclient.client.BulkAuthorizationWS;
+import com.google.enterprise.connector.sharepoint.wsclient.handlers.CompressionHandler;
 
 import java.rmi.RemoteException;
 import java.util.logging.Level;
@@ -70,6 +71,8 @@ public class GSBulkAuthorizationWS implements BulkAuthorizationWS {
       LOGGER.log(Level.WARNING, "Unable to get bulk authZ soap stub ", e);
       throw new SharepointException("Unable to get bulk authZ soap stub");
     }
+    CompressionHandler.setAcceptCompression(stub,
+        sharepointClientContext.isUseCompression());
   }
 
   /**
@@ -24,6 +24,7 @@ import com.google.enterprise.connector.sharepoint.generated.gssitediscovery.Site
 import com.google.enterprise.connector.sharepoint.generated.gssitediscovery.WebCrawlInfo;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
 import com.google.enterprise.connector.sharepoint.wsclient.client.SiteDiscoveryWS;
+import com.google.enterprise.connector.sharepoint.wsclient.handlers.CompressionHandler;
 
 import java.rmi.RemoteException;
 import java.util.logging.Level;
@@ -66,6 +67,8 @@ public class GSSiteDiscoveryWS implements SiteDiscoveryWS {
       LOGGER.log(Level.WARNING, e.getMessage(), e);
       throw new SharepointException("Unable to get the GSSiteDiscovery stub");
     }
+    CompressionHandler.setAcceptCompression(stub,
+        inSharepointClientContext.isUseCompression());
   }
 
   /**
@@ -23,6 +23,7 @@ import com.google.enterprise.connector.sharepoint.generated.alerts.AlertsLocator
 import com.google.enterprise.connector.sharepoint.generated.alerts.AlertsSoap_BindingStub;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
 import com.google.enterprise.connector.sharepoint.wsclient.client.AlertsWS;
+import com.google.enterprise.connector.sharepoint.wsclient.handlers.CompressionHandler;
 import com.google.enterprise.connector.spi.RepositoryException;
 
 import java.rmi.RemoteException;
@@ -65,6 +66,8 @@ public class SPAlertsWS implements AlertsWS {
       LOGGER.log(Level.WARNING, e.getMessage(), e);
       throw new SharepointException("Unable to create SPAlertsWS stub.");
     }
+    CompressionHandler.setAcceptCompression(stub,
+        inSharepointClientContext.isUseCompression());
   }
 
   /**
@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.sharepoint.wsclient.soap;
 
+import com.google.enterprise.connector.sharepoint.client.AdaptiveRowLimit;
 import com.google.enterprise.connector.sharepoint.client.ListsUtil;
 import com.google.enterprise.connector.sharepoint.client.SPConstants;
 import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
@@ -29,6 +30,7 @@ import com.google.enterprise.connector.sharepoint.generated.lists.GetListItemsQu
 import com.google.enterprise.connector.sharepoint.generated.lists.GetListItemsQueryOptions;
 import com.google.enterprise.connector.sharepoint.generated.lists.GetListItemsResponseGetListItemsResult;
 import com.google.enterprise.connector.sharepoint.generated.lists.GetListItemsViewFields;
+import com.google.enterprise.connector.sharepoint.generated.lists.GetListResponseGetListResult;
 import com.google.enterprise.connector.sharepoint.generated.lists.Lists;
 import com.google.enterprise.connector.sharepoint.generated.lists.ListsLocator;
 import com.google.enterprise.connector.sharepoint.generated.lists.ListsSoap_BindingStub;
@@ -38,6 +40,7 @@ import com.google.enterprise.connector.sharepoint.state.Folder;
 import com.google.enterprise.connector.sharepoint.state.ListState;
 import com.google.enterprise.connector.sharepoint.wsclient.client.BaseWS;
 import com.google.enterprise.connector.sharepoint.wsclient.client.ListsWS;
+import com.google.enterprise.connector.sharepoint.wsclient.handlers.CompressionHandler;
 import com.google.enterprise.connector.sharepoint.wsclient.handlers.InvalidXmlCharacterHandler;
 import com.google.enterprise.connector.sharepoint.wsclient.util.DateUtil;
 import com.google.enterprise.connector.spi.SpiConstants.ActionType;
@@ -82,7 +85,7 @@ public class SPListsWS implements ListsWS {
   private final SharepointClientContext sharepointClientContext;
   private final String endpoint;
   private final ListsSoap_BindingStub stub;
-  private final String rowLimit;
+  private final AdaptiveRowLimit adaptiveRowLimit;
 
   /**
    * @param sharepointClientContext The Context is passed so that necessary
@@ -94,7 +97,8 @@ public class SPListsWS implements ListsWS {
   public SPListsWS(final SharepointClientContext sharepointClientContext, 
       final String rowLimit) throws SharepointException {
       this.sharepointClientContext = sharepointClientContext;
-      this.rowLimit = rowLimit;
+      adaptiveRowLimit = new AdaptiveRowLimit(Integer.parseInt(rowLimit),
+          sharepointClientContext.getWebServiceTimeOut());
 
       endpoint = Util.encodeURL(sharepointClientContext.getSiteURL())
           + SPConstants.LISTS_END_POINT;
@@ -111,6 +115,8 @@ public class SPListsWS implements ListsWS {
         LOGGER.log(Level.WARNING, "Unable to get the list stub", e);
         throw new SharepointException("Unable to get the list stub");
       }
+      CompressionHandler.setAcceptCompression(stub,
+          sharepointClientContext.isUseCompression());
   }
 
   @Override
@@ -272,10 +278,19 @@ public class SPListsWS implements ListsWS {
       return Collections.emptyList();
     }
 
-    GetListItemsResponseGetListItemsResult res = stub.getListItems(
-        listName, viewName, query, viewFields, rowLimit, queryOptions, webID);
+    final int pageSize = adaptiveRowLimit.getRowLimit(list);
+    final long start = System.currentTimeMillis();
+    GetListItemsResponseGetListItemsResult res;
+    try {
+      res = stub.getListItems(listName, viewName, query, viewFields,
+          String.valueOf(pageSize), queryOptions, webID);
+    } catch (final RemoteException e) {
+      onError(list, pageSize, e);
+      throw e;
+    }
 
     if (res != null) {
+      onResponse(list, pageSize, res.get_any(), start);
       final MessageElement[] me = res.get_any();
       if ((me != null) && (me.length > 0)) {
         Iterator<?> itChilds = me[0].getChildElements();
@@ -299,6 +314,35 @@ public class SPListsWS implements ListsWS {
     return listItems;
   }
 
+  /**
+   * Gets the fields of a list from its schema, using GetList() Web Method.
+   *
+   * @param list the list whose fields are to be retrieved
+   * @return the internal names of the fields of the list, or null if they
+   *         are not known
+   * @throws RemoteException on a web service request error
+   */
+  public List<String> getListFields(final ListState list)
+      throws RemoteException {
+    if (stub == null) {
+      LOGGER.warning("Unable to get the fields of list [ "
+          + list.getListURL() + " ] since stub is null.");
+      return null;
+    }
+
+    final GetListResponseGetListResult res =
+        stub.getList(list.getPrimaryKey());
+    if (res != null) {
+      final MessageElement[] me = res.get_any();
+      if ((me != null) && (me.length > 0) && (me[0] != null)) {
+        list.setSchemaVersion(
+            me[0].getAttributeValue(SPConstants.LIST_VERSION));
+        return ListsUtil.getFieldNames(me[0]);
+      }
+    }
+    return null;
+  }
+
   // TODO: getSubFoldersRecursively needs to cleaned up. The call to 
   // Util.makeWSRequest should be moved out of the web service classes.
   /**
@@ -418,7 +462,8 @@ public class SPListsWS implements ListsWS {
       } else {
         query.set_any(ListsUtil.createQuerySubFolders(folderLevel));
       }
-      viewFields.set_any(ListsUtil.createViewFields());
+      viewFields.set_any(
+          ListsUtil.createViewFields(sharepointClientContext, list));
       queryOptions.set_any(ListsUtil.createQueryOptions(true, nextPage));
       LOGGER.config("Making web service request with the following "
           + "parameters: query [ " + query.get_any()[0]
@@ -435,8 +480,8 @@ public class SPListsWS implements ListsWS {
         GetListItemChangesSinceTokenResponseGetListItemChangesSinceTokenResult>() {
           public GetListItemChangesSinceTokenResponseGetListItemChangesSinceTokenResult
               onRequest(final BaseWS ws) throws Throwable {
-            return stub.getListItemChangesSinceToken(listName, viewName,
-                query, viewFields, rowLimit, queryOptions, token, contains);
+            return getListItemChangesSinceToken(list, listName, viewName,
+                query, viewFields, queryOptions, token, contains);
           }
 
           public void onError(final Throwable e) {
@@ -519,8 +564,8 @@ public class SPListsWS implements ListsWS {
     }
 
     GetListItemChangesSinceTokenResponseGetListItemChangesSinceTokenResult
-        res = stub.getListItemChangesSinceToken(listName, viewName, query, 
-        viewFields, rowLimit, queryOptions, token, null);
+        res = getListItemChangesSinceToken(list, listName, viewName, query,
+        viewFields, queryOptions, token, null);
 
     List<MessageElement> updatedListItems = null;
     if (res != null) {
@@ -601,7 +646,8 @@ public class SPListsWS implements ListsWS {
       } else {
         query.set_any(ListsUtil.createQueryInsideFolder(folderPath));
       }
-      viewFields.set_any(ListsUtil.createViewFields());
+      viewFields.set_any(
+          ListsUtil.createViewFields(sharepointClientContext, list));
       queryOptions.set_any(ListsUtil.createQueryOptions(
           true, currentFolder.getNextPage()));
       LOGGER.config("Making web service request with the following "
@@ -621,8 +667,8 @@ public class SPListsWS implements ListsWS {
             GetListItemChangesSinceTokenResponseGetListItemChangesSinceTokenResult>() {
           public GetListItemChangesSinceTokenResponseGetListItemChangesSinceTokenResult
           onRequest(final BaseWS ws) throws Throwable {
-            return stub.getListItemChangesSinceToken(listName, viewName,
-                query, viewFields, rowLimit, queryOptions, token, contains);
+            return getListItemChangesSinceToken(list, listName, viewName,
+                query, viewFields, queryOptions, token, contains);
           }
 
           public void onError(final Throwable e) {
@@ -664,6 +710,70 @@ public class SPListsWS implements ListsWS {
     return listItems;
   }
 
+  /**
+   * Calls getListItemChangesSinceToken with the row limit of the list, and
+   * adjusts the row limit to the response.
+   */
+  private GetListItemChangesSinceTokenResponseGetListItemChangesSinceTokenResult
+      getListItemChangesSinceToken(final ListState list, final String listName,
+      final String viewName, final GetListItemChangesSinceTokenQuery query,
+      final GetListItemChangesSinceTokenViewFields viewFields,
+      final GetListItemChangesSinceTokenQueryOptions queryOptions,
+      final String token, final GetListItemChangesSinceTokenContains contains)
+      throws RemoteException {
+    final int pageSize = adaptiveRowLimit.getRowLimit(list);
+    final long start = System.currentTimeMillis();
+    GetListItemChangesSinceTokenResponseGetListItemChangesSinceTokenResult res;
+    try {
+      res = stub.getListItemChangesSinceToken(listName, viewName, query,
+          viewFields, String.valueOf(pageSize), queryOptions, token, contains);
+    } catch (final RemoteException e) {
+      onError(list, pageSize, e);
+      throw e;
+    }
+    if (res != null) {
+      onResponse(list, pageSize, res.get_any(), start);
+    }
+    return res;
+  }
+
+  /**
+   * Adjusts the row limit of a list to the rows of a response.
+   *
+   * @param list the list queried
+   * @param pageSize the row limit of the call
+   * @param me the response
+   * @param start when the call was made
+   */
+  private void onResponse(final ListState list, final int pageSize,
+      final MessageElement[] me, final long start) {
+    final long elapsed = System.currentTimeMillis() - start;
+    int rows = 0;
+    int cells = 0;
+    if ((me != null) && (me.length > 0)) {
+      Iterator<?> itChilds = me[0].getChildElements();
+      while (itChilds.hasNext()) {
+        final MessageElement child = (MessageElement) itChilds.next();
+        if (SPConstants.DATA.equalsIgnoreCase(child.getLocalName())) {
+          Iterator<?> itrchild = child.getChildElements();
+          while (itrchild.hasNext()) {
+            final MessageElement row = (MessageElement) itrchild.next();
+            rows++;
+            cells += row.getAttributes().getLength();
+          }
+        }
+      }
+    }
+    adaptiveRowLimit.onResponse(list, pageSize, rows, cells, elapsed);
+  }
+
+  private void onError(final ListState list, final int pageSize,
+      final RemoteException e) {
+    if (AdaptiveRowLimit.isTimeout(e)) {
+      adaptiveRowLimit.onTimeout(list, pageSize);
+    }
+  }
+
   // TODO: processListDataElement has a dependency on getSubFoldersRecursively
   // if the dependency can be removed then processListDataElement should be 
   // moved to ListsUtil.
@@ -29,6 +29,7 @@ import com.google.enterprise.connector.sharepoint.generated.sitedata.holders.Arr
 import com.google.enterprise.connector.sharepoint.generated.sitedata.holders._sWebMetadataHolder;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
 import com.google.enterprise.connector.sharepoint.wsclient.client.SiteDataWS;
+import com.google.enterprise.connector.sharepoint.wsclient.handlers.CompressionHandler;
 
 import org.apache.axis.holders.UnsignedIntHolder;
 
@@ -37,6 +38,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.xml.rpc.ServiceException;
+import javax.xml.rpc.holders.BooleanHolder;
 import javax.xml.rpc.holders.StringHolder;
 
 /**
@@ -74,6 +76,8 @@ public class SPSiteDataWS implements SiteDataWS {
       LOGGER.log(Level.WARNING, "Unable to get sitedata stub ", e);
       throw new SharepointException("Unable to get sitedata stub");
     }
+    CompressionHandler.setAcceptCompression(stub,
+        sharepointClientContext.isUseCompression());
   }
 
   /**
@@ -142,5 +146,21 @@ public class SPSiteDataWS implements SiteDataWS {
     return stub.getContent(
         ObjectType.List, id, null, null, false, false, new StringHolder());
   }
+
+  public String getContentSiteCollection() throws RemoteException {
+    return stub.getContent(ObjectType.SiteCollection, null, null, null, false,
+        false, new StringHolder());
+  }
+
+  public String getChangesSiteCollection(String siteId,
+      StringHolder lastChangeId, BooleanHolder moreChanges)
+      throws RemoteException {
+    final StringHolder currentChangeId = new StringHolder();
+    final StringHolder result = new StringHolder();
+    stub.getChanges(ObjectType.SiteCollection, siteId, lastChangeId,
+        currentChangeId, sharepointClientContext.getWebServiceTimeOut() / 1000,
+        result, moreChanges);
+    return result.value;
+  }
 }
 
@@ -24,6 +24,7 @@ import com.google.enterprise.connector.sharepoint.generated.userprofilechangeser
 import com.google.enterprise.connector.sharepoint.generated.userprofilechangeservice.UserProfileChangeServiceSoap_BindingStub;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
 import com.google.enterprise.connector.sharepoint.wsclient.client.UserProfileChangeWS;
+import com.google.enterprise.connector.sharepoint.wsclient.handlers.CompressionHandler;
 
 import java.rmi.RemoteException;
 import java.util.logging.Level;
@@ -54,6 +55,8 @@ public class SPUserProfileChangeWS implements UserProfileChangeWS {
       LOGGER.log(Level.WARNING, e.getMessage(), e);
       throw new SharepointException("Unable to create the userprofile stub.");
     }
+    CompressionHandler.setAcceptCompression(stub,
+        inSharepointClientContext.isUseCompression());
   }
 
   @Override
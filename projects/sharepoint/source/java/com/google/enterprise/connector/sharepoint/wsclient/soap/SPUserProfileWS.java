@@ -18,11 +18,13 @@ import com.google.enterprise.connector.sharepoint.client.SPConstants;
 import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
 import com.google.enterprise.connector.sharepoint.client.Util;
 import com.google.enterprise.connector.sharepoint.generated.userprofileservice.GetUserProfileByIndexResult;
+import com.google.enterprise.connector.sharepoint.generated.userprofileservice.PropertyData;
 import com.google.enterprise.connector.sharepoint.generated.userprofileservice.UserProfileService;
 import com.google.enterprise.connector.sharepoint.generated.userprofileservice.UserProfileServiceLocator;
 import com.google.enterprise.connector.sharepoint.generated.userprofileservice.UserProfileServiceSoap_BindingStub;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
 import com.google.enterprise.connector.sharepoint.wsclient.client.UserProfile2007WS;
+import com.google.enterprise.connector.sharepoint.wsclient.handlers.CompressionHandler;
 
 import java.rmi.RemoteException;
 import java.util.logging.Level;
@@ -66,6 +68,8 @@ public class SPUserProfileWS implements UserProfile2007WS {
       LOGGER.log(Level.WARNING, e.getMessage(), e);
       throw new SharepointException("Unable to create the userprofile stub.");
     }
+    CompressionHandler.setAcceptCompression(stub,
+        inSharepointClientContext.isUseCompression());
   }
 
   /**
@@ -107,4 +111,16 @@ public class SPUserProfileWS implements UserProfile2007WS {
       throws RemoteException {
     return stub.getUserProfileByIndex(index);
   }
+
+  /**
+   * This method returns the properties of the user profile of an account.
+   *
+   * @param accountName The account name of the user
+   * @return the properties of the user profile
+   * @throws RemoteException
+   */
+  public PropertyData[] getUserProfileByName(String accountName)
+      throws RemoteException {
+    return stub.getUserProfileByName(accountName);
+  }
 }
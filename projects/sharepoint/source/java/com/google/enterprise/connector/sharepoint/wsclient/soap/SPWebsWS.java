@@ -23,6 +23,7 @@ import com.google.enterprise.connector.sharepoint.generated.webs.WebsLocator;
 import com.google.enterprise.connector.sharepoint.generated.webs.WebsSoap_BindingStub;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
 import com.google.enterprise.connector.sharepoint.wsclient.client.WebsWS;
+import com.google.enterprise.connector.sharepoint.wsclient.handlers.CompressionHandler;
 
 import java.rmi.RemoteException;
 import java.util.logging.Level;
@@ -64,6 +65,8 @@ public class SPWebsWS implements WebsWS {
       LOGGER.log(Level.WARNING, e.getMessage(), e);
       throw new SharepointException("Unable to create webs stub");
     }
+    CompressionHandler.setAcceptCompression(stub,
+        inSharepointClientContext.isUseCompression());
   }
 
   /**
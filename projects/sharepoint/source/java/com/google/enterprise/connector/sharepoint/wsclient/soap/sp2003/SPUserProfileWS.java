@@ -24,6 +24,7 @@ import com.google.enterprise.connector.sharepoint.generated.sp2003.userprofilese
 import com.google.enterprise.connector.sharepoint.generated.sp2003.userprofileservice.UserProfileServiceSoap_BindingStub;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
 import com.google.enterprise.connector.sharepoint.wsclient.client.UserProfile2003WS;
+import com.google.enterprise.connector.sharepoint.wsclient.handlers.CompressionHandler;
 
 import org.apache.axis.AxisFault;
 
@@ -76,6 +77,8 @@ public class SPUserProfileWS implements UserProfile2003WS {
         LOGGER.log(Level.WARNING, e.getMessage(), e);
         throw new SharepointException("Unable to create the userprofile stub");
       }
+      CompressionHandler.setAcceptCompression(stub,
+          inSharepointClientContext.isUseCompression());
 
       final String strDomain = inSharepointClientContext.getDomain();
       String strUserName = inSharepointClientContext.getUsername();
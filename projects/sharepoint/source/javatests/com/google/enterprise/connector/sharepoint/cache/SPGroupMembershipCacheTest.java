@@ -0,0 +1,85 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.connector.sharepoint.dao.UserGroupMembership;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+public class SPGroupMembershipCacheTest extends TestCase {
+  private static final String SITE1 = "http://sharepoint/sites/one";
+  private static final String SITE2 = "http://sharepoint/sites/two";
+  private static final String SITE3 = "http://sharepoint/sites/three";
+
+  public void testChangesDropGroups() {
+    SPGroupMembershipCache cache = new SPGroupMembershipCache();
+    cache.applyChanges(SITE1, "token1", null);
+    cache.put(SITE1, "1", members(SITE1, 1, 2));
+    cache.put(SITE1, "2", members(SITE1, 2, 3));
+
+    // Changes already applied are ignored.
+    cache.applyChanges(SITE1, "token1", null);
+    assertEquals(2, cache.size());
+
+    cache.applyChanges(SITE1, "token2", ImmutableList.of("1"));
+    assertNull(cache.get(SITE1, "1"));
+    assertNotNull(cache.get(SITE1, "2"));
+    assertEquals(3, cache.getMembershipCount());
+
+    cache.applyChanges(SITE1, "token3", null);
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getMembershipCount());
+  }
+
+  public void testLeastRecentlyUsedSiteCollectionDropped() {
+    SPGroupMembershipCache cache = new SPGroupMembershipCache(10);
+    cache.put(SITE1, "1", members(SITE1, 1, 4));
+    cache.put(SITE2, "1", members(SITE2, 1, 4));
+    assertNotNull(cache.get(SITE1, "1"));
+
+    cache.put(SITE3, "1", members(SITE3, 1, 4));
+    assertEquals(8, cache.getMembershipCount());
+    assertNotNull(cache.get(SITE1, "1"));
+    assertNull(cache.get(SITE2, "1"));
+    assertNotNull(cache.get(SITE3, "1"));
+  }
+
+  public void testLeastRecentlyUsedGroupDropped() {
+    SPGroupMembershipCache cache = new SPGroupMembershipCache(10);
+    cache.put(SITE1, "1", members(SITE1, 1, 4));
+    cache.put(SITE1, "2", members(SITE1, 2, 4));
+    assertNotNull(cache.get(SITE1, "1"));
+
+    cache.put(SITE1, "3", members(SITE1, 3, 4));
+    assertEquals(8, cache.getMembershipCount());
+    assertNotNull(cache.get(SITE1, "1"));
+    assertNull(cache.get(SITE1, "2"));
+    assertNotNull(cache.get(SITE1, "3"));
+  }
+
+  private static Set<UserGroupMembership> members(String siteCollectionUrl,
+      int groupId, int count) {
+    Set<UserGroupMembership> members = new TreeSet<UserGroupMembership>();
+    for (int i = 0; i < count; i++) {
+      members.add(new UserGroupMembership(i, "user" + i, groupId,
+          "group" + groupId, siteCollectionUrl));
+    }
+    return members;
+  }
+}
@@ -0,0 +1,170 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.generated.gssacl.GssGetListItemsWithInheritingRoleAssignments;
+import com.google.enterprise.connector.sharepoint.spiimpl.SPDocument;
+import com.google.enterprise.connector.sharepoint.state.GlobalState;
+import com.google.enterprise.connector.sharepoint.state.ListState;
+import com.google.enterprise.connector.sharepoint.state.WebState;
+import com.google.enterprise.connector.sharepoint.wsclient.client.AclWS;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockAclWS;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.SpiConstants.DocumentType;
+
+import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+public class AclChangeFeedTest extends TestCase {
+  private static final String WEB_URL = "http://example.com/dummy";
+  private static final String LIST_URL = WEB_URL + "/Docs";
+
+  /** The paths of the contents downloaded. */
+  private final List<String> contentFetches = new ArrayList<String>();
+
+  private SharepointClientContext clientContext;
+  private ListState list;
+
+  @Override
+  protected void setUp() throws Exception {
+    MockClientFactory clientFactory = new MockClientFactory() {
+      @Override
+      public AclWS getAclWS(SharepointClientContext ctx, String webUrl) {
+        return new MockAclWS(ctx, webUrl) {
+          @Override
+          public GssGetListItemsWithInheritingRoleAssignments
+              getListItemsWithInheritingRoleAssignments(String listGuid,
+              int batchHint, int lastItemId) {
+            return new GssGetListItemsWithInheritingRoleAssignments(
+                WEB_URL, "{SITE}", null, getListItemsXml(1, 4), false, 4);
+          }
+        };
+      }
+
+      @Override
+      public int checkConnectivity(HttpMethodBase method,
+          Credentials credentials) throws IOException {
+        if (method instanceof GetMethod) {
+          contentFetches.add(method.getPath());
+        }
+        return super.checkConnectivity(method, credentials);
+      }
+    };
+    clientContext = TestConfiguration.initContext(clientFactory);
+    clientContext.setFeedType(FeedType.CONTENT_FEED);
+    clientContext.setPushAcls(true);
+    clientContext.setSiteURL(WEB_URL);
+    GlobalState state = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+    WebState web = state.makeWebState(clientContext, WEB_URL);
+    list = new ListState("{LIST}", "Docs", SPConstants.DOC_LIB,
+        Calendar.getInstance(), SPConstants.DOC_LIB, LIST_URL, web);
+    web.AddOrUpdateListStateInWebState(list, list.getLastMod());
+  }
+
+  private static String getListItemsXml(int fromId, int toId) {
+    StringBuilder xml = new StringBuilder();
+    xml.append("<" + SPConstants.GSSLISTITEMS + ">");
+    for (int id = fromId; id <= toId; id++) {
+      xml.append("<z:row xmlns:z=\"#RowsetSchema\" ows_ID=\"" + id
+          + "\" ows_FileRef=\"" + id + ";#dummy/Docs/doc" + id
+          + ".txt\" ows_Modified=\"2012-01-01T00:00:00Z\" "
+          + "ows_FSObjType=\"" + id + ";#0\" />");
+    }
+    xml.append("</" + SPConstants.GSSLISTITEMS + ">");
+    return xml.toString();
+  }
+
+  /**
+   * Gets the items whose ACL changed, and reads the properties of each of
+   * them the way the connector manager does when it feeds them.
+   */
+  private List<SPDocument> feedAclChange() throws Exception {
+    list.startAclCrawl();
+    List<SPDocument> docs = new AclHelper(clientContext, WEB_URL)
+        .getListItemsForAclChangeAndUpdateState(list,
+            new ListsHelper(clientContext));
+    for (SPDocument doc : docs) {
+      doc.setSharepointClientContext(clientContext);
+      doc.setContentDwnldURL(doc.getUrl());
+      doc.findProperty(SpiConstants.PROPNAME_CONTENT);
+      doc.findProperty(SpiConstants.PROPNAME_MIMETYPE);
+      doc.findProperty(SPConstants.HTTP_STATUS_CODE);
+    }
+    return docs;
+  }
+
+  private SPDocument getItem(List<SPDocument> docs, String id) {
+    for (SPDocument doc : docs) {
+      if (doc.getDocId().equals(LIST_URL + SPConstants.DOC_TOKEN + id)) {
+        return doc;
+      }
+    }
+    fail("No document with ID " + id);
+    return null;
+  }
+
+  public void testFedItemsSentWithoutContent() throws Exception {
+    list.addToFedIDs("1");
+    list.addToFedIDs("2");
+    list.addToFedIDs("3");
+
+    List<SPDocument> docs = feedAclChange();
+    for (String id : new String[] { "1", "2", "3" }) {
+      SPDocument doc = getItem(docs, id);
+      assertTrue(doc.isForAclChange());
+      assertEquals(DocumentType.ACL, doc.getDocumentType());
+      assertNull(doc.findProperty(SpiConstants.PROPNAME_CONTENT));
+    }
+
+    // Only the new item is downloaded, along with the list itself.
+    SPDocument newItem = getItem(docs, "4");
+    assertTrue(newItem.isForAclChange());
+    assertNull(newItem.getDocumentType());
+    assertTrue(contentFetches.toString(),
+        contentFetches.contains("/dummy/Docs/doc4.txt"));
+    for (String id : new String[] { "1", "2", "3" }) {
+      assertFalse(contentFetches.toString(),
+          contentFetches.contains("/dummy/Docs/doc" + id + ".txt"));
+    }
+  }
+
+  public void testNewItemsSentWithContent() throws Exception {
+    List<SPDocument> docs = feedAclChange();
+    for (String id : new String[] { "1", "2", "3", "4" }) {
+      assertNull(getItem(docs, id).getDocumentType());
+      assertTrue(contentFetches.toString(),
+          contentFetches.contains("/dummy/Docs/doc" + id + ".txt"));
+    }
+  }
+
+  public void testDeletedItemSentWithContent() throws Exception {
+    list.addToFedIDs("1");
+    list.addToDeleteCache("1");
+    List<SPDocument> docs = feedAclChange();
+    assertNull(getItem(docs, "1").getDocumentType());
+  }
+}
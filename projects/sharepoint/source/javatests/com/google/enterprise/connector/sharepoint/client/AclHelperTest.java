@@ -20,22 +20,31 @@ import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 import com.google.enterprise.connector.sharepoint.TestConfiguration;
 import com.google.enterprise.connector.sharepoint.dao.UserDataStoreDAO;
 import com.google.enterprise.connector.sharepoint.dao.UserGroupMembership;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
 import com.google.enterprise.connector.sharepoint.generated.gssacl.GssPrincipal;
+import com.google.enterprise.connector.sharepoint.generated.gssacl.GssResolveSPGroupResult;
 import com.google.enterprise.connector.sharepoint.generated.gssacl.PrincipalType;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
+import com.google.enterprise.connector.sharepoint.state.GlobalState;
 import com.google.enterprise.connector.sharepoint.state.WebState;
+import com.google.enterprise.connector.sharepoint.wsclient.client.AclWS;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockAclWS;
 import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
 import com.google.enterprise.connector.spi.Principal;
 
 import org.junit.Test;
 
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AclHelperTest {
   @Test
@@ -70,4 +79,72 @@ public class AclHelperTest {
     assertEquals(expectedGroups, groups);
     verify(dao, webState);
   }
+
+  @Test
+  public void testResolveSharePointGroups_cachedPerSiteCollection()
+      throws Exception {
+    final String siteCollectionUrl = "http://example.com";
+    final AtomicInteger groupsResolved = new AtomicInteger();
+    MockClientFactory clientFactory = new MockClientFactory() {
+      @Override
+      public AclWS getAclWS(SharepointClientContext ctx, String webUrl) {
+        return new MockAclWS(ctx, webUrl) {
+          @Override
+          public GssResolveSPGroupResult resolveSPGroupInBatch(
+              String[] groupIds, int batchSize) {
+            groupsResolved.addAndGet(groupIds.length);
+            GssPrincipal[] groups = new GssPrincipal[groupIds.length];
+            for (int i = 0; i < groupIds.length; i++) {
+              int id = Integer.parseInt(groupIds[i]);
+              GssPrincipal member = new GssPrincipal(100 + id, "user" + id,
+                  PrincipalType.USER, new GssPrincipal[0], null);
+              groups[i] = new GssPrincipal(id, "group" + id,
+                  PrincipalType.SPGROUP, new GssPrincipal[] { member }, null);
+            }
+            GssResolveSPGroupResult result = new GssResolveSPGroupResult();
+            result.setSiteCollectionUrl(siteCollectionUrl);
+            result.setPrinicpals(groups);
+            return result;
+          }
+        };
+      }
+    };
+    SharepointClientContext clientContext =
+        TestConfiguration.initContext(clientFactory);
+    clientContext.setGroupResolutionThreads(4);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    clientContext.setGroupResolutionExecutor(executor);
+    GlobalState state = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+
+    for (int web = 0; web < 50; web++) {
+      WebState webState = state.makeWebState(clientContext,
+          siteCollectionUrl + "/web" + web);
+      webState.setSiteCollectionUrl(siteCollectionUrl);
+      for (int group = 1; group <= 10; group++) {
+        webState.addSPGroupToResolve(String.valueOf(group));
+      }
+      AclHelper aclHelper = new AclHelper(clientContext, webState.getWebUrl());
+      assertTrue(aclHelper.resolveSharePointGroups(webState));
+      assertTrue(webState.getSPGroupsToResolve().isEmpty());
+    }
+    assertEquals(10, groupsResolved.get());
+
+    // Only the changed group is resolved again, once per change token.
+    clientContext.getSPGroupMembershipCache().applyChanges(
+        siteCollectionUrl, "token1", ImmutableSet.of("3"));
+    clientContext.getSPGroupMembershipCache().applyChanges(
+        siteCollectionUrl, "token1", ImmutableSet.of("3"));
+    for (int web = 0; web < 2; web++) {
+      WebState webState = state.makeWebState(clientContext,
+          siteCollectionUrl + "/web" + web);
+      webState.setSiteCollectionUrl(siteCollectionUrl);
+      webState.addSPGroupToResolve("3");
+      webState.addSPGroupToResolve("4");
+      AclHelper aclHelper = new AclHelper(clientContext, webState.getWebUrl());
+      assertTrue(aclHelper.resolveSharePointGroups(webState));
+    }
+    assertEquals(11, groupsResolved.get());
+    executor.shutdownNow();
+  }
 }
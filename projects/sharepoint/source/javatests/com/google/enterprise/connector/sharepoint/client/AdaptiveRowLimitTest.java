@@ -0,0 +1,153 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.state.GlobalState;
+import com.google.enterprise.connector.sharepoint.state.ListState;
+import com.google.enterprise.connector.sharepoint.state.WebState;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
+
+import junit.framework.TestCase;
+
+import java.net.SocketTimeoutException;
+import java.rmi.RemoteException;
+import java.util.Calendar;
+
+/**
+ * Runs the row limit controller against simulated servers whose latency
+ * grows with the number of cells returned, and which time out like the
+ * web service calls.
+ */
+public class AdaptiveRowLimitTest extends TestCase {
+  private static final int INITIAL_ROW_LIMIT = 1000;
+  private static final int TIMEOUT_MILLIS = 300000;
+  private static final long TARGET_MILLIS = TIMEOUT_MILLIS / 20;
+
+  private AdaptiveRowLimit controller;
+  private ListState list;
+
+  /** A simulated server, always returning full pages. */
+  private static class Server {
+    final long fixedMillis;
+    final double millisPerCell;
+    final int columns;
+
+    Server(long fixedMillis, double millisPerCell, int columns) {
+      this.fixedMillis = fixedMillis;
+      this.millisPerCell = millisPerCell;
+      this.columns = columns;
+    }
+
+    long latency(int rows) {
+      return fixedMillis + (long) (rows * columns * millisPerCell);
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    MockClientFactory clientFactory = new MockClientFactory();
+    SharepointClientContext clientContext =
+        TestConfiguration.initContext(clientFactory);
+    GlobalState state = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+    WebState web = state.makeWebState(clientContext,
+        TestConfiguration.Site1_URL);
+    list = new ListState("{list}", "list", SPConstants.GENERIC_LIST,
+        Calendar.getInstance(), "X", TestConfiguration.Site1_URL + "/list",
+        web);
+    controller = new AdaptiveRowLimit(INITIAL_ROW_LIMIT, TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Makes calls to a server.
+   *
+   * @return the number of calls which timed out
+   */
+  private int crawl(Server server, int calls) {
+    int timeouts = 0;
+    for (int i = 0; i < calls; i++) {
+      int rowLimit = controller.getRowLimit(list);
+      long latency = server.latency(rowLimit);
+      if (latency >= TIMEOUT_MILLIS) {
+        controller.onTimeout(list, rowLimit);
+        timeouts++;
+      } else {
+        controller.onResponse(list, rowLimit, rowLimit,
+            rowLimit * server.columns, latency);
+      }
+    }
+    return timeouts;
+  }
+
+  public void testInitialRowLimit() {
+    assertEquals(0, list.getRowLimit());
+    assertEquals(INITIAL_ROW_LIMIT, controller.getRowLimit(list));
+  }
+
+  public void testWideSlowListShrinks() {
+    Server server = new Server(500, 2.0, 150);
+    assertEquals(1, crawl(server, 20));
+    int rowLimit = controller.getRowLimit(list);
+    assertTrue(String.valueOf(rowLimit), rowLimit < INITIAL_ROW_LIMIT / 10);
+    assertTrue(server.latency(rowLimit) <= TARGET_MILLIS);
+
+    // Settled: no more changes.
+    crawl(server, 10);
+    assertEquals(rowLimit, controller.getRowLimit(list));
+  }
+
+  public void testNarrowFastListGrows() {
+    Server server = new Server(200, 0.01, 5);
+    assertEquals(0, crawl(server, 10));
+    assertEquals(INITIAL_ROW_LIMIT * AdaptiveRowLimit.MAX_GROWTH,
+        controller.getRowLimit(list));
+  }
+
+  public void testOversizedPagesShrink() {
+    Server server = new Server(200, 0.001, 400);
+    assertEquals(0, crawl(server, 10));
+    assertEquals(AdaptiveRowLimit.MAX_CELLS / 400,
+        controller.getRowLimit(list));
+  }
+
+  public void testRecoversAfterLatencySpike() {
+    Server fast = new Server(200, 0.01, 5);
+    Server slow = new Server(200, 5.0, 5);
+    crawl(fast, 10);
+    int maxRowLimit = controller.getRowLimit(list);
+
+    assertEquals(0, crawl(slow, 10));
+    int rowLimit = controller.getRowLimit(list);
+    assertTrue(String.valueOf(rowLimit), rowLimit < maxRowLimit / 4);
+    assertTrue(slow.latency(rowLimit) < TARGET_MILLIS * 11 / 10);
+
+    assertEquals(0, crawl(fast, 10));
+    assertEquals(maxRowLimit, controller.getRowLimit(list));
+  }
+
+  public void testNeverBelowMinimum() {
+    Server server = new Server(TIMEOUT_MILLIS, 0, 1);
+    assertEquals(10, crawl(server, 10));
+    assertEquals(AdaptiveRowLimit.MIN_ROW_LIMIT, controller.getRowLimit(list));
+  }
+
+  public void testIsTimeout() {
+    assertTrue(AdaptiveRowLimit.isTimeout(new RemoteException("fault",
+        new SocketTimeoutException("Read timed out"))));
+    assertFalse(AdaptiveRowLimit.isTimeout(new RemoteException("fault")));
+  }
+}
@@ -0,0 +1,114 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class AliasMapperTest extends TestCase {
+  private static final String[] PROTOCOLS = { "http", "https" };
+  private static final String[] HOSTS = { "mycomp.com", "MyComp.com",
+      "other.com" };
+  private static final String[] PORTS = { "", ":80", ":443", ":8080" };
+  private static final String[] PATHS = { "", "/", "/sites", "/sites/",
+      "/sites/hr", "/sites/hr/Shared Documents/a.doc" };
+
+  public void testDefaultPorts() throws Exception {
+    checkAliasMapping("http://mycomp.com/", "http://mycomp.com:80/");
+    checkAliasMapping("http://mycomp.com:80/", "http://mycomp.com/");
+    checkAliasMapping("http://mycomp.com:80/", "http://mycomp.com:8080/");
+    checkAliasMapping("http://mycomp.com:80/", "https://mycomp.co.in:8080/");
+  }
+
+  public void testFirstRuleWins() throws Exception {
+    Map<String, String> aliasMap = new LinkedHashMap<String, String>();
+    aliasMap.put("http://mycomp.com/", "http://first/");
+    aliasMap.put("http://mycomp.com/sites/", "http://second/");
+    AliasMapper mapper = new AliasMapper(aliasMap);
+    assertEquals("http://first/sites/hr",
+        Util.doAliasMapping("http://mycomp.com/sites/hr", mapper, false));
+  }
+
+  public void testGlobalRuleKeepsPort() throws Exception {
+    Map<String, String> aliasMap = new LinkedHashMap<String, String>();
+    aliasMap.put("^http://mycomp.com/sites", "http://alias");
+    AliasMapper mapper = new AliasMapper(aliasMap);
+    assertEquals("http://alias/hr",
+        Util.doAliasMapping("http://mycomp.com:8080/sites/hr", mapper, false));
+    assertEquals("http://alias/hr",
+        Util.doAliasMapping("http://mycomp.com/sites/hr", mapper, false));
+  }
+
+  public void testNoMatch() throws Exception {
+    Map<String, String> aliasMap = new LinkedHashMap<String, String>();
+    aliasMap.put("http://mycomp.com/sites", "http://alias/");
+    aliasMap.put("not a url", "http://alias/");
+    aliasMap.put(" ", "http://alias/");
+    AliasMapper mapper = new AliasMapper(aliasMap);
+    assertFalse(mapper.isEmpty());
+    assertEquals("http://other.com:80/sites/hr",
+        Util.doAliasMapping("http://other.com/sites/hr", mapper, false));
+    assertEquals("http://mycomp.com:80/",
+        Util.doAliasMapping("http://mycomp.com/", mapper, false));
+    assertTrue(new AliasMapper(null).isEmpty());
+    assertEquals("http://mycomp.com:80/",
+        Util.doAliasMapping("http://mycomp.com/", (AliasMapper) null, false));
+  }
+
+  /**
+   * Compares the compiled rules with the uncompiled ones for random rules
+   * and URLs.
+   */
+  public void testSameAsUncompiled() throws Exception {
+    Random random = new Random(7);
+    for (int round = 0; round < 200; round++) {
+      Map<String, String> aliasMap = new LinkedHashMap<String, String>();
+      int rules = 1 + random.nextInt(8);
+      for (int i = 0; i < rules; i++) {
+        String source = randomUrl(random);
+        if (random.nextInt(4) == 0) {
+          source = SPConstants.GLOBAL_ALIAS_IDENTIFIER + source;
+        }
+        aliasMap.put(source, "http://alias" + i + ".com"
+            + (random.nextBoolean() ? "/" : ""));
+      }
+      AliasMapper mapper = new AliasMapper(aliasMap);
+      for (int i = 0; i < 50; i++) {
+        String url = randomUrl(random);
+        assertEquals(aliasMap + " " + url,
+            Util.doAliasMapping(url, aliasMap, false),
+            Util.doAliasMapping(url, mapper, false));
+      }
+    }
+  }
+
+  private static String randomUrl(Random random) {
+    return PROTOCOLS[random.nextInt(PROTOCOLS.length)] + "://"
+        + HOSTS[random.nextInt(HOSTS.length)]
+        + PORTS[random.nextInt(PORTS.length)]
+        + PATHS[random.nextInt(PATHS.length)];
+  }
+
+  private void checkAliasMapping(final String originalUrl,
+      final String expectedUrl) throws Exception {
+    Map<String, String> aliasMap = new LinkedHashMap<String, String>();
+    aliasMap.put(originalUrl, expectedUrl);
+    assertEquals(expectedUrl, Util.doAliasMapping(originalUrl,
+        new AliasMapper(aliasMap), false));
+  }
+}
@@ -0,0 +1,98 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import java.net.MalformedURLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compares the per document cost of {@link Util#doAliasMapping} with the
+ * rules as a map and compiled into an {@link AliasMapper}, for 10, 100 and
+ * 1000 rules. The rules are spread over 20 hosts with several site paths
+ * each, and a third of the URLs do not match any rule.
+ * <p/>
+ * Not run as part of the tests; run with
+ * {@code java -cp <test classpath> ...AliasMappingBenchmark [urls]}.
+ */
+public class AliasMappingBenchmark {
+  private static final int HOSTS = 20;
+
+  public static void main(String[] args) throws Exception {
+    // Matches are logged at CONFIG, keep them out of the measurement.
+    Logger.getLogger("").setLevel(Level.WARNING);
+    int urlCount = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+    System.out.println("rules\tmap ns/url\tcompiled ns/url\tspeedup");
+    for (int rules : new int[] { 10, 100, 1000 }) {
+      Map<String, String> aliasMap = createRules(rules);
+      String[] urls = createUrls(rules, urlCount);
+      AliasMapper mapper = new AliasMapper(aliasMap);
+
+      // Warm up both, and check they agree.
+      for (String url : urls) {
+        if (!Util.doAliasMapping(url, aliasMap, false).equals(
+            Util.doAliasMapping(url, mapper, false))) {
+          throw new AssertionError("Mismatch for " + url);
+        }
+      }
+      long map = timeMap(urls, aliasMap);
+      long compiled = timeCompiled(urls, mapper);
+      System.out.println(rules + "\t" + map / urls.length + "\t\t"
+          + compiled / urls.length + "\t\t"
+          + String.format("%.1fx", (double) map / compiled));
+    }
+  }
+
+  private static long timeMap(String[] urls, Map<String, String> aliasMap)
+      throws MalformedURLException {
+    long start = System.nanoTime();
+    for (String url : urls) {
+      Util.doAliasMapping(url, aliasMap, false);
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static long timeCompiled(String[] urls, AliasMapper mapper)
+      throws MalformedURLException {
+    long start = System.nanoTime();
+    for (String url : urls) {
+      Util.doAliasMapping(url, mapper, false);
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static Map<String, String> createRules(int count) {
+    Map<String, String> aliasMap = new LinkedHashMap<String, String>();
+    for (int i = 0; i < count; i++) {
+      String port = (i % 3 == 0) ? ":80" : "";
+      aliasMap.put("http://host" + (i % HOSTS) + ".example.com" + port
+          + "/sites/site" + i, "http://alias" + i + ".example.com/");
+    }
+    return aliasMap;
+  }
+
+  private static String[] createUrls(int rules, int count) {
+    String[] urls = new String[count];
+    for (int i = 0; i < count; i++) {
+      // Every third URL points to a site without a rule.
+      int site = (i % 3 == 2) ? rules + i % rules : i % rules;
+      urls[i] = "http://host" + (site % HOSTS) + ".example.com/sites/site"
+          + site + "/Shared Documents/doc" + i + ".doc";
+    }
+    return urls;
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import junit.framework.TestCase;
+
+public class AttributeNamesTest extends TestCase {
+  public void testAdd() {
+    AttributeNames names = new AttributeNames();
+    assertEquals(0, names.add("Title"));
+    assertEquals(1, names.add("Modified"));
+    assertEquals(0, names.add("Title"));
+    assertEquals(2, names.size());
+    assertEquals("Title", names.getName(0));
+    assertEquals("Modified", names.getName(1));
+  }
+
+  public void testCollationEqualNamesShareIndex() {
+    AttributeNames names = new AttributeNames();
+    names.add("Title");
+    assertEquals(0, names.add("title"));
+    assertEquals(0, names.indexOf("TITLE"));
+    assertEquals(0, names.indexOf("Titlé"));
+    assertEquals(1, names.size());
+    assertEquals("Title", names.getName(0));
+  }
+
+  public void testIndexOfMissingName() {
+    AttributeNames names = new AttributeNames();
+    assertEquals(-1, names.indexOf("Title"));
+    names.add("Title");
+    assertEquals(-1, names.indexOf("Title2"));
+    assertEquals(1, names.size());
+  }
+
+  public void testConcurrentAdd() throws Exception {
+    final AttributeNames names = new AttributeNames();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 500; i++) {
+            int index = names.add("Column" + i);
+            assertEquals("Column" + i, names.getName(index));
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(500, names.size());
+    for (int i = 0; i < 500; i++) {
+      assertEquals("Column" + i, names.getName(names.indexOf("Column" + i)));
+    }
+  }
+}
@@ -14,11 +14,127 @@
 
 package com.google.enterprise.connector.sharepoint.client;
 
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.state.GlobalState;
+import com.google.enterprise.connector.sharepoint.state.ListState;
+import com.google.enterprise.connector.sharepoint.state.WebState;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
+
 import junit.framework.TestCase;
 
 import org.apache.axis.message.MessageElement;
 
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
 public class ListsUtilTest extends TestCase {
+  private static final String SCHEMA = "<List Name='{LIST}'><Fields>"
+      + "<Field Name='ID'/><Field Name='Title'/><Field Name='FileRef'/>"
+      + "<Field Name='Modified'/><Field Name='ContentType'/>"
+      + "<Field Name='DocIcon'/><Field Name='Department'/>"
+      + "<Field Name='MetaInfo'/></Fields></List>";
+
+  private SharepointClientContext sharepointClientContext;
+  private ListState list;
+
+  @Override
+  protected void setUp() throws Exception {
+    MockClientFactory clientFactory = new MockClientFactory();
+    sharepointClientContext = TestConfiguration.initContext(clientFactory);
+    GlobalState state = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+    WebState web = state.makeWebState(sharepointClientContext,
+        TestConfiguration.sharepointUrl);
+    list = new ListState("{LIST}", "Docs", SPConstants.DOC_LIB,
+        Calendar.getInstance(), SPConstants.DOC_LIB,
+        TestConfiguration.sharepointUrl + "/Docs", web);
+  }
+
+  public void testGetFieldNames() throws Exception {
+    assertEquals(Arrays.asList("ID", "Title", "FileRef", "Modified",
+        "ContentType", "DocIcon", "Department", "MetaInfo"),
+        ListsUtil.getFieldNames(ListsUtil.getMeFromString(SCHEMA)));
+    assertNull(ListsUtil.getFieldNames(
+        ListsUtil.getMeFromString("<List Name='{LIST}'/>")));
+  }
+
+  public void testGetViewFieldNames() throws Exception {
+    // The test rules exclude ContentType and DocIcon, but ContentType is
+    // read by the connector.
+    List<String> fieldNames =
+        ListsUtil.getFieldNames(ListsUtil.getMeFromString(SCHEMA));
+    assertEquals(Arrays.asList("ID", "Title", "FileRef", "Modified",
+        "ContentType", "Department", "MetaInfo"),
+        ListsUtil.getViewFieldNames(sharepointClientContext, fieldNames));
+
+    sharepointClientContext.getIncluded_metadata().add(
+        Pattern.compile("^Department$"));
+    assertEquals(Arrays.asList("ID", "FileRef", "Modified", "ContentType",
+        "Department", "MetaInfo"),
+        ListsUtil.getViewFieldNames(sharepointClientContext, fieldNames));
+  }
+
+  public void testCreateViewFields() throws Exception {
+    list.setFieldNames(
+        ListsUtil.getFieldNames(ListsUtil.getMeFromString(SCHEMA)));
+    MessageElement[] viewFields =
+        ListsUtil.createViewFields(sharepointClientContext, list);
+    assertEquals(1, viewFields.length);
+    assertTrue(viewFields[0].toString(),
+        viewFields[0].toString().contains("Properties=\"TRUE\""));
+    assertEquals(new HashSet<String>(Arrays.asList("ID", "Title", "FileRef",
+        "Modified", "ContentType", "Department", "MetaInfo")),
+        getFieldRefNames(viewFields[0]));
+  }
+
+  public void testCreateViewFieldsRequestsAllFields() throws Exception {
+    // The fields are not known.
+    assertAllFields(ListsUtil.createViewFields(sharepointClientContext, list));
+
+    // No field is excluded.
+    list.setFieldNames(Arrays.asList("ID", "Title", "FileRef"));
+    assertAllFields(ListsUtil.createViewFields(sharepointClientContext, list));
+
+    // No metadata rules.
+    list.setFieldNames(
+        ListsUtil.getFieldNames(ListsUtil.getMeFromString(SCHEMA)));
+    sharepointClientContext.getExcluded_metadata().clear();
+    assertFalse(sharepointClientContext.isMetadataFiltered());
+    assertAllFields(ListsUtil.createViewFields(sharepointClientContext, list));
+  }
+
+  public void testSchemaChangeUpdatesFieldNames() throws Exception {
+    list.setFieldNames(Arrays.asList("ID", "Title"));
+    ListsUtil.processListChangesElement(sharepointClientContext,
+        ListsUtil.getMeFromString("<Changes LastChangeToken='1;3;{LIST};1'>"
+            + SCHEMA + "</Changes>"), list, new HashSet<String>(),
+        new HashSet<String>(), new HashSet<String>());
+    assertEquals(8, list.getFieldNames().size());
+  }
+
+  private static Set<String> getFieldRefNames(MessageElement viewFields) {
+    Set<String> names = new HashSet<String>();
+    for (Iterator<?> it = viewFields.getChildElements(); it.hasNext(); ) {
+      MessageElement fieldRef = (MessageElement) it.next();
+      assertEquals("FieldRef", fieldRef.getLocalName());
+      names.add(fieldRef.getAttributeValue("Name"));
+    }
+    return names;
+  }
+
+  private static void assertAllFields(MessageElement[] viewFields) {
+    assertEquals(1, viewFields.length);
+    assertTrue(viewFields[0].toString(),
+        viewFields[0].toString().contains("Properties=\"TRUE\""));
+    assertTrue(getFieldRefNames(viewFields[0]).isEmpty());
+  }
+
   public void testIsFeedableListItem() throws Exception {
     String NO_ATTRIBUTE = "<tag/>";
     String EMPTY_ATTRIBUTE = String.format("<tag %s=''/>",
@@ -0,0 +1,75 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.state.PersonalSiteState;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.LargeUserProfileClientFactory;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures personal site discovery against a {@link
+ * LargeUserProfileClientFactory} where every web service call takes the
+ * given latency: a serial scan of all profiles as before, the parallel scan,
+ * and the discovery of the changes made to 1% of the profiles.
+ * <p/>
+ * Not run as part of the tests; run with
+ * {@code java -cp <test classpath> ...PersonalSiteDiscoveryBenchmark
+ * [profiles [latency ms]]}.
+ */
+public class PersonalSiteDiscoveryBenchmark {
+  public static void main(String[] args) throws Exception {
+    Logger.getLogger("").setLevel(Level.WARNING);
+    int profiles = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+    long latency = (args.length > 1) ? Long.parseLong(args[1]) : 1;
+
+    LargeUserProfileClientFactory clientFactory =
+        new LargeUserProfileClientFactory(profiles, latency);
+    SharepointClientContext context =
+        TestConfiguration.initContext(clientFactory);
+    context.setMySiteBaseURL("http://mysites.example.com/");
+    context.setIncludedURlList("http://mysites.example.com");
+    UserProfile2007Helper helper = new UserProfile2007Helper(context);
+
+    context.setPersonalSiteScanThreads(1);
+    long start = System.nanoTime();
+    int sites = helper.getPersonalSiteList(new PersonalSiteState()).size();
+    report("serial scan", start, sites, clientFactory);
+
+    context.setPersonalSiteScanThreads(4);
+    PersonalSiteState knownSites = new PersonalSiteState();
+    start = System.nanoTime();
+    sites = helper.getPersonalSiteList(knownSites).size();
+    report("parallel scan", start, sites, clientFactory);
+
+    for (int i = 0; i < profiles; i += 100) {
+      clientFactory.changeProfile(i);
+    }
+    start = System.nanoTime();
+    sites = helper.getPersonalSiteList(knownSites).size();
+    report("1% changed", start, sites, clientFactory);
+  }
+
+  private static void report(String name, long start, int sites,
+      LargeUserProfileClientFactory clientFactory) {
+    System.out.println(name + ": " + (System.nanoTime() - start) / 1000000
+        + " ms, " + sites + " sites, " + clientFactory.getIndexCalls()
+        + " index, " + clientFactory.getNameCalls() + " name and "
+        + clientFactory.getChangeCalls() + " change calls");
+    clientFactory.resetCalls();
+  }
+}
@@ -0,0 +1,227 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import com.google.common.io.Files;
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.state.GlobalState;
+import com.google.enterprise.connector.sharepoint.state.WebState;
+import com.google.enterprise.connector.sharepoint.wsclient.client.SiteDataWS;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockSiteDataWS;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ShardAssignmentTest extends TestCase {
+  private static final String FARM = "http://farm.example.com/sites/sc";
+  private static final int SITE_COLLECTIONS = 40;
+  private static final int SHARDS = 3;
+
+  /** The site collection of a web of the mock farm. */
+  private static final Pattern SITE_COLLECTION =
+      Pattern.compile("^" + Pattern.quote(FARM) + "\\d+");
+
+  private final AtomicInteger siteCollectionCalls = new AtomicInteger();
+
+  /**
+   * @return the webs of the mock farm: each site collection has a top
+   *         level web, a child web and a grandchild web
+   */
+  private Set<String> getFarmWebs() {
+    Set<String> webs = new TreeSet<String>();
+    for (int i = 0; i < SITE_COLLECTIONS; i++) {
+      webs.add(FARM + i);
+      webs.add(FARM + i + "/team");
+      webs.add(FARM + i + "/team/project");
+    }
+    return webs;
+  }
+
+  /** A connector instance crawling a shard of the mock farm. */
+  private class Instance {
+    final SharepointClientContext ctx;
+    final File workDir = Files.createTempDir();
+    GlobalState state;
+
+    Instance(int shardIndex) throws Exception {
+      MockClientFactory clientFactory = new MockClientFactory() {
+        @Override
+        public SiteDataWS getSiteDataWS(final SharepointClientContext ctx) {
+          return new MockSiteDataWS(ctx) {
+            @Override
+            public String getContentSiteCollection() {
+              siteCollectionCalls.incrementAndGet();
+              Matcher matcher = SITE_COLLECTION.matcher(ctx.getSiteURL());
+              return matcher.find() ? "<Site><Metadata URL=\""
+                  + matcher.group() + "\" /></Site>" : null;
+            }
+          };
+        }
+      };
+      ctx = TestConfiguration.initContext(clientFactory);
+      ctx.setShardAssignment(new ShardAssignment(shardIndex, SHARDS));
+      state = new GlobalState(clientFactory, workDir.getPath(),
+          FeedType.CONTENT_FEED);
+    }
+
+    /**
+     * Discovers all the webs of the farm, the way the traversal does.
+     *
+     * @return the URLs of the webs this instance would crawl
+     */
+    Set<String> crawl() throws Exception {
+      new SharepointClient(ctx.getClientFactory(), ctx).updateGlobalState(
+          state, getFarmWebs());
+      Set<String> crawled = new TreeSet<String>();
+      for (WebState web : state.getAllWebStateSet()) {
+        if (ctx.getShardAssignment().owns(ctx, web)) {
+          crawled.add(web.getWebUrl());
+        }
+      }
+      return crawled;
+    }
+  }
+
+  public void testEachWebCrawledExactlyOnce() throws Exception {
+    Map<String, Integer> crawls = new HashMap<String, Integer>();
+    Instance[] instances = new Instance[SHARDS];
+    for (int i = 0; i < SHARDS; i++) {
+      instances[i] = new Instance(i);
+      Set<String> crawled = instances[i].crawl();
+      // Webs of other shards are not even added to the state.
+      assertEquals(crawled.size(),
+          instances[i].state.getAllWebStateSet().size());
+      assertTrue(crawled.size() > 0);
+      for (String url : crawled) {
+        Integer count = crawls.get(url);
+        crawls.put(url, (count == null) ? 1 : count + 1);
+      }
+    }
+    Set<String> farm = getFarmWebs();
+    assertEquals(farm, crawls.keySet());
+    for (String url : farm) {
+      assertEquals(url, Integer.valueOf(1), crawls.get(url));
+    }
+
+    // The shard and the site collections are kept in the state file, and
+    // the site collections are not looked up again.
+    for (int i = 0; i < SHARDS; i++) {
+      GlobalState state = instances[i].state;
+      state.setShard(i, SHARDS);
+      state.saveState();
+      instances[i].state = new GlobalState(instances[i].ctx.getClientFactory(),
+          instances[i].workDir.getPath(), FeedType.CONTENT_FEED);
+      instances[i].state.loadState();
+      assertEquals(i, instances[i].state.getShardIndex());
+      assertEquals(SHARDS, instances[i].state.getShardCount());
+      assertEquals(state.getAllWebStateSet().size(),
+          instances[i].state.getAllWebStateSet().size());
+    }
+    int calls = siteCollectionCalls.get();
+    for (int i = 0; i < SHARDS; i++) {
+      for (WebState web : instances[i].state.getAllWebStateSet()) {
+        assertTrue(instances[i].ctx.getShardAssignment().owns(
+            instances[i].ctx, web));
+      }
+    }
+    assertEquals(calls, siteCollectionCalls.get());
+  }
+
+  public void testSiteCollectionsLookedUpOnce() throws Exception {
+    Instance instance = new Instance(0);
+    Set<String> webs = getFarmWebs();
+    // A web whose site collection cannot be found.
+    webs.add("http://other.example.com/web");
+    SharepointClient client =
+        new SharepointClient(instance.ctx.getClientFactory(), instance.ctx);
+    client.updateGlobalState(instance.state, webs);
+    assertEquals(webs.size(), siteCollectionCalls.get());
+
+    // The webs of other shards and the web without site collection are
+    // discovered again in the next batches, without being looked up.
+    for (int batch = 0; batch < 3; batch++) {
+      client.updateGlobalState(instance.state, webs);
+      for (WebState web : instance.state.getAllWebStateSet()) {
+        instance.ctx.getShardAssignment().owns(instance.ctx, web);
+      }
+    }
+    assertEquals(webs.size(), siteCollectionCalls.get());
+  }
+
+  public void testWebsOfSiteCollectionInSameShard() {
+    ShardAssignment shards = new ShardAssignment(0, 7);
+    for (int i = 0; i < SITE_COLLECTIONS; i++) {
+      int shard = shards.getShard(FARM + i);
+      assertEquals(shard, shards.getShard(FARM + i + "/"));
+      assertEquals(shard, shards.getShard((FARM + i).toUpperCase()));
+    }
+  }
+
+  public void testShardsAreBalanced() {
+    int[] counts = new int[4];
+    ShardAssignment shards = new ShardAssignment(0, counts.length);
+    for (int i = 0; i < 4000; i++) {
+      counts[shards.getShard(FARM + i)]++;
+    }
+    for (int count : counts) {
+      assertTrue(String.valueOf(count), count > 700 && count < 1300);
+    }
+  }
+
+  public void testAddingShardOnlyMovesToNewShard() {
+    ShardAssignment before = new ShardAssignment(0, 4);
+    ShardAssignment after = new ShardAssignment(0, 5);
+    int moved = 0;
+    for (int i = 0; i < 4000; i++) {
+      int shard = after.getShard(FARM + i);
+      if (shard != before.getShard(FARM + i)) {
+        assertEquals(4, shard);
+        moved++;
+      }
+    }
+    assertTrue(String.valueOf(moved), moved > 500 && moved < 1100);
+  }
+
+  public void testUnsharded() {
+    ShardAssignment shards = new ShardAssignment(0, 1);
+    assertFalse(shards.isSharded());
+    assertTrue(shards.owns(FARM + 1));
+  }
+
+  public void testInvalidShard() {
+    try {
+      new ShardAssignment(3, 3);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    try {
+      new ShardAssignment(0, 0);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,219 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.generated.sitedata._sWebMetadata;
+import com.google.enterprise.connector.sharepoint.generated.sitedata.holders.ArrayOf_sListHolder;
+import com.google.enterprise.connector.sharepoint.generated.sitedata.holders._sWebMetadataHolder;
+import com.google.enterprise.connector.sharepoint.state.GlobalState;
+import com.google.enterprise.connector.sharepoint.state.ListState;
+import com.google.enterprise.connector.sharepoint.state.WebState;
+import com.google.enterprise.connector.sharepoint.wsclient.client.SiteDataWS;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockSiteDataWS;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.rpc.holders.BooleanHolder;
+import javax.xml.rpc.holders.StringHolder;
+
+public class SiteChangeTrackerTest extends TestCase {
+  private static final String WEB_PREFIX = "http://example.com/sites/farm/web";
+  private static final int WEBS = 100;
+
+  private final AtomicInteger calls = new AtomicInteger();
+  private final AtomicInteger changeCalls = new AtomicInteger();
+  private final List<String> changedWebIds = new ArrayList<String>();
+  private final List<String> changedListIds = new ArrayList<String>();
+  private final List<String> lastChangeIds = new ArrayList<String>();
+  private boolean failChanges;
+
+  private SharepointClientContext clientContext;
+  private List<WebState> webs;
+  private SiteChangeTracker tracker;
+
+  @Override
+  protected void setUp() throws Exception {
+    // All the webs are in one site collection. The GUID of a web is the end
+    // of its URL, in braces and upper case.
+    MockClientFactory clientFactory = new MockClientFactory() {
+      @Override
+      public SiteDataWS getSiteDataWS(final SharepointClientContext ctx) {
+        return new MockSiteDataWS(ctx) {
+          @Override
+          public ArrayOf_sListHolder getListCollection() {
+            calls.incrementAndGet();
+            return new ArrayOf_sListHolder();
+          }
+
+          @Override
+          public _sWebMetadataHolder getSiteData() {
+            calls.incrementAndGet();
+            String url = ctx.getSiteURL();
+            _sWebMetadata metadata = new _sWebMetadata();
+            metadata.setWebID("{" + url.substring(url.lastIndexOf('/') + 1)
+                .toUpperCase() + "}");
+            return new _sWebMetadataHolder(metadata);
+          }
+
+          @Override
+          public String getContentSiteCollection() {
+            calls.incrementAndGet();
+            return "<Site><Metadata URL=\"http://example.com/sites/farm\" "
+                + "ID=\"{SITE}\" ChangeId=\"change0\" /></Site>";
+          }
+
+          @Override
+          public String getChangesSiteCollection(String siteId,
+              StringHolder lastChangeId, BooleanHolder moreChanges) {
+            calls.incrementAndGet();
+            lastChangeIds.add(lastChangeId.value);
+            lastChangeId.value = "change" + changeCalls.incrementAndGet();
+            moreChanges.value = false;
+            if (failChanges) {
+              return null;
+            }
+            return getChangesXml();
+          }
+        };
+      }
+    };
+    clientContext = TestConfiguration.initContext(clientFactory);
+    GlobalState state = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+    webs = new ArrayList<WebState>();
+    for (int i = 0; i < WEBS; i++) {
+      WebState web = state.makeWebState(clientContext, WEB_PREFIX + i);
+      ListState list = new ListState("{LIST" + i + "}", "list" + i,
+          SPConstants.GENERIC_LIST, Calendar.getInstance(), "X",
+          web.getWebUrl() + "/list" + i, web);
+      web.AddOrUpdateListStateInWebState(list, list.getLastMod());
+      webs.add(web);
+    }
+    tracker = new SiteChangeTracker();
+  }
+
+  private String getChangesXml() {
+    StringBuilder changes = new StringBuilder();
+    changes.append("<SPContentDatabase Change=\"Unchanged\" ItemCount=\"0\">"
+        + "<SPSite Change=\"Unchanged\" ItemCount=\"0\" Id=\"{SITE}\">");
+    for (String webId : changedWebIds) {
+      changes.append("<SPWeb Change=\"Unchanged\" ItemCount=\"0\" Id=\""
+          + webId + "\"><SPList Change=\"Unchanged\" ItemCount=\"0\" "
+          + "Id=\"{00000000}\"><SPListItem Change=\"Update\" ItemCount=\"1\" "
+          + "Id=\"1\" /></SPList></SPWeb>");
+    }
+    for (String listId : changedListIds) {
+      changes.append("<SPList Change=\"UpdateShallow\" ItemCount=\"0\" Id=\""
+          + listId + "\" />");
+    }
+    changes.append("</SPSite></SPContentDatabase>");
+    return changes.toString();
+  }
+
+  /**
+   * Probes the change log and crawls the webs with changes, getting their
+   * lists.
+   *
+   * @return the URLs of the webs crawled
+   */
+  private Set<String> crawl() throws Exception {
+    tracker.probe(clientContext, webs);
+    Set<String> crawled = new HashSet<String>();
+    for (WebState web : webs) {
+      if (!tracker.isUnchanged(web)) {
+        SharepointClientContext webCtx =
+            (SharepointClientContext) clientContext.clone();
+        webCtx.setSiteURL(web.getWebUrl());
+        new SiteDataHelper(webCtx).getNamedLists(web);
+        tracker.crawled(web);
+        crawled.add(web.getWebUrl());
+      }
+    }
+    return crawled;
+  }
+
+  public void testFewerCallsWhenOnePercentOfWebsChange() throws Exception {
+    // The first cycle looks up every web and crawls them all.
+    assertEquals(WEBS, crawl().size());
+    assertEquals(3 * WEBS, calls.get());
+    assertEquals(0, changeCalls.get());
+
+    // One web in a hundred changes: one call gets the changes, and one web
+    // is crawled instead of all of them.
+    calls.set(0);
+    changedWebIds.add("{WEB42}");
+    Set<String> crawled = crawl();
+    assertEquals(1, crawled.size());
+    assertTrue(crawled.contains(WEB_PREFIX + "42"));
+    assertEquals(2, calls.get());
+
+    // Nothing changed since.
+    calls.set(0);
+    changedWebIds.clear();
+    assertEquals(0, crawl().size());
+    assertEquals(1, calls.get());
+    assertEquals(2, changeCalls.get());
+
+    // Each call asks for the changes after the last change seen.
+    assertEquals("change0", lastChangeIds.get(0));
+    assertEquals("change1", lastChangeIds.get(1));
+  }
+
+  public void testChangedListMarksItsWebChanged() throws Exception {
+    crawl();
+    changedListIds.add("{list7}");
+    Set<String> crawled = crawl();
+    assertEquals(1, crawled.size());
+    assertTrue(crawled.contains(WEB_PREFIX + "7"));
+  }
+
+  public void testUnknownWebMarksAllWebsChanged() throws Exception {
+    crawl();
+    changedWebIds.add("{NEWWEB}");
+    assertEquals(WEBS, crawl().size());
+  }
+
+  public void testFailedChangesMarkAllWebsChanged() throws Exception {
+    crawl();
+    failChanges = true;
+    assertEquals(WEBS, crawl().size());
+  }
+
+  public void testParseChanges() throws Exception {
+    SiteChangeTracker.Changes changes = new SiteChangeTracker.Changes();
+    SiteChangeTracker.parseChanges("<SPContentDatabase Change=\"Unchanged\">"
+        + "<SPSite Change=\"Unchanged\" Id=\"{S}\"><SPWeb Change=\"Unchanged\" "
+        + "Id=\"{W1}\" /><SPWeb Change=\"Add\" Id=\"{W2}\" /></SPSite>"
+        + "</SPContentDatabase>", changes);
+    assertEquals(1, changes.webIds.size());
+    assertTrue(changes.webIds.contains("w2"));
+    assertFalse(changes.siteChanged);
+
+    SiteChangeTracker.parseChanges("<SPContentDatabase Change=\"Unchanged\">"
+        + "<SPSite Change=\"Update\" Id=\"{S}\" /></SPContentDatabase>",
+        changes);
+    assertTrue(changes.siteChanged);
+  }
+}
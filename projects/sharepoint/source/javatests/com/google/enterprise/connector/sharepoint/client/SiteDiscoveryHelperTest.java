@@ -0,0 +1,155 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.generated.gssitediscovery.ListCrawlInfo;
+import com.google.enterprise.connector.sharepoint.generated.gssitediscovery.WebCrawlInfo;
+import com.google.enterprise.connector.sharepoint.state.GlobalState;
+import com.google.enterprise.connector.sharepoint.state.ListState;
+import com.google.enterprise.connector.sharepoint.state.WebState;
+import com.google.enterprise.connector.sharepoint.wsclient.client.SiteDiscoveryWS;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockSiteDiscoveryWS;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SiteDiscoveryHelperTest extends TestCase {
+  private final AtomicInteger webCalls = new AtomicInteger();
+  private final AtomicInteger listCalls = new AtomicInteger();
+  private SharepointClientContext clientContext;
+  private GlobalState state;
+
+  @Override
+  protected void setUp() throws Exception {
+    // Webs whose URL ends with a 1 are not crawled, lists whose GUID ends
+    // with a 1 allow anonymous access.
+    MockClientFactory clientFactory = new MockClientFactory() {
+      @Override
+      public SiteDiscoveryWS getSiteDiscoveryWS(SharepointClientContext ctx,
+          String webUrl) {
+        return new MockSiteDiscoveryWS(ctx, webUrl) {
+          @Override
+          public WebCrawlInfo[] getWebCrawlInfoInBatch(String[] weburls) {
+            webCalls.incrementAndGet();
+            WebCrawlInfo[] infos = new WebCrawlInfo[weburls.length];
+            for (int i = 0; i < weburls.length; i++) {
+              infos[i] = new WebCrawlInfo(weburls[i], false,
+                  weburls[i].endsWith("1"), true, null);
+            }
+            return infos;
+          }
+
+          @Override
+          public ListCrawlInfo[] getListCrawlInfo(String[] listGuids) {
+            listCalls.incrementAndGet();
+            ListCrawlInfo[] infos = new ListCrawlInfo[listGuids.length];
+            for (int i = 0; i < listGuids.length; i++) {
+              infos[i] = new ListCrawlInfo(listGuids[i], false, true, null,
+                  String.valueOf(listGuids[i].endsWith("1")));
+            }
+            return infos;
+          }
+        };
+      }
+    };
+    clientContext = TestConfiguration.initContext(clientFactory);
+    clientContext.setCrawlInfoFetchThreads(4);
+    state = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+  }
+
+  private Set<WebState> makeWebs(String webApp, int count) throws Exception {
+    Set<WebState> webs = new HashSet<WebState>();
+    for (int i = 0; i < count; i++) {
+      webs.add(state.makeWebState(clientContext, webApp + "/web" + i));
+    }
+    return webs;
+  }
+
+  private ListState makeList(WebState web, String guid) throws Exception {
+    return new ListState(guid, guid, SPConstants.GENERIC_LIST,
+        Calendar.getInstance(), "X", web.getWebUrl() + "/" + guid, web);
+  }
+
+  public void testUpdateWebCrawlInfoInBatch() throws Exception {
+    Set<WebState> webs = new HashSet<WebState>();
+    webs.addAll(makeWebs("http://app1.example.com",
+        2 * SiteDiscoveryHelper.WEB_CRAWL_INFO_BATCH_SIZE + 1));
+    webs.addAll(makeWebs("http://app2.example.com:8080", 10));
+
+    SiteDiscoveryHelper helper = new SiteDiscoveryHelper(clientContext, null);
+    helper.updateWebCrawlInfoInBatch(webs);
+    assertEquals(4, webCalls.get());
+    for (WebState web : webs) {
+      assertEquals(web.getWebUrl(), web.getWebUrl().endsWith("1"),
+          web.isNoCrawl());
+    }
+
+    // The crawl info is current and is not fetched again.
+    helper.updateWebCrawlInfoInBatch(webs);
+    assertEquals(4, webCalls.get());
+
+    clientContext.setCrawlInfoTimeToLive(0);
+    helper.updateWebCrawlInfoInBatch(webs);
+    assertEquals(8, webCalls.get());
+  }
+
+  public void testPrefetchListCrawlInfo() throws Exception {
+    List<WebState> webs = new ArrayList<WebState>();
+    for (WebState web : makeWebs("http://app1.example.com", 6)) {
+      for (int i = 0; i < 3; i++) {
+        ListState list = makeList(web, "{list" + i + "}");
+        web.AddOrUpdateListStateInWebState(list, list.getLastMod());
+      }
+      webs.add(web);
+    }
+    long now = System.currentTimeMillis();
+    SiteDiscoveryHelper helper = new SiteDiscoveryHelper(clientContext, null);
+    long timeToLive = helper.getCrawlInfoTimeToLive();
+    assertFalse(webs.get(0).isListCrawlInfoCurrent(now, timeToLive));
+
+    helper.prefetchListCrawlInfo(webs);
+    assertEquals(6, listCalls.get());
+    for (WebState web : webs) {
+      assertTrue(web.isListCrawlInfoCurrent(now, timeToLive));
+    }
+
+    // The prefetched crawl info is applied to the lists when they are
+    // discovered again, without another call.
+    WebState web = webs.get(0);
+    ListState known = web.lookupList("{list1}");
+    ListState discovered = makeList(web, "{list1}");
+    helper.applyListCrawlInfo(discovered, known.getCrawlInfo());
+    assertTrue(discovered.isAllowAnonymousAccess());
+    assertEquals(6, listCalls.get());
+
+    // Lists fetched as they are discovered carry the crawl info along.
+    ListState other = makeList(web, "{list2}");
+    helper.updateListCrawlInfo(ImmutableList.of(other));
+    assertEquals(7, listCalls.get());
+    assertFalse(other.isAllowAnonymousAccess());
+    assertTrue(other.isCrawlInfoCurrent(now, timeToLive));
+  }
+}
@@ -0,0 +1,139 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.state.PersonalSiteState;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.LargeUserProfileClientFactory;
+
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class UserProfile2007HelperTest extends TestCase {
+  private static final String MY_SITES = "http://mysites.example.com";
+  private static final int PROFILES = 2500;
+
+  private LargeUserProfileClientFactory clientFactory;
+  private SharepointClientContext context;
+  private UserProfile2007Helper helper;
+
+  @Override
+  protected void setUp() throws Exception {
+    setUp(new LargeUserProfileClientFactory(PROFILES, 0));
+  }
+
+  private void setUp(LargeUserProfileClientFactory clientFactory)
+      throws Exception {
+    this.clientFactory = clientFactory;
+    context = TestConfiguration.initContext(clientFactory);
+    context.setMySiteBaseURL(MY_SITES + "/");
+    context.setIncludedURlList(MY_SITES);
+    helper = new UserProfile2007Helper(context);
+  }
+
+  public void testFullScan() throws Exception {
+    PersonalSiteState knownSites = new PersonalSiteState();
+    Set<String> sites = helper.getPersonalSiteList(knownSites);
+
+    assertEquals(PROFILES, sites.size());
+    assertTrue(sites.contains(MY_SITES + "/personal/user0"));
+    assertTrue(sites.contains(MY_SITES + "/personal/user" + (PROFILES - 1)));
+    assertEquals(PROFILES, knownSites.size());
+    assertNotNull(knownSites.getChangeToken());
+    assertEquals(0, clientFactory.getNameCalls());
+  }
+
+  public void testSerialScanFindsTheSameSites() throws Exception {
+    Set<String> parallel = helper.getPersonalSiteList(new PersonalSiteState());
+    context.setPersonalSiteScanThreads(1);
+    assertEquals(parallel, helper.getPersonalSiteList(new PersonalSiteState()));
+  }
+
+  public void testSparseIndexesSkipped() throws Exception {
+    // 300 profiles spread over 3000 partitions.
+    setUp(new LargeUserProfileClientFactory(300, 0,
+        10 * UserProfile2007Helper.PARTITION_SIZE));
+    context.setPersonalSiteScanThreads(1);
+    Set<String> serial = helper.getPersonalSiteList(new PersonalSiteState());
+    assertEquals(300, serial.size());
+    assertEquals(300, clientFactory.getIndexCalls());
+
+    clientFactory.resetCalls();
+    context.setPersonalSiteScanThreads(4);
+    assertEquals(serial, helper.getPersonalSiteList(new PersonalSiteState()));
+    // Fewer calls than partitions, so the empty ones were not all scanned.
+    assertTrue(String.valueOf(clientFactory.getIndexCalls()),
+        clientFactory.getIndexCalls() < 3000);
+  }
+
+  public void testNoChanges() throws Exception {
+    PersonalSiteState knownSites = new PersonalSiteState();
+    Set<String> first = helper.getPersonalSiteList(knownSites);
+    clientFactory.resetCalls();
+
+    assertEquals(first, helper.getPersonalSiteList(knownSites));
+    assertEquals(0, clientFactory.getIndexCalls());
+    assertEquals(0, clientFactory.getNameCalls());
+  }
+
+  public void testOnlyChangedProfilesFetched() throws Exception {
+    PersonalSiteState knownSites = new PersonalSiteState();
+    helper.getPersonalSiteList(knownSites);
+    String changed = clientFactory.changeProfile(7);
+    clientFactory.changeProfile(8);
+    clientFactory.changeProfile(8);
+    clientFactory.changeProfile(9);
+    clientFactory.deleteProfile(10);
+    clientFactory.resetCalls();
+
+    Set<String> sites = helper.getPersonalSiteList(knownSites);
+    assertEquals(0, clientFactory.getIndexCalls());
+    assertEquals(3, clientFactory.getNameCalls());
+    assertEquals(PROFILES - 1, sites.size());
+    assertFalse(sites.contains(MY_SITES + "/personal/user7"));
+    assertTrue(sites.contains(MY_SITES + changed.substring(0,
+        changed.length() - 1)));
+    assertFalse(sites.contains(MY_SITES + "/personal/user10"));
+    assertEquals(PROFILES - 1, knownSites.size());
+  }
+
+  public void testChangesOverSeveralCalls() throws Exception {
+    PersonalSiteState knownSites = new PersonalSiteState();
+    helper.getPersonalSiteList(knownSites);
+    for (int i = 0; i < 2100; i++) {
+      clientFactory.changeProfile(i % 1500);
+    }
+    clientFactory.resetCalls();
+
+    Set<String> sites = helper.getPersonalSiteList(knownSites);
+    assertEquals(0, clientFactory.getIndexCalls());
+    assertEquals(1500, clientFactory.getNameCalls());
+    assertEquals(PROFILES, sites.size());
+    assertFalse(sites.contains(MY_SITES + "/personal/user0"));
+    assertEquals(helper.getPersonalSiteList(new PersonalSiteState()), sites);
+  }
+
+  public void testInvalidChangeTokenScansProfiles() throws Exception {
+    PersonalSiteState knownSites = new PersonalSiteState();
+    knownSites.put("mockdomain\\gone", MY_SITES + "/personal/gone");
+    knownSites.setChangeToken("invalid");
+
+    Set<String> sites = helper.getPersonalSiteList(knownSites);
+    assertEquals(PROFILES, sites.size());
+    assertFalse(sites.contains(MY_SITES + "/personal/gone"));
+    assertFalse("invalid".equals(knownSites.getChangeToken()));
+  }
+}
@@ -117,6 +117,16 @@ public class UtilTest extends TestCase {
         "201[4-9]-[01]\\d-[0-3]\\d [0-2]\\d:[0-6]\\d:[0-6]\\d .+"));
   }
 
+  public void testCollationEquals() {
+    assertTrue(Util.collationEquals("DocumentLibrary", "documentlibrary"));
+    assertFalse(Util.collationEquals("DocumentLibrary", "GenericList"));
+    assertFalse(Util.collationEquals(null, "GenericList"));
+    assertFalse(Util.collationEquals("GenericList", null));
+    assertEquals(Util.getCollator().equals("Issue", "ISSUE"),
+        Util.getCollationKey("Issue").equals(Util.getCollationKey("ISSUE")));
+    assertSame(Util.getCollationKey("Issue"), Util.getCollationKey("Issue"));
+  }
+
   public void testDoAliasMapping() {
     checkAliasMapping("http://mycomp.com/", "http://mycomp.com:80/");
     checkAliasMapping("http://mycomp.com:80/", "http://mycomp.com/");
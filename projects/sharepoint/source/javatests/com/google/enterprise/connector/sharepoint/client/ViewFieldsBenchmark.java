@@ -0,0 +1,278 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.spiimpl.SPDocument;
+import com.google.enterprise.connector.sharepoint.state.GlobalState;
+import com.google.enterprise.connector.sharepoint.state.ListState;
+import com.google.enterprise.connector.sharepoint.state.WebState;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
+import com.google.enterprise.connector.sharepoint.wsclient.soap.SPListsWS;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.axis.client.Call;
+import org.apache.axis.message.MessageElement;
+import org.apache.axis.transport.http.HTTPTransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the size and time of the getListItemChangesSinceToken responses
+ * of lists with 50, 200 and 500 columns, requesting all the fields and only
+ * the fields read by the connector plus two included columns. A local HTTP
+ * server stands in for SharePoint and returns the fields in the ViewFields
+ * of the request, or all of them if there are none.
+ * <p/>
+ * Not run as part of the tests; run with
+ * {@code java -cp <test classpath> ...ViewFieldsBenchmark [rows]}.
+ */
+public class ViewFieldsBenchmark {
+  private static final String[] ITEM_FIELDS = { "ID", "FileRef", "Modified",
+      "FSObjType", "ContentType", "Editor", "Author", "Title", "MetaInfo" };
+
+  private static final Pattern FIELD_REF =
+      Pattern.compile("FieldRef Name=\"([^\"]+)\"");
+
+  public static void main(String[] args) throws Exception {
+    Logger.getLogger("").setLevel(Level.WARNING);
+    int rows = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+
+    WideListServer server = new WideListServer(rows);
+    try {
+      // Other code may replace the HTTP transport.
+      Call.setTransportForProtocol("http", HTTPTransport.class);
+      MockClientFactory clientFactory = new MockClientFactory();
+      SharepointClientContext ctx =
+          TestConfiguration.initContext(clientFactory);
+      ctx.setSiteURL(server.getUrl());
+      GlobalState state = new GlobalState(clientFactory,
+          TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+      WebState web = state.makeWebState(ctx, server.getUrl());
+
+      System.out.println("columns\tall KB\tprojected KB\tall ms\t"
+          + "projected ms\tdocs");
+      for (int columns : new int[] { 50, 200, 500 }) {
+        server.columns = columns;
+        ListState list = new ListState("{LIST" + columns + "}", "Docs",
+            SPConstants.DOC_LIB, Calendar.getInstance(), SPConstants.DOC_LIB,
+            server.getUrl() + "/Docs", web);
+        SPListsWS ws = new SPListsWS(ctx, String.valueOf(rows));
+        list.setFieldNames(ws.getListFields(list));
+
+        ctx.getIncluded_metadata().clear();
+        ctx.getExcluded_metadata().clear();
+        long[] all = time(ws, ctx, list, server);
+        ctx.getIncluded_metadata().add(Pattern.compile("^Title$"));
+        ctx.getIncluded_metadata().add(Pattern.compile("^Column 1$"));
+        long[] projected = time(ws, ctx, list, server);
+
+        if (all[2] != projected[2]) {
+          throw new AssertionError(all[2] + " documents with all fields, "
+              + projected[2] + " with the projection");
+        }
+        System.out.println(columns + "\t" + all[0] / 1024 + "\t"
+            + projected[0] / 1024 + "\t\t" + all[1] + "\t"
+            + projected[1] + "\t\t" + all[2]);
+      }
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * @return the bytes of a response, its time in ms and the number of
+   *         documents, after a warm up call
+   */
+  private static long[] time(SPListsWS ws, final SharepointClientContext ctx,
+      final ListState list, WideListServer server) throws Exception {
+    ListsUtil.SPQueryInfo queryInfo = new ListsUtil.SPQueryInfo() {
+      public MessageElement[] getQuery() throws Exception {
+        return ListsUtil.createQuery3("0");
+      }
+
+      public MessageElement[] getViewFields() throws Exception {
+        return ListsUtil.createViewFields(ctx, list);
+      }
+
+      public MessageElement[] getQueryOptions() throws Exception {
+        return ListsUtil.createQueryOptions(true, null);
+      }
+    };
+    List<SPDocument> docs = null;
+    long elapsed = 0;
+    for (int round = 0; round < 6; round++) {
+      long start = System.nanoTime();
+      docs = ws.getListItemChangesSinceToken(list, list.getPrimaryKey(), "",
+          queryInfo, "1;3;" + list.getPrimaryKey() + ";1",
+          new HashSet<String>(), new HashSet<String>(),
+          new HashSet<String>(), new HashSet<String>());
+      if (round > 0) {
+        elapsed += System.nanoTime() - start;
+      }
+    }
+    return new long[] { server.lastLength.get(), elapsed / 5 / 1000000,
+        docs.size() };
+  }
+
+  /** A local HTTP server returning the schema and the items of a list. */
+  private static class WideListServer {
+    private final HttpServer server;
+    private final int rows;
+    volatile int columns;
+    final AtomicLong lastLength = new AtomicLong();
+
+    WideListServer(int rows) throws IOException {
+      this.rows = rows;
+      server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      server.createContext("/", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          String request = read(exchange.getRequestBody());
+          String action =
+              exchange.getRequestHeaders().getFirst("SOAPAction");
+          String result;
+          if (action != null && action.contains("GetListItemChanges")) {
+            result = "GetListItemChangesSinceToken";
+          } else {
+            result = "GetList";
+          }
+          String body = result.equals("GetList")
+              ? getSchema() : getItems(getRequestedFields(request));
+          byte[] response = ("<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+              + "<soap:Envelope xmlns:soap="
+              + "\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+              + "<" + result + "Response xmlns="
+              + "\"http://schemas.microsoft.com/sharepoint/soap/\">"
+              + "<" + result + "Result>" + body + "</" + result + "Result>"
+              + "</" + result + "Response></soap:Body></soap:Envelope>")
+              .getBytes("UTF-8");
+          lastLength.set(response.length);
+          exchange.getResponseHeaders().set("Content-Type",
+              "text/xml; charset=utf-8");
+          exchange.sendResponseHeaders(200, response.length);
+          OutputStream out = exchange.getResponseBody();
+          out.write(response);
+          out.close();
+        }
+      });
+      server.start();
+    }
+
+    String getUrl() {
+      return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    void stop() {
+      server.stop(0);
+    }
+
+    List<String> getFields() {
+      List<String> fields = new ArrayList<String>();
+      for (String field : ITEM_FIELDS) {
+        fields.add(field);
+      }
+      for (int i = 0; i < columns; i++) {
+        fields.add("Column_x0020_" + i);
+      }
+      return fields;
+    }
+
+    String getSchema() {
+      StringBuilder schema = new StringBuilder("<List Name=\"{LIST}\">"
+          + "<Fields>");
+      for (String field : getFields()) {
+        schema.append("<Field Name=\"" + field + "\" />");
+      }
+      return schema.append("</Fields></List>").toString();
+    }
+
+    Set<String> getRequestedFields(String request) {
+      Set<String> fields = new LinkedHashSet<String>();
+      Matcher matcher = FIELD_REF.matcher(request);
+      while (matcher.find()) {
+        fields.add(matcher.group(1));
+      }
+      if (fields.isEmpty()) {
+        fields.addAll(getFields());
+      }
+      return fields;
+    }
+
+    String getItems(Set<String> fields) {
+      StringBuilder items = new StringBuilder("<listitems "
+          + "xmlns:rs=\"urn:schemas-microsoft-com:rowset\" "
+          + "xmlns:z=\"#RowsetSchema\"><Changes LastChangeToken=\"1;3;"
+          + "{LIST};2\" /><rs:data ItemCount=\"" + rows + "\">");
+      for (int id = 1; id <= rows; id++) {
+        items.append("<z:row");
+        for (String field : fields) {
+          items.append(" ows_").append(field).append("=\"")
+              .append(getValue(field, id)).append("\"");
+        }
+        items.append(" />");
+      }
+      return items.append("</rs:data></listitems>").toString();
+    }
+
+    String getValue(String field, int id) {
+      if (field.equals("ID")) {
+        return String.valueOf(id);
+      } else if (field.equals("FileRef")) {
+        return id + ";#Docs/doc" + id + ".txt";
+      } else if (field.equals("Modified")) {
+        return "2012-01-01T00:00:00Z";
+      } else if (field.equals("FSObjType")) {
+        return id + ";#0";
+      } else if (field.equals("ContentType")) {
+        return "Document";
+      } else if (field.equals("Editor") || field.equals("Author")) {
+        return "1;#domain\\user";
+      } else if (field.equals("MetaInfo")) {
+        return id + ";#";
+      } else {
+        return "Value of " + field + " for item " + id;
+      }
+    }
+
+    private static String read(InputStream in) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+      return out.toString("UTF-8");
+    }
+  }
+}
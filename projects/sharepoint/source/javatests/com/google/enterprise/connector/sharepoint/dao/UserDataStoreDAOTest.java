@@ -209,6 +209,80 @@ public class UserDataStoreDAOTest extends TestCase {
     assertEquals(expectedGroups, spGroups);
   }  
   
+  public void testMembershipIndexWarmedFromDatabase() throws Exception {
+    UserDataStoreDAO indexedDAO = createIndexedDAO();
+    for (UserGroupMembership membership : memberships) {
+      assertEquals(
+          new HashSet<UserGroupMembership>(
+              getAllMembershipsForUser(membership.getUserName())),
+          new HashSet<UserGroupMembership>(
+              indexedDAO.getAllMembershipsForSearchUserAndLdapGroups(
+                  ImmutableSet.<String>of(), membership.getUserName())));
+    }
+  }
+
+  public void testMembershipIndexFollowsWrites() throws Exception {
+    UserDataStoreDAO indexedDAO = createIndexedDAO();
+    Set<String> users = ImmutableSet.of("user1", "user2", "user3", "user4");
+
+    Set<UserGroupMembership> added = new HashSet<UserGroupMembership>();
+    added.add(new UserGroupMembership(4, "User4", 5, "group5", namespace));
+    added.add(new UserGroupMembership(1, "user1", 5, "group5", namespace));
+    indexedDAO.addMemberships(added);
+    assertIndexMatchesDatabase(indexedDAO, users);
+
+    indexedDAO.removeUserMembershipsFromNamespace(
+        ImmutableSet.of(1), namespace);
+    assertIndexMatchesDatabase(indexedDAO, users);
+
+    Map<Integer, Set<UserGroupMembership>> groupMemberships =
+        new HashMap<Integer, Set<UserGroupMembership>>();
+    groupMemberships.put(5, ImmutableSet.of(
+        new UserGroupMembership(2, "user2", 5, "group5", namespace)));
+    indexedDAO.syncGroupMemberships(groupMemberships, namespace);
+    assertIndexMatchesDatabase(indexedDAO, users);
+
+    indexedDAO.removeGroupMembershipsFromNamespace(
+        ImmutableSet.of(2), namespace);
+    assertIndexMatchesDatabase(indexedDAO, users);
+
+    indexedDAO.removeAllMembershipsFromNamespace(ImmutableSet.of(namespace));
+    assertIndexMatchesDatabase(indexedDAO, users);
+  }
+
+  public void testMembershipIndexLooksUpGroups() throws Exception {
+    UserDataStoreDAO indexedDAO = createIndexedDAO();
+    List<UserGroupMembership> result =
+        indexedDAO.getAllMembershipsForSearchUserAndLdapGroups(
+            ImmutableSet.of("user2", "user3"), "user1");
+    assertEquals(memberships, new HashSet<UserGroupMembership>(result));
+  }
+
+  private UserDataStoreDAO createIndexedDAO() throws SharepointException {
+    UserDataStoreDAO indexedDAO = new UserDataStoreDAO(
+        TestConfiguration.getUserDataSource(),
+        TestConfiguration.getUserDataStoreQueryProvider(),
+        TestConfiguration.getUserGroupMembershipRowMapper());
+    indexedDAO.setUseMembershipIndex(true);
+    assertTrue(indexedDAO.isMembershipIndexLoaded());
+    return indexedDAO;
+  }
+
+  /**
+   * Checks that the indexed DAO resolves the same memberships for each user
+   * as the database does.
+   */
+  private void assertIndexMatchesDatabase(UserDataStoreDAO indexedDAO,
+      Set<String> users) throws SharepointException {
+    for (String user : users) {
+      assertEquals(user,
+          new HashSet<UserGroupMembership>(getAllMembershipsForUser(user)),
+          new HashSet<UserGroupMembership>(
+              indexedDAO.getAllMembershipsForSearchUserAndLdapGroups(
+                  ImmutableSet.<String>of(), user)));
+    }
+  }
+
   public void testSharePointGroupResolutionWith601ErrorRetry()
       throws SharepointException, SQLException { 
     QueryProvider queryProvider = new QueryProvider(
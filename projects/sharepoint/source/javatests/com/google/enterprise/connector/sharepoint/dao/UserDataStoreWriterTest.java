@@ -0,0 +1,282 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.dao;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
+
+import junit.framework.TestCase;
+
+import org.springframework.transaction.TransactionStatus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class UserDataStoreWriterTest extends TestCase {
+  private static final int USERS = 10;
+  private static final int GROUPS = 5;
+
+  private UserDataStoreDAO syncDAO;
+  private UserDataStoreDAO writeBehindDAO;
+
+  @Override
+  protected void setUp() throws Exception {
+    syncDAO = createDAO();
+    writeBehindDAO = createDAO();
+    writeBehindDAO.setWriteBehindSize(5);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    writeBehindDAO.close();
+  }
+
+  private UserDataStoreDAO createDAO() throws SharepointException {
+    return new UserDataStoreDAO(TestConfiguration.getUserDataSource(),
+        TestConfiguration.getUserDataStoreQueryProvider(),
+        TestConfiguration.getUserGroupMembershipRowMapper());
+  }
+
+  private static UserGroupMembership membership(int user, int group,
+      String namespace) {
+    return new UserGroupMembership(user, "user" + user, group, "group" + group,
+        namespace);
+  }
+
+  /**
+   * Returns the user and group IDs of the memberships in a namespace.
+   */
+  private Set<String> getMemberships(String namespace)
+      throws SharepointException {
+    Set<String> rows = new HashSet<String>();
+    for (int user = 0; user < USERS; user++) {
+      for (UserGroupMembership membership
+          : syncDAO.getAllMembershipsForSearchUserAndLdapGroups(
+              ImmutableSet.<String>of(), "user" + user)) {
+        if (namespace.equals(membership.getNamespace())) {
+          rows.add(membership.getUserId() + ":" + membership.getGroupId());
+        }
+      }
+    }
+    return rows;
+  }
+
+  public void testFlushWritesQueuedChanges() throws Exception {
+    String namespace = "http://writebehind/flush";
+    Set<UserGroupMembership> added = new HashSet<UserGroupMembership>();
+    added.add(membership(1, 1, namespace));
+    added.add(membership(2, 1, namespace));
+    writeBehindDAO.addMemberships(added);
+    writeBehindDAO.removeUserMembershipsFromNamespace(ImmutableSet.of(2),
+        namespace);
+    writeBehindDAO.flush();
+
+    assertEquals(ImmutableSet.of("1:1"), getMemberships(namespace));
+  }
+
+  public void testSyncReplacesQueuedMemberships() throws Exception {
+    String namespace = "http://writebehind/sync";
+    writeBehindDAO.setWriteBehindSize(1000);
+
+    Set<UserGroupMembership> added = new HashSet<UserGroupMembership>();
+    added.add(membership(1, 1, namespace));
+    added.add(membership(2, 2, namespace));
+    writeBehindDAO.addMemberships(added);
+    for (int user = 3; user < 6; user++) {
+      Map<Integer, Set<UserGroupMembership>> groups =
+          new HashMap<Integer, Set<UserGroupMembership>>();
+      groups.put(1, ImmutableSet.of(membership(user, 1, namespace)));
+      writeBehindDAO.syncGroupMemberships(groups, namespace);
+    }
+    writeBehindDAO.flush();
+
+    assertEquals(ImmutableSet.of("2:2", "5:1"), getMemberships(namespace));
+  }
+
+  public void testFlushThrowsFailedWrites() throws Exception {
+    String namespace = "http://writebehind/failed";
+    UserDataStoreDAO failingDAO = new UserDataStoreDAO(
+        TestConfiguration.getUserDataSource(),
+        TestConfiguration.getUserDataStoreQueryProvider(),
+        TestConfiguration.getUserGroupMembershipRowMapper()) {
+      @Override
+      void writeMemberships(Set<UserGroupMembership> memberships)
+          throws SharepointException {
+        throw new SharepointException("Test failure");
+      }
+    };
+    failingDAO.setWriteBehindSize(5);
+    try {
+      Map<Integer, Set<UserGroupMembership>> groups =
+          new HashMap<Integer, Set<UserGroupMembership>>();
+      groups.put(1, ImmutableSet.of(membership(3, 1, namespace)));
+      failingDAO.syncGroupMemberships(groups, namespace);
+      failingDAO.addMemberships(ImmutableSet.of(membership(1, 2, namespace)));
+      try {
+        failingDAO.flush();
+        fail("Expected the failed write to be thrown");
+      } catch (SharepointException expected) {
+      }
+
+      // The other changes are written, and the failure is thrown once.
+      assertEquals(ImmutableSet.of("3:1"), getMemberships(namespace));
+      failingDAO.flush();
+    } finally {
+      failingDAO.close();
+    }
+  }
+
+  public void testQueuedChangesWrittenInOneTransaction() throws Exception {
+    String namespace = "http://writebehind/transaction";
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch queued = new CountDownLatch(1);
+    final AtomicInteger commits = new AtomicInteger();
+    UserDataStoreDAO dao = new UserDataStoreDAO(
+        TestConfiguration.getUserDataSource(),
+        TestConfiguration.getUserDataStoreQueryProvider(),
+        TestConfiguration.getUserGroupMembershipRowMapper()) {
+      @Override
+      void deleteNamespaceMemberships(Set<String> namespaces)
+          throws SharepointException {
+        // Holds the writer until the other changes are queued.
+        writing.countDown();
+        try {
+          queued.await();
+        } catch (InterruptedException e) {
+          throw new SharepointException("Interrupted");
+        }
+        super.deleteNamespaceMemberships(namespaces);
+      }
+
+      @Override
+      void commitTransaction(TransactionStatus status) {
+        commits.incrementAndGet();
+        super.commitTransaction(status);
+      }
+    };
+    dao.setWriteBehindSize(1000);
+    try {
+      dao.removeAllMembershipsFromNamespace(ImmutableSet.of(namespace));
+      writing.await();
+      dao.addMemberships(ImmutableSet.of(membership(1, 1, namespace)));
+      dao.removeUserMembershipsFromNamespace(ImmutableSet.of(5), namespace);
+      dao.addMemberships(ImmutableSet.of(membership(2, 1, namespace)));
+      Map<Integer, Set<UserGroupMembership>> groups =
+          new HashMap<Integer, Set<UserGroupMembership>>();
+      groups.put(2, ImmutableSet.of(membership(3, 2, namespace)));
+      dao.syncGroupMemberships(groups, namespace);
+      queued.countDown();
+      dao.flush();
+
+      // The removal was written alone, and the others together.
+      assertEquals(1, commits.get());
+      assertEquals(ImmutableSet.of("1:1", "2:1", "3:2"),
+          getMemberships(namespace));
+    } finally {
+      dao.close();
+    }
+  }
+
+  /**
+   * Makes the same random changes through the write-behind DAO on several
+   * threads and through a DAO writing immediately, each in its own
+   * namespace, and checks that the user data store ends up the same.
+   */
+  public void testSameResultAsWritingImmediately() throws Exception {
+    final int threads = 4;
+    final List<Throwable> failures = new ArrayList<Throwable>();
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i++) {
+      final int seed = i;
+      workers.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            applyChanges(writeBehindDAO, "http://writebehind/" + seed, seed);
+          } catch (Throwable t) {
+            synchronized (failures) {
+              failures.add(t);
+            }
+          }
+        }
+      });
+    }
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    for (int i = 0; i < threads; i++) {
+      applyChanges(syncDAO, "http://sync/" + i, i);
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    assertEquals(new ArrayList<Throwable>(), failures);
+    writeBehindDAO.flush();
+
+    for (int i = 0; i < threads; i++) {
+      assertEquals(String.valueOf(i), getMemberships("http://sync/" + i),
+          getMemberships("http://writebehind/" + i));
+    }
+  }
+
+  private void applyChanges(UserDataStoreDAO dao, String namespace, int seed)
+      throws SharepointException {
+    Random random = new Random(seed);
+    for (int i = 0; i < 200; i++) {
+      switch (random.nextInt(5)) {
+      case 0:
+      case 1:
+        Set<UserGroupMembership> added = new HashSet<UserGroupMembership>();
+        for (int j = random.nextInt(4); j >= 0; j--) {
+          added.add(membership(random.nextInt(USERS), random.nextInt(GROUPS),
+              namespace));
+        }
+        dao.addMemberships(added);
+        break;
+      case 2:
+        Map<Integer, Set<UserGroupMembership>> groups =
+            new HashMap<Integer, Set<UserGroupMembership>>();
+        int group = random.nextInt(GROUPS);
+        Set<UserGroupMembership> members = new HashSet<UserGroupMembership>();
+        for (int j = random.nextInt(3); j > 0; j--) {
+          members.add(membership(random.nextInt(USERS), group, namespace));
+        }
+        groups.put(group, members);
+        dao.syncGroupMemberships(groups, namespace);
+        break;
+      case 3:
+        dao.removeUserMembershipsFromNamespace(
+            ImmutableSet.of(random.nextInt(USERS)), namespace);
+        break;
+      default:
+        if (random.nextInt(10) == 0) {
+          dao.removeAllMembershipsFromNamespace(ImmutableSet.of(namespace));
+        } else {
+          dao.removeGroupMembershipsFromNamespace(
+              ImmutableSet.of(random.nextInt(GROUPS)), namespace);
+        }
+        break;
+      }
+    }
+  }
+}
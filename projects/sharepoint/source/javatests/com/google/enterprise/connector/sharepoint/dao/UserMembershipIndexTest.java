@@ -0,0 +1,100 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.dao;
+
+import com.google.common.collect.ImmutableSet;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class UserMembershipIndexTest extends TestCase {
+  private static final String SITE1 = "http://site1";
+  private static final String SITE2 = "http://site2";
+
+  private UserMembershipIndex index;
+
+  @Override
+  protected void setUp() {
+    index = new UserMembershipIndex();
+    index.reload(Arrays.asList(
+        new UserGroupMembership(1, "Domain\\User1", 10, "Group10", SITE1),
+        new UserGroupMembership(1, "domain\\user1", 11, "Group11", SITE1),
+        new UserGroupMembership(2, "domain\\adgroup", 10, "Group10", SITE1),
+        new UserGroupMembership(1, "domain\\user1", 10, "Group10", SITE2)));
+  }
+
+  private Set<String> lookup(Set<String> groups, String user) {
+    Set<String> result = new HashSet<String>();
+    for (UserGroupMembership membership
+        : index.getMemberships(groups, user)) {
+      result.add(membership.getNamespace() + "/" + membership.getGroupName());
+    }
+    return result;
+  }
+
+  public void testLookup() {
+    assertEquals(4, index.size());
+    assertEquals(ImmutableSet.of(SITE1 + "/Group10", SITE1 + "/Group11",
+        SITE2 + "/Group10"), lookup(ImmutableSet.<String>of(), "domain\\user1"));
+    assertEquals(ImmutableSet.of(SITE1 + "/Group10"),
+        lookup(ImmutableSet.of("domain\\adgroup"), "domain\\nobody"));
+    assertEquals(ImmutableSet.of(),
+        lookup(ImmutableSet.of("domain\\other"), "domain\\nobody"));
+  }
+
+  public void testUserNamesStoredInLowerCase() {
+    UserGroupMembership membership =
+        index.getMemberships(ImmutableSet.<String>of(), "domain\\adgroup")
+        .get(0);
+    assertEquals("domain\\adgroup", membership.getUserName());
+    assertTrue(lookup(ImmutableSet.<String>of(), "Domain\\User1").isEmpty());
+  }
+
+  public void testAddReplacesRowWithSameKey() {
+    index.add(new UserGroupMembership(1, "domain\\renamed", 11, "Renamed",
+        SITE1));
+    assertEquals(4, index.size());
+    assertEquals(ImmutableSet.of(SITE1 + "/Group10", SITE2 + "/Group10"),
+        lookup(ImmutableSet.<String>of(), "domain\\user1"));
+    assertEquals(ImmutableSet.of(SITE1 + "/Renamed"),
+        lookup(ImmutableSet.<String>of(), "domain\\renamed"));
+  }
+
+  public void testRemoveUser() {
+    index.removeUser(1, SITE1);
+    assertEquals(2, index.size());
+    assertEquals(ImmutableSet.of(SITE2 + "/Group10"),
+        lookup(ImmutableSet.<String>of(), "domain\\user1"));
+  }
+
+  public void testRemoveGroup() {
+    index.removeGroup(10, SITE1);
+    assertEquals(2, index.size());
+    assertEquals(ImmutableSet.of(SITE1 + "/Group11", SITE2 + "/Group10"),
+        lookup(ImmutableSet.of("domain\\adgroup"), "domain\\user1"));
+  }
+
+  public void testRemoveNamespace() {
+    index.removeNamespace(SITE1);
+    assertEquals(1, index.size());
+    assertEquals(ImmutableSet.of(SITE2 + "/Group10"),
+        lookup(ImmutableSet.of("domain\\adgroup"), "domain\\user1"));
+    index.removeNamespace(SITE1);
+    assertEquals(1, index.size());
+  }
+}
@@ -132,6 +132,11 @@ public class MockUserProfileGenerator implements UserProfileServiceGenerator {
     int arrayIndex = getArrayIndex(index);
 
     GetUserProfileByIndexResult profile = new GetUserProfileByIndexResult();
+    if (arrayIndex >= names.length) {
+      // There are no profiles at or after the index.
+      profile.setNextValue("-1");
+      return profile;
+    }
     profile.setUserProfile(getProfileData(arrayIndex));
     profile.setNextValue(Integer.toString(getNextValue(arrayIndex)));
     return profile;
@@ -0,0 +1,263 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.social;
+
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
+import com.google.enterprise.connector.sharepoint.generated.sp2010.userprofileservice.ContactData;
+import com.google.enterprise.connector.sharepoint.generated.sp2010.userprofileservice.GetUserProfileByIndexResult;
+import com.google.enterprise.connector.sharepoint.generated.sp2010.userprofileservice.Privacy;
+import com.google.enterprise.connector.sharepoint.generated.sp2010.userprofileservice.PropertyData;
+import com.google.enterprise.connector.sharepoint.generated.sp2010.userprofileservice.ValueData;
+import com.google.enterprise.connector.spi.SocialUserProfileDocument;
+import com.google.enterprise.connector.spi.SpiConstants.ActionType;
+
+import junit.framework.TestCase;
+
+import org.apache.axis.AxisFault;
+
+import java.net.URL;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SharepointUserProfilePipelineTest extends TestCase {
+  private static final int PROFILES = 200;
+
+  private SparseProfileService profileService;
+  private SharepointClientContext context;
+  private SharepointSocialClientContext socialContext;
+
+  @Override
+  protected void setUp() throws Exception {
+    profileService = new SparseProfileService(PROFILES);
+    context = TestConfiguration.initContext();
+    context.setUserProfileServiceFactory(new UserProfileServiceFactory() {
+      @Override
+      public UserProfileServiceGenerator createService(URL url)
+          throws AxisFault {
+        return profileService;
+      }
+    });
+    socialContext = TestConfiguration.initSocialContext(context);
+  }
+
+  private List<String> readProfiles(SharepointUserProfilePipeline pipeline)
+      throws Exception {
+    List<String> names = new ArrayList<String>();
+    SharePointSocialUserProfileDocument doc;
+    while ((doc = pipeline.nextProfile()) != null) {
+      names.add(doc.getUserContent().toString());
+    }
+    return names;
+  }
+
+  public void testProfilesInIndexOrder() throws Exception {
+    context.setUserProfileFetchThreads(4);
+    SharepointUserProfilePipeline pipeline = new SharepointUserProfilePipeline(
+        socialContext, -1, PROFILES, null);
+
+    assertEquals(profileService.getNames(), readProfiles(pipeline));
+    assertTrue(pipeline.isEnd());
+  }
+
+  public void testSameProfilesAsSingleThread() throws Exception {
+    context.setUserProfileFetchThreads(1);
+    List<String> serial = readProfiles(new SharepointUserProfilePipeline(
+        socialContext, -1, PROFILES, null));
+
+    context.setUserProfileFetchThreads(8);
+    context.setUserProfilePrefetchSize(1000);
+    assertEquals(serial, readProfiles(new SharepointUserProfilePipeline(
+        socialContext, -1, PROFILES, null)));
+  }
+
+  public void testResumeFromIndex() throws Exception {
+    int resumeIndex = profileService.getIndex(PROFILES / 2);
+    SharepointUserProfilePipeline pipeline = new SharepointUserProfilePipeline(
+        socialContext, resumeIndex, PROFILES, null);
+
+    List<String> expected = profileService.getNames();
+    assertEquals(expected.subList(PROFILES / 2, PROFILES),
+        readProfiles(pipeline));
+  }
+
+  public void testFetchAheadIsBounded() throws Exception {
+    context.setUserProfileFetchThreads(4);
+    context.setUserProfilePrefetchSize(20);
+    SharepointUserProfilePipeline pipeline = new SharepointUserProfilePipeline(
+        socialContext, -1, PROFILES, null);
+
+    for (int i = 0; i < 5; i++) {
+      assertNotNull(pipeline.nextProfile());
+    }
+    pipeline.close();
+    // The first five profiles span four partitions, and at most two more
+    // partitions are fetched ahead of the one being read.
+    assertTrue(String.valueOf(profileService.indexCalls.get()),
+        profileService.indexCalls.get()
+        <= 6 * SharepointUserProfilePipeline.PARTITION_SIZE);
+  }
+
+  public void testFailedFetchEndsBatch() throws Exception {
+    int failIndex = profileService.getIndex(50);
+    profileService.failingIndex = failIndex;
+    context.setUserProfileFetchThreads(4);
+    SharepointUserProfilePipeline pipeline = new SharepointUserProfilePipeline(
+        socialContext, -1, PROFILES, null);
+
+    List<String> names = readProfiles(pipeline);
+    assertFalse(pipeline.isEnd());
+    assertEquals(profileService.getNames().subList(0, names.size()), names);
+    assertTrue(names.size() <= 50);
+  }
+
+  public void testGapsBetweenIndexesSkipped() throws Exception {
+    profileService = new SparseProfileService(20, 1000);
+    context.setUserProfileFetchThreads(1);
+    List<String> names = readProfiles(new SharepointUserProfilePipeline(
+        socialContext, -1, PROFILES, null));
+
+    // Each profile is fetched once, and no partition between them.
+    assertEquals(profileService.getNames(), names);
+    assertEquals(20, profileService.indexCalls.get());
+
+    // Partitions already fetching when a gap is found fetch at most once.
+    profileService.indexCalls.set(0);
+    context.setUserProfileFetchThreads(4);
+    assertEquals(names, readProfiles(new SharepointUserProfilePipeline(
+        socialContext, -1, PROFILES, null)));
+    assertTrue(String.valueOf(profileService.indexCalls.get()),
+        profileService.indexCalls.get() <= 4 * 20);
+  }
+
+  public void testUpdatedProfiles() throws Exception {
+    SharePointSocialUserProfileDocument deleted =
+        new SharePointSocialUserProfileDocument("collection");
+    deleted.setUserKey("domain\\deleted");
+    deleted.setActionType(ActionType.DELETE);
+    List<SharePointSocialUserProfileDocument> updates =
+        new ArrayList<SharePointSocialUserProfileDocument>();
+    for (String name : Arrays.asList("user3", "unknown", "user1")) {
+      SharePointSocialUserProfileDocument updated =
+          new SharePointSocialUserProfileDocument("collection");
+      updated.setUserKey(name);
+      updated.setActionType(ActionType.ADD);
+      updates.add(updated);
+    }
+    updates.add(1, deleted);
+    SharepointUserProfilePipeline pipeline = new SharepointUserProfilePipeline(
+        socialContext, -1, PROFILES, updates);
+
+    assertEquals("user3",
+        pipeline.nextUpdatedProfile().getUserContent().toString());
+    assertSame(deleted, pipeline.nextUpdatedProfile());
+    assertEquals("user1",
+        pipeline.nextUpdatedProfile().getUserContent().toString());
+    assertNull(pipeline.nextUpdatedProfile());
+    pipeline.close();
+  }
+
+  /**
+   * A user profile service whose profiles have indexes with gaps both
+   * smaller and larger than a pipeline partition.
+   */
+  private static class SparseProfileService
+      implements UserProfileServiceGenerator {
+    private final TreeMap<Integer, String> profiles =
+        new TreeMap<Integer, String>();
+    final AtomicInteger indexCalls = new AtomicInteger();
+    volatile int failingIndex = Integer.MIN_VALUE;
+
+    SparseProfileService(int count) {
+      int index = 1;
+      for (int i = 0; i < count; i++) {
+        profiles.put(index, "user" + i);
+        index += (i % 7 == 0) ? 25 : (i % 3) + 1;
+      }
+    }
+
+    /** Creates profiles a fixed number of indexes apart. */
+    SparseProfileService(int count, int spacing) {
+      for (int i = 0; i < count; i++) {
+        profiles.put(1 + i * spacing, "user" + i);
+      }
+    }
+
+    int getIndex(int profile) {
+      for (Map.Entry<Integer, String> entry : profiles.entrySet()) {
+        if (entry.getValue().equals("user" + profile)) {
+          return entry.getKey();
+        }
+      }
+      throw new IllegalArgumentException("user" + profile);
+    }
+
+    List<String> getNames() {
+      return new ArrayList<String>(profiles.values());
+    }
+
+    private PropertyData[] getProfileData(String name) {
+      return new PropertyData[] {
+          new PropertyData(false, false,
+              SharepointSocialConstants.SHAREPOINT_USERKEYDEFAULT,
+              Privacy.Public, new ValueData[] { new ValueData(name) }),
+          new PropertyData(false, false,
+              SharepointSocialConstants.SHAREPOINT_USERCONTENTDEFAULT,
+              Privacy.Public, new ValueData[] { new ValueData(name) }) };
+    }
+
+    public long getUserProfileCount() {
+      return profiles.size();
+    }
+
+    public GetUserProfileByIndexResult getUserProfileByIndex(int index)
+        throws RemoteException {
+      indexCalls.incrementAndGet();
+      GetUserProfileByIndexResult result = new GetUserProfileByIndexResult();
+      Map.Entry<Integer, String> entry = profiles.ceilingEntry(index);
+      if (entry == null) {
+        result.setNextValue("-1");
+        return result;
+      }
+      if (entry.getKey() == failingIndex) {
+        throw new RemoteException("Service unavailable");
+      }
+      Integer next = profiles.higherKey(entry.getKey());
+      result.setUserProfile(getProfileData(entry.getValue()));
+      result.setNextValue(String.valueOf((next == null) ? -1 : next));
+      return result;
+    }
+
+    public PropertyData[] getUserProfileByName(String accountName) {
+      return profiles.containsValue(accountName)
+          ? getProfileData(accountName) : null;
+    }
+
+    public ContactData[] getUserColleagues(String key) {
+      return new ContactData[0];
+    }
+
+    public void setUsername(String username) {
+    }
+
+    public void setPassword(String password) {
+    }
+  }
+}
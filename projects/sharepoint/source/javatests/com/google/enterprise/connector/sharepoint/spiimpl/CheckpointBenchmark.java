@@ -0,0 +1,100 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.spiimpl;
+
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.client.SPConstants;
+import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.state.GlobalState;
+import com.google.enterprise.connector.sharepoint.state.ListState;
+import com.google.enterprise.connector.sharepoint.state.WebState;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the checkpoint of batches of 10k documents taken from a list whose
+ * crawl queue holds twice as many documents. The removal of the documents
+ * from the crawl queue is also made the way it was made before, by removing
+ * them one at a time from a list.
+ * <p/>
+ * Not run as part of the tests; run with
+ * {@code java -cp <test classpath> ...CheckpointBenchmark [batch size]}.
+ */
+public class CheckpointBenchmark {
+  public static void main(String[] args) throws Exception {
+    Logger.getLogger("").setLevel(Level.WARNING);
+    int batchSize = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+
+    MockClientFactory clientFactory = new MockClientFactory();
+    SharepointClientContext ctx = TestConfiguration.initContext(clientFactory);
+    GlobalState state = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.METADATA_URL_FEED);
+    WebState web = state.makeWebState(ctx, TestConfiguration.sharepointUrl);
+
+    System.out.println("round\tcheckpoint ms\tremove one at a time ms\t"
+        + "speedup");
+    for (int round = 0; round < 5; round++) {
+      ListState list = new ListState("{LIST" + round + "}", "Docs",
+          SPConstants.DOC_LIB, Calendar.getInstance(), SPConstants.DOC_LIB,
+          TestConfiguration.sharepointUrl + "/Docs", web);
+      web.AddOrUpdateListStateInWebState(list, list.getLastMod());
+      List<SPDocument> queue = new ArrayList<SPDocument>(2 * batchSize);
+      for (int d = 0; d < 2 * batchSize; d++) {
+        SPDocument doc = new SPDocument(String.valueOf(d),
+            TestConfiguration.sharepointUrl + "/Docs/doc" + d + ".txt",
+            Calendar.getInstance(), SPConstants.NO_AUTHOR,
+            SPConstants.OBJTYPE_LIST_ITEM, "Web", FeedType.METADATA_URL_FEED,
+            SPConstants.SPType.SP2007);
+        doc.setParentList(list);
+        doc.setParentWeb(web);
+        doc.setSharepointClientContext(ctx);
+        queue.add(doc);
+      }
+      list.setCrawlQueue(queue);
+
+      SPDocumentList docList =
+          new SPDocumentList(queue.subList(0, batchSize), state);
+      for (int d = 0; d < batchSize; d++) {
+        docList.nextDocument();
+      }
+      long start = System.nanoTime();
+      docList.checkpoint();
+      long checkpoint = System.nanoTime() - start;
+
+      List<SPDocument> legacyQueue = new ArrayList<SPDocument>(queue);
+      start = System.nanoTime();
+      for (SPDocument doc : queue.subList(0, batchSize)) {
+        legacyQueue.remove(doc);
+      }
+      long legacy = System.nanoTime() - start;
+
+      if (list.getCrawlQueue().size() != batchSize
+          || !legacyQueue.equals(list.getCrawlQueue())) {
+        throw new AssertionError(list.getCrawlQueue().size()
+            + " documents left in the crawl queue, " + legacyQueue.size()
+            + " expected");
+      }
+      System.out.println(round + "\t" + checkpoint / 1000000 + "\t\t"
+          + legacy / 1000000 + "\t\t\t"
+          + String.format("%.1fx", (double) legacy / checkpoint));
+    }
+  }
+}
@@ -0,0 +1,149 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.spiimpl;
+
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.client.Attribute;
+import com.google.enterprise.connector.sharepoint.client.SPConstants;
+import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
+import com.google.enterprise.connector.sharepoint.client.Util;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.state.GlobalState;
+import com.google.enterprise.connector.sharepoint.state.ListState;
+import com.google.enterprise.connector.sharepoint.state.WebState;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.SimpleProperty;
+import com.google.enterprise.connector.spi.Value;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures feeding a batch of 500 documents of a list with 150 columns, the
+ * way the connector manager does: the property names of each document, then
+ * each property. The lookups of the properties are also made the way they
+ * were made before, by scanning a list of {@link Attribute}s for every
+ * property.
+ * <p/>
+ * Not run as part of the tests; run with
+ * {@code java -cp <test classpath> ...SPDocumentMetadataBenchmark
+ * [documents [columns]]}.
+ */
+public class SPDocumentMetadataBenchmark {
+  public static void main(String[] args) throws Exception {
+    Logger.getLogger("").setLevel(Level.WARNING);
+    int docCount = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+    int columns = (args.length > 1) ? Integer.parseInt(args[1]) : 150;
+
+    MockClientFactory clientFactory = new MockClientFactory();
+    SharepointClientContext ctx = TestConfiguration.initContext(clientFactory);
+    GlobalState state = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+    WebState web = state.makeWebState(ctx, TestConfiguration.sharepointUrl);
+    String[] names = new String[columns];
+    for (int i = 0; i < columns; i++) {
+      names[i] = Util.normalizeMetadataName("ows_Column_x0020_" + i);
+    }
+
+    System.out.println(
+        "round\tcreate ms\tnames ms\tfind ms\tscan ms\tspeedup");
+    for (int round = 0; round < 5; round++) {
+      ListState list = new ListState("{LIST" + round + "}", "Docs",
+          SPConstants.DOC_LIB, Calendar.getInstance(), SPConstants.DOC_LIB,
+          TestConfiguration.sharepointUrl + "/Docs", web);
+
+      long start = System.nanoTime();
+      List<SPDocument> docs = new ArrayList<SPDocument>(docCount);
+      for (int d = 0; d < docCount; d++) {
+        SPDocument doc = new SPDocument(String.valueOf(d),
+            TestConfiguration.sharepointUrl + "/Docs/doc" + d + ".txt",
+            Calendar.getInstance(), SPConstants.NO_AUTHOR,
+            SPConstants.OBJTYPE_LIST_ITEM, "Web", FeedType.CONTENT_FEED,
+            SPConstants.SPType.SP2007);
+        doc.setParentList(list);
+        doc.setSharepointClientContext(ctx);
+        for (int i = 0; i < columns; i++) {
+          doc.setAttribute(names[i], "value " + d + ";#" + i);
+        }
+        docs.add(doc);
+      }
+      long create = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      List<Set<String>> propertyNames = new ArrayList<Set<String>>(docCount);
+      for (SPDocument doc : docs) {
+        propertyNames.add(doc.getPropertyNames());
+      }
+      long namesTime = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      int found = 0;
+      for (SPDocument doc : docs) {
+        for (String name : names) {
+          if (doc.findProperty(name) != null) {
+            found++;
+          }
+        }
+      }
+      long find = System.nanoTime() - start;
+
+      // The attribute lists are built outside of the measurement.
+      List<List<Attribute>> attrLists = new ArrayList<List<Attribute>>();
+      for (SPDocument doc : docs) {
+        attrLists.add(doc.getAllAttrs());
+      }
+      start = System.nanoTime();
+      int scanned = 0;
+      for (List<Attribute> attrs : attrLists) {
+        for (String name : names) {
+          if (scan(attrs, name) != null) {
+            scanned++;
+          }
+        }
+      }
+      long scan = System.nanoTime() - start;
+
+      if (found != docCount * columns || scanned != found
+          || !propertyNames.get(0).contains(names[0])) {
+        throw new AssertionError(found + " properties found, " + scanned
+            + " scanned");
+      }
+      System.out.println(round + "\t" + create / 1000000 + "\t\t"
+          + namesTime / 1000000 + "\t\t" + find / 1000000 + "\t"
+          + scan / 1000000 + "\t"
+          + String.format("%.1fx", (double) scan / find));
+    }
+  }
+
+  /** The lookup of a property, as it was made before. */
+  private static Property scan(List<Attribute> attrs, String name) {
+    for (Attribute attr : attrs) {
+      if (Util.collationEquals(name, attr.getName())) {
+        List<Value> values = new ArrayList<Value>();
+        for (String str : Util.processMultiValueMetadata(
+            attr.getValue().toString())) {
+          values.add(Value.getStringValue(str));
+        }
+        return new SimpleProperty(values);
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,249 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.spiimpl;
+
+import com.google.enterprise.connector.sharepoint.client.SPConstants;
+import com.google.enterprise.connector.sharepoint.client.Util;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.SPType;
+import com.google.enterprise.connector.sharepoint.state.Folder;
+import com.google.enterprise.connector.spi.SpiConstants.ActionType;
+
+import junit.framework.TestCase;
+
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that {@link SPDocument#compareTo} orders random documents the way
+ * it did when it parsed the IDs and compared the dates on every comparison.
+ */
+public class SPDocumentOrderingTest extends TestCase {
+  private static final String LIST_URL = "http://host.example.com/Lists/L";
+
+  /** A few times, so that many documents share their last modified time. */
+  private static final long[] TIMES = { 1300000000000L, 1300000000001L,
+      1300000060000L, 1310000000000L };
+
+  /** IDs at the limits, where the difference of two IDs overflows. */
+  private static final int[] EXTREME_IDS = { Integer.MAX_VALUE,
+      Integer.MIN_VALUE, -1 };
+
+  /** The ordering of {@link SPDocument#compareTo} as it was made before. */
+  static final Comparator<SPDocument> LEGACY_ORDER =
+      new Comparator<SPDocument>() {
+    public int compare(SPDocument doc1, SPDocument doc2) {
+      return legacyCompare(doc1, doc2);
+    }
+  };
+
+  public void testCompareToMatchesLegacyOrdering() {
+    for (int seed = 0; seed < 20; seed++) {
+      Random random = new Random(seed);
+      List<SPDocument> docs = new ArrayList<SPDocument>();
+      for (int i = 0; i < 150; i++) {
+        docs.add(createRandomDocument(random, true));
+      }
+      for (SPDocument doc1 : docs) {
+        assertEquals(-1, doc1.compareTo(null));
+        for (SPDocument doc2 : docs) {
+          assertEquals("seed " + seed + ": " + doc1 + " and " + doc2,
+              legacyCompare(doc1, doc2), doc1.compareTo(doc2));
+        }
+      }
+    }
+  }
+
+  public void testSortMatchesLegacySort() {
+    for (int seed = 0; seed < 20; seed++) {
+      Random random = new Random(seed);
+      List<SPDocument> docs = new ArrayList<SPDocument>();
+      for (int i = 0; i < 2000; i++) {
+        // Attachments and IDs that are not integers are left out, since
+        // their ordering is not transitive and may fail the sort.
+        docs.add(createRandomDocument(random, false));
+      }
+      List<SPDocument> legacySorted = new ArrayList<SPDocument>(docs);
+      Collections.sort(legacySorted, LEGACY_ORDER);
+      List<SPDocument> sorted = new ArrayList<SPDocument>(docs);
+      Collections.sort(sorted);
+      for (int i = 0; i < docs.size(); i++) {
+        assertSame("seed " + seed + ", index " + i, legacySorted.get(i),
+            sorted.get(i));
+      }
+    }
+  }
+
+  public void testSetDocIdUpdatesOrdering() {
+    Calendar lastMod = Calendar.getInstance();
+    SPDocument doc1 = new SPDocument("5", LIST_URL + "/DispForm.aspx?ID=5",
+        lastMod, ActionType.ADD);
+    SPDocument doc2 = new SPDocument("3", LIST_URL + "/DispForm.aspx?ID=3",
+        lastMod, ActionType.ADD);
+    assertTrue(doc1.compareTo(doc2) > 0);
+
+    doc1.setDocId("1");
+    assertTrue(doc1.compareTo(doc2) < 0);
+    doc1.setDocId("ID1");
+    assertEquals(1, doc1.compareTo(doc2));
+    assertEquals(-1, doc2.compareTo(doc1));
+  }
+
+  /**
+   * Creates a document from a small set of values for each field, so that
+   * documents often tie on some of them.
+   *
+   * @param withIrregularDocs whether to create attachments and documents
+   *          whose ID is not an integer
+   */
+  static SPDocument createRandomDocument(Random random,
+      boolean withIrregularDocs) {
+    SPType spType = random.nextBoolean() ? SPType.SP2007 : SPType.SP2003;
+    FeedType feedType = random.nextBoolean()
+        ? FeedType.CONTENT_FEED : FeedType.METADATA_URL_FEED;
+    int id = (random.nextInt(20) == 0)
+        ? EXTREME_IDS[random.nextInt(EXTREME_IDS.length)]
+        : random.nextInt(30);
+    String objType = SPConstants.OBJTYPE_LIST_ITEM;
+    String originalId = String.valueOf(id);
+    if (withIrregularDocs) {
+      switch (random.nextInt(6)) {
+        case 0:
+          objType = SPConstants.OBJTYPE_ATTACHMENT;
+          originalId = SPConstants.ATTACHMENT_SUFFIX_IN_DOCID + "["
+              + LIST_URL + "/Attachments/" + id + "/file.txt]" + id;
+          break;
+        case 1:
+          originalId = "{" + Integer.toHexString(id) + "-GUID}";
+          break;
+        default:
+          break;
+      }
+    }
+    String docId = (FeedType.CONTENT_FEED == feedType)
+        ? LIST_URL + SPConstants.DOC_TOKEN + originalId : originalId;
+    String[] names = { "doc", "Doc%20", "doc ", "doc%zz" };
+    String url = LIST_URL + "/" + names[random.nextInt(names.length)]
+        + random.nextInt(3) + ".txt";
+
+    Calendar lastMod = Calendar.getInstance();
+    lastMod.setTimeInMillis(TIMES[random.nextInt(TIMES.length)]);
+    SPDocument doc = new SPDocument(docId, url, lastMod,
+        SPConstants.NO_AUTHOR, objType, "Web", feedType, spType);
+    if (random.nextBoolean()) {
+      doc.setParentFolder(new Folder("/Folder", String.valueOf(
+          random.nextInt(4))));
+      if (random.nextBoolean()) {
+        doc.setRenamedFolder(new Folder("/Renamed", String.valueOf(
+            random.nextInt(4))));
+      }
+    }
+    return doc;
+  }
+
+  /** A copy of {@link SPDocument#compareTo} as it was made before. */
+  static int legacyCompare(SPDocument doc1, SPDocument doc) {
+    if (doc == null) {
+      return -1;
+    }
+
+    int comparison = 0;
+
+    if (SPType.SP2007.equals(doc1.getSPType())
+        && SPType.SP2003 == doc.getSPType()) {
+      return -1;
+    } else if (SPType.SP2007 == doc.getSPType()
+        && SPType.SP2003 == doc1.getSPType()) {
+      return 1;
+    }
+
+    if (SPConstants.OBJTYPE_ATTACHMENT.equals(doc1.getObjType())
+        && SPConstants.OBJTYPE_LIST_ITEM.equals(doc.getObjType())
+        && doc1.getDocId().endsWith(doc.getDocId())) {
+      return -1;
+    } else if (SPConstants.OBJTYPE_ATTACHMENT.equals(doc.getObjType())
+        && SPConstants.OBJTYPE_LIST_ITEM.equals(doc1.getObjType())
+        && doc.getDocId().endsWith(doc1.getDocId())) {
+      return 1;
+    }
+
+    if (SPType.SP2007.equals(doc1.getSPType())) {
+      if (null != doc1.getParentFolder() && null != doc.getParentFolder()) {
+        if (null != doc1.getRenamedFolder()
+            && null != doc.getRenamedFolder()) {
+          comparison =
+              doc1.getRenamedFolder().compareTo(doc.getRenamedFolder());
+          if (comparison != 0) {
+            return comparison;
+          }
+        }
+        comparison = doc1.getParentFolder().compareTo(doc.getParentFolder());
+        if (comparison != 0) {
+          return comparison;
+        }
+      } else if (null != doc1.getParentFolder()
+          && null == doc.getParentFolder()) {
+        return -1;
+      } else if (null == doc1.getParentFolder()
+          && null != doc.getParentFolder()) {
+        return 1;
+      }
+    } else {
+      comparison = doc1.getLastMod().getTime().compareTo(
+          doc.getLastMod().getTime());
+    }
+
+    if (comparison == 0) {
+      final String tmpDocID1 =
+          Util.getOriginalDocId(doc1.getDocId(), doc1.getFeedType());
+      final String tmpDocID2 =
+          Util.getOriginalDocId(doc.getDocId(), doc.getFeedType());
+      int id1 = 0;
+      int id2 = 0;
+      try {
+        id1 = Integer.parseInt(tmpDocID1);
+      } catch (final Exception e) {
+        return 1;
+      }
+      try {
+        id2 = Integer.parseInt(tmpDocID2);
+      } catch (final Exception e) {
+        return -1;
+      }
+      comparison = id1 - id2;
+      if (comparison != 0) {
+        return comparison;
+      }
+
+      String docURL1st = doc1.getUrl();
+      String docURL2nd = doc.getUrl();
+      try {
+        docURL1st = URLDecoder.decode(docURL1st, "UTF-8");
+        docURL2nd = URLDecoder.decode(docURL2nd, "UTF-8");
+      } catch (final Exception e) {
+        // Use the original URL.
+      }
+      if (docURL1st != null) {
+        comparison = docURL1st.compareTo(docURL2nd);
+      }
+    }
+    return comparison;
+  }
+}
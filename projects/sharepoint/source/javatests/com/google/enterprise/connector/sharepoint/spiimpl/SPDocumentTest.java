@@ -14,20 +14,31 @@
 
 package com.google.enterprise.connector.sharepoint.spiimpl;
 
+import com.google.common.io.ByteStreams;
 import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.client.Attribute;
 import com.google.enterprise.connector.sharepoint.client.SPConstants;
 import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
 import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
 import com.google.enterprise.connector.sharepoint.client.SPConstants.SPType;
+import com.google.enterprise.connector.sharepoint.state.ListState;
+import com.google.enterprise.connector.sharepoint.wsclient.handlers.CompressingHttpServer;
+import com.google.enterprise.connector.sharepoint.wsclient.handlers.CompressionHandler;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
 import com.google.enterprise.connector.spi.Property;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SpiConstants;
 
+import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.URI;
 import org.apache.commons.httpclient.methods.GetMethod;
 
 import com.sun.jndi.toolkit.url.UrlUtil;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
@@ -40,12 +51,14 @@ import junit.framework.TestCase;
 public class SPDocumentTest extends TestCase {
 
   SPDocument doc;
+  ListState list;
 
   protected void setUp() throws Exception {
     super.setUp();
     SharepointClientContext spContext = TestConfiguration.initContext();
-    List<SPDocument> allDocs = TestConfiguration.initState(spContext).lookupList(
-        TestConfiguration.Site1_URL, TestConfiguration.Site1_List1_GUID).getCrawlQueue();
+    list = TestConfiguration.initState(spContext).lookupList(
+        TestConfiguration.Site1_URL, TestConfiguration.Site1_List1_GUID);
+    List<SPDocument> allDocs = list.getCrawlQueue();
     assertTrue(allDocs.size() > 0);
     this.doc = allDocs.get(0);
     assertNotNull(this.doc);
@@ -85,6 +98,44 @@ public class SPDocumentTest extends TestCase {
     assertEquals(content.getStatus(), SPConstants.CONNECTIVITY_SUCCESS);
   }
 
+  public final void testDownloadCompressedContents() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      text.append("Line " + i + " of a compressible document.\n");
+    }
+    CompressingHttpServer server = new CompressingHttpServer();
+    try {
+      server.setResponse("text/plain", text.toString().getBytes("UTF-8"));
+      server.setEncoding("deflate");
+      SharepointClientContext spContext = TestConfiguration.initContext(
+          new MockClientFactory() {
+            @Override
+            public int checkConnectivity(HttpMethodBase method,
+                Credentials credentials) throws IOException {
+              return new HttpClient().executeMethod(method);
+            }
+          });
+      spContext.setUseCompression(true);
+      this.doc.setSharepointClientContext(spContext);
+      this.doc.setContentDwnldURL(server.getUrl() + "/Docs/doc.txt");
+
+      final SPDocument.SPContent content = this.doc.downloadContents();
+      assertEquals(SPConstants.CONNECTIVITY_SUCCESS, content.getStatus());
+      assertEquals(CompressionHandler.CONTENT_ACCEPT_ENCODING,
+          server.getAcceptEncodings().get(0));
+      assertTrue(server.getLastLength() < text.length());
+      InputStream in = content.getContentStream();
+      try {
+        assertEquals(text.toString(),
+            new String(ByteStreams.toByteArray(in), "UTF-8"));
+      } finally {
+        in.close();
+      }
+    } finally {
+      server.stop();
+    }
+  }
+
   public final void testDownloadContentsForMsgFile() throws Exception {
     this.doc.setContentDwnldURL(TestConfiguration.Site1_List_Item_MSG_File_URL);
     final SPDocument.SPContent content = this.doc.downloadContents();
@@ -129,4 +180,71 @@ public class SPDocumentTest extends TestCase {
     Set<String> documentMetadata = this.doc.getPropertyNames();
     assertFalse(documentMetadata.contains(SPConstants.PARENT_WEB_TITLE));
   }
+
+  private ListState createList() throws Exception {
+    return new ListState("{ITEMS}", "Items", SPConstants.GENERIC_LIST,
+        Calendar.getInstance(), SPConstants.GENERIC_LIST,
+        list.getParentWebState().getWebUrl() + "/Lists/Items",
+        list.getParentWebState());
+  }
+
+  private SPDocument createListItem(ListState items, String id) {
+    SPDocument item = new SPDocument(id,
+        items.getListURL() + "/DispForm.aspx?ID=" + id,
+        Calendar.getInstance(), SPConstants.NO_AUTHOR, SPConstants.NO_OBJTYPE,
+        SPConstants.PARENT_WEB_TITLE, FeedType.CONTENT_FEED, SPType.SP2007);
+    item.setParentList(items);
+    item.setSharepointClientContext(doc.getSharepointClientContext());
+    return item;
+  }
+
+  public void testMetadataAttributes() throws Exception {
+    SPDocument item = createListItem(createList(), "1");
+    item.setAttribute("Department", "Sales;#Marketing");
+    item.setAttribute("Empty", null);
+    item.setAttribute("department", "Ignored");
+
+    assertEquals("Sales;#Marketing",
+        item.getMetaDataAttributeValue("DEPARTMENT"));
+    Property prop = item.findProperty("Department");
+    assertEquals("Sales", prop.nextValue().toString());
+    assertEquals("Marketing", prop.nextValue().toString());
+    assertNull(prop.nextValue());
+
+    assertNull(item.getMetaDataAttributeValue("Empty"));
+    assertNotNull(item.findProperty("Empty"));
+    assertNull(item.getMetaDataAttributeValue("Missing"));
+    assertNull(item.findProperty("Missing"));
+
+    Set<String> names = item.getPropertyNames();
+    assertTrue(names.contains("Department"));
+    assertTrue(names.contains("Empty"));
+    assertFalse(names.contains("department"));
+
+    List<Attribute> attrs = item.getAllAttrs();
+    assertEquals(2, attrs.size());
+    assertEquals(new Attribute("Department", "Sales;#Marketing"),
+        attrs.get(0));
+    assertEquals(new Attribute("Empty", null), attrs.get(1));
+  }
+
+  public void testMetadataNamesSharedInList() throws Exception {
+    ListState items = createList();
+    SPDocument first = createListItem(items, "1");
+    first.setAttribute("Department", "Sales");
+    first.setAttribute("Region", "West");
+    SPDocument second = createListItem(items, "2");
+    second.setAttribute("Region", "East");
+    second.setAttribute("Owner", "jdoe");
+
+    assertEquals(3, items.getItemAttributeNames().size());
+    assertEquals("West", first.getMetaDataAttributeValue("Region"));
+    assertNull(first.getMetaDataAttributeValue("Owner"));
+    assertFalse(first.getPropertyNames().contains("Owner"));
+    assertNull(second.getMetaDataAttributeValue("Department"));
+    assertFalse(second.getPropertyNames().contains("Department"));
+    assertEquals("East", second.getMetaDataAttributeValue("Region"));
+    assertEquals("jdoe", second.getMetaDataAttributeValue("Owner"));
+    assertEquals(2, second.getAllAttrs().size());
+  }
 }
@@ -17,11 +17,19 @@ package com.google.enterprise.connector.sharepoint.spiimpl;
 import com.google.common.collect.Maps;
 import com.google.enterprise.connector.sharepoint.TestConfiguration;
 import com.google.enterprise.connector.sharepoint.client.SPConstants;
+import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.generated.webs.GetWebCollectionResponseGetWebCollectionResult;
+import com.google.enterprise.connector.sharepoint.wsclient.client.BulkAuthorizationWS;
+import com.google.enterprise.connector.sharepoint.wsclient.client.WebsWS;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockBulkAuthorizationWS;
 import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockWebsWS;
 import com.google.enterprise.connector.spi.ConfigureResponse;
 
 import junit.framework.TestCase;
 
+import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Locale;
 import java.util.Map;
@@ -98,6 +106,88 @@ public class SharepointConnectorTypeTest extends TestCase {
     }
   }
 
+  public void testValidateConfigReportsAllInvalidFields() {
+    configMap.remove(SPConstants.USERNAME);
+    configMap.remove(SPConstants.PASSWORD);
+    ConfigureResponse response =
+        connectorType.validateConfig(configMap, Locale.ENGLISH, null);
+    assertNotNull(response);
+    assertFind(bundle.getString(SPConstants.USERNAME), response.getMessage());
+    assertFind(bundle.getString(SPConstants.PASSWORD), response.getMessage());
+    assertEquals(2, response.getFormSnippet().split(
+        "<font color=\"red\">", -1).length - 1);
+  }
+
+  public void testValidateConfigReportsAllFailingChecks() {
+    connectorType.setClientFactory(new MockClientFactory() {
+      @Override
+      public WebsWS getWebsWS(final SharepointClientContext ctx) {
+        return new MockWebsWS(ctx) {
+          @Override
+          public GetWebCollectionResponseGetWebCollectionResult
+              getWebCollection() {
+            throw new IllegalStateException("Webs is unavailable");
+          }
+        };
+      }
+
+      @Override
+      public BulkAuthorizationWS getBulkAuthorizationWS(
+          final SharepointClientContext ctx) {
+        return new MockBulkAuthorizationWS(ctx) {
+          @Override
+          public String checkConnectivity() {
+            return "GSBulkAuthorization is unavailable";
+          }
+        };
+      }
+    });
+    configMap.put(SPConstants.AUTHORIZATION, FeedType.CONTENT_FEED.toString());
+    configMap.remove(SPConstants.PUSH_ACLS);
+    configMap.remove(SPConstants.MYSITE_BASE_URL);
+    ConfigureResponse response =
+        connectorType.validateConfig(configMap, Locale.ENGLISH, null);
+    assertNotNull(response);
+    String message = response.getMessage();
+    int bulkAuth = message.indexOf("GSBulkAuthorization is unavailable");
+    int webs = message.indexOf("Webs is unavailable");
+    assertTrue(message, bulkAuth != -1);
+    assertTrue(message, webs > bulkAuth);
+  }
+
+  public void testValidateConfigDeadline() {
+    connectorType.setClientFactory(new MockClientFactory() {
+      @Override
+      public WebsWS getWebsWS(final SharepointClientContext ctx) {
+        return new MockWebsWS(ctx) {
+          @Override
+          public GetWebCollectionResponseGetWebCollectionResult
+              getWebCollection() {
+            try {
+              Thread.sleep(60000);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return null;
+          }
+        };
+      }
+    });
+    connectorType.setValidationTimeouts(1000, 1000);
+    configMap.remove(SPConstants.PUSH_ACLS);
+    configMap.remove(SPConstants.MYSITE_BASE_URL);
+    long start = System.currentTimeMillis();
+    ConfigureResponse response =
+        connectorType.validateConfig(configMap, Locale.ENGLISH, null);
+    long elapsed = System.currentTimeMillis() - start;
+    assertNotNull(response);
+    assertTrue("Took " + elapsed + " ms", elapsed < 30000);
+    String timedOut = MessageFormat.format(
+        bundle.getString(SPConstants.CHECK_TIMED_OUT), 1);
+    assertTrue(response.getMessage(),
+        response.getMessage().contains(timedOut));
+  }
+
   public void testGetConfigForm() {
     ConfigureResponse response = connectorType.getConfigForm(Locale.ENGLISH);
     checkFormSnippet(response.getFormSnippet());
@@ -0,0 +1,164 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.client.SPConstants;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
+
+import junit.framework.TestCase;
+
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.List;
+
+public class ChangeRateSchedulingPolicyTest extends TestCase {
+  private static final long HOUR = 60 * 60 * 1000L;
+  private static final long NOW = 1300000000000L;
+
+  private ChangeRateSchedulingPolicy policy;
+  private SharepointClientContext clientContext;
+  private GlobalState state;
+  private WebState busy;
+  private WebState quiet;
+  private WebState unknown;
+
+  @Override
+  protected void setUp() throws Exception {
+    MockClientFactory clientFactory = new MockClientFactory();
+    clientContext = TestConfiguration.initContext(clientFactory);
+    state = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+    busy = state.makeWebState(clientContext, "http://example.com/busy");
+    quiet = state.makeWebState(clientContext, "http://example.com/quiet");
+    unknown = state.makeWebState(clientContext, "http://example.com/unknown");
+    policy = new ChangeRateSchedulingPolicy();
+    policy.setMaxStalenessSeconds(10 * 60 * 60);
+  }
+
+  public void testChangeRate() {
+    policy.recordVisit(busy, 0, NOW - 3 * HOUR);
+    assertTrue(busy.getChangeRate() < 0);
+
+    policy.recordVisit(busy, 20, NOW - 2 * HOUR);
+    assertEquals(20.0, busy.getChangeRate(), 0.001);
+    policy.recordVisit(busy, 5, NOW);
+    assertEquals(ChangeRateSchedulingPolicy.WEIGHT * 2.5
+        + (1 - ChangeRateSchedulingPolicy.WEIGHT) * 20,
+        busy.getChangeRate(), 0.001);
+    assertEquals(NOW, busy.getLastVisitTime());
+    assertEquals(0, busy.getObservedChanges());
+  }
+
+  public void testTraversalOrder() throws Exception {
+    policy.recordVisit(busy, 0, NOW - 3 * HOUR);
+    policy.recordVisit(busy, 30, NOW - 2 * HOUR);
+    policy.recordVisit(quiet, 0, NOW - 5 * HOUR);
+    policy.recordVisit(quiet, 1, NOW - 3 * HOUR);
+    // Webs created in the same millisecond are all kept.
+    assertEquals(3, state.getAllWebStateSet().size());
+
+    // Never crawled first, then by the changes expected.
+    List<WebState> order =
+        Lists.newArrayList(policy.getTraversalOrder(state, NOW));
+    assertEquals(unknown, order.get(0));
+    assertEquals(busy, order.get(1));
+    assertEquals(quiet, order.get(2));
+
+    // Webs not crawled for longer than the maximum staleness go first.
+    policy.recordVisit(unknown, 0, NOW);
+    order = Lists.newArrayList(policy.getTraversalOrder(state,
+        NOW + 8 * HOUR));
+    assertEquals(quiet, order.get(0));
+    assertEquals(busy, order.get(1));
+    assertEquals(unknown, order.get(2));
+
+    // A partially crawled web is completed first.
+    ListState list = new ListState("{list}", "list", SPConstants.GENERIC_LIST,
+        Calendar.getInstance(), "X", unknown.getWebUrl() + "/list", unknown);
+    list.setNextPage("2");
+    unknown.AddOrUpdateListStateInWebState(list, list.getLastMod());
+    order = Lists.newArrayList(policy.getTraversalOrder(state,
+        NOW + 8 * HOUR));
+    assertEquals(unknown, order.get(0));
+  }
+
+  public void testWebsCrawledWhileTraversing() throws Exception {
+    policy.recordVisit(busy, 0, NOW - 3 * HOUR);
+    policy.recordVisit(busy, 30, NOW - 2 * HOUR);
+    policy.recordVisit(quiet, 0, NOW - 5 * HOUR);
+    policy.recordVisit(quiet, 1, NOW - 3 * HOUR);
+
+    // A web crawled is moved behind the traversal, and not returned again.
+    Iterator<WebState> order = policy.getTraversalOrder(state, NOW);
+    assertEquals(unknown, order.next());
+    policy.recordVisit(unknown, 0, NOW);
+    assertEquals(busy, order.next());
+    policy.recordVisit(busy, 10, NOW);
+    assertEquals(quiet, order.next());
+    assertFalse(order.hasNext());
+
+    assertEquals(ImmutableList.of(quiet, busy, unknown),
+        ImmutableList.copyOf(policy.getTraversalOrder(state, NOW + HOUR)));
+  }
+
+  public void testWebsAddedAndRemoved() throws Exception {
+    policy.recordVisit(busy, 0, NOW - 3 * HOUR);
+    policy.recordVisit(busy, 30, NOW - 2 * HOUR);
+    policy.recordVisit(unknown, 0, NOW - HOUR);
+    assertEquals(ImmutableList.of(quiet, busy, unknown),
+        ImmutableList.copyOf(policy.getTraversalOrder(state, NOW)));
+
+    // The state keeps as many webs, but the new web is crawled first.
+    state.removeWebState(quiet);
+    WebState added = state.makeWebState(clientContext,
+        "http://example.com/added");
+    assertEquals(ImmutableList.of(added, busy, unknown),
+        ImmutableList.copyOf(policy.getTraversalOrder(state, NOW)));
+
+    // A web removed while traversing is not returned.
+    Iterator<WebState> order = policy.getTraversalOrder(state, NOW);
+    assertEquals(added, order.next());
+    state.removeWebState(busy);
+    assertEquals(unknown, order.next());
+    assertFalse(order.hasNext());
+  }
+
+  /**
+   * Crawls a farm where a few webs get most of the changes, a twentieth of
+   * the webs in each batch traversal, and compares how long the changes
+   * wait with the round-robin policy.
+   */
+  public void testFresherThanRoundRobin() throws Exception {
+    WebSchedulingSimulation farm = new WebSchedulingSimulation(400);
+    int cycles = 2 * 24 * 6;
+    WebSchedulingSimulation.Result roundRobin =
+        farm.run(new RoundRobinSchedulingPolicy(), 20, cycles, 1);
+    policy.setMaxStalenessSeconds(8 * 60 * 60);
+    WebSchedulingSimulation.Result changeRate =
+        farm.run(policy, 20, cycles, 1);
+
+    assertEquals(roundRobin.changes, changeRate.changes);
+    assertTrue(roundRobin + " / " + changeRate,
+        changeRate.medianLagMillis * 4 < roundRobin.medianLagMillis);
+    // No web waits longer than the staleness bound.
+    assertTrue(changeRate.toString(), changeRate.maxStalenessMillis
+        <= 8 * HOUR + WebSchedulingSimulation.CYCLE_MILLIS);
+  }
+}
@@ -0,0 +1,132 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
+
+import org.joda.time.DateTime;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the time and the memory allocated to start a batch traversal
+ * of 500 webs from the middle of states of 10k, 100k and 1M webs, with
+ * the circular iterator and with the copy of the state it used to make.
+ * <p/>
+ * Not run as part of the tests; run with
+ * {@code java -cp <test classpath> ...GlobalStateIterationBenchmark [webs]}.
+ */
+public class GlobalStateIterationBenchmark {
+  private static final int BATCH = 500;
+  private static final int ROUNDS = 20;
+
+  public static void main(String[] args) throws Exception {
+    Logger.getLogger("").setLevel(Level.WARNING);
+    int[] counts = { 10000, 100000, 1000000 };
+    if (args.length > 0) {
+      counts = new int[] { Integer.parseInt(args[0]) };
+    }
+    for (int count : counts) {
+      run(count);
+    }
+  }
+
+  private static void run(int count) throws Exception {
+    MockClientFactory clientFactory = new MockClientFactory();
+    SharepointClientContext clientContext =
+        TestConfiguration.initContext(clientFactory);
+    GlobalState state = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+    DateTime time = new DateTime(2012, 1, 1, 0, 0, 0, 0);
+    WebState middle = null;
+    for (int i = 0; i < count; i++) {
+      WebState web = new WebState(clientFactory, clientContext,
+          "http://example.com/web" + i);
+      web.setInsertionTime(time.minusMillis(i));
+      state.addOrUpdateWebStateInGlobalState(web);
+      if (i == count / 2) {
+        middle = web;
+      }
+    }
+    state.setCurrentWeb(middle);
+
+    // Warm up both.
+    for (int round = 0; round < ROUNDS; round++) {
+      traverse(legacyIterator(state));
+      traverse(state.getCircularIterator());
+    }
+
+    long legacyBytes = allocatedBytes();
+    long legacyStart = System.nanoTime();
+    for (int round = 0; round < ROUNDS; round++) {
+      traverse(legacyIterator(state));
+    }
+    long legacyEnd = System.nanoTime();
+    legacyBytes = allocatedBytes() - legacyBytes;
+
+    long cursorBytes = allocatedBytes();
+    long cursorStart = System.nanoTime();
+    for (int round = 0; round < ROUNDS; round++) {
+      traverse(state.getCircularIterator());
+    }
+    long cursorEnd = System.nanoTime();
+    cursorBytes = allocatedBytes() - cursorBytes;
+
+    System.out.println(count + " webs, " + BATCH + " per batch: copy "
+        + micros(legacyStart, legacyEnd) + " us and " + legacyBytes / ROUNDS
+        + " bytes per batch, cursor " + micros(cursorStart, cursorEnd)
+        + " us and " + cursorBytes / ROUNDS + " bytes per batch");
+  }
+
+  /** The circular iterator as it was, over a copy of the whole state. */
+  private static Iterator<WebState> legacyIterator(GlobalState state) {
+    WebState current = state.getCurrentWeb();
+    List<WebState> webs = new ArrayList<WebState>(state.dateMap.size());
+    webs.addAll(state.dateMap.tailSet(current));
+    webs.addAll(state.dateMap.headSet(current));
+    return webs.iterator();
+  }
+
+  private static void traverse(Iterator<WebState> webs) {
+    for (int i = 0; i < BATCH && webs.hasNext(); i++) {
+      if (webs.next() == null) {
+        throw new AssertionError();
+      }
+    }
+  }
+
+  /** @return the bytes allocated by this thread so far, or 0 if unknown */
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean =
+        ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+
+  private static long micros(long start, long end) {
+    return (end - start) / ROUNDS / 1000;
+  }
+}
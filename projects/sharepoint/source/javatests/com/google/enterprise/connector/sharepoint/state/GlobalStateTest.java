@@ -20,6 +20,7 @@ import com.google.enterprise.connector.sharepoint.client.SPConstants;
 import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
 import com.google.enterprise.connector.sharepoint.client.Util;
 import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
 import com.google.enterprise.connector.sharepoint.wsclient.soap.SPClientFactory;
 import com.google.enterprise.connector.sharepoint.spiimpl.SPDocument;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
@@ -39,6 +40,7 @@ import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import junit.framework.TestCase;
 
@@ -293,6 +295,75 @@ public class GlobalStateTest extends TestCase {
     assertEquals(webs[2], itr.next());
   }
 
+  private static final DateTime MOCK_WEBS_TIME =
+      new DateTime(2012, 1, 1, 0, 0, 0, 0);
+
+  /**
+   * Makes webs in a state with a mock client factory, one second apart.
+   * The webs are in the order of the array in the state.
+   */
+  private WebState[] makeMockWebs(GlobalState state, int count)
+      throws Exception {
+    MockClientFactory mockFactory = new MockClientFactory();
+    SharepointClientContext mockContext =
+        TestConfiguration.initContext(mockFactory);
+    WebState[] webs = new WebState[count];
+    for (int i = 0; i < count; i++) {
+      webs[i] = new WebState(mockFactory, mockContext,
+          "http://example.com/web" + i);
+      webs[i].setInsertionTime(MOCK_WEBS_TIME.minusSeconds(i));
+      state.addOrUpdateWebStateInGlobalState(webs[i]);
+    }
+    return webs;
+  }
+
+  /**
+   * Checks that the circular iterator wraps around from the current web and
+   * keeps going while webs are added and removed.
+   */
+  public void testCircularIteratorWithChanges() throws Exception {
+    GlobalState state = new GlobalState(new MockClientFactory(),
+        TestConfiguration.googleConnectorWorkDir, TestConfiguration.feedType);
+    WebState[] webs = makeMockWebs(state, 5);
+
+    Iterator<WebState> itr = state.getCircularIterator();
+    for (WebState web : webs) {
+      assertEquals(web, itr.next());
+    }
+    assertFalse(itr.hasNext());
+
+    state.setCurrentWeb(webs[3]);
+    itr = state.getCircularIterator();
+    assertEquals(webs[3], itr.next());
+    // Removing a web ahead of the iterator, and the web just returned.
+    state.getAllWebStateSet().remove(webs[4]);
+    state.getAllWebStateSet().remove(webs[3]);
+    // Adding a web ahead of the iterator, after the wrap around.
+    WebState added = new WebState(new MockClientFactory(),
+        sharepointClientContext, "http://example.com/added");
+    added.setInsertionTime(MOCK_WEBS_TIME.minusSeconds(1).minusMillis(1));
+    state.addOrUpdateWebStateInGlobalState(added);
+    assertEquals(webs[0], itr.next());
+    assertEquals(webs[1], itr.next());
+    assertEquals(added, itr.next());
+    assertEquals(webs[2], itr.next());
+    assertFalse(itr.hasNext());
+    try {
+      itr.next();
+      fail();
+    } catch (NoSuchElementException e) {
+      // Expected.
+    }
+
+    // The current web is no longer in the state.
+    itr = state.getCircularIterator();
+    assertEquals(webs[0], itr.next());
+    assertEquals(webs[1], itr.next());
+    assertEquals(added, itr.next());
+    assertEquals(webs[2], itr.next());
+    assertFalse(itr.hasNext());
+  }
+
   /**
    * Test to check that web states are ordered in the descending order of
    * insertion time
@@ -364,6 +435,7 @@ public class GlobalStateTest extends TestCase {
     List<String> afterFiles = getFileListForFolder(
         TestConfiguration.googleWorkDir);
     afterFiles.remove(SPConstants.CONNECTOR_STATEFILE_NAME);
+    afterFiles.remove(SPConstants.CONNECTOR_LISTSFILE_NAME);
     assertEquals(beforeFiles, afterFiles);
 
     final GlobalState state2 = new GlobalState(clientFactory,
@@ -406,6 +478,7 @@ public class GlobalStateTest extends TestCase {
     List<String> afterFiles = getFileListForFolder(
         TestConfiguration.googleWorkDir);
     afterFiles.remove(SPConstants.CONNECTOR_STATEFILE_NAME);
+    afterFiles.remove(SPConstants.CONNECTOR_LISTSFILE_NAME);
     assertEquals(beforeFiles, afterFiles);
 
     final GlobalState state2 = new GlobalState(clientFactory,
@@ -414,6 +487,93 @@ public class GlobalStateTest extends TestCase {
     verifyGlobalStatesAreEqual(state1, state2);
   }
 
+  /**
+   * Tests that the bodies of the lists are only read from the list state
+   * file when needed, and survive saving the state again without having
+   * been read.
+   */
+  public void testListBodiesLoadedOnDemand() throws SharepointException {
+    GlobalState.forgetState(TestConfiguration.googleConnectorWorkDir);
+    final GlobalState state1 = createGlobalState();
+    state1.saveState();
+
+    final GlobalState state2 = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+    state2.loadState();
+    ListState list = state2.getLastCrawledList();
+    assertFalse(list.isBodyLoaded());
+    state2.saveState();
+    assertFalse(list.isBodyLoaded());
+
+    final GlobalState state3 = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+    state3.loadState();
+    verifyGlobalStatesAreEqual(state1, state3);
+    assertTrue(state3.getLastCrawledList().isBodyLoaded());
+  }
+
+  /**
+   * Tests that reading the body of a list lets it be dropped from memory
+   * again, and that only modifying it keeps it in memory until saved.
+   */
+  public void testOnlyModifiedListBodiesKept() throws SharepointException {
+    GlobalState.forgetState(TestConfiguration.googleConnectorWorkDir);
+    createGlobalState().saveState();
+
+    final GlobalState state = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+    state.loadState();
+    ListState list = state.getLastCrawledList();
+    list.getIDs();
+    list.getAttchmnts();
+    list.getDeleteCache();
+    list.getFedIDs();
+    assertTrue(list.isBodyLoaded());
+    assertTrue(list.evictBody());
+
+    list.addToDeleteCache("5");
+    assertFalse(list.evictBody());
+    state.saveState();
+    assertTrue(list.evictBody());
+    assertTrue(list.getDeleteCache().contains(5));
+  }
+
+  public void testPersonalSitesSaved() throws SharepointException {
+    GlobalState.forgetState(TestConfiguration.googleConnectorWorkDir);
+    final GlobalState state1 = createGlobalState();
+    PersonalSiteState sites1 = state1.getPersonalSiteState();
+    sites1.put("domain\\user1", "http://mysites/personal/user1");
+    sites1.put("domain\\user2", "http://mysites/personal/user2");
+    sites1.setChangeToken("1;1;token;634000000000000000;42");
+    state1.saveState();
+
+    final GlobalState state2 = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+    state2.loadState();
+    PersonalSiteState sites2 = state2.getPersonalSiteState();
+    assertEquals(sites1.getSites(), sites2.getSites());
+    assertEquals(sites1.getChangeToken(), sites2.getChangeToken());
+  }
+
+  public void testWebVisitsSaved() throws SharepointException {
+    GlobalState.forgetState(TestConfiguration.googleConnectorWorkDir);
+    final GlobalState state1 = createGlobalState();
+    WebState visited = state1.lookupWeb(TestConfiguration.Site1_URL, null);
+    visited.setVisit(1300000000000L, 2.5);
+    state1.makeWebState(sharepointClientContext, TestConfiguration.Site2_URL);
+    state1.saveState();
+
+    final GlobalState state2 = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+    state2.loadState();
+    WebState web1 = state2.lookupWeb(TestConfiguration.Site1_URL, null);
+    assertEquals(1300000000000L, web1.getLastVisitTime());
+    assertEquals(2.5, web1.getChangeRate(), 0.0);
+    WebState web2 = state2.lookupWeb(TestConfiguration.Site2_URL, null);
+    assertEquals(0, web2.getLastVisitTime());
+    assertTrue(web2.getChangeRate() < 0);
+  }
+
   /**
    * Verifies that a {@link GlobalState} is empy and that it's
    * using a content feed type.
@@ -476,6 +636,7 @@ public class GlobalStateTest extends TestCase {
     List<String> afterFiles =
         getFileListForFolder(TestConfiguration.googleWorkDir);
     afterFiles.remove(SPConstants.CONNECTOR_STATEFILE_NAME);
+    afterFiles.remove(SPConstants.CONNECTOR_LISTSFILE_NAME);
 
     final GlobalState tempState = createGlobalState();
     if (isWindows()) {
@@ -0,0 +1,98 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+public class ItemIdBitmapTest extends TestCase {
+
+  public void testAddRemoveContains() {
+    ItemIdBitmap ids = new ItemIdBitmap();
+    assertTrue(ids.isEmpty());
+    assertTrue(ids.add(3));
+    assertFalse(ids.add(3));
+    assertTrue(ids.add(70000));
+    assertFalse(ids.add(-1));
+    assertEquals(2, ids.size());
+    assertTrue(ids.contains(3));
+    assertTrue(ids.contains(70000));
+    assertFalse(ids.contains(4));
+    assertFalse(ids.contains(-1));
+
+    assertTrue(ids.remove(3));
+    assertFalse(ids.remove(3));
+    assertFalse(ids.contains(3));
+    assertEquals(1, ids.size());
+  }
+
+  public void testNext() {
+    ItemIdBitmap ids = ItemIdBitmap.valueOf("2,65535,65536,200000");
+    assertEquals(2, ids.next(0));
+    assertEquals(2, ids.next(2));
+    assertEquals(65535, ids.next(3));
+    assertEquals(65536, ids.next(65536));
+    assertEquals(200000, ids.next(65537));
+    assertEquals(-1, ids.next(200001));
+    assertEquals(-1, ids.next(-1));
+  }
+
+  public void testToString() {
+    ItemIdBitmap ids = new ItemIdBitmap();
+    assertEquals("", ids.toString());
+    for (int id = 1; id <= 1000; id++) {
+      ids.add(id);
+    }
+    ids.add(1005);
+    ids.add(1010);
+    ids.add(1011);
+    assertEquals("1-1000,1005,1010-1011", ids.toString());
+    assertEquals(ids, ItemIdBitmap.valueOf(ids.toString()));
+  }
+
+  public void testValueOfLegacyFormat() {
+    ItemIdBitmap ids = ItemIdBitmap.valueOf("3#1#2#X#10");
+    assertEquals("1-3,10", ids.toString());
+    assertEquals(new ItemIdBitmap(), ItemIdBitmap.valueOf(""));
+    assertEquals(new ItemIdBitmap(), ItemIdBitmap.valueOf(null));
+  }
+
+  /** Crosses the array/bitmap threshold in both directions. */
+  public void testAgainstTreeSet() {
+    Random random = new Random(42);
+    ItemIdBitmap ids = new ItemIdBitmap();
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 200000; i++) {
+      int id = random.nextInt(3 * 65536);
+      if (i < 100000 ? random.nextInt(4) != 0 : random.nextInt(4) == 0) {
+        assertEquals(expected.add(id), ids.add(id));
+      } else {
+        assertEquals(expected.remove(id), ids.remove(id));
+      }
+    }
+    assertEquals(expected.size(), ids.size());
+    int id = ids.next(0);
+    for (Integer e : expected) {
+      assertEquals(e.intValue(), id);
+      id = ids.next(id + 1);
+    }
+    assertEquals(-1, id);
+    assertEquals(ids, ItemIdBitmap.valueOf(ids.toString()));
+    assertEquals(ids.hashCode(),
+        ItemIdBitmap.valueOf(ids.toString()).hashCode());
+  }
+}
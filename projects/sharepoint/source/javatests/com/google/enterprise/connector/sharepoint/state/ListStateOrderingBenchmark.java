@@ -0,0 +1,124 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import com.google.enterprise.connector.sharepoint.client.SPConstants;
+import com.google.enterprise.connector.sharepoint.client.Util;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures what a farm of 100k lists costs when the state is built and
+ * traversed: creating the {@link ListState}s, keeping them sorted, and the
+ * list type checks made for every list and document. The type checks are
+ * also run the way they were made before, with a new {@link Collator} for
+ * every list.
+ * <p/>
+ * Not run as part of the tests; run with
+ * {@code java -cp <test classpath> ...ListStateOrderingBenchmark [lists]}.
+ */
+public class ListStateOrderingBenchmark {
+  private static final String[] TYPES = { SPConstants.DOC_LIB,
+      SPConstants.GENERIC_LIST, SPConstants.ISSUE,
+      SPConstants.DISCUSSION_BOARD, "Survey" };
+  private static final String[] BASE_TEMPLATES = { "101", "100",
+      SPConstants.ORIGINAL_BT_LINKS, SPConstants.BT_SITESLIST };
+
+  public static void main(String[] args) throws Exception {
+    Logger.getLogger("").setLevel(Level.WARNING);
+    int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+    for (int round = 0; round < 3; round++) {
+      run(count);
+    }
+  }
+
+  private static void run(int count) throws Exception {
+    Random random = new Random(42);
+    long start = System.nanoTime();
+    List<ListState> lists = new ArrayList<ListState>(count);
+    for (int i = 0; i < count; i++) {
+      Calendar lastMod = Calendar.getInstance();
+      // Many lists share a modification time, as after a bulk import.
+      lastMod.setTimeInMillis(1300000000000L + random.nextInt(5000) * 1000L);
+      lists.add(new ListState("{" + Integer.toHexString(i) + "}", "List " + i,
+          TYPES[random.nextInt(TYPES.length)], lastMod,
+          BASE_TEMPLATES[random.nextInt(BASE_TEMPLATES.length)],
+          "http://host/site" + (i / 100) + "/Lists/list" + i, null));
+    }
+    long created = System.nanoTime();
+
+    Collections.shuffle(lists, random);
+    long sortStart = System.nanoTime();
+    TreeSet<ListState> sorted = new TreeSet<ListState>(lists);
+    long sortEnd = System.nanoTime();
+
+    int matches = 0;
+    long checkStart = System.nanoTime();
+    for (ListState list : sorted) {
+      if (list.canContainFolders()) {
+        matches++;
+      }
+      if (list.canContainAttachments()) {
+        matches++;
+      }
+      if (list.isLinkSite()) {
+        matches++;
+      }
+    }
+    long checkEnd = System.nanoTime();
+
+    int legacyMatches = 0;
+    for (ListState list : sorted) {
+      Collator collator = Util.getCollator();
+      String type = list.getType();
+      if (collator.equals(type, SPConstants.DOC_LIB)
+          || collator.equals(type, SPConstants.GENERIC_LIST)
+          || collator.equals(type, SPConstants.ISSUE)) {
+        legacyMatches++;
+      }
+      if (collator.equals(type, SPConstants.GENERIC_LIST)
+          || collator.equals(type, SPConstants.ISSUE)
+          || collator.equals(type, SPConstants.DISCUSSION_BOARD)) {
+        legacyMatches++;
+      }
+      String baseTemplate = list.getBaseTemplate();
+      if (collator.equals(baseTemplate, SPConstants.ORIGINAL_BT_LINKS)
+          || collator.equals(baseTemplate, SPConstants.BT_SITESLIST)) {
+        legacyMatches++;
+      }
+    }
+    long legacyEnd = System.nanoTime();
+    if (matches != legacyMatches) {
+      throw new AssertionError(matches + " != " + legacyMatches);
+    }
+
+    System.out.println(count + " lists: create " + ms(start, created)
+        + " ms, sort " + ms(sortStart, sortEnd) + " ms, type checks "
+        + ms(checkStart, checkEnd) + " ms (with a collator per list "
+        + ms(checkEnd, legacyEnd) + " ms)");
+  }
+
+  private static long ms(long start, long end) {
+    return (end - start) / 1000000;
+  }
+}
@@ -89,6 +89,39 @@ public class ListStateTest extends TestCase {
     assertFalse(list1.isInDeleteCache("1"));
   }
 
+  public void testNextIDToDelete() throws SharepointException {
+    ListState list1 = new ListState(TestConfiguration.Site1_List1_GUID,
+        "No Title", SPConstants.DOC_LIB, null, SPConstants.NO_TEMPLATE,
+        TestConfiguration.Site1_List1_URL, null);
+    list1.setBiggestID(1000000);
+    assertEquals(-1, list1.getNextIDToDelete(1));
+
+    list1.addToFedIDs("5");
+    list1.addToFedIDs("7");
+    list1.addToFedIDs("999999");
+    list1.addToFedIDs("{GUID}");
+    list1.addToDeleteCache("7");
+    assertEquals(5, list1.getNextIDToDelete(1));
+    assertEquals(999999, list1.getNextIDToDelete(6));
+    assertEquals(-1, list1.getNextIDToDelete(1000000));
+    assertEquals("5,999999", list1.getFedIDs().toString());
+  }
+
+  public void testIsFed() throws SharepointException {
+    ListState list1 = new ListState(TestConfiguration.Site1_List1_GUID,
+        "No Title", SPConstants.DOC_LIB, null, SPConstants.NO_TEMPLATE,
+        TestConfiguration.Site1_List1_URL, null);
+    list1.setBiggestID(10);
+    assertFalse(list1.isFed("5"));
+
+    list1.addToFedIDs("5");
+    list1.addToFedIDs("7");
+    list1.addToDeleteCache("7");
+    assertTrue(list1.isFed("5"));
+    assertFalse(list1.isFed("7"));
+    assertFalse(list1.isFed("{GUID}"));
+  }
+
   public void testExtraIDs() throws SharepointException {
     System.out.println("Testing ExtraIDs handling...");
     final ListState state = new ListState("", "", "", null, "", "", null);
@@ -355,4 +388,118 @@ public class ListStateTest extends TestCase {
     // Verify List crawl queue is not modified
     assertEquals(ImmutableList.of(document1), list.getCrawlQueue());
   }
+
+  public void testFieldNamesKeptWhenListModified() throws SharepointException {
+    Calendar cal1 = Calendar.getInstance();
+    Calendar cal2 = Calendar.getInstance();
+    cal2.add(Calendar.MINUTE, 1);
+    List<String> fieldNames = ImmutableList.of("Title", "Author");
+
+    ListState list = new ListState("{GUID_LIST_1}", "List1", "GenericList",
+        cal1, "List", "http://sharepoint.example.com/List1/AllItems.aspx",
+        null);
+    list.setFieldNames(fieldNames);
+    list.setSchemaVersion("3");
+    list.saveNextChangeTokenForWSCall("1;3;guid;1;1");
+    list.commitChangeTokenForWSCall();
+    list.updateList(new ListState("{GUID_LIST_1}", "List1", "GenericList",
+        cal2, "List", "http://sharepoint.example.com/List1/AllItems.aspx",
+        null));
+    assertEquals(fieldNames, list.getFieldNames());
+    assertEquals("3", list.getSchemaVersion());
+
+    // Without a change token, the schema is not returned with the changes.
+    ListState noToken = new ListState("{GUID_LIST_1}", "List1",
+        "GenericList", cal1, "List",
+        "http://sharepoint.example.com/List1/AllItems.aspx", null);
+    noToken.setFieldNames(fieldNames);
+    noToken.setSchemaVersion("3");
+    noToken.updateList(new ListState("{GUID_LIST_1}", "List1", "GenericList",
+        cal2, "List", "http://sharepoint.example.com/List1/AllItems.aspx",
+        null));
+    assertNull(noToken.getFieldNames());
+    assertNull(noToken.getSchemaVersion());
+  }
+  public void testRemoveDocsFromCrawlQueue() throws SharepointException {
+    ListState list = new ListState("{GUID_LIST_1}", "List1", "GenericList",
+        Calendar.getInstance(), "List",
+        "http://sharepoint.example.com/List1/AllItems.aspx", null);
+    List<SPDocument> docs = new ArrayList<SPDocument>();
+    for (int i = 0; i < 6; i++) {
+      docs.add(new SPDocument("LIST_ITEM_" + i,
+          "http://sharepoint.example.com/List1/DispForm.aspx?ID=" + i,
+          Calendar.getInstance(), SpiConstants.ActionType.ADD));
+    }
+    list.setCrawlQueue(docs);
+
+    // The head of the queue, then a document further down.
+    list.removeDocsFromCrawlQueue(
+        ImmutableList.of(docs.get(0), docs.get(1), docs.get(4)));
+    assertEquals(ImmutableList.of(docs.get(2), docs.get(3), docs.get(5)),
+        list.getCrawlQueue());
+
+    // A document that is not in the queue is skipped.
+    SPDocument missing = new SPDocument("LIST_ITEM_9",
+        "http://sharepoint.example.com/List1/DispForm.aspx?ID=9",
+        Calendar.getInstance(), SpiConstants.ActionType.ADD);
+    list.removeDocsFromCrawlQueue(ImmutableList.of(missing, docs.get(3)));
+    assertEquals(ImmutableList.of(docs.get(2), docs.get(5)),
+        list.getCrawlQueue());
+
+    list.removeDocsFromCrawlQueue(ImmutableList.of(docs.get(2), docs.get(5)));
+    assertNotNull(list.getCrawlQueue());
+    assertTrue(list.isCrawlQueueEmpty());
+  }
+
+  public void testLastDocForWSRefresh() throws SharepointException {
+    ListState list = new ListState("{GUID_LIST_1}", "List1", "GenericList",
+        Calendar.getInstance(), "List",
+        "http://sharepoint.example.com/List1/AllItems.aspx", null);
+    Calendar lastMod = Calendar.getInstance();
+    List<SPDocument> docs = new ArrayList<SPDocument>();
+    for (int i = 0; i < 4; i++) {
+      docs.add(new SPDocument(String.valueOf(i),
+          "http://sharepoint.example.com/List1/DispForm.aspx?ID=" + i,
+          lastMod, (i == 3) ? ActionType.DELETE : ActionType.ADD));
+    }
+    list.setLastDocProcessed(docs.get(0));
+    list.setCrawlQueue(docs.subList(1, 4));
+    assertSame(docs.get(2), list.getLastDocForWSRefresh());
+
+    list.removeDocsFromCrawlQueue(ImmutableList.of(docs.get(2)));
+    assertSame(docs.get(1), list.getLastDocForWSRefresh());
+
+    list.removeDocsFromCrawlQueue(ImmutableList.of(docs.get(1)));
+    assertSame(docs.get(0), list.getLastDocForWSRefresh());
+
+    // A document queued later is the last one again.
+    SPDocument added = new SPDocument("4",
+        "http://sharepoint.example.com/List1/DispForm.aspx?ID=4",
+        lastMod, ActionType.ADD);
+    list.setCrawlQueue(ImmutableList.of(docs.get(3), added));
+    assertSame(added, list.getLastDocForWSRefresh());
+  }
+
+  public void testCrawlQueueWithSharedDocId() throws SharepointException {
+    ListState list = new ListState("{GUID_LIST_1}", "List1", "GenericList",
+        Calendar.getInstance(), "List",
+        "http://sharepoint.example.com/List1/AllItems.aspx", null);
+    SPDocument deleted = new SPDocument("LIST_ITEM_1",
+        "http://sharepoint.example.com/List1/DispForm.aspx?ID=1",
+        Calendar.getInstance(), SpiConstants.ActionType.DELETE);
+    SPDocument other = new SPDocument("LIST_ITEM_2",
+        "http://sharepoint.example.com/List1/DispForm.aspx?ID=2",
+        Calendar.getInstance(), SpiConstants.ActionType.ADD);
+    SPDocument added = new SPDocument("LIST_ITEM_1",
+        "http://sharepoint.example.com/List1/Renamed/DispForm.aspx?ID=1",
+        Calendar.getInstance(), SpiConstants.ActionType.ADD);
+    list.setCrawlQueue(ImmutableList.of(deleted, other, added));
+    assertEquals(ImmutableList.of(deleted, other, added),
+        list.getCrawlQueue());
+
+    list.removeDocFromCrawlQueue(added);
+    assertEquals(ImmutableList.of(deleted, other), list.getCrawlQueue());
+    list.removeDocsFromCrawlQueue(ImmutableList.of(deleted, other));
+    assertTrue(list.isCrawlQueueEmpty());
+  }
 }
@@ -0,0 +1,190 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Simulates the crawl of a farm whose webs change at different rates, and
+ * measures how long changes wait before they are crawled under a web
+ * scheduling policy.
+ * <p/>
+ * One web in 50 is a busy team site with 30 changes an hour, one in 10 has
+ * 2 changes an hour, and the others are dormant with a change every two
+ * days. Every ten minutes a batch traversal crawls a fixed number of webs,
+ * as when the batch hint is reached, and starts the next traversal at the
+ * last web crawled.
+ * <p/>
+ * Not run as part of the tests; run with
+ * {@code java -cp <test classpath> ...WebSchedulingSimulation [webs]}.
+ */
+public class WebSchedulingSimulation {
+  static final long CYCLE_MILLIS = 10 * 60 * 1000L;
+  private static final double MILLIS_PER_HOUR = 60 * 60 * 1000;
+  private static final long START_MILLIS = 1300000000000L;
+
+  /** The outcome of a simulation. */
+  static class Result {
+    /** The median time from a change to the crawl of its web. */
+    long medianLagMillis;
+    /** The longest time a web went without being crawled. */
+    long maxStalenessMillis;
+    int changes;
+
+    @Override
+    public String toString() {
+      return changes + " changes, median lag "
+          + (medianLagMillis / 60000) + " min, max staleness "
+          + (maxStalenessMillis / 60000) + " min";
+    }
+  }
+
+  private final GlobalState globalState;
+  private final List<WebState> webs = new ArrayList<WebState>();
+  private final double[] changesPerHour;
+
+  /**
+   * Builds a farm of webs in a new state.
+   */
+  WebSchedulingSimulation(int count) throws Exception {
+    MockClientFactory clientFactory = new MockClientFactory();
+    SharepointClientContext clientContext =
+        TestConfiguration.initContext(clientFactory);
+    globalState = new GlobalState(clientFactory,
+        TestConfiguration.googleConnectorWorkDir, FeedType.CONTENT_FEED);
+    changesPerHour = new double[count];
+    for (int i = 0; i < count; i++) {
+      webs.add(globalState.makeWebState(clientContext,
+          "http://example.com/sites/web" + i));
+      if (i % 50 == 7) {
+        changesPerHour[i] = 30;
+      } else if (i % 10 == 3) {
+        changesPerHour[i] = 2;
+      } else {
+        changesPerHour[i] = 0.02;
+      }
+    }
+  }
+
+  /**
+   * Runs the crawl of the farm.
+   *
+   * @param policy the scheduling policy
+   * @param websPerCycle the number of webs crawled in each batch traversal
+   * @param cycles the number of batch traversals
+   * @param seed the seed of the changes made
+   */
+  Result run(WebSchedulingPolicy policy, int websPerCycle, int cycles,
+      long seed) {
+    Random random = new Random(seed);
+    Map<WebState, Integer> index = new IdentityHashMap<WebState, Integer>();
+    List<List<Long>> pending = new ArrayList<List<Long>>();
+    long[] lastCrawl = new long[webs.size()];
+    for (int i = 0; i < webs.size(); i++) {
+      index.put(webs.get(i), i);
+      pending.add(new ArrayList<Long>());
+      lastCrawl[i] = START_MILLIS;
+      webs.get(i).setVisit(0, -1);
+    }
+    globalState.setCurrentWeb(null);
+
+    List<Long> lags = new ArrayList<Long>();
+    long maxStaleness = 0;
+    long now = START_MILLIS;
+    for (int cycle = 0; cycle < cycles; cycle++) {
+      now += CYCLE_MILLIS;
+      for (int i = 0; i < webs.size(); i++) {
+        int changes = poisson(
+            changesPerHour[i] * CYCLE_MILLIS / MILLIS_PER_HOUR, random);
+        for (int j = 0; j < changes; j++) {
+          pending.get(i).add(now - (long) (random.nextDouble() * CYCLE_MILLIS));
+        }
+      }
+
+      Iterator<WebState> order = policy.getTraversalOrder(globalState, now);
+      WebState lastWeb = null;
+      for (int crawled = 0; crawled < websPerCycle && order.hasNext();
+          crawled++) {
+        WebState web = order.next();
+        int i = index.get(web);
+        for (long changeTime : pending.get(i)) {
+          lags.add(now - changeTime);
+        }
+        web.addObservedChanges(pending.get(i).size());
+        pending.get(i).clear();
+        maxStaleness = Math.max(maxStaleness, now - lastCrawl[i]);
+        lastCrawl[i] = now;
+        policy.recordVisit(web, web.getObservedChanges(), now);
+        lastWeb = web;
+      }
+      globalState.setCurrentWeb(lastWeb);
+    }
+
+    // Changes not crawled yet count with the time they have waited so far.
+    for (int i = 0; i < webs.size(); i++) {
+      for (long changeTime : pending.get(i)) {
+        lags.add(now - changeTime);
+      }
+      maxStaleness = Math.max(maxStaleness, now - lastCrawl[i]);
+    }
+    Collections.sort(lags);
+    Result result = new Result();
+    result.changes = lags.size();
+    result.medianLagMillis = lags.isEmpty() ? 0 : lags.get(lags.size() / 2);
+    result.maxStalenessMillis = maxStaleness;
+    return result;
+  }
+
+  private static int poisson(double mean, Random random) {
+    double limit = Math.exp(-mean);
+    double product = random.nextDouble();
+    int count = 0;
+    while (product > limit) {
+      product *= random.nextDouble();
+      count++;
+    }
+    return count;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Logger.getLogger("").setLevel(Level.WARNING);
+    int count = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+    WebSchedulingSimulation farm = new WebSchedulingSimulation(count);
+    ChangeRateSchedulingPolicy changeRate = new ChangeRateSchedulingPolicy();
+    changeRate.setMaxStalenessSeconds(8 * 60 * 60);
+    // Two days, crawling a twentieth of the webs in each batch traversal.
+    int cycles = 2 * 24 * 6;
+    for (long seed = 1; seed <= 3; seed++) {
+      System.out.println(count + " webs, round-robin: "
+          + farm.run(new RoundRobinSchedulingPolicy(), count / 20, cycles,
+              seed));
+      System.out.println(count + " webs, change rate:  "
+          + farm.run(changeRate, count / 20, cycles, seed));
+    }
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.wsclient.handlers;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local HTTP server standing in for SharePoint. It serves the same
+ * response to every request, compressed with its encoding when the request
+ * accepts it.
+ */
+public class CompressingHttpServer {
+  private final HttpServer server;
+  private final List<String> acceptEncodings =
+      Collections.synchronizedList(new ArrayList<String>());
+  private volatile String contentType = "text/plain";
+  private volatile byte[] body = new byte[0];
+  private volatile String encoding;
+  private volatile int lastLength;
+
+  public CompressingHttpServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        while (in.read() != -1) {
+        }
+        String accept = exchange.getRequestHeaders().getFirst(
+            "Accept-Encoding");
+        acceptEncodings.add(accept);
+        byte[] response = body;
+        if (encoding != null && accept != null && accept.contains(encoding)) {
+          response = compress(body, encoding);
+          exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        }
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        lastLength = response.length;
+        exchange.sendResponseHeaders(200, response.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(response);
+        out.close();
+      }
+    });
+    server.start();
+  }
+
+  /** @return the URL of the server, without a trailing slash */
+  public String getUrl() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  public void setResponse(String contentType, byte[] body) {
+    this.contentType = contentType;
+    this.body = body;
+  }
+
+  /**
+   * @param encoding gzip or deflate, or null for uncompressed responses
+   */
+  public void setEncoding(String encoding) {
+    this.encoding = encoding;
+  }
+
+  /** @return the Accept-Encoding of each request, null if there was none */
+  public List<String> getAcceptEncodings() {
+    return acceptEncodings;
+  }
+
+  /** @return the size of the last response, as sent */
+  public int getLastLength() {
+    return lastLength;
+  }
+
+  public void stop() {
+    server.stop(0);
+  }
+
+  static byte[] compress(byte[] data, String encoding) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputStream out = encoding.equals("gzip")
+        ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes);
+    out.write(data);
+    out.close();
+    return bytes.toByteArray();
+  }
+}
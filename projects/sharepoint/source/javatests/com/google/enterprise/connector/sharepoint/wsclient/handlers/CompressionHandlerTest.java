@@ -0,0 +1,175 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.wsclient.handlers;
+
+import com.google.enterprise.connector.sharepoint.TestConfiguration;
+import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
+import com.google.enterprise.connector.sharepoint.wsclient.mock.MockClientFactory;
+import com.google.enterprise.connector.sharepoint.wsclient.soap.SPSiteDataWS;
+
+import org.apache.axis.client.Call;
+import org.apache.axis.transport.http.HTTPTransport;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class CompressionHandlerTest extends TestCase {
+  private static final String SITE_METADATA;
+
+  static {
+    StringBuilder site = new StringBuilder("<Site><Metadata URL=\"x\" ");
+    for (int i = 0; i < 500; i++) {
+      site.append("Attribute" + i + "=\"value\" ");
+    }
+    SITE_METADATA = site.append("/></Site>").toString();
+  }
+
+  private CompressingHttpServer server;
+  private SharepointClientContext clientContext;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new CompressingHttpServer();
+    server.setResponse("text/xml; charset=utf-8", ("<?xml version=\"1.0\" "
+        + "encoding=\"utf-8\"?><soap:Envelope xmlns:soap="
+        + "\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+        + "<GetContentResponse xmlns="
+        + "\"http://schemas.microsoft.com/sharepoint/soap/\">"
+        + "<GetContentResult>" + SITE_METADATA.replace("<", "&lt;")
+            .replace(">", "&gt;").replace("\"", "&quot;")
+        + "</GetContentResult></GetContentResponse></soap:Body>"
+        + "</soap:Envelope>").getBytes("UTF-8"));
+    // Other tests replace the HTTP transport.
+    Call.setTransportForProtocol("http", HTTPTransport.class);
+    clientContext = TestConfiguration.initContext(new MockClientFactory());
+    clientContext.setSiteURL(server.getUrl());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop();
+  }
+
+  public void testCompressedSoapResponse() throws Exception {
+    server.setEncoding("gzip");
+    clientContext.setUseCompression(true);
+    CompressionHandler.Stats stats =
+        CompressionHandler.getStats("SiteData.asmx");
+    long responses = stats.responses.get();
+    long compressedBytes = stats.compressedBytes.get();
+
+    assertEquals(SITE_METADATA,
+        new SPSiteDataWS(clientContext).getContentSiteCollection());
+    assertEquals("gzip", server.getAcceptEncodings().get(0));
+    assertEquals(responses + 1, stats.responses.get());
+    assertEquals(compressedBytes + server.getLastLength(),
+        stats.compressedBytes.get());
+  }
+
+  public void testUncompressedSoapResponse() throws Exception {
+    server.setEncoding("gzip");
+    assertEquals(SITE_METADATA,
+        new SPSiteDataWS(clientContext).getContentSiteCollection());
+    assertNull(server.getAcceptEncodings().get(0));
+  }
+
+  public void testServerIgnoresCompression() throws Exception {
+    clientContext.setUseCompression(true);
+    assertEquals(SITE_METADATA,
+        new SPSiteDataWS(clientContext).getContentSiteCollection());
+    assertEquals("gzip", server.getAcceptEncodings().get(0));
+  }
+
+  public void testDecompress() throws Exception {
+    byte[] data = SITE_METADATA.getBytes("UTF-8");
+    assertDecompressed(data, "gzip",
+        CompressingHttpServer.compress(data, "gzip"));
+    assertDecompressed(data, "x-gzip",
+        CompressingHttpServer.compress(data, "gzip"));
+    assertDecompressed(data, "Deflate",
+        CompressingHttpServer.compress(data, "deflate"));
+    assertDecompressed(data, "identity", data);
+    assertDecompressed(data, null, data);
+
+    // Raw deflate data, without the zlib header.
+    ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    DeflaterOutputStream out = new DeflaterOutputStream(raw,
+        new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    out.write(data);
+    out.close();
+    assertDecompressed(data, "deflate", raw.toByteArray());
+  }
+
+  public void testDecompressRecordsRatio() throws Exception {
+    byte[] data = SITE_METADATA.getBytes("UTF-8");
+    byte[] compressed = CompressingHttpServer.compress(data, "gzip");
+    CompressionHandler.Stats stats =
+        CompressionHandler.getStats(CompressionHandler.CONTENT_SERVICE);
+    long responses = stats.responses.get();
+    long compressedBytes = stats.compressedBytes.get();
+    long bytes = stats.bytes.get();
+
+    InputStream in = CompressionHandler.decompress(
+        new ByteArrayInputStream(compressed), "gzip");
+    read(in);
+    in.close();
+    assertEquals(responses + 1, stats.responses.get());
+    assertEquals(compressedBytes + compressed.length,
+        stats.compressedBytes.get());
+    assertEquals(bytes + data.length, stats.bytes.get());
+  }
+
+  public void testUnsupportedEncoding() throws Exception {
+    try {
+      CompressionHandler.decompress(new ByteArrayInputStream(new byte[0]),
+          "compress");
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  public void testGetServiceName() {
+    assertEquals("Lists.asmx", CompressionHandler.getServiceName(
+        "http://example.com/site/_vti_bin/Lists.asmx"));
+    assertEquals("GssAcl.asmx", CompressionHandler.getServiceName(
+        "http://example.com/_vti_bin/GssAcl.asmx?WSDL"));
+  }
+
+  private void assertDecompressed(byte[] expected, String encoding,
+      byte[] data) throws IOException {
+    InputStream in = CompressionHandler.decompress(
+        new ByteArrayInputStream(data), encoding);
+    assertEquals(new String(expected, "UTF-8"),
+        new String(read(in), "UTF-8"));
+    in.close();
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+}